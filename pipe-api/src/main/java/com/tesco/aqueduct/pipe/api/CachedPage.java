@@ -0,0 +1,28 @@
+package com.tesco.aqueduct.pipe.api;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Unmodifiable page of messages held by a reader's page cache. The same instance is handed out to every read of the
+ * page, so anything derived from it, like an encoded response, can be kept for as long as the reader keeps the page.
+ */
+public final class CachedPage extends AbstractList<Message> implements RandomAccess {
+
+    private final List<Message> messages;
+
+    public CachedPage(final List<Message> messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public Message get(final int index) {
+        return messages.get(index);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+}
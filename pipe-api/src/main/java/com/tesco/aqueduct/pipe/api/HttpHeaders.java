@@ -6,4 +6,8 @@ public class HttpHeaders {
     public static final String GLOBAL_LATEST_OFFSET = "Global-Latest-Offset";
     public static final String PIPE_STATE = "Pipe-State";
     public static final String X_CONTENT_ENCODING = "X-Content-Encoding";
+    public static final String X_ZSTD_DICTIONARY = "X-Zstd-Dictionary";
+    public static final String LONG_POLL_WAIT_MS = "Long-Poll-Wait-Ms";
+    public static final String ETAG = "ETag";
+    public static final String IF_NONE_MATCH = "If-None-Match";
 }
@@ -1,18 +1,33 @@
 package com.tesco.aqueduct.pipe.api;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.fasterxml.jackson.databind.type.CollectionType;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Helper to use one way of parsing Message across the pipe projects
@@ -21,6 +36,14 @@ public class JsonHelper {
     // it should not be public, is because of the way we limiting response size
     public static final ObjectMapper MAPPER = configureObjectMapper(new ObjectMapper());
 
+    public static final String SMILE_MEDIA_TYPE = "application/x-jackson-smile";
+
+    /**
+     * Smile, the binary equivalent of JSON, refers back to field names already written instead of repeating them.
+     * Offsets are written as numbers and created as nanoseconds since the epoch, which decode in UTC.
+     */
+    public static final ObjectMapper SMILE_MAPPER = configureObjectMapper(new ObjectMapper(new SmileFactory()))
+        .addMixIn(Message.class, SmileMessage.class);
 
     public static ObjectMapper configureObjectMapper(final ObjectMapper mapper) {
         return mapper.registerModule(new JavaTimeModule())
@@ -56,6 +79,18 @@ public class JsonHelper {
         }
     }
 
+    public static List<Message> messageFromJsonArray(final InputStream json) {
+        try {
+            return MAPPER.readValue(json, messageListType);
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while mapping stream to Messages", ioException);
+        }
+    }
+
+    public static MessageStream messageStreamFromJsonArray(final InputStream json) {
+        return messageStream(MAPPER, json);
+    }
+
     public static String toJson(final Object msg) throws IOException {
         return MAPPER.writeValueAsString(msg);
     }
@@ -68,6 +103,140 @@ public class JsonHelper {
         }
     }
 
+    /**
+     * Length of {@link #toJson(Object)} of the message, counted without serializing it. Follows what MAPPER writes:
+     * empty fields are left out, the offset is a string, created is ISO formatted with its offset and strings are
+     * escaped the way Jackson escapes them.
+     */
+    public static int jsonLength(final Message message) {
+        // braces, plus a separator between each pair of fields
+        int length = 2;
+        int fields = 0;
+
+        if (isNotEmpty(message.getType())) {
+            length += fieldLength("type") + stringLength(message.getType());
+            fields++;
+        }
+        if (isNotEmpty(message.getKey())) {
+            length += fieldLength("key") + stringLength(message.getKey());
+            fields++;
+        }
+        if (isNotEmpty(message.getContentType())) {
+            length += fieldLength("contentType") + stringLength(message.getContentType());
+            fields++;
+        }
+        if (message.getOffset() != null) {
+            length += fieldLength("offset") + 2 + Long.toString(message.getOffset()).length();
+            fields++;
+        }
+        if (message.getCreated() != null) {
+            length += fieldLength("created") + 2 + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(message.getCreated()).length();
+            fields++;
+        }
+        if (isNotEmpty(message.getData())) {
+            length += fieldLength("data") + stringLength(message.getData());
+            fields++;
+        }
+
+        return fields == 0 ? length : length + fields - 1;
+    }
+
+    private static boolean isNotEmpty(final String value) {
+        return value != null && !value.isEmpty();
+    }
+
+    // quoted name and colon
+    private static int fieldLength(final String name) {
+        return name.length() + 3;
+    }
+
+    // quoted value, quotes, backslashes and control characters escaped
+    private static int stringLength(final String value) {
+        int length = value.length() + 2;
+        for (int i = 0; i < value.length(); i++) {
+            final char character = value.charAt(i);
+            if (character == '"' || character == '\\') {
+                length += 1;
+            } else if (character < 0x20) {
+                length += isShortEscape(character) ? 1 : 5;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isShortEscape(final char character) {
+        return character == '\b' || character == '\t' || character == '\n' || character == '\f' || character == '\r';
+    }
+
+    public static void writeJson(final OutputStream outputStream, final List<Message> messages) {
+        try {
+            MAPPER.writeValue(outputStream, messages);
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while writing messages", ioException);
+        }
+    }
+
+    public static List<Message> messageFromSmileArray(final byte[] smile) {
+        try {
+            return SMILE_MAPPER.readValue(smile, messageListType);
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while mapping bytes to Messages", ioException);
+        }
+    }
+
+    public static List<Message> messageFromSmileArray(final InputStream smile) {
+        try {
+            return SMILE_MAPPER.readValue(smile, messageListType);
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while mapping stream to Messages", ioException);
+        }
+    }
+
+    public static MessageStream messageStreamFromSmileArray(final InputStream smile) {
+        return messageStream(SMILE_MAPPER, smile);
+    }
+
+    // a reader for single messages iterates the elements of the array at the root
+    private static MessageStream messageStream(final ObjectMapper mapper, final InputStream input) {
+        try {
+            return new MessageStream(mapper.readerFor(Message.class).readValues(input));
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while mapping stream to Messages", ioException);
+        }
+    }
+
+    public static MessageWriter messageWriterToJson(final OutputStream outputStream) {
+        return messageWriter(MAPPER, outputStream);
+    }
+
+    public static MessageWriter messageWriterToSmile(final OutputStream outputStream) {
+        return messageWriter(SMILE_MAPPER, outputStream);
+    }
+
+    private static MessageWriter messageWriter(final ObjectMapper mapper, final OutputStream output) {
+        try {
+            return new MessageWriter(mapper.getFactory().createGenerator(output));
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while writing messages", ioException);
+        }
+    }
+
+    public static void writeSmile(final OutputStream outputStream, final List<Message> messages) {
+        try {
+            SMILE_MAPPER.writeValue(outputStream, messages);
+        } catch (final IOException ioException) {
+            throw new RuntimeException("IO Error while writing messages", ioException);
+        }
+    }
+
+    public static byte[] toSmileBytes(final Object obj) {
+        try {
+            return SMILE_MAPPER.writeValueAsBytes(obj);
+        } catch (final JsonProcessingException jsonProcessingException) {
+            throw new RuntimeException("Smile processing error while mapping object", jsonProcessingException);
+        }
+    }
+
     public static byte[] toJsonBytes(final Object obj) {
         try {
             return MAPPER.writeValueAsBytes(obj);
@@ -75,4 +244,36 @@ public class JsonHelper {
             throw new RuntimeException("Json processing error while mapping object", jsonProcessingException);
         }
     }
+
+    private abstract static class SmileMessage {
+        @JsonSerialize
+        private Long offset;
+
+        @JsonSerialize(using = EpochNanosSerializer.class)
+        @JsonDeserialize(using = EpochNanosDeserializer.class)
+        private ZonedDateTime created;
+    }
+
+    private static class EpochNanosSerializer extends StdSerializer<ZonedDateTime> {
+        EpochNanosSerializer() {
+            super(ZonedDateTime.class);
+        }
+
+        @Override
+        public void serialize(final ZonedDateTime value, final JsonGenerator generator, final SerializerProvider provider)
+            throws IOException {
+            generator.writeNumber(TimeUnit.SECONDS.toNanos(value.toEpochSecond()) + value.getNano());
+        }
+    }
+
+    private static class EpochNanosDeserializer extends StdDeserializer<ZonedDateTime> {
+        EpochNanosDeserializer() {
+            super(ZonedDateTime.class);
+        }
+
+        @Override
+        public ZonedDateTime deserialize(final JsonParser parser, final DeserializationContext context) throws IOException {
+            return Instant.ofEpochSecond(0, parser.getLongValue()).atZone(ZoneOffset.UTC);
+        }
+    }
 }
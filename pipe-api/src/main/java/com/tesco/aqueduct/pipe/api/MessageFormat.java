@@ -0,0 +1,59 @@
+package com.tesco.aqueduct.pipe.api;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Representations of a batch of messages on the wire. JSON is the default, Smile is only used when asked for in
+ * the Accept header, so nodes that don't know about it keep getting JSON.
+ */
+public enum MessageFormat {
+    JSON("application/json"),
+    SMILE(JsonHelper.SMILE_MEDIA_TYPE);
+
+    private final String mediaType;
+
+    MessageFormat(final String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @param contentType value of a Content-Type header, null when missing
+     */
+    public static MessageFormat fromContentType(final String contentType) {
+        return contentType != null && contentType.contains(JsonHelper.SMILE_MEDIA_TYPE) ? SMILE : JSON;
+    }
+
+    public void write(final OutputStream outputStream, final List<Message> messages) {
+        if (this == SMILE) {
+            JsonHelper.writeSmile(outputStream, messages);
+        } else {
+            JsonHelper.writeJson(outputStream, messages);
+        }
+    }
+
+    public MessageWriter messageWriterTo(final OutputStream outputStream) {
+        return this == SMILE ? JsonHelper.messageWriterToSmile(outputStream) : JsonHelper.messageWriterToJson(outputStream);
+    }
+
+    public byte[] toBytes(final List<Message> messages) {
+        return this == SMILE ? JsonHelper.toSmileBytes(messages) : JsonHelper.toJsonBytes(messages);
+    }
+
+    public List<Message> messagesFrom(final byte[] body) {
+        return this == SMILE ? JsonHelper.messageFromSmileArray(body) : JsonHelper.messageFromJsonArray(body);
+    }
+
+    public List<Message> messagesFrom(final InputStream body) {
+        return this == SMILE ? JsonHelper.messageFromSmileArray(body) : JsonHelper.messageFromJsonArray(body);
+    }
+
+    public MessageStream messageStreamFrom(final InputStream body) {
+        return this == SMILE ? JsonHelper.messageStreamFromSmileArray(body) : JsonHelper.messageStreamFromJsonArray(body);
+    }
+}
@@ -0,0 +1,75 @@
+package com.tesco.aqueduct.pipe.api;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.OptionalLong;
+
+/**
+ * Messages parsed one at a time as they are iterated, so a batch is never held in full. It can only be iterated once
+ * and closing it closes the stream parsed.
+ */
+public class MessageStream implements Iterable<Message>, Closeable {
+
+    private final MappingIterator<Message> iterator;
+    private boolean iterated = false;
+    private long count = 0;
+    private long lastOffset = -1;
+
+    MessageStream(final MappingIterator<Message> iterator) {
+        this.iterator = iterator;
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("Messages can only be iterated once");
+        }
+        iterated = true;
+
+        return new Iterator<Message>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Message next() {
+                if (!iterator.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Message message = iterator.next();
+                count++;
+                lastOffset = message.getOffset();
+                return message;
+            }
+        };
+    }
+
+    /**
+     * @return number of messages iterated so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return offset of the last message iterated so far, empty when none was
+     */
+    public OptionalLong getLastOffset() {
+        return count == 0 ? OptionalLong.empty() : OptionalLong.of(lastOffset);
+    }
+
+    @Override
+    public void close() {
+        try {
+            iterator.close();
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.tesco.aqueduct.pipe.api;
+
+import lombok.Value;
+
+import java.io.Closeable;
+import java.util.OptionalLong;
+
+/**
+ * Results of a read with the messages parsed as they are iterated, to be closed once they are.
+ */
+@Value
+public class MessageStreamResults implements Closeable {
+    MessageStream messages;
+    long retryAfterMs;
+    OptionalLong globalLatestOffset;
+    PipeState pipeState;
+
+    @Override
+    public void close() {
+        messages.close();
+    }
+}
@@ -0,0 +1,33 @@
+package com.tesco.aqueduct.pipe.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes a batch as an array one message at a time, so the batch never has to be serialised in full before it is
+ * sent. Closing it ends the array and closes the stream written to.
+ */
+public class MessageWriter implements Closeable {
+
+    private final JsonGenerator generator;
+
+    MessageWriter(final JsonGenerator generator) throws IOException {
+        this.generator = generator;
+        generator.writeStartArray();
+    }
+
+    public void write(final Message message) throws IOException {
+        generator.writeObject(message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            generator.writeEndArray();
+        } finally {
+            generator.close();
+        }
+    }
+}
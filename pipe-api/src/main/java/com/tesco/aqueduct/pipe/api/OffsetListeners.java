@@ -0,0 +1,27 @@
+package com.tesco.aqueduct.pipe.api;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Listeners notified when the latest offset of a reader advances. Offsets no higher than one already published are
+ * ignored.
+ */
+public class OffsetListeners {
+
+    private final List<LongConsumer> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong latestOffset = new AtomicLong(-1);
+
+    public void add(final LongConsumer listener) {
+        listeners.add(listener);
+    }
+
+    public void advance(final long offset) {
+        final long previous = latestOffset.getAndAccumulate(offset, Math::max);
+        if (offset > previous) {
+            listeners.forEach(listener -> listener.accept(offset));
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.tesco.aqueduct.pipe.api;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.function.LongConsumer;
 
 public interface Reader {
     MessageResults read(List<String> types, long offset, String locationUuid);
@@ -13,4 +15,23 @@ public interface Reader {
     default void runVisibilityCheck() {
         //null op
     };
+
+    /**
+     * Registers a listener called with the latest offset whenever it advances. Listeners are called on the thread
+     * advancing the offset, so they should hand off anything slow.
+     *
+     * @return false when this reader doesn't notify offset advances
+     */
+    default boolean addOffsetListener(LongConsumer listener) {
+        return false;
+    }
+
+    /**
+     * Answers reads starting past the latest offset from memory, without going to storage.
+     *
+     * @return the empty page for the offset, or empty when the read has to go to storage
+     */
+    default Optional<MessageResults> readCaughtUp(long offset) {
+        return Optional.empty();
+    }
 }
@@ -1,5 +1,9 @@
 package com.tesco.aqueduct.pipe.api;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface Writer {
 
     /**
@@ -13,6 +17,31 @@ public interface Writer {
 
     void write(PipeEntity pipeEntity);
 
+    /**
+     * Writes messages as they are iterated, with the offsets and pipe state, like a pipe entity. Messages are only
+     * iterated once, so they can be parsed as they are written.
+     */
+    default void write(Iterable<Message> messages, List<OffsetEntity> offsets, PipeState pipeState) {
+        final List<Message> messageList = new ArrayList<>();
+        messages.forEach(messageList::add);
+        write(new PipeEntity(messageList, offsets, pipeState));
+    }
+
+    /**
+     * Writes like {@link #write(Iterable, List, PipeState)}, without waiting for the write where the writer allows.
+     * Messages have to stay iterable until the returned future completes.
+     */
+    default CompletableFuture<Void> writeAsync(Iterable<Message> messages, List<OffsetEntity> offsets, PipeState pipeState) {
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+        try {
+            write(messages, offsets, pipeState);
+            written.complete(null);
+        } catch (RuntimeException exception) {
+            written.completeExceptionally(exception);
+        }
+        return written;
+    }
+
     @Deprecated
     void write(Message message);
 
@@ -3,6 +3,7 @@ package com.tesco.aqueduct.pipe.api
 
 import spock.lang.Specification
 
+import java.time.ZoneId
 import java.time.ZoneOffset
 import java.time.ZonedDateTime
 
@@ -89,4 +90,98 @@ class MessageSpec extends Specification {
         m.offset == 1
         m.created == ZonedDateTime.parse("2018-10-01T13:45:00Z")
     }
+
+    def "messages written as smile are read back the same, with offsets as numbers and created in UTC"() {
+        given:
+        def messages = [
+            new Message("type1", "key1", "application/json", 123, ZonedDateTime.parse("2018-11-04T08:57:45.123456789+01:00"), "data1"),
+            new Message("type1", "key2", null, 124, ZonedDateTime.parse("2018-11-04T08:57:46Z"), null)
+        ]
+
+        when:
+        def smile = MessageFormat.SMILE.toBytes(messages)
+
+        then:
+        MessageFormat.SMILE.messagesFrom(smile) == [
+            messages[0].withCreated(ZonedDateTime.parse("2018-11-04T07:57:45.123456789Z")),
+            messages[1]
+        ]
+
+        and: "it is smaller than the same messages in json"
+        smile.length < MessageFormat.JSON.toBytes(messages).length
+    }
+
+    def "format is picked from the content type, defaulting to json"() {
+        expect:
+        MessageFormat.fromContentType(contentType) == format
+
+        where:
+        contentType                   | format
+        "application/x-jackson-smile" | MessageFormat.SMILE
+        "application/json"            | MessageFormat.JSON
+        null                          | MessageFormat.JSON
+    }
+
+    def "messages are streamed one at a time in #format"() {
+        given:
+        def messages = (1..3).collect {
+            new Message("type1", "key" + it, "application/json", it, ZonedDateTime.parse("2018-11-04T08:57:46Z"), "data")
+        }
+
+        when:
+        def stream = format.messageStreamFrom(new ByteArrayInputStream(format.toBytes(messages)))
+        def iterator = stream.iterator()
+        def first = iterator.next()
+
+        then: "only what was iterated is counted"
+        first == messages[0]
+        stream.count == 1
+        stream.lastOffset == OptionalLong.of(1)
+
+        when:
+        def rest = iterator.collect()
+
+        then:
+        rest == messages[1..2]
+        stream.lastOffset == OptionalLong.of(3)
+
+        when: "iterating again"
+        stream.iterator()
+
+        then:
+        thrown(IllegalStateException)
+
+        cleanup:
+        stream.close()
+
+        where:
+        format << [MessageFormat.JSON, MessageFormat.SMILE]
+    }
+
+    def "an empty page streams no messages"() {
+        when:
+        def stream = MessageFormat.JSON.messageStreamFrom(new ByteArrayInputStream("[]".bytes))
+
+        then:
+        stream.collect() == []
+        !stream.lastOffset.isPresent()
+    }
+
+    def "json length of a message is the length of it serialized"() {
+        given:
+        def message = new Message(type, key, contentType, offset, created, data)
+
+        expect:
+        JsonHelper.jsonLength(message) == JsonHelper.toJson(message).length()
+
+        where:
+        type    | key           | contentType        | offset         | created                                                                      | data
+        "type1" | "key1"        | "application/json" | 123            | ZonedDateTime.of(2018, 11, 4, 8, 57, 45, 0, ZoneOffset.UTC)                  | "data1"
+        "type1" | "key1"        | "application/json" | Long.MAX_VALUE | ZonedDateTime.of(2018, 11, 4, 8, 57, 45, 120_000_000, ZoneOffset.UTC)        | '{"a":"b\\c"}'
+        "type1" | "key\"quoted" | null               | 0              | ZonedDateTime.of(2018, 11, 4, 8, 57, 0, 1, ZoneOffset.ofHoursMinutes(5, 30)) | "line\nnext\ttab\u0001\u001f"
+        ""      | "key1"        | ""                 | -1             | ZonedDateTime.of(2018, 11, 4, 8, 57, 45, 0, ZoneId.of("Europe/London"))      | ""
+        "type1" | "ключ"        | "text/plain"       | 5              | null                                                                         | "emoji \ud83d\ude00 / \u007f"
+        null    | null          | null               | null           | null                                                                         | null
+    }
 }
+
@@ -9,9 +9,9 @@ import io.micronaut.context.annotation.Value;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Singleton;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 @Singleton
 public class BrotliCodec implements Codec {
@@ -19,6 +19,7 @@ public class BrotliCodec implements Codec {
     private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(BrotliCodec.class));
 
     private final boolean logging;
+    private final Encoder.Parameters parameters;
 
     /**
      * Allow to set compression level. It has not been tested yet on real data.
@@ -30,8 +31,7 @@ public class BrotliCodec implements Codec {
         @Value("${compression.logging:false}") boolean logging
     ) {
         loadBrotli();
-        Encoder.Parameters parameters = new Encoder.Parameters();
-        parameters.setQuality(qualityLevel);
+        this.parameters = new Encoder.Parameters().setQuality(qualityLevel);
         this.logging = logging;
     }
 
@@ -47,16 +47,13 @@ public class BrotliCodec implements Codec {
         if (logging) {
             LOG.info("pre-encode:size", String.valueOf(input.length));
         }
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try (BrotliOutputStream brotliOutputStream =
-             new BrotliOutputStream(outputStream, new Encoder.Parameters().setQuality(4))
-        ) {
-            brotliOutputStream.write(input);
+        final byte[] encodedBytes;
+        try {
+            encodedBytes = CodecBuffers.encodeAll(this, input);
         } catch (IOException ioException) {
             LOG.error("Codec", "Error encoding content", ioException);
             throw new PipeCodecException("Error encoding content", ioException);
         }
-        final byte[] encodedBytes = outputStream.toByteArray();
         if (logging) {
             LOG.info("post-encode:size", String.valueOf(encodedBytes.length));
         }
@@ -68,21 +65,24 @@ public class BrotliCodec implements Codec {
         if (input == null) {
             return null;
         }
-        try (final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-             final BrotliInputStream brotliInputStream = new BrotliInputStream(new ByteArrayInputStream(input))) {
-
-            int decodedByte=brotliInputStream.read();
-            while (decodedByte != -1) {
-                byteArrayOutputStream.write(decodedByte);
-                decodedByte = brotliInputStream.read();
-            }
-            return byteArrayOutputStream.toByteArray();
+        try {
+            return CodecBuffers.decodeAll(this, input);
         } catch (IOException ioException) {
             LOG.error("Codec", "Error decoding bytes.", ioException);
             throw new PipeCodecException("Error decoding bytes.", ioException);
         }
     }
 
+    @Override
+    public OutputStream encodingStream(OutputStream output) throws IOException {
+        return new BrotliOutputStream(output, parameters);
+    }
+
+    @Override
+    public InputStream decodingStream(InputStream input) throws IOException {
+        return new BrotliInputStream(input);
+    }
+
     @Override
     public String getHeaderType() {
         return "br";
@@ -1,9 +1,73 @@
 package com.tesco.aqueduct.pipe.codec;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 public interface Codec {
     String getHeaderType();
 
     byte[] encode(byte[] input);
 
     byte[] decode(byte[] input);
+
+    /**
+     * Wraps the output so everything written to the returned stream is encoded on the fly.
+     * Closing the returned stream finishes the encoding and closes the output.
+     *
+     * By default what is written is held until the stream is closed and then encoded in one go, codecs that can
+     * encode on the fly should override it.
+     */
+    default OutputStream encodingStream(OutputStream output) throws IOException {
+        return new ByteArrayOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    output.write(encode(toByteArray()));
+                } finally {
+                    output.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps the input so everything read from the returned stream is decoded on the fly.
+     * Closing the returned stream closes the input.
+     *
+     * By default the input is read in full and decoded in one go, codecs that can decode on the fly should
+     * override it.
+     */
+    default InputStream decodingStream(InputStream input) throws IOException {
+        try (InputStream encoded = input) {
+            return new ByteArrayInputStream(decode(CodecBuffers.readAll(encoded)));
+        }
+    }
+
+    /**
+     * Encodes the remaining bytes of the input into the output, then closes the output.
+     */
+    default void encode(ByteBuffer input, OutputStream output) throws IOException {
+        try (OutputStream encodingStream = encodingStream(output)) {
+            CodecBuffers.copy(input, encodingStream);
+        }
+    }
+
+    /**
+     * Decodes the remaining bytes of the input into the output.
+     */
+    default void decode(ByteBuffer input, OutputStream output) throws IOException {
+        try (InputStream decodingStream = decodingStream(CodecBuffers.inputStream(input))) {
+            CodecBuffers.copy(decodingStream, output);
+        }
+    }
 }
@@ -0,0 +1,139 @@
+package com.tesco.aqueduct.pipe.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Per thread buffers reused across encoding and decoding, so copying a batch through a codec doesn't allocate a
+ * buffer per call or grow an output buffer from scratch every time. Output buffers that grew past the retained size
+ * for a large batch are dropped once done with rather than kept around.
+ */
+public final class CodecBuffers {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED_OUTPUT_SIZE = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+    private static final ThreadLocal<PooledOutputStream> OUTPUT = ThreadLocal.withInitial(PooledOutputStream::new);
+
+    private CodecBuffers() {
+    }
+
+    public static long copy(InputStream input, OutputStream output) throws IOException {
+        final byte[] buffer = COPY_BUFFER.get();
+        long copied = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Writes the remaining bytes of the input to the output, straight from the backing array when there is one.
+     */
+    public static void copy(ByteBuffer input, OutputStream output) throws IOException {
+        if (input.hasArray()) {
+            output.write(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+            return;
+        }
+        final byte[] buffer = COPY_BUFFER.get();
+        while (input.hasRemaining()) {
+            final int length = Math.min(buffer.length, input.remaining());
+            input.get(buffer, 0, length);
+            output.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * @return everything read from the input, copied out of the reused output buffer
+     */
+    public static byte[] readAll(InputStream input) throws IOException {
+        final PooledOutputStream output = OUTPUT.get();
+        output.reset();
+        try {
+            copy(input, output);
+            return output.toByteArray();
+        } finally {
+            if (output.capacity() > MAX_RETAINED_OUTPUT_SIZE) {
+                OUTPUT.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the input encoded with the codec, copied out of the reused output buffer
+     */
+    public static byte[] encodeAll(Codec codec, byte[] input) throws IOException {
+        final PooledOutputStream output = OUTPUT.get();
+        output.reset();
+        try {
+            codec.encode(ByteBuffer.wrap(input), output);
+            return output.toByteArray();
+        } finally {
+            if (output.capacity() > MAX_RETAINED_OUTPUT_SIZE) {
+                OUTPUT.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the input decoded with the codec, copied out of the reused output buffer
+     */
+    public static byte[] decodeAll(Codec codec, byte[] input) throws IOException {
+        try (InputStream decodingStream = codec.decodingStream(new ByteArrayInputStream(input))) {
+            return readAll(decodingStream);
+        }
+    }
+
+    public static InputStream inputStream(ByteBuffer input) {
+        return new ByteBufferInputStream(input);
+    }
+
+    private static class PooledOutputStream extends ByteArrayOutputStream {
+        PooledOutputStream() {
+            super(COPY_BUFFER_SIZE);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
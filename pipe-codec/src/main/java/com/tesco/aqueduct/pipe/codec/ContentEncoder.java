@@ -1,52 +1,165 @@
 package com.tesco.aqueduct.pipe.codec;
 
+import com.tesco.aqueduct.pipe.api.MessageFormat;
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
 import io.micronaut.context.annotation.Property;
 import io.micronaut.http.HttpRequest;
 import lombok.Getter;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 import static com.tesco.aqueduct.pipe.api.HttpHeaders.X_CONTENT_ENCODING;
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.X_ZSTD_DICTIONARY;
+import static io.micronaut.http.HttpHeaders.ACCEPT;
 import static io.micronaut.http.HttpHeaders.ACCEPT_ENCODING;
 import static io.micronaut.http.HttpHeaders.CONTENT_ENCODING;
 
 public class ContentEncoder {
 
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ContentEncoder.class));
+
     private final int compressionThreshold;
     private final BrotliCodec brotliCodec;
     private final GzipCodec gzipCodec;
+    private final ZstdCodec zstdCodec;
+    private final boolean logging;
 
     @Inject
     public ContentEncoder(
         @Property(name = "compression.threshold-in-bytes") int compressionThreshold,
         BrotliCodec brotliCodec,
-        GzipCodec gzipCodec
+        GzipCodec gzipCodec,
+        ZstdCodec zstdCodec,
+        @Property(name = "compression.logging", defaultValue = "false") boolean logging
     ) {
         this.compressionThreshold = compressionThreshold;
         this.brotliCodec = brotliCodec;
         this.gzipCodec = gzipCodec;
+        this.zstdCodec = zstdCodec;
+        this.logging = logging;
     }
 
     public EncodedResponse encodeResponse(HttpRequest<?> request, byte[] responseBytes) {
-        Map<CharSequence, CharSequence> headers = new HashMap<>();
-        byte[] responseBody = responseBytes;
-        if (needsCompression(request, responseBytes)){
-            if (request.getHeaders().get(ACCEPT_ENCODING).contains("br")) {
-                responseBody = brotliCodec.encode(responseBytes);
-                headers.put(X_CONTENT_ENCODING, brotliCodec.getHeaderType());
+        final Optional<Codec> codec = selectCodec(request, responseBytes.length);
+        final byte[] responseBody = codec.map(c -> c.encode(responseBytes)).orElse(responseBytes);
+
+        return new EncodedResponse(responseBody, codec.map(this::headersFor).orElseGet(HashMap::new));
+    }
+
+    /**
+     * Encodes the remaining bytes of the input into the output and closes it.
+     */
+    public void encode(Codec codec, ByteBuffer input, OutputStream output) {
+        final int inputSize = input.remaining();
+        final CountingOutputStream encoded = new CountingOutputStream(output);
+        try {
+            codec.encode(input, encoded);
+        } catch (IOException exception) {
+            LOG.error("Codec", "Error encoding content", exception);
+            throw new PipeCodecException("Error encoding content", exception);
+        }
+        logSizes(inputSize, encoded.getCount());
+    }
+
+    /**
+     * Wraps the output so everything written to the returned stream is encoded with the codec. Sizes are logged
+     * once the returned stream is closed.
+     */
+    public OutputStream encodingStream(Codec codec, OutputStream output) {
+        final CountingOutputStream encoded = new CountingOutputStream(output);
+        try {
+            return new CountingOutputStream(codec.encodingStream(encoded)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    logSizes(getCount(), encoded.getCount());
+                }
+            };
+        } catch (IOException exception) {
+            LOG.error("Codec", "Error encoding content", exception);
+            throw new PipeCodecException("Error encoding content", exception);
+        }
+    }
+
+    private void logSizes(long inputSize, long encodedSize) {
+        if (logging) {
+            LOG.info("pre-encode:size", String.valueOf(inputSize));
+            LOG.info("post-encode:size", String.valueOf(encodedSize));
+        }
+    }
+
+    /**
+     * @return the codec the response should be encoded with, if any, given its unencoded length
+     */
+    public Optional<Codec> selectCodec(HttpRequest<?> request, long contentLength) {
+        if (needsCompression(request, contentLength)) {
+            if (request.getHeaders().get(ACCEPT_ENCODING).contains("zstd")) {
+                return Optional.of(zstdCodec.negotiate(request.getHeaders().get(X_ZSTD_DICTIONARY)));
+            } else if (request.getHeaders().get(ACCEPT_ENCODING).contains("br")) {
+                return Optional.of(brotliCodec);
             } else if (request.getHeaders().get(ACCEPT_ENCODING).contains("gzip")) {
-                responseBody = gzipCodec.encode(responseBytes);
-                headers.put(X_CONTENT_ENCODING, gzipCodec.getHeaderType());
-                headers.put(CONTENT_ENCODING, gzipCodec.getHeaderType());
+                return Optional.of(gzipCodec);
             }
         }
-        return new EncodedResponse(responseBody, headers);
+        return Optional.empty();
+    }
+
+    /**
+     * @return the format messages should be written in, JSON unless the request accepts Smile
+     */
+    public MessageFormat selectFormat(HttpRequest<?> request) {
+        return request.getHeaders().getAll(ACCEPT).stream()
+            .anyMatch(accept -> accept.contains(MessageFormat.SMILE.getMediaType()))
+            ? MessageFormat.SMILE
+            : MessageFormat.JSON;
     }
 
-    private boolean needsCompression(HttpRequest<?> request, byte[] responseBytes) {
-        return responseBytes.length > compressionThreshold && request.getHeaders().contains(ACCEPT_ENCODING);
+    public Map<CharSequence, CharSequence> headersFor(Codec codec) {
+        Map<CharSequence, CharSequence> headers = new HashMap<>();
+        headers.put(X_CONTENT_ENCODING, codec.getHeaderType());
+        if (codec == gzipCodec) {
+            headers.put(CONTENT_ENCODING, gzipCodec.getHeaderType());
+        }
+        if (codec instanceof ZstdCodec) {
+            ((ZstdCodec) codec).getDictionaryId().ifPresent(id -> headers.put(X_ZSTD_DICTIONARY, String.valueOf(id)));
+        }
+        return headers;
+    }
+
+    private boolean needsCompression(HttpRequest<?> request, long contentLength) {
+        return contentLength > compressionThreshold && request.getHeaders().contains(ACCEPT_ENCODING);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        long getCount() {
+            return count;
+        }
     }
 
     @Getter
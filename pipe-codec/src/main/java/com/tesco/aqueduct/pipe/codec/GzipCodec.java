@@ -5,9 +5,9 @@ import io.micronaut.context.annotation.Value;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Singleton;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -17,6 +17,8 @@ public class GzipCodec implements Codec {
 
     private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(GzipCodec.class));
 
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
     private final int level;
     private final boolean logging;
 
@@ -49,16 +51,13 @@ public class GzipCodec implements Codec {
             LOG.info("pre-encode:size", String.valueOf(input.length));
         }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream) {{
-            def.setLevel(level);
-        }}) {
-            gzipOutputStream.write(input);
+        final byte[] encodedBytes;
+        try {
+            encodedBytes = CodecBuffers.encodeAll(this, input);
         } catch (IOException ioException) {
             LOG.error("Codec", "Error encoding content", ioException);
             throw new PipeCodecException("Error encoding content", ioException);
         }
-        final byte[] encodedBytes = outputStream.toByteArray();
         if (logging) {
             LOG.info("post-encode:size", String.valueOf(encodedBytes.length));
         }
@@ -66,18 +65,25 @@ public class GzipCodec implements Codec {
         return encodedBytes;
     }
 
+    @Override
+    public OutputStream encodingStream(OutputStream output) throws IOException {
+        return new GZIPOutputStream(output, STREAM_BUFFER_SIZE) {{
+            def.setLevel(level);
+        }};
+    }
+
+    @Override
+    public InputStream decodingStream(InputStream input) throws IOException {
+        return new GZIPInputStream(input, STREAM_BUFFER_SIZE);
+    }
+
     @Override
     public byte[] decode(byte[] input) {
         if (input == null) {
             return null;
         }
-        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(input));
-             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
-            return out.toByteArray();
+        try {
+            return CodecBuffers.decodeAll(this, input);
         } catch (IOException ioException) {
             LOG.error("Codec", "Error encoding content", ioException);
             throw new PipeCodecException("Error encoding content", ioException);
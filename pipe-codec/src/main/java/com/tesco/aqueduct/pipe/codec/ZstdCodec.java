@@ -0,0 +1,215 @@
+package com.tesco.aqueduct.pipe.codec;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.micronaut.context.annotation.Value;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Zstandard codec, optionally with dictionaries trained offline from sample events, so small batches of similar
+ * messages compress well. Dictionaries are versioned by the id zstd stores in them, train new ones with a higher id:
+ * <pre>
+ * zstd --train samples/* --dictID 2 -o 2.dict
+ * </pre>
+ * Nodes send the ids of the dictionaries they hold and batches are encoded with the highest one both sides hold, so
+ * either side can roll forward to a new dictionary first.
+ */
+@Singleton
+public class ZstdCodec implements Codec {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ZstdCodec.class));
+
+    private final int level;
+    private final boolean logging;
+    private final SortedMap<Long, Dictionary> dictionaries;
+    private final Dictionary dictionary;
+
+    /**
+     * @param level Compression level, 1 to 22
+     * @param dictionariesPath directory the dictionaries, files ending in .dict, are loaded from, none when empty
+     */
+    @Inject
+    public ZstdCodec(
+        @Value("${http.codec.zstd.level:3}") int level,
+        @Value("${http.codec.zstd.dictionaries:}") String dictionariesPath,
+        @Value("${compression.logging:false}") boolean logging
+    ) {
+        this(level, logging, loadDictionaries(dictionariesPath, level), null);
+    }
+
+    private ZstdCodec(
+        int level,
+        boolean logging,
+        SortedMap<Long, Dictionary> dictionaries,
+        Dictionary dictionary
+    ) {
+        this.level = level;
+        this.logging = logging;
+        this.dictionaries = dictionaries;
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public String getHeaderType() {
+        return "zstd";
+    }
+
+    public Set<Long> getDictionaryIds() {
+        return Collections.unmodifiableSet(dictionaries.keySet());
+    }
+
+    /**
+     * @return id of the dictionary this codec encodes and decodes with, if any
+     */
+    public Optional<Long> getDictionaryId() {
+        return Optional.ofNullable(dictionary).map(Dictionary::getId);
+    }
+
+    /**
+     * @param acceptedIds comma separated ids of the dictionaries the other side holds, can be null
+     * @return codec using the highest dictionary held by both sides, or no dictionary when there isn't one
+     */
+    public ZstdCodec negotiate(String acceptedIds) {
+        if (acceptedIds == null || acceptedIds.isEmpty()) {
+            return withDictionary(null);
+        }
+        return Arrays.stream(acceptedIds.split(","))
+            .map(String::trim)
+            .map(ZstdCodec::parseId)
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .filter(dictionaries::containsKey)
+            .max(Long::compare)
+            .map(dictionaries::get)
+            .map(this::withDictionary)
+            .orElseGet(() -> withDictionary(null));
+    }
+
+    /**
+     * @return codec using the given dictionary
+     * @throws PipeCodecException when the dictionary is not held
+     */
+    public ZstdCodec withDictionary(long id) {
+        final Dictionary held = dictionaries.get(id);
+        if (held == null) {
+            throw new PipeCodecException("Unknown zstd dictionary " + id, null);
+        }
+        return withDictionary(held);
+    }
+
+    private ZstdCodec withDictionary(Dictionary dictionary) {
+        return dictionary == this.dictionary ? this : new ZstdCodec(level, logging, dictionaries, dictionary);
+    }
+
+    @Override
+    public byte[] encode(byte[] input) {
+        if (input == null) {
+            return null;
+        }
+        if (logging) {
+            LOG.info("pre-encode:size", String.valueOf(input.length));
+        }
+        final byte[] encodedBytes;
+        try {
+            encodedBytes = CodecBuffers.encodeAll(this, input);
+        } catch (IOException ioException) {
+            LOG.error("Codec", "Error encoding content", ioException);
+            throw new PipeCodecException("Error encoding content", ioException);
+        }
+        if (logging) {
+            LOG.info("post-encode:size", String.valueOf(encodedBytes.length));
+        }
+        return encodedBytes;
+    }
+
+    @Override
+    public byte[] decode(byte[] input) {
+        if (input == null) {
+            return null;
+        }
+        try {
+            return CodecBuffers.decodeAll(this, input);
+        } catch (IOException ioException) {
+            LOG.error("Codec", "Error decoding bytes.", ioException);
+            throw new PipeCodecException("Error decoding bytes.", ioException);
+        }
+    }
+
+    @Override
+    public OutputStream encodingStream(OutputStream output) throws IOException {
+        final ZstdOutputStream zstdOutputStream = new ZstdOutputStream(output, level);
+        if (dictionary != null) {
+            zstdOutputStream.setDict(dictionary.getCompress());
+        }
+        return zstdOutputStream;
+    }
+
+    @Override
+    public InputStream decodingStream(InputStream input) throws IOException {
+        final ZstdInputStream zstdInputStream = new ZstdInputStream(input);
+        if (dictionary != null) {
+            zstdInputStream.setDict(dictionary.getDecompress());
+        }
+        return zstdInputStream;
+    }
+
+    private static Optional<Long> parseId(String id) {
+        try {
+            return Optional.of(Long.parseLong(id));
+        } catch (NumberFormatException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private static SortedMap<Long, Dictionary> loadDictionaries(String dictionariesPath, int level) {
+        final SortedMap<Long, Dictionary> dictionaries = new TreeMap<>();
+        if (dictionariesPath == null || dictionariesPath.isEmpty()) {
+            return dictionaries;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(dictionariesPath), "*.dict")) {
+            for (Path file : files) {
+                final byte[] content = Files.readAllBytes(file);
+                final long id = Zstd.getDictIdFromDict(content);
+                if (id == 0) {
+                    LOG.info("Codec", "Skipping zstd dictionary without id: " + file);
+                    continue;
+                }
+                dictionaries.put(id, new Dictionary(id, new ZstdDictCompress(content, level), new ZstdDictDecompress(content)));
+            }
+        } catch (IOException ioException) {
+            LOG.error("Codec", "Error loading zstd dictionaries", ioException);
+            throw new PipeCodecException("Error loading zstd dictionaries", ioException);
+        }
+
+        LOG.info("Codec", "Loaded zstd dictionaries: " + dictionaries.keySet());
+        return dictionaries;
+    }
+
+    @lombok.Value
+    private static class Dictionary {
+        long id;
+        ZstdDictCompress compress;
+        ZstdDictDecompress decompress;
+    }
+}
@@ -0,0 +1,111 @@
+package com.tesco.aqueduct.pipe.codec
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+
+class CodecBuffersSpec extends Specification {
+
+    static byte[] largeInput = (0..<200_000).collect { "message $it with a repeated payload, " }.join().bytes
+
+    @Unroll
+    def "large input encoded from a #bufferType buffer decodes back from a buffer with #codec.headerType"() {
+        given:
+        def input = buffer(largeInput, bufferType)
+        def encoded = new ByteArrayOutputStream()
+        def decoded = new ByteArrayOutputStream()
+
+        when:
+        codec.encode(input, encoded)
+        codec.decode(buffer(encoded.toByteArray(), bufferType), decoded)
+
+        then:
+        decoded.toByteArray() == largeInput
+        !input.hasRemaining()
+
+        and: "it decodes the same through the byte array api"
+        codec.decode(encoded.toByteArray()) == largeInput
+
+        where:
+        codec                        | bufferType
+        new BrotliCodec(4, false)    | "heap"
+        new BrotliCodec(4, false)    | "direct"
+        new GzipCodec(-1, false)     | "heap"
+        new GzipCodec(-1, false)     | "direct"
+        new ZstdCodec(3, "", false)  | "heap"
+        new ZstdCodec(3, "", false)  | "direct"
+    }
+
+    def "reused output buffers don't leak bytes between calls"() {
+        given:
+        def codec = new GzipCodec(-1, false)
+
+        when:
+        def first = codec.decode(codec.encode(largeInput))
+        def second = codec.decode(codec.encode("short".bytes))
+
+        then:
+        first == largeInput
+        new String(second) == "short"
+    }
+
+    def "encoding uses the configured brotli quality"() {
+        when:
+        def lowQuality = new BrotliCodec(1, false).encode(largeInput)
+        def highQuality = new BrotliCodec(9, false).encode(largeInput)
+
+        then:
+        highQuality.size() < lowQuality.size()
+    }
+
+    def "codecs without an encoding stream encode through their byte array api"() {
+        given:
+        def codec = new ReversingCodec()
+        def encoded = new ByteArrayOutputStream()
+
+        when:
+        codec.encode(ByteBuffer.wrap("message".bytes), encoded)
+
+        then:
+        new String(encoded.toByteArray()) == "egassem"
+    }
+
+    def "codecs without a decoding stream decode through their byte array api"() {
+        given:
+        def codec = new ReversingCodec()
+        def decoded = new ByteArrayOutputStream()
+
+        when:
+        codec.decode(ByteBuffer.wrap("egassem".bytes), decoded)
+
+        then:
+        new String(decoded.toByteArray()) == "message"
+    }
+
+    ByteBuffer buffer(byte[] bytes, String bufferType) {
+        if (bufferType == "heap") {
+            return ByteBuffer.wrap(bytes)
+        }
+        def direct = ByteBuffer.allocateDirect(bytes.length)
+        direct.put(bytes).flip()
+        direct
+    }
+
+    static class ReversingCodec implements Codec {
+        @Override
+        String getHeaderType() {
+            "reversed"
+        }
+
+        @Override
+        byte[] encode(byte[] input) {
+            input.reverse()
+        }
+
+        @Override
+        byte[] decode(byte[] input) {
+            input.reverse()
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.tesco.aqueduct.pipe.codec
+
+import com.github.luben.zstd.Zstd
+import com.github.luben.zstd.ZstdDictTrainer
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class ZstdCodecSpec extends Specification {
+
+    Path dictionaries = Files.createTempDirectory("zstd-dictionaries")
+
+    def "Encoded data is decoded correctly"() {
+        given:
+        def zstdCodec = new ZstdCodec(3, "", false)
+
+        and:
+        def inputData = someMessages(0, 20)
+
+        when: "encoded"
+        def encodedBytes = zstdCodec.encode(inputData.bytes)
+
+        then:
+        new String(zstdCodec.decode(encodedBytes)) == inputData
+
+        and:
+        encodedBytes.size() < inputData.bytes.size()
+    }
+
+    def "Small batches encoded with a trained dictionary are smaller and decode with the same dictionary"() {
+        given:
+        def dictionaryId = saveDictionary("type1")
+        def zstdCodec = new ZstdCodec(3, dictionaries.toString(), false)
+
+        and:
+        def inputData = someMessages(5000, 2)
+
+        when: "encoded with and without the dictionary"
+        def withDictionary = zstdCodec.withDictionary(dictionaryId).encode(inputData.bytes)
+        def withoutDictionary = zstdCodec.encode(inputData.bytes)
+
+        then:
+        new String(zstdCodec.withDictionary(dictionaryId).decode(withDictionary)) == inputData
+
+        and:
+        withDictionary.size() < withoutDictionary.size()
+    }
+
+    def "Highest dictionary held by both sides is negotiated"() {
+        given:
+        def firstId = saveDictionary("type1")
+        def secondId = saveDictionary("type2")
+        def zstdCodec = new ZstdCodec(3, dictionaries.toString(), false)
+
+        expect:
+        zstdCodec.dictionaryIds == [firstId, secondId] as Set
+        zstdCodec.negotiate("$firstId,$secondId,12345").dictionaryId == Optional.of(Math.max(firstId, secondId))
+        zstdCodec.negotiate("$firstId").dictionaryId == Optional.of(firstId)
+        zstdCodec.negotiate("12345").dictionaryId == Optional.empty()
+        zstdCodec.negotiate("not-an-id").dictionaryId == Optional.empty()
+        zstdCodec.negotiate(null).dictionaryId == Optional.empty()
+    }
+
+    def "Pipe codec exception thrown when the dictionary is not held"() {
+        given:
+        def zstdCodec = new ZstdCodec(3, dictionaries.toString(), false)
+
+        when:
+        zstdCodec.withDictionary(1)
+
+        then:
+        thrown(PipeCodecException)
+    }
+
+    def "Pipe codec exception thrown when compression format is not zstd"() {
+        when:
+        new ZstdCodec(3, "", false).decode("Some non zstd codec data".bytes)
+
+        then:
+        thrown(PipeCodecException)
+    }
+
+    def "Codec type is zstd"() {
+        expect:
+        new ZstdCodec(3, "", false).getHeaderType() == "zstd"
+    }
+
+    long saveDictionary(String type) {
+        def trainer = new ZstdDictTrainer(1024 * 1024, 16 * 1024)
+        (0..<2000).each { trainer.addSample(someMessages(it, 1, type).bytes) }
+        def dictionary = trainer.trainSamples()
+        def id = Zstd.getDictIdFromDict(dictionary)
+        Files.write(dictionaries.resolve("${id}.dict"), dictionary)
+        id
+    }
+
+    String someMessages(int from, int count, String type = "type1") {
+        "[" + (from..<from + count).collect {
+            """{"type":"$type","key":"key-$it","contentType":"application/json","offset":"$it","created":"2000-12-01T10:00:00Z","data":"{\\"id\\":\\"$it\\",\\"name\\":\\"product $it\\",\\"price\\":\\"${it % 100}.99\\",\\"status\\":\\"active\\",\\"tags\\":[\\"a\\",\\"b\\"]}"}"""
+        }.join(",") + "]"
+    }
+}
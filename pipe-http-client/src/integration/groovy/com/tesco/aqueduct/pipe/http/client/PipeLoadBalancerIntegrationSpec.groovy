@@ -5,6 +5,7 @@ import com.tesco.aqueduct.pipe.api.HttpHeaders
 import com.tesco.aqueduct.pipe.api.PipeState
 import com.tesco.aqueduct.pipe.api.TokenProvider
 import com.tesco.aqueduct.pipe.codec.BrotliCodec
+import com.tesco.aqueduct.pipe.codec.ZstdCodec
 import com.tesco.aqueduct.registry.client.PipeLoadBalancer
 import com.tesco.aqueduct.registry.client.PipeServiceInstance
 import com.tesco.aqueduct.registry.client.SelfRegistrationTask
@@ -65,7 +66,7 @@ class PipeLoadBalancerIntegrationSpec extends Specification {
             .start()
 
         def brotliClient = context.getBean(InternalBrotliHttpPipeClient)
-        context.registerSingleton(new HttpPipeClient(brotliClient, brotliCodec, 240))
+        context.registerSingleton(new HttpPipeClient(brotliClient, brotliCodec, new ZstdCodec(3, "", false), 240))
 
         client = context.getBean(HttpPipeClient)
         loadBalancer = context.getBean(PipeLoadBalancer)
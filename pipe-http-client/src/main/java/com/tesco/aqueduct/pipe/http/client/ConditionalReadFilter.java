@@ -0,0 +1,48 @@
+package com.tesco.aqueduct.pipe.http.client;
+
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MutableHttpRequest;
+import io.micronaut.http.annotation.Filter;
+import io.micronaut.http.filter.ClientFilterChain;
+import io.micronaut.http.filter.HttpClientFilter;
+import io.reactivex.Flowable;
+import lombok.Value;
+import org.reactivestreams.Publisher;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.ETAG;
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.IF_NONE_MATCH;
+
+/**
+ * Sends the entity tag of the last read back when reading the same page again, so a node that is caught up gets a
+ * not modified instead of the same empty page.
+ */
+@Filter(serviceId = "pipe")
+public class ConditionalReadFilter implements HttpClientFilter {
+
+    private final AtomicReference<TaggedRead> lastRead = new AtomicReference<>();
+
+    @Override
+    public Publisher<? extends HttpResponse<?>> doFilter(
+        final MutableHttpRequest<?> request, final ClientFilterChain chain
+    ) {
+        final String uri = request.getUri().toString();
+        final TaggedRead tagged = lastRead.get();
+        if (tagged != null && tagged.getUri().equals(uri)) {
+            request.header(IF_NONE_MATCH, tagged.getEntityTag());
+        }
+
+        return Flowable.fromPublisher(chain.proceed(request))
+            .doOnNext(response -> {
+                final String entityTag = response.header(ETAG);
+                lastRead.set(entityTag == null ? null : new TaggedRead(uri, entityTag));
+            });
+    }
+
+    @Value
+    private static class TaggedRead {
+        String uri;
+        String entityTag;
+    }
+}
@@ -2,33 +2,48 @@ package com.tesco.aqueduct.pipe.http.client;
 
 import com.tesco.aqueduct.pipe.api.*;
 import com.tesco.aqueduct.pipe.codec.Codec;
+import com.tesco.aqueduct.pipe.codec.PipeCodecException;
+import com.tesco.aqueduct.pipe.codec.ZstdCodec;
 import io.micronaut.context.annotation.Property;
 import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.OptionalLong;
 
 import static com.tesco.aqueduct.pipe.api.HttpHeaders.X_CONTENT_ENCODING;
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.X_ZSTD_DICTIONARY;
+import static io.micronaut.http.HttpHeaders.CONTENT_TYPE;
 
 @Named("remote")
 public class HttpPipeClient implements Reader {
 
+    private static final byte[] EMPTY_PAGE = "[]".getBytes(StandardCharsets.UTF_8);
+
     private final InternalHttpPipeClient client;
     private final Codec codec;
+    private final ZstdCodec zstdCodec;
     private final long defaultRetryAfter;
 
     @Inject
     public HttpPipeClient(
         final InternalHttpPipeClient client,
         final Codec codec,
+        final ZstdCodec zstdCodec,
         @Property(name = "persistence.read.default-retry-after") long defaultRetryAfter
     ) {
         this.client = client;
         this.codec = codec;
+        this.zstdCodec = zstdCodec;
         this.defaultRetryAfter = defaultRetryAfter;
     }
 
@@ -37,26 +52,25 @@ public class HttpPipeClient implements Reader {
 
         final HttpResponse<byte[]> response = client.httpRead(types, offset, locationUuid);
 
-        final byte[] responseBody;
+        return new MessageResults(
+            messages(response),
+            getRetryAfter(response),
+            getGlobalOffsetHeader(response),
+            getPipeState(response)
+        );
+    }
 
-        if (response.getHeaders().contains(X_CONTENT_ENCODING) &&
-                response.getHeaders().get(X_CONTENT_ENCODING).contains("br")) {
-            responseBody = codec.decode(response.body());
-        } else {
-            responseBody = response.body();
-        }
+    /**
+     * Reads like {@link #read}, but messages are parsed from the decoding body as they are iterated, so they can be
+     * written as they are parsed. Only the encoded body is held in full.
+     */
+    public MessageStreamResults stream(@Nullable final List<String> types, final long offset, final String locationUuid) {
 
-        final long retryAfter = Optional
-            .ofNullable(response.header(HttpHeaders.RETRY_AFTER_MS))
-            .map(value -> checkForValidNumber(value, 1))
-            .orElse(Optional
-                .ofNullable(response.header(HttpHeaders.RETRY_AFTER))
-                .map(value -> checkForValidNumber(value, 1000))
-                .orElse(defaultRetryAfter));
+        final HttpResponse<byte[]> response = client.httpRead(types, offset, locationUuid);
 
-        return new MessageResults(
-            JsonHelper.messageFromJsonArray(responseBody),
-            retryAfter,
+        return new MessageStreamResults(
+            messageStream(response),
+            getRetryAfter(response),
             getGlobalOffsetHeader(response),
             getPipeState(response)
         );
@@ -72,6 +86,76 @@ public class HttpPipeClient implements Reader {
         throw new UnsupportedOperationException("HttpPipeClient does not support this operation.");
     }
 
+    /**
+     * Parses messages while decoding the body, so the decoded batch is never held in full.
+     */
+    private List<Message> messages(HttpResponse<byte[]> response) {
+        // not modified is only answered to nodes already past the latest offset
+        if (response.getStatus() == HttpStatus.NOT_MODIFIED) {
+            return Collections.emptyList();
+        }
+
+        // servers not knowing about other formats answer in JSON whatever was accepted
+        final MessageFormat format = MessageFormat.fromContentType(response.header(CONTENT_TYPE));
+        final Optional<Codec> decoder = decoder(response);
+
+        if (!decoder.isPresent()) {
+            return format.messagesFrom(response.body());
+        }
+
+        try (InputStream decodingStream = decoder.get().decodingStream(new ByteArrayInputStream(response.body()))) {
+            return format.messagesFrom(decodingStream);
+        } catch (IOException ioException) {
+            throw new PipeCodecException("Error decoding bytes.", ioException);
+        }
+    }
+
+    private MessageStream messageStream(HttpResponse<byte[]> response) {
+        if (response.getStatus() == HttpStatus.NOT_MODIFIED) {
+            return MessageFormat.JSON.messageStreamFrom(new ByteArrayInputStream(EMPTY_PAGE));
+        }
+
+        final MessageFormat format = MessageFormat.fromContentType(response.header(CONTENT_TYPE));
+        final Optional<Codec> decoder = decoder(response);
+
+        if (!decoder.isPresent()) {
+            return format.messageStreamFrom(new ByteArrayInputStream(response.body()));
+        }
+
+        try {
+            return format.messageStreamFrom(decoder.get().decodingStream(new ByteArrayInputStream(response.body())));
+        } catch (IOException ioException) {
+            throw new PipeCodecException("Error decoding bytes.", ioException);
+        }
+    }
+
+    private Optional<Codec> decoder(HttpResponse<?> response) {
+        final String contentEncoding = response.getHeaders().get(X_CONTENT_ENCODING);
+        if (contentEncoding == null) {
+            return Optional.empty();
+        } else if (contentEncoding.contains("br")) {
+            return Optional.of(codec);
+        } else if (contentEncoding.contains("zstd")) {
+            return Optional.of(zstdDecoder(response));
+        }
+        return Optional.empty();
+    }
+
+    private ZstdCodec zstdDecoder(HttpResponse<?> response) {
+        final String dictionaryId = response.header(X_ZSTD_DICTIONARY);
+        return dictionaryId == null ? zstdCodec : zstdCodec.withDictionary(Long.parseLong(dictionaryId));
+    }
+
+    private long getRetryAfter(HttpResponse<?> response) {
+        return Optional
+            .ofNullable(response.header(HttpHeaders.RETRY_AFTER_MS))
+            .map(value -> checkForValidNumber(value, 1))
+            .orElse(Optional
+                .ofNullable(response.header(HttpHeaders.RETRY_AFTER))
+                .map(value -> checkForValidNumber(value, 1000))
+                .orElse(defaultRetryAfter));
+    }
+
     private long checkForValidNumber(String value, int multiplier) {
         try {
             return Long.parseLong(value) >= 0 ? Long.parseLong(value) * multiplier : defaultRetryAfter;
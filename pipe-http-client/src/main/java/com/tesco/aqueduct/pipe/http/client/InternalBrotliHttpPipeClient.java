@@ -15,6 +15,7 @@ public interface InternalBrotliHttpPipeClient extends InternalHttpPipeClient {
 
     @Get("/pipe/{offset}{?type,location}")
     @Consumes
+    @Header(name="Accept", value="${pipe.http.client.accept:application/json}")
     @Header(name="Accept-Encoding", value="br")
     @CircuitBreaker(delay = "${pipe.http.client.delay}", attempts = "${pipe.http.client.attempts}", reset = "${pipe.http.client.reset}")
     HttpResponse<byte[]> httpRead(
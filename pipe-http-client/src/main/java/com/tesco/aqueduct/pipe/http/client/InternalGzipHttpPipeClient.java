@@ -15,6 +15,7 @@ public interface InternalGzipHttpPipeClient extends InternalHttpPipeClient {
 
     @Get("/pipe/{offset}{?type,location}")
     @Consumes
+    @Header(name="Accept", value="${pipe.http.client.accept:application/json}")
     @Header(name="Accept-Encoding", value="gzip")
     @CircuitBreaker(delay = "${pipe.http.client.delay}", attempts = "${pipe.http.client.attempts}", reset = "${pipe.http.client.reset}")
     HttpResponse<byte[]> httpRead(
@@ -0,0 +1,37 @@
+package com.tesco.aqueduct.pipe.http.client;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MutableHttpRequest;
+import io.micronaut.http.annotation.Filter;
+import io.micronaut.http.filter.ClientFilterChain;
+import io.micronaut.http.filter.HttpClientFilter;
+import org.reactivestreams.Publisher;
+
+import java.time.Duration;
+
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.LONG_POLL_WAIT_MS;
+
+/**
+ * Asks the cloud to hold reads for offsets it doesn't have yet for up to the configured wait, instead of answering
+ * with an empty page. The client read timeout has to be longer than the wait, otherwise parked reads time out.
+ */
+@Filter(serviceId = "pipe")
+@Requires(property = "pipe.http.client.long-poll.wait")
+public class LongPollFilter implements HttpClientFilter {
+
+    private final String waitMs;
+
+    public LongPollFilter(@Property(name = "pipe.http.client.long-poll.wait") final Duration wait) {
+        this.waitMs = String.valueOf(wait.toMillis());
+    }
+
+    @Override
+    public Publisher<? extends HttpResponse<?>> doFilter(
+        final MutableHttpRequest<?> request, final ClientFilterChain chain
+    ) {
+        request.header(LONG_POLL_WAIT_MS, waitMs);
+        return chain.proceed(request);
+    }
+}
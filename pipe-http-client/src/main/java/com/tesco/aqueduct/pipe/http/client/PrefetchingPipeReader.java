@@ -0,0 +1,185 @@
+package com.tesco.aqueduct.pipe.http.client;
+
+import com.tesco.aqueduct.pipe.api.Message;
+import com.tesco.aqueduct.pipe.api.MessageResults;
+import com.tesco.aqueduct.pipe.api.OffsetName;
+import com.tesco.aqueduct.pipe.api.PipeState;
+import com.tesco.aqueduct.pipe.api.Reader;
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.context.annotation.Requires;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the next batches from the remote pipe while the node is still writing the ones it has, so bootstrapping nodes
+ * don't leave the network idle while they write and the disk idle while they read. The next read is issued from the
+ * last offset of the batch just read, after its retry after, until the batch is empty. At most depth batches are
+ * read ahead of the node, so reading ahead waits for the node to take batches. Reads for any other offset, types or
+ * location drop the batches read ahead and go to the remote pipe.
+ */
+@Singleton
+@Named("prefetching")
+@Requires(property = "pipe.http.client.prefetch.depth")
+public class PrefetchingPipeReader implements Reader {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(PrefetchingPipeReader.class));
+
+    private final Reader remote;
+    private final int depth;
+    private final ScheduledExecutorService executor;
+    private final Deque<Prefetch> prefetched = new ArrayDeque<>();
+
+    private List<String> types;
+    private String location;
+    private Prefetch lastIssued;
+
+    public PrefetchingPipeReader(
+        @Named("remote") final Reader remote,
+        @Property(name = "pipe.http.client.prefetch.depth") final int depth
+    ) {
+        this.remote = remote;
+        this.depth = Math.max(depth, 1);
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(this.depth, runnable -> {
+            final Thread thread = new Thread(runnable, "pipe-prefetch-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public MessageResults read(@Nullable final List<String> types, final long offset, final String location) {
+        final Prefetch prefetch = take(types, offset, location);
+
+        if (prefetch != null) {
+            try {
+                return prefetch.result.get();
+            } catch (ExecutionException exception) {
+                LOG.error("prefetching reader", "prefetched read failed, reading again", exception.getCause());
+                drop();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(exception);
+            }
+        }
+
+        final MessageResults messageResults = remote.read(types, offset, location);
+        readAheadFrom(offset, messageResults);
+        return messageResults;
+    }
+
+    /**
+     * @return the batch read ahead for the offset, or null when it wasn't
+     */
+    private synchronized Prefetch take(final List<String> types, final long offset, final String location) {
+        final List<String> requestedTypes = types == null ? Collections.emptyList() : types;
+        final Prefetch head = prefetched.peekFirst();
+
+        if (head == null || head.offset != offset || !requestedTypes.equals(this.types) || !Objects.equals(location, this.location)) {
+            drop();
+            this.types = requestedTypes;
+            this.location = location;
+            return null;
+        }
+
+        prefetched.removeFirst();
+        readAhead();
+        return head;
+    }
+
+    private synchronized void drop() {
+        prefetched.clear();
+        lastIssued = null;
+    }
+
+    private synchronized void readAheadFrom(final long offset, final MessageResults messageResults) {
+        if (lastIssued == null) {
+            lastIssued = new Prefetch(offset, CompletableFuture.completedFuture(messageResults), 0);
+            readAhead();
+        }
+    }
+
+    /**
+     * Issues the read after the last one issued once it completed, until depth batches are read ahead.
+     */
+    private synchronized void readAhead() {
+        if (lastIssued == null || prefetched.size() >= depth || !lastIssued.result.isDone()) {
+            return;
+        }
+
+        final MessageResults previous = lastIssued.result.getNow(null);
+        if (lastIssued.result.isCompletedExceptionally() || previous.getMessages().isEmpty()) {
+            return;
+        }
+
+        final List<Message> messages = previous.getMessages();
+        final long nextOffset = messages.get(messages.size() - 1).getOffset() + 1;
+        final List<String> readTypes = types;
+        final String readLocation = location;
+        final CompletableFuture<MessageResults> result = new CompletableFuture<>();
+        final Prefetch next = new Prefetch(nextOffset, result, previous.getRetryAfterMs());
+
+        prefetched.addLast(next);
+        lastIssued = next;
+
+        executor.schedule(() -> {
+            try {
+                result.complete(remote.read(readTypes, nextOffset, readLocation));
+            } catch (RuntimeException exception) {
+                result.completeExceptionally(exception);
+            }
+            continueFrom(next);
+        }, next.delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void continueFrom(final Prefetch prefetch) {
+        // batches dropped since aren't continued
+        if (prefetch == lastIssued) {
+            readAhead();
+        }
+    }
+
+    @Override
+    public OptionalLong getOffset(final OffsetName offsetName) {
+        return remote.getOffset(offsetName);
+    }
+
+    @Override
+    public PipeState getPipeState() {
+        return remote.getPipeState();
+    }
+
+    @PreDestroy
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private static class Prefetch {
+        private final long offset;
+        private final CompletableFuture<MessageResults> result;
+        private final long delayMs;
+
+        Prefetch(final long offset, final CompletableFuture<MessageResults> result, final long delayMs) {
+            this.offset = offset;
+            this.result = result;
+            this.delayMs = delayMs;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.tesco.aqueduct.pipe.http.client;
+
+import com.tesco.aqueduct.pipe.codec.ZstdCodec;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MutableHttpRequest;
+import io.micronaut.http.annotation.Filter;
+import io.micronaut.http.filter.ClientFilterChain;
+import io.micronaut.http.filter.HttpClientFilter;
+import org.reactivestreams.Publisher;
+
+import java.util.stream.Collectors;
+
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.X_ZSTD_DICTIONARY;
+import static io.micronaut.http.HttpHeaders.ACCEPT_ENCODING;
+
+/**
+ * Tells the cloud which zstd dictionaries this node holds, so it can encode with the latest one both sides have.
+ */
+@Filter(serviceId = "pipe")
+public class ZstdDictionaryFilter implements HttpClientFilter {
+
+    private final String dictionaryIds;
+
+    public ZstdDictionaryFilter(final ZstdCodec zstdCodec) {
+        this.dictionaryIds = zstdCodec.getDictionaryIds().stream()
+            .map(String::valueOf)
+            .collect(Collectors.joining(","));
+    }
+
+    @Override
+    public Publisher<? extends HttpResponse<?>> doFilter(
+        final MutableHttpRequest<?> request, final ClientFilterChain chain
+    ) {
+        final String acceptEncoding = request.getHeaders().get(ACCEPT_ENCODING);
+        if (!dictionaryIds.isEmpty() && acceptEncoding != null && acceptEncoding.contains("zstd")) {
+            request.header(X_ZSTD_DICTIONARY, dictionaryIds);
+        }
+        return chain.proceed(request);
+    }
+}
@@ -2,7 +2,9 @@ package com.tesco.aqueduct.pipe.http.client
 
 import com.tesco.aqueduct.pipe.api.*
 import com.tesco.aqueduct.pipe.codec.BrotliCodec
+import com.tesco.aqueduct.pipe.codec.ZstdCodec
 import io.micronaut.http.HttpResponse
+import io.micronaut.http.HttpStatus
 import io.micronaut.http.simple.SimpleHttpResponse
 import spock.lang.Specification
 import spock.lang.Unroll
@@ -12,7 +14,7 @@ import java.time.ZonedDateTime
 class HttpPipeClientSpec extends Specification {
 
     InternalHttpPipeClient internalClient = Mock()
-    HttpPipeClient client = new HttpPipeClient(internalClient, new BrotliCodec(4, false), 240)
+    HttpPipeClient client = new HttpPipeClient(internalClient, new BrotliCodec(4, false), new ZstdCodec(3, "", false), 240)
 
     static def responseBody = """[
             {
@@ -158,9 +160,79 @@ class HttpPipeClientSpec extends Specification {
         where:
         responseBytes                                | content_encoding
         new BrotliCodec(4, false).encode(responseBody.bytes) | "br"
+        new ZstdCodec(3, "", false).encode(responseBody.bytes) | "zstd"
         responseBody.bytes                           | "gzip"
     }
 
+    @Unroll
+    def "smile responses are decoded when the content type says so, with content encoding #content_encoding"() {
+        given: "call returns a smile response"
+        def message = new Message("type","x", "ct", 100, ZonedDateTime.parse("2018-10-01T13:45:00Z"), "{ \"valid\": \"json\" }")
+        def smile = JsonHelper.toSmileBytes([message])
+
+        HttpResponse<byte[]> httpResponse = new SimpleHttpResponse()
+        httpResponse.body(content_encoding == "br" ? new BrotliCodec(4, false).encode(smile) : smile)
+        httpResponse.headers.set(HttpHeaders.RETRY_AFTER, "1")
+        httpResponse.headers.set(HttpHeaders.PIPE_STATE, PipeState.UP_TO_DATE.name())
+        httpResponse.headers.set(HttpHeaders.X_CONTENT_ENCODING, content_encoding)
+        httpResponse.headers.set("Content-Type", "application/x-jackson-smile")
+
+        internalClient.httpRead(_ as List, _ as Long, _ as String) >> httpResponse
+
+        when: "we call read"
+        MessageResults messageResults = client.read([], 0, "locationUuid")
+
+        then: "messages are decoded from smile"
+        messageResults.messages == [message]
+
+        where:
+        content_encoding << ["br", "gzip"]
+    }
+
+    def "not modified responses are read as an empty page with the headers sent"() {
+        given:
+        HttpResponse<byte[]> httpResponse = new SimpleHttpResponse()
+        httpResponse.status(HttpStatus.NOT_MODIFIED)
+        httpResponse.headers.set(HttpHeaders.RETRY_AFTER_MS, "500")
+        httpResponse.headers.set(HttpHeaders.GLOBAL_LATEST_OFFSET, "100")
+        httpResponse.headers.set(HttpHeaders.PIPE_STATE, PipeState.UP_TO_DATE.name())
+
+        internalClient.httpRead(_ as List, _ as Long, _ as String) >> httpResponse
+
+        when:
+        MessageResults messageResults = client.read([], 101, "locationUuid")
+
+        then:
+        messageResults.messages.isEmpty()
+        messageResults.retryAfterMs == 500
+        messageResults.globalLatestOffset == OptionalLong.of(100)
+    }
+
+    def "streamed reads parse messages from the decoded body as they are iterated"() {
+        given:
+        def message = new Message("type","x", "ct", 100, ZonedDateTime.parse("2018-10-01T13:45:00Z"), "{ \"valid\": \"json\" }")
+        HttpResponse<byte[]> httpResponse = new SimpleHttpResponse()
+        httpResponse.body(new BrotliCodec(4, false).encode(JsonHelper.toJsonBytes([message])))
+        httpResponse.headers.set(HttpHeaders.RETRY_AFTER_MS, "500")
+        httpResponse.headers.set(HttpHeaders.GLOBAL_LATEST_OFFSET, "100")
+        httpResponse.headers.set(HttpHeaders.PIPE_STATE, PipeState.UP_TO_DATE.name())
+        httpResponse.headers.set(HttpHeaders.X_CONTENT_ENCODING, "br")
+
+        internalClient.httpRead(_ as List, _ as Long, _ as String) >> httpResponse
+
+        when:
+        def results = client.stream([], 100, "locationUuid")
+
+        then:
+        results.retryAfterMs == 500
+        results.globalLatestOffset == OptionalLong.of(100)
+        results.messages.collect() == [message]
+        results.messages.lastOffset == OptionalLong.of(100)
+
+        cleanup:
+        results?.close()
+    }
+
     def "throws unsupported operation error when getOffset invoked"() {
         when:
         client.getOffset(OffsetName.GLOBAL_LATEST_OFFSET)
@@ -0,0 +1,107 @@
+package com.tesco.aqueduct.pipe.http.client
+
+import com.tesco.aqueduct.pipe.api.Message
+import com.tesco.aqueduct.pipe.api.MessageResults
+import com.tesco.aqueduct.pipe.api.PipeState
+import com.tesco.aqueduct.pipe.api.Reader
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.ZonedDateTime
+import java.util.concurrent.ConcurrentHashMap
+
+class PrefetchingPipeReaderSpec extends Specification {
+
+    def conditions = new PollingConditions(timeout: 5)
+    def reads = ConcurrentHashMap.newKeySet()
+
+    def "the next batches are read ahead up to the depth while the node writes"() {
+        given: "a remote pipe with batches of two messages up to offset 10"
+        def reader = new PrefetchingPipeReader(remote(10), 2)
+
+        when:
+        def first = reader.read(["type"], 1, "location")
+
+        then: "the next two batches are read ahead, and no more"
+        offsets(first) == [1L, 2L]
+        conditions.eventually {
+            assert reads == [1L, 3L, 5L] as Set
+        }
+
+        when: "the node takes the next batch"
+        def second = reader.read(["type"], 3, "location")
+
+        then: "it was read ahead and another batch is read in its place"
+        offsets(second) == [3L, 4L]
+        conditions.eventually {
+            assert reads == [1L, 3L, 5L, 7L] as Set
+        }
+    }
+
+    def "reading ahead stops at an empty batch"() {
+        given:
+        def reader = new PrefetchingPipeReader(remote(2), 5)
+
+        when:
+        reader.read(["type"], 1, "location")
+
+        then:
+        conditions.eventually {
+            assert reads == [1L, 3L] as Set
+        }
+        reader.read(["type"], 3, "location").messages.isEmpty()
+    }
+
+    def "batches read ahead are dropped when the node reads from another offset"() {
+        given:
+        def reader = new PrefetchingPipeReader(remote(10), 1)
+        reader.read(["type"], 1, "location")
+        conditions.eventually {
+            assert reads == [1L, 3L] as Set
+        }
+
+        when:
+        def results = reader.read(["type"], 2, "location")
+
+        then:
+        offsets(results) == [2L, 3L]
+    }
+
+    def "a failed read ahead is read again when the node gets to it"() {
+        given:
+        def attempts = 0
+        def remote = Mock(Reader) {
+            read(_, 1, _) >> results(1, 10)
+            read(_, 3, _) >> { if (attempts++ == 0) { throw new RuntimeException("failed") }; results(3, 10) }
+            read(_, _, _) >> new MessageResults([], 0, OptionalLong.empty(), PipeState.UP_TO_DATE)
+        }
+        def reader = new PrefetchingPipeReader(remote, 1)
+        reader.read(["type"], 1, "location")
+        conditions.eventually {
+            assert attempts == 1
+        }
+
+        expect:
+        offsets(reader.read(["type"], 3, "location")) == [3L, 4L]
+    }
+
+    Reader remote(long latestOffset) {
+        Mock(Reader) {
+            read(_, _, _) >> { List<String> types, long offset, String location ->
+                reads << offset
+                results(offset, latestOffset)
+            }
+        }
+    }
+
+    static MessageResults results(long offset, long latestOffset) {
+        def messages = (offset..<offset + 2).findAll { it <= latestOffset }.collect {
+            new Message("type", "key", "contentType", it, ZonedDateTime.now(), "data")
+        }
+        new MessageResults(messages, 0, OptionalLong.of(latestOffset), PipeState.UP_TO_DATE)
+    }
+
+    static List<Long> offsets(MessageResults results) {
+        results.messages*.offset
+    }
+}
@@ -63,7 +63,7 @@ class LocationRoutingIntegrationSpec extends Specification {
                 "authentication.identity.users.userA.clientId": "someClientUserId",
                 "authentication.identity.users.userA.roles":    "PIPE_READ",
 
-                "micronaut.caches.latest-offset-cache.expire-after-write": "0s",
+                "persistence.read.latest-offset.max-staleness": "0s",
 
                 "location.url":                                 "${locationMockService.getUrl()}",
                 "location.clusters.get.path":                   "${LocationMock.LOCATION_CLUSTER_PATH_WITH_QUERY_PARAM}",
@@ -58,7 +58,9 @@ class PipeCloudServerIntegrationSpec extends Specification {
                 "persistence.read.cluster-db-pool-size": 10,
                 "micronaut.security.enabled": "false",
                 "compression.threshold-in-bytes": 1024,
-                "micronaut.caches.latest-offset-cache.expire-after-write": "5s",
+                "persistence.read.latest-offset.max-staleness": "5s",
+                "persistence.read.latest-offset.poll-enabled": "false",
+                "persistence.notifications.enabled": "false",
             )
             .mainClass(EmbeddedServer)
             .build()
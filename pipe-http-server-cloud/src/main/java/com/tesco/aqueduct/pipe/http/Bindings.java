@@ -7,17 +7,30 @@ import com.tesco.aqueduct.pipe.identity.issuer.IdentityIssueTokenProvider;
 import com.tesco.aqueduct.pipe.location.CloudLocationService;
 import com.tesco.aqueduct.pipe.location.LocationServiceClient;
 import com.tesco.aqueduct.pipe.metrics.Measure;
+import com.tesco.aqueduct.pipe.storage.ChunkedCompaction;
 import com.tesco.aqueduct.pipe.storage.ClusterStorage;
+import com.tesco.aqueduct.pipe.storage.DeletionTombstones;
+import com.tesco.aqueduct.pipe.storage.EventsPageCache;
+import com.tesco.aqueduct.pipe.storage.EventsPartitions;
+import com.tesco.aqueduct.pipe.storage.EventsTailBuffer;
 import com.tesco.aqueduct.pipe.storage.GlobalLatestOffsetCache;
+import com.tesco.aqueduct.pipe.storage.LocationCache;
+import com.tesco.aqueduct.pipe.storage.NotificationListener;
 import com.tesco.aqueduct.pipe.storage.PostgresqlStorage;
+import com.tesco.aqueduct.pipe.storage.PoolUsage;
+import com.tesco.aqueduct.pipe.storage.ReplicaRouter;
+import com.tesco.aqueduct.pipe.storage.RetryAfterController;
 import com.tesco.aqueduct.registry.model.NodeRegistry;
 import com.tesco.aqueduct.registry.model.NodeRequestStorage;
 import com.tesco.aqueduct.registry.postgres.PostgreSQLNodeRegistry;
 import com.tesco.aqueduct.registry.postgres.PostgreSQLNodeRequestStorage;
 import io.jaegertracing.Configuration;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.context.BeanContext;
 import io.micronaut.context.annotation.Factory;
 import io.micronaut.context.annotation.Property;
 import io.micronaut.context.annotation.Value;
+import io.micronaut.inject.qualifiers.Qualifiers;
 import io.opentracing.Tracer;
 
 import javax.inject.Named;
@@ -26,6 +39,8 @@ import javax.inject.Singleton;
 import javax.sql.DataSource;
 import java.net.URL;
 import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Factory
 @Singleton
@@ -43,20 +58,143 @@ public class Bindings {
         @Named("pipe") final DataSource pipeDataSource,
         final GlobalLatestOffsetCache globalLatestOffsetCache,
         ClusterStorage clusterStorage,
-        @Named("compaction") final DataSource compactionDataSource
+        @Named("compaction") final DataSource compactionDataSource,
+        final EventsPageCache eventsPageCache,
+        final EventsTailBuffer eventsTailBuffer,
+        @Value("${persistence.read.single-query.enabled:false}") final boolean singleQueryRead,
+        final LocationCache locationCache,
+        final ReplicaRouter replicaRouter,
+        final EventsPartitions eventsPartitions,
+        final ChunkedCompaction chunkedCompaction,
+        final DeletionTombstones deletionTombstones,
+        final RetryAfterController retryAfterController
     ) {
         return new PostgresqlStorage(
-            pipeDataSource, compactionDataSource, limit, retryAfter, maxBatchSize, globalLatestOffsetCache, expectedNodeCount, clusterDBPoolSize, workMemMb, clusterStorage
+            pipeDataSource, compactionDataSource, limit, retryAfter, maxBatchSize, globalLatestOffsetCache, expectedNodeCount, clusterDBPoolSize, workMemMb, clusterStorage, eventsPageCache, eventsTailBuffer, singleQueryRead, locationCache, replicaRouter, eventsPartitions, chunkedCompaction, deletionTombstones, retryAfterController
         );
     }
 
+    @Singleton
+    ReplicaRouter replicaRouter(
+        @Value("${persistence.read.replicas.datasources:}") final List<String> replicaNames,
+        @Value("${persistence.read.replicas.max-lag:5s}") final Duration maxLag,
+        final BeanContext beanContext
+    ) {
+        final List<DataSource> replicas = replicaNames.stream()
+            .filter(name -> !name.isEmpty())
+            .map(name -> beanContext.getBean(DataSource.class, Qualifiers.byName(name)))
+            .collect(Collectors.toList());
+        return new ReplicaRouter(replicas, maxLag);
+    }
+
+    @Singleton
+    RetryAfterController retryAfterController(
+        @Named("pipe") final DataSource pipeDataSource,
+        @Value("${persistence.read.retry-after-controller.target-utilisation:0}") final double targetUtilisation,
+        @Value("${persistence.read.retry-after-controller.min-retry-after:1000}") final long minRetryAfter,
+        @Property(name = "persistence.read.retry-after") final long maxRetryAfter,
+        @Value("${persistence.read.retry-after-controller.window:1m}") final Duration window,
+        @Value("${persistence.read.retry-after-controller.max-samples:10000}") final int maxSamples
+    ) {
+        return new RetryAfterController(
+            PoolUsage.of(pipeDataSource), targetUtilisation, minRetryAfter, maxRetryAfter, window, maxSamples
+        );
+    }
+
+    @Singleton
+    DeletionTombstones deletionTombstones(
+        @Value("${persistence.compact.deletions.tombstones.enabled:false}") final boolean enabled,
+        @Value("${persistence.compact.deletions.tombstones.rescan-window:100000}") final long rescanWindow
+    ) {
+        return new DeletionTombstones(enabled, rescanWindow);
+    }
+
+    @Singleton
+    ChunkedCompaction chunkedCompaction(
+        @Value("${persistence.compact.chunk.size:0}") final long chunkSize,
+        @Value("${persistence.compact.chunk.rows-per-second:0}") final long rowsPerSecond,
+        @Value("${persistence.compact.chunk.max-run-duration:30m}") final Duration maxRunDuration,
+        @Value("${persistence.compact.chunk.full-sweep-interval:24h}") final Duration fullSweepInterval,
+        final MeterRegistry registry
+    ) {
+        return new ChunkedCompaction(chunkSize, rowsPerSecond, maxRunDuration, fullSweepInterval, registry);
+    }
+
+    @Singleton
+    EventsPartitions eventsPartitions(
+        @Value("${persistence.events.partitions.size:0}") final long partitionSize,
+        @Value("${persistence.events.partitions.ahead:2}") final int partitionsAhead,
+        @Value("${persistence.events.partitions.rewrite-threshold:0.5}") final double rewriteThreshold
+    ) {
+        return new EventsPartitions(partitionSize, partitionsAhead, rewriteThreshold);
+    }
+
+    @Singleton
+    EventsPageCache eventsPageCache(
+        @Value("${persistence.read.page-cache.max-size-in-bytes:0}") final long maxSizeInBytes,
+        @Value("${persistence.read.page-cache.expire-after-write:1h}") final Duration expireAfterWrite,
+        final MeterRegistry registry
+    ) {
+        final EventsPageCache eventsPageCache = new EventsPageCache(maxSizeInBytes, expireAfterWrite);
+        eventsPageCache.bindTo(registry);
+        return eventsPageCache;
+    }
+
+    @Singleton
+    EventsTailBuffer eventsTailBuffer(
+        @Value("${persistence.read.tail-buffer.max-size-in-bytes:0}") final long maxSizeInBytes,
+        @Value("${persistence.read.tail-buffer.batch-size:10000}") final int batchSize,
+        final MeterRegistry registry
+    ) {
+        final EventsTailBuffer eventsTailBuffer = new EventsTailBuffer(maxSizeInBytes, batchSize);
+        eventsTailBuffer.bindTo(registry);
+        return eventsTailBuffer;
+    }
+
     @Singleton
     ClusterStorage clusterStorage(
         @Named("pipe") final DataSource dataSource,
         @Value("${location.clusters.cache.expire-after-write}") final Duration expireAfter,
-        final LocationService locationService
+        final LocationService locationService,
+        final LocationCache locationCache,
+        @Value("${location.clusters.cache.refresh-ahead:0s}") final Duration refreshAhead,
+        @Value("${location.clusters.cache.max-staleness:30m}") final Duration maxStaleness,
+        @Value("${location.clusters.cache.refresh-batch-size:100}") final int refreshBatchSize,
+        @Value("${location.clusters.cache.refresh-concurrency:4}") final int refreshConcurrency,
+        @Value("${location.clusters.cache.refresh-queue-size:1000}") final int refreshQueueSize
+    ) {
+        return new ClusterStorage(
+            locationService, expireAfter, locationCache, dataSource,
+            refreshAhead, maxStaleness, refreshBatchSize, refreshConcurrency, refreshQueueSize
+        );
+    }
+
+    @Singleton
+    LocationCache locationCache(
+        @Value("${location.local-cache.maximum-size:0}") final long maximumSize,
+        @Value("${location.local-cache.expire-after-write:5m}") final Duration expireAfterWrite,
+        final MeterRegistry registry
+    ) {
+        final LocationCache locationCache = new LocationCache(maximumSize, expireAfterWrite);
+        locationCache.bindTo(registry);
+        return locationCache;
+    }
+
+    @Singleton
+    NotificationListener notificationListener(
+        @Property(name = "datasources.pipe.jdbc-url") final String jdbcUrl,
+        @Property(name = "datasources.pipe.username") final String username,
+        @Property(name = "datasources.pipe.password") final String password,
+        final LocationCache locationCache,
+        final GlobalLatestOffsetCache globalLatestOffsetCache,
+        final EventsPageCache eventsPageCache,
+        final EventsTailBuffer eventsTailBuffer
     ) {
-        return new ClusterStorage(locationService, expireAfter);
+        return new NotificationListener(jdbcUrl, username, password)
+            .on(LocationCache.INVALIDATION_CHANNEL, locationCache)
+            .on(GlobalLatestOffsetCache.NOTIFICATION_CHANNEL, globalLatestOffsetCache)
+            .on(PostgresqlStorage.COMPACTION_CHANNEL, eventsPageCache)
+            .on(PostgresqlStorage.COMPACTION_CHANNEL, eventsTailBuffer);
     }
 
     @Singleton
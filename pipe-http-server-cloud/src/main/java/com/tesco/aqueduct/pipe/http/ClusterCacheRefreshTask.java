@@ -0,0 +1,32 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import com.tesco.aqueduct.pipe.storage.ClusterStorage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.scheduling.annotation.Scheduled;
+import org.slf4j.LoggerFactory;
+
+@Context
+@Requires(property = "location.clusters.cache.refresh-ahead")
+class ClusterCacheRefreshTask {
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ClusterCacheRefreshTask.class));
+    private final ClusterStorage clusterStorage;
+    private final Timer refreshTimer;
+
+    public ClusterCacheRefreshTask(final MeterRegistry registry, final ClusterStorage clusterStorage) {
+        this.clusterStorage = clusterStorage;
+        this.refreshTimer = registry.timer("location.clusters.cache.refresh");
+    }
+
+    @Scheduled(fixedDelay = "${location.clusters.cache.refresh-interval:10s}")
+    void refresh() {
+        try {
+            refreshTimer.record(clusterStorage::refreshExpiringEntries);
+        } catch (RuntimeException exception) {
+            LOG.error("cluster cache refresh", "failed to refresh expiring entries", exception);
+        }
+    }
+}
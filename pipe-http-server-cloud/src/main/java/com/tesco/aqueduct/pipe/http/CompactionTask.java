@@ -35,6 +35,7 @@ class CompactionTask {
         this.compactionDeletions = compactionDeletions;
         this.compactDeletionsThreshold = compactDeletionsThreshold;
         isValid(cronExpression);
+        createDeletionTombstones();
     }
 
     @Scheduled(cron = "${persistence.compact.schedule.cron}")
@@ -46,6 +47,15 @@ class CompactionTask {
         });
     }
 
+    // tombstones are recorded as deletions are written from startup, rather than from the next compaction only
+    private void createDeletionTombstones() {
+        try {
+            postgresqlStorage.createDeletionTombstones();
+        } catch (RuntimeException exception) {
+            LOG.error("compaction", "failed to create deletion tombstones", exception);
+        }
+    }
+
     private void isValid(final String cronExpression) {
         CronExpression.create(cronExpression);
     }
@@ -0,0 +1,28 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import com.tesco.aqueduct.pipe.storage.PostgresqlStorage;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.scheduling.annotation.Scheduled;
+import org.slf4j.LoggerFactory;
+
+@Context
+@Requires(property = "persistence.events.partitions.size")
+class EventsPartitionsTask {
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(EventsPartitionsTask.class));
+    private final PostgresqlStorage postgresqlStorage;
+
+    public EventsPartitionsTask(final PostgresqlStorage postgresqlStorage) {
+        this.postgresqlStorage = postgresqlStorage;
+    }
+
+    @Scheduled(fixedDelay = "${persistence.events.partitions.create-interval:1m}")
+    void createPartitions() {
+        try {
+            postgresqlStorage.createEventsPartitions();
+        } catch (RuntimeException exception) {
+            LOG.error("events partitions", "failed to create events partitions", exception);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import com.tesco.aqueduct.pipe.storage.PostgresqlStorage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.scheduling.annotation.Scheduled;
+import org.slf4j.LoggerFactory;
+
+@Context
+@Requires(property = "persistence.read.tail-buffer.max-size-in-bytes")
+class EventsTailTask {
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(EventsTailTask.class));
+    private final PostgresqlStorage postgresqlStorage;
+    private final Timer tailTimer;
+
+    public EventsTailTask(final MeterRegistry registry, final PostgresqlStorage postgresqlStorage) {
+        this.postgresqlStorage = postgresqlStorage;
+        this.tailTimer = registry.timer("persistence.read.tail");
+    }
+
+    @Scheduled(fixedDelay = "${persistence.read.tail-buffer.refresh-interval:1s}")
+    void tail() {
+        try {
+            tailTimer.record(postgresqlStorage::tailEvents);
+        } catch (RuntimeException exception) {
+            LOG.error("events tail", "failed to tail events", exception);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import com.tesco.aqueduct.pipe.storage.PostgresqlStorage;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.scheduling.annotation.Scheduled;
+import org.slf4j.LoggerFactory;
+
+@Context
+@Requires(property = "persistence.read.latest-offset.poll-enabled", value = "true")
+class GlobalLatestOffsetPollTask {
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(GlobalLatestOffsetPollTask.class));
+    private final PostgresqlStorage postgresqlStorage;
+
+    public GlobalLatestOffsetPollTask(final PostgresqlStorage postgresqlStorage) {
+        this.postgresqlStorage = postgresqlStorage;
+    }
+
+    @Scheduled(fixedDelay = "${persistence.read.latest-offset.poll-interval:1s}")
+    void poll() {
+        try {
+            postgresqlStorage.refreshGlobalLatestOffset();
+        } catch (RuntimeException exception) {
+            LOG.error("global latest offset", "failed to poll global latest offset", exception);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import com.tesco.aqueduct.pipe.storage.NotificationListener;
+import com.tesco.aqueduct.pipe.storage.PostgresqlStorage;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.scheduling.annotation.Scheduled;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+
+@Context
+@Requires(property = "persistence.notifications.enabled", value = "true")
+class NotificationListenerTask {
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(NotificationListenerTask.class));
+    private final NotificationListener listener;
+    private final Duration listenTimeout;
+
+    public NotificationListenerTask(
+        final NotificationListener listener,
+        final PostgresqlStorage postgresqlStorage,
+        @Property(name = "persistence.notifications.listen-timeout") final Duration listenTimeout
+    ) {
+        this.listener = listener;
+        this.listenTimeout = listenTimeout;
+        createNotificationTriggers(postgresqlStorage);
+    }
+
+    @Scheduled(fixedDelay = "${persistence.notifications.listen-interval:100ms}")
+    void listen() {
+        try {
+            listener.listen(listenTimeout);
+        } catch (RuntimeException exception) {
+            LOG.error("notification listener", "failed to listen for notifications", exception);
+        }
+    }
+
+    // changes made outside of this service are only notified once the triggers exist
+    private void createNotificationTriggers(final PostgresqlStorage postgresqlStorage) {
+        try {
+            postgresqlStorage.createNotificationTriggers();
+        } catch (RuntimeException exception) {
+            LOG.error("notification listener", "failed to create notification triggers", exception);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        listener.close();
+    }
+}
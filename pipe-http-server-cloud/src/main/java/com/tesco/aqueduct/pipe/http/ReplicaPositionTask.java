@@ -0,0 +1,28 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import com.tesco.aqueduct.pipe.storage.PostgresqlStorage;
+import io.micronaut.context.annotation.Context;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.scheduling.annotation.Scheduled;
+import org.slf4j.LoggerFactory;
+
+@Context
+@Requires(property = "persistence.read.replicas.datasources")
+class ReplicaPositionTask {
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ReplicaPositionTask.class));
+    private final PostgresqlStorage postgresqlStorage;
+
+    public ReplicaPositionTask(final PostgresqlStorage postgresqlStorage) {
+        this.postgresqlStorage = postgresqlStorage;
+    }
+
+    @Scheduled(fixedDelay = "${persistence.read.replicas.refresh-interval:1s}")
+    void refresh() {
+        try {
+            postgresqlStorage.refreshReplicaPositions();
+        } catch (RuntimeException exception) {
+            LOG.error("replica position", "failed to refresh replica positions", exception);
+        }
+    }
+}
@@ -26,6 +26,7 @@ import static org.hamcrest.Matchers.equalTo
 @Property(name="pipe.http.server.read.response-size-limit-in-bytes", value="200")
 @Property(name="micronaut.security.enabled", value="false")
 @Property(name="compression.threshold-in-bytes", value = "1024")
+@Property(name="pipe.http.server.chunked-response.threshold-in-bytes", value = "4096")
 @Property(name="rate-limiter.capacity", value = "1")
 class PipeReadControllerIntegrationSpec extends Specification {
 
@@ -377,6 +378,135 @@ class PipeReadControllerIntegrationSpec extends Specification {
         response.header("content-encoding") == null
     }
 
+    def "pages below the chunked response threshold are encoded whole and sent with their length"() {
+        given: 'a read request'
+        def message = new Message("type", "key", "contentType", 0L, ZonedDateTime.now(Clock.systemUTC()), "a" * 1025)
+        reader.read([], 0, _ as String) >> new MessageResults([message], 0, of(0L), PipeState.UP_TO_DATE)
+
+        when: "we read from the pipe"
+        def response = RestAssured
+            .given()
+            .header("Accept-Encoding", "br")
+            .get("/pipe/0?location=someLocation")
+
+        then: "the encoded page is sent in one go"
+        def body = response.body().asByteArray()
+        response.header("Content-Length") == String.valueOf(body.length)
+        response.header("Transfer-Encoding") == null
+        JsonHelper.messageFromJsonArray(new BrotliCodec(4, false).decode(body)) == [message]
+    }
+
+    @Unroll
+    def "pages above the chunked response threshold are streamed in chunks when encoded with #encoding"() {
+        given: 'a read request for a page larger than a chunk'
+        def messages = (0..<100).collect {
+            new Message("type", "key$it", "contentType", it, ZonedDateTime.now(Clock.systemUTC()), "a" * 1025)
+        }
+        reader.read([], 0, _ as String) >> new MessageResults(messages, 0, of(99L), PipeState.UP_TO_DATE)
+
+        when: "we read from the pipe"
+        def response = RestAssured
+            .given()
+            .header("Accept-Encoding", encoding)
+            .get("/pipe/0?location=someLocation")
+
+        then: "the page is sent in chunks, with the headers of the page"
+        response.header("Transfer-Encoding") == "chunked"
+        response.header("Content-Length") == null
+        response.header("X-Content-Encoding") == encoding
+        response.header(HttpHeaders.GLOBAL_LATEST_OFFSET) == "99"
+        response.header(HttpHeaders.RETRY_AFTER_MS) == "0"
+
+        and: "all of it can be decoded"
+        JsonHelper.messageFromJsonArray(decode(response.body().asByteArray())) == messages
+
+        where:
+        encoding | decode
+        "gzip"   | { byte[] body -> body }
+        "br"     | { byte[] body -> new BrotliCodec(4, false).decode(body) }
+    }
+
+    def "messages are written as smile when it is accepted"() {
+        given: 'a read request'
+        def message = new Message("type", "key", "contentType", 0L, ZonedDateTime.now(Clock.systemUTC()), "a" * 1025)
+        reader.read([], 0, _ as String) >> new MessageResults([message], 0, of(0L), PipeState.UP_TO_DATE)
+
+        when: "we read from the pipe accepting smile"
+        def response = RestAssured
+            .given()
+            .header("Accept", "application/x-jackson-smile, application/json")
+            .header("Accept-Encoding", "br")
+            .get("/pipe/0?location=someLocation")
+
+        then: "the response is smile, encoded"
+        response.contentType() == "application/x-jackson-smile"
+        response.header("X-Content-Encoding") == "br"
+        JsonHelper.messageFromSmileArray(new BrotliCodec(4, false).decode(response.body().asByteArray())) == [message]
+    }
+
+    def "messages are written as json when smile is not accepted"() {
+        given: 'a read request'
+        def message = new Message("type", "key", "contentType", 0L, ZonedDateTime.now(Clock.systemUTC()), "smallPayload")
+        reader.read([], 0, _ as String) >> new MessageResults([message], 0, of(0L), PipeState.UP_TO_DATE)
+
+        when: "we read from the pipe"
+        def response = RestAssured
+            .given()
+            .header("Accept", "application/json")
+            .get("/pipe/0?location=someLocation")
+
+        then: "the response is json"
+        response.contentType().startsWith("application/json")
+        JsonHelper.messageFromJsonArray(response.body().asByteArray()) == [message]
+    }
+
+    def "caught up reads are answered without reading from storage and tagged"() {
+        given: "the reader knows the read is past the latest offset"
+        reader.readCaughtUp(101) >> Optional.of(new MessageResults([], 1000, of(100L), PipeState.UP_TO_DATE))
+
+        when: "we read past the latest offset"
+        def response = RestAssured.given().get("/pipe/101?location=someLocation")
+
+        then: "an empty page is returned with an entity tag"
+        0 * reader.read(*_)
+        response.statusCode() == 200
+        response.body().asString() == "[]"
+        response.header(HttpHeaders.ETAG) == '"101-100-UP_TO_DATE"'
+        response.header(HttpHeaders.GLOBAL_LATEST_OFFSET) == "100"
+    }
+
+    def "caught up reads with a matching entity tag are not modified"() {
+        given: "the reader knows the read is past the latest offset"
+        reader.readCaughtUp(101) >> Optional.of(new MessageResults([], 1000, of(100L), PipeState.UP_TO_DATE))
+
+        when: "we read again with the tag of the previous page"
+        def response = RestAssured
+            .given()
+            .header(HttpHeaders.IF_NONE_MATCH, '"101-100-UP_TO_DATE"')
+            .get("/pipe/101?location=someLocation")
+
+        then: "nothing is read and the page is not sent again"
+        0 * reader.read(*_)
+        response.statusCode() == 304
+        response.header(HttpHeaders.RETRY_AFTER_MS) == "1000"
+        response.header(HttpHeaders.GLOBAL_LATEST_OFFSET) == "100"
+    }
+
+    def "caught up reads with a stale entity tag get the page"() {
+        given: "the latest offset has moved on since the tag was issued"
+        reader.readCaughtUp(101) >> Optional.of(new MessageResults([], 1000, of(100L), PipeState.UP_TO_DATE))
+
+        when:
+        def response = RestAssured
+            .given()
+            .header(HttpHeaders.IF_NONE_MATCH, '"101-99-UP_TO_DATE"')
+            .get("/pipe/101?location=someLocation")
+
+        then:
+        response.statusCode() == 200
+        response.header(HttpHeaders.ETAG) == '"101-100-UP_TO_DATE"'
+    }
+
     @MockBean(Reader)
     @Named("local")
     Reader reader() {
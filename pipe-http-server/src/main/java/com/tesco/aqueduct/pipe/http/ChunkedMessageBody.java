@@ -0,0 +1,142 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.api.Message;
+import com.tesco.aqueduct.pipe.api.MessageFormat;
+import com.tesco.aqueduct.pipe.api.MessageWriter;
+import com.tesco.aqueduct.pipe.codec.Codec;
+import com.tesco.aqueduct.pipe.codec.ContentEncoder;
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Body of a page written as it is sent. Messages are serialised, and encoded when there is a codec, into pooled
+ * buffers of about a chunk each, only once the connection asks for the next one, so neither the serialised nor the
+ * encoded page is ever held in full. Netty releases each chunk once it is written.
+ */
+final class ChunkedMessageBody {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ChunkedMessageBody.class));
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private ChunkedMessageBody() {
+    }
+
+    static Flowable<ByteBuf> of(
+        final MessageFormat format,
+        final List<Message> messages,
+        final Optional<Codec> codec,
+        final ContentEncoder contentEncoder
+    ) {
+        return Flowable.generate(
+            () -> new Writer(format, messages, codec, contentEncoder),
+            Writer::next,
+            Writer::release
+        );
+    }
+
+    private static class Writer {
+        private final Iterator<Message> messages;
+        private final ChunkOutputStream chunks = new ChunkOutputStream();
+        private final MessageWriter messageWriter;
+        private boolean finished = false;
+
+        Writer(
+            final MessageFormat format,
+            final List<Message> messages,
+            final Optional<Codec> codec,
+            final ContentEncoder contentEncoder
+        ) {
+            this.messages = messages.iterator();
+            this.messageWriter = format.messageWriterTo(
+                codec.map(c -> contentEncoder.encodingStream(c, chunks)).orElse(chunks)
+            );
+        }
+
+        void next(final Emitter<ByteBuf> emitter) throws IOException {
+            if (finished) {
+                emitter.onComplete();
+                return;
+            }
+
+            // encoders hold back what they are given, so a chunk can take more messages than fit in it
+            while (chunks.size() < CHUNK_SIZE && messages.hasNext()) {
+                messageWriter.write(messages.next());
+            }
+            if (!messages.hasNext()) {
+                finished = true;
+                // ends the array and finishes the encoding, flushing both into the last chunk
+                messageWriter.close();
+            }
+            emitter.onNext(chunks.take());
+        }
+
+        /**
+         * Called once the body completes, fails or is cancelled. A body that didn't finish still holds an encoder,
+         * which can hold native memory, so the writer is closed before the pending chunk is released.
+         */
+        void release() {
+            try {
+                if (!finished) {
+                    finished = true;
+                    messageWriter.close();
+                }
+            } catch (IOException | RuntimeException exception) {
+                LOG.error("chunked message body", "close unfinished body", exception);
+            } finally {
+                chunks.release();
+            }
+        }
+    }
+
+    private static class ChunkOutputStream extends OutputStream {
+        private ByteBuf chunk;
+
+        @Override
+        public void write(final int b) {
+            current().writeByte(b);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) {
+            current().writeBytes(bytes, offset, length);
+        }
+
+        int size() {
+            return chunk == null ? 0 : chunk.readableBytes();
+        }
+
+        /**
+         * @return the chunk written so far, handing it over, the next write starts a new one
+         */
+        ByteBuf take() {
+            final ByteBuf taken = current();
+            chunk = null;
+            return taken;
+        }
+
+        void release() {
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+        }
+
+        private ByteBuf current() {
+            if (chunk == null) {
+                chunk = ByteBufAllocator.DEFAULT.buffer(CHUNK_SIZE);
+            }
+            return chunk;
+        }
+    }
+}
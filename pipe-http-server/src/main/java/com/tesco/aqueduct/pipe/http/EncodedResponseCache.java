@@ -0,0 +1,64 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.tesco.aqueduct.pipe.api.CachedPage;
+import com.tesco.aqueduct.pipe.api.Message;
+import com.tesco.aqueduct.pipe.api.MessageFormat;
+import com.tesco.aqueduct.pipe.codec.ContentEncoder;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.http.HttpRequest;
+
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static com.tesco.aqueduct.pipe.api.HttpHeaders.X_ZSTD_DICTIONARY;
+import static io.micronaut.http.HttpHeaders.ACCEPT_ENCODING;
+
+/**
+ * Keeps encoded responses for pages the reader hands out more than once. Only {@link CachedPage}s are kept, keyed by
+ * their identity, so entries go away once the reader drops the page. Any other page is only read once and is encoded
+ * as it is sent.
+ */
+@Singleton
+public class EncodedResponseCache {
+
+    private final boolean enabled;
+    private final Cache<List<Message>, Map<String, ContentEncoder.EncodedResponse>> cache;
+
+    public EncodedResponseCache(
+        @Property(name = "pipe.http.server.encoded-response-cache.enabled", defaultValue = "false") boolean enabled,
+        @Property(name = "pipe.http.server.encoded-response-cache.max-pages", defaultValue = "1000") long maxPages
+    ) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+            .weakKeys()
+            .maximumSize(maxPages)
+            .build();
+    }
+
+    public boolean isCacheable(final List<Message> messages) {
+        return enabled && messages instanceof CachedPage && !messages.isEmpty();
+    }
+
+    public ContentEncoder.EncodedResponse get(
+        final List<Message> messages,
+        final HttpRequest<?> request,
+        final MessageFormat format,
+        final Supplier<ContentEncoder.EncodedResponse> encoder
+    ) {
+        if (!isCacheable(messages)) {
+            return encoder.get();
+        }
+
+        final String acceptEncoding = request.getHeaders().get(ACCEPT_ENCODING, String.class).orElse("");
+        final String zstdDictionaries = request.getHeaders().get(X_ZSTD_DICTIONARY, String.class).orElse("");
+
+        return cache
+            .get(messages, page -> new ConcurrentHashMap<>())
+            .computeIfAbsent(format + ":" + acceptEncoding + ":" + zstdDictionaries, encoding -> encoder.get());
+    }
+}
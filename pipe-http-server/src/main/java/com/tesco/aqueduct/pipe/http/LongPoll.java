@@ -0,0 +1,135 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.api.Reader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micronaut.context.annotation.Property;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parks reads asking for offsets past the latest one until the reader publishes a newer offset or the wait the node
+ * asked for runs out, so nodes that are up to date don't poll for empty pages. Parked reads hold no thread or
+ * connection. Woken reads are spread over the wake jitter so they don't all read at once.
+ */
+@Singleton
+public class LongPoll {
+
+    private static final long UNKNOWN = -1;
+
+    private final boolean enabled;
+    private final long maxWaitMs;
+    private final int maxParked;
+    private final long wakeJitterMs;
+    private final AtomicLong latestOffset = new AtomicLong(UNKNOWN);
+    private final Set<Parked> parked = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private final Counter woken;
+    private final Counter timedOut;
+
+    public LongPoll(
+        @Named("local") final Reader reader,
+        @Property(name = "pipe.http.server.long-poll.enabled", defaultValue = "false") final boolean enabled,
+        @Property(name = "pipe.http.server.long-poll.max-wait", defaultValue = "30s") final Duration maxWait,
+        @Property(name = "pipe.http.server.long-poll.max-parked", defaultValue = "10000") final int maxParked,
+        @Property(name = "pipe.http.server.long-poll.wake-jitter", defaultValue = "0s") final Duration wakeJitter,
+        final MeterRegistry registry
+    ) {
+        this.enabled = enabled && reader.addOffsetListener(this::advance);
+        this.maxWaitMs = maxWait.toMillis();
+        this.maxParked = maxParked;
+        this.wakeJitterMs = wakeJitter.toMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "long-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.woken = registry.counter("pipe.read.long-poll", "result", "woken");
+        this.timedOut = registry.counter("pipe.read.long-poll", "result", "timed-out");
+        registry.gaugeCollectionSize("pipe.read.long-poll.parked", Tags.empty(), parked);
+    }
+
+    /**
+     * @param waitMs how long the node is willing to wait, capped at the max wait
+     * @return completes once the offset is published or the wait is over, empty when the read should go ahead now
+     */
+    public Optional<CompletableFuture<Void>> park(final long offset, final long waitMs) {
+        if (!enabled || waitMs <= 0 || !isAhead(offset) || parked.size() >= maxParked) {
+            return Optional.empty();
+        }
+
+        final Parked read = new Parked(offset);
+        parked.add(read);
+        read.whenComplete((result, throwable) -> parked.remove(read));
+
+        // the offset may have been published while parking
+        if (!isAhead(offset)) {
+            read.complete(null);
+            return Optional.of(read);
+        }
+
+        scheduler.schedule(() -> {
+            if (read.complete(null)) {
+                timedOut.increment();
+            }
+        }, Math.min(waitMs, maxWaitMs), TimeUnit.MILLISECONDS);
+
+        return Optional.of(read);
+    }
+
+    private boolean isAhead(final long offset) {
+        final long latest = latestOffset.get();
+        return latest != UNKNOWN && offset > latest;
+    }
+
+    private void advance(final long offset) {
+        latestOffset.accumulateAndGet(offset, Math::max);
+
+        for (final Parked read : parked) {
+            if (read.offset <= offset) {
+                wake(read);
+            }
+        }
+    }
+
+    private void wake(final Parked read) {
+        if (wakeJitterMs <= 0) {
+            if (read.complete(null)) {
+                woken.increment();
+            }
+            return;
+        }
+        scheduler.schedule(() -> {
+            if (read.complete(null)) {
+                woken.increment();
+            }
+        }, ThreadLocalRandom.current().nextLong(wakeJitterMs), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void close() {
+        scheduler.shutdownNow();
+        parked.forEach(read -> read.complete(null));
+    }
+
+    private static class Parked extends CompletableFuture<Void> {
+        private final long offset;
+
+        Parked(final long offset) {
+            this.offset = offset;
+        }
+    }
+}
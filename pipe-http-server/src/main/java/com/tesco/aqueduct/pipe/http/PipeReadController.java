@@ -1,6 +1,7 @@
 package com.tesco.aqueduct.pipe.http;
 
 import com.tesco.aqueduct.pipe.api.*;
+import com.tesco.aqueduct.pipe.codec.Codec;
 import com.tesco.aqueduct.pipe.codec.ContentEncoder;
 import com.tesco.aqueduct.pipe.logger.PipeLogger;
 import com.tesco.aqueduct.pipe.metrics.Measure;
@@ -8,10 +9,17 @@ import io.micronaut.context.annotation.Property;
 import io.micronaut.core.util.StringUtils;
 import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MediaType;
 import io.micronaut.http.MutableHttpResponse;
 import io.micronaut.http.annotation.Controller;
 import io.micronaut.http.annotation.Get;
+import io.micronaut.scheduling.TaskExecutors;
 import io.micronaut.security.annotation.Secured;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
@@ -23,6 +31,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -38,6 +50,12 @@ public class PipeReadController {
     private final Duration clusterChangeThreshold;
     private final ContentEncoder contentEncoder;
     private final PipeRateLimiter rateLimiter;
+    private final EncodedResponseCache encodedResponseCache;
+    private final ReadCoalescer readCoalescer;
+    private final ReadAdmission readAdmission;
+    private final LongPoll longPoll;
+    private final ExecutorService ioExecutor;
+    private final long chunkedResponseThreshold;
     private final boolean logging;
 
     @Inject
@@ -46,45 +64,113 @@ public class PipeReadController {
             @Property(name = "pipe.bootstrap.threshold", defaultValue = "6h") Duration bootstrapThreshold,
             @Property(name = "pipe.clusterChange.threshold", defaultValue = "24h") Duration clusterChangeThreshold,
             @Property(name = "bootstrap.retry.logging", defaultValue = "false") boolean logging,
+            @Property(name = "pipe.http.server.chunked-response.threshold-in-bytes", defaultValue = "1048576") long chunkedResponseThreshold,
             ContentEncoder contentEncoder,
-            PipeRateLimiter rateLimiter
+            PipeRateLimiter rateLimiter,
+            EncodedResponseCache encodedResponseCache,
+            ReadCoalescer readCoalescer,
+            ReadAdmission readAdmission,
+            LongPoll longPoll,
+            @Named(TaskExecutors.IO) ExecutorService ioExecutor
     ) {
         this.reader = reader;
         this.bootstrapThreshold = bootstrapThreshold;
         this.clusterChangeThreshold = clusterChangeThreshold;
         this.logging = logging;
+        this.chunkedResponseThreshold = chunkedResponseThreshold;
         this.contentEncoder = contentEncoder;
         this.rateLimiter = rateLimiter;
+        this.encodedResponseCache = encodedResponseCache;
+        this.readCoalescer = readCoalescer;
+        this.readAdmission = readAdmission;
+        this.longPoll = longPoll;
+        this.ioExecutor = ioExecutor;
     }
 
-    @Get("/pipe/{offset}{?type,location}")
-    public HttpResponse<byte[]> readMessages(
+    @Get(value = "/pipe/{offset}{?type,location}", produces = { MediaType.APPLICATION_JSON, JsonHelper.SMILE_MEDIA_TYPE })
+    public CompletableFuture<HttpResponse<?>> readMessages(
         final long offset,
         final HttpRequest<?> request,
         @Nullable final List<String> type,
         @Nullable final String location
     ) {
         if (offset < 0 || StringUtils.isEmpty(location)) {
-            return HttpResponse.badRequest();
+            return CompletableFuture.completedFuture(HttpResponse.badRequest());
         }
 
         logOffsetRequestFromRemoteHost(offset, request);
         final List<String> types = flattenRequestParams(type);
 
         LOG.withTypes(types).debug("pipe read controller", "reading with types");
+
+        final long waitMs = request.getHeaders().get(HttpHeaders.LONG_POLL_WAIT_MS, Long.class).orElse(0L);
+
+        // nodes that are up to date wait here for the next offset instead of polling for empty pages
+        return longPoll.park(offset, waitMs)
+            .map(parked -> parked.thenComposeAsync(ignored -> readResponse(offset, request, types, location, true), ioExecutor))
+            .orElseGet(() -> CompletableFuture.completedFuture(null)
+                .thenComposeAsync(ignored -> readResponse(offset, request, types, location, false), ioExecutor));
+    }
+
+    /**
+     * @param longPolled parked reads are answered with no retry after, so the node parks its next read straight away
+     */
+    private CompletableFuture<HttpResponse<?>> readResponse(
+        final long offset,
+        final HttpRequest<?> request,
+        final List<String> types,
+        final String location,
+        final boolean longPolled
+    ) {
         LOG.withLocation(location).withOffset(offset).info("pipe read controller", "reading for data");
 
-        final MessageResults messageResults = reader.read(types, offset, location);
+        // nodes already caught up are answered from memory, without taking an admission slot
+        final CompletableFuture<MessageResults> read = reader.readCaughtUp(offset)
+            .map(CompletableFuture::completedFuture)
+            .orElseGet(() -> readCoalescer.read(types, offset, location, () -> readAdmission.read(
+                offset,
+                location,
+                () -> reader.read(types, offset, location),
+                // shed reads get an empty page, so nodes retry from the same offset after the retry after
+                retryAfterMs -> new ShedResults(retryAfterMs, reader.getPipeState())
+            )));
+
+        // reads that were queued or joined complete on another read's thread
+        return read.isDone()
+            ? read.thenApply(messageResults -> response(offset, request, messageResults, longPolled))
+            : read.thenApplyAsync(messageResults -> response(offset, request, messageResults, longPolled), ioExecutor);
+    }
+
+    private HttpResponse<?> response(
+        final long offset,
+        final HttpRequest<?> request,
+        final MessageResults messageResults,
+        final boolean longPolled
+    ) {
         final List<Message> messages = messageResults.getMessages();
 
-        final long retryAfterMs = calculateRetryAfter(messageResults);
+        final long retryAfterMs = longPolled && !(messageResults instanceof ShedResults) ? 0 : calculateRetryAfter(messageResults);
         LOG.debug("pipe read controller", String.format("set retry time to %d", retryAfterMs));
 
-        byte[] responseBytes = JsonHelper.toJson(messages).getBytes();
-
-        ContentEncoder.EncodedResponse encodedResponse = contentEncoder.encodeResponse(request, responseBytes);
+        final Optional<String> entityTag = caughtUpEntityTag(offset, messageResults);
+        final MutableHttpResponse<?> response;
+        if (entityTag.isPresent() && entityTag.get().equals(request.getHeaders().get(HttpHeaders.IF_NONE_MATCH))) {
+            response = HttpResponse.notModified();
+        } else {
+            final MessageFormat format = contentEncoder.selectFormat(request);
+            if (encodedResponseCache.isCacheable(messages)) {
+                response = cachedResponse(request, format, messages);
+            } else {
+                final long estimatedLength = messages.stream().mapToLong(JsonHelper::jsonLength).sum();
+                response = estimatedLength > chunkedResponseThreshold
+                    ? chunkedResponse(request, format, messages, estimatedLength)
+                    : pooledResponse(request, format, messages);
+            }
+            response.contentType(format.getMediaType());
+        }
+        entityTag.ifPresent(tag -> response.header(HttpHeaders.ETAG, tag));
 
-        Map<CharSequence, CharSequence> responseHeaders = new HashMap<>(encodedResponse.getHeaders());
+        Map<CharSequence, CharSequence> responseHeaders = new HashMap<>();
 
         final long retryAfterSeconds = (long) Math.ceil(retryAfterMs / (double) 1000);
 
@@ -92,7 +178,7 @@ public class PipeReadController {
         responseHeaders.put(HttpHeaders.RETRY_AFTER_MS, String.valueOf(retryAfterMs));
         responseHeaders.put(HttpHeaders.PIPE_STATE, messageResults.getPipeState().toString());
 
-        MutableHttpResponse<byte[]> response = HttpResponse.ok(encodedResponse.getEncodedBody()).headers(responseHeaders);
+        response.headers(responseHeaders);
 
         messageResults.getGlobalLatestOffset()
             .ifPresent(
@@ -102,6 +188,94 @@ public class PipeReadController {
         return response;
     }
 
+    /**
+     * Empty pages past the latest offset only change when the latest offset or the pipe state does, so they are
+     * tagged with both and nodes asking again with the tag get a not modified.
+     */
+    private Optional<String> caughtUpEntityTag(final long offset, final MessageResults messageResults) {
+        final OptionalLong globalLatestOffset = messageResults.getGlobalLatestOffset();
+        if (!messageResults.getMessages().isEmpty()
+            || !globalLatestOffset.isPresent()
+            || offset <= globalLatestOffset.getAsLong()) {
+            return Optional.empty();
+        }
+        return Optional.of(String.format("\"%d-%d-%s\"", offset, globalLatestOffset.getAsLong(), messageResults.getPipeState()));
+    }
+
+    private MutableHttpResponse<ByteBuf> cachedResponse(
+        final HttpRequest<?> request,
+        final MessageFormat format,
+        final List<Message> messages
+    ) {
+        final ContentEncoder.EncodedResponse encodedResponse = encodedResponseCache.get(
+            messages,
+            request,
+            format,
+            () -> contentEncoder.encodeResponse(request, format.toBytes(messages))
+        );
+
+        return HttpResponse.ok(Unpooled.wrappedBuffer(encodedResponse.getEncodedBody()))
+            .headers(encodedResponse.getHeaders());
+    }
+
+    /**
+     * Serialises straight into a pooled buffer and encodes from it into another one, so no intermediate copies of
+     * the batch are made. Netty releases the returned buffer once the response is written.
+     */
+    private MutableHttpResponse<ByteBuf> pooledResponse(
+        final HttpRequest<?> request,
+        final MessageFormat format,
+        final List<Message> messages
+    ) {
+        final ByteBuf serialised = ByteBufAllocator.DEFAULT.buffer();
+        try {
+            format.write(new ByteBufOutputStream(serialised), messages);
+
+            final Optional<Codec> codec = contentEncoder.selectCodec(request, serialised.readableBytes());
+            if (!codec.isPresent()) {
+                return HttpResponse.ok(serialised.retain());
+            }
+
+            final ByteBuf encoded = ByteBufAllocator.DEFAULT.buffer(serialised.readableBytes() / 4);
+            try {
+                contentEncoder.encode(codec.get(), serialised.nioBuffer(), new ByteBufOutputStream(encoded));
+            } catch (RuntimeException exception) {
+                encoded.release();
+                throw exception;
+            }
+
+            return HttpResponse.ok(encoded).headers(contentEncoder.headersFor(codec.get()));
+        } finally {
+            serialised.release();
+        }
+    }
+
+    /**
+     * Pages too large to serialise up front are written as they are sent, with chunked transfer encoding. The page
+     * has been read in full, so its headers are all known before the first chunk.
+     */
+    private MutableHttpResponse<Flowable<ByteBuf>> chunkedResponse(
+        final HttpRequest<?> request,
+        final MessageFormat format,
+        final List<Message> messages,
+        final long estimatedLength
+    ) {
+        final Optional<Codec> codec = contentEncoder.selectCodec(request, estimatedLength);
+        final MutableHttpResponse<Flowable<ByteBuf>> response =
+            HttpResponse.ok(ChunkedMessageBody.of(format, messages, codec, contentEncoder));
+        codec.ifPresent(c -> response.headers(contentEncoder.headersFor(c)));
+        return response;
+    }
+
+    /**
+     * Results of a shed read, shared with the reads that joined it.
+     */
+    private static class ShedResults extends MessageResults {
+        ShedResults(final long retryAfterMs, final PipeState pipeState) {
+            super(Collections.emptyList(), retryAfterMs, OptionalLong.empty(), pipeState);
+        }
+    }
+
     private long calculateRetryAfter(MessageResults messageResults) {
         if (messageResults.getMessages().isEmpty()) {
             return messageResults.getRetryAfterMs();
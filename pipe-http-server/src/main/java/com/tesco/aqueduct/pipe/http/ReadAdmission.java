@@ -0,0 +1,237 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.api.MessageResults;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.scheduling.TaskExecutors;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Admits reads through one of two lanes, each with its own concurrency limit and bounded fair queue, so nodes reading
+ * the tail of the pipe are not stuck behind nodes bootstrapping or catching up after a cluster change. A read is put
+ * in the catch up lane when it starts further behind the latest offset seen in responses than the tail lag. A location
+ * can only have one read in flight. Reads that can't be admitted are shed straight away, or once they waited for the
+ * max queue wait, with a retry after estimated from the lane's backlog and read time. Queued reads hold no thread,
+ * they are run on the IO executor once a read of their lane completes.
+ */
+@Singleton
+public class ReadAdmission {
+
+    private static final double READ_TIME_WEIGHT = 0.2;
+
+    private final boolean enabled;
+    private final long tailLag;
+    private final long minRetryAfterMs;
+    private final long maxRetryAfterMs;
+    private final Lane tailLane;
+    private final Lane catchUpLane;
+    private final Set<String> locationsInFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong latestOffset = new AtomicLong();
+    private final Counter locationShed;
+    private final ExecutorService ioExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    public ReadAdmission(
+        @Property(name = "pipe.http.server.admission.enabled", defaultValue = "false") final boolean enabled,
+        @Property(name = "pipe.http.server.admission.tail-lag", defaultValue = "10000") final long tailLag,
+        @Property(name = "pipe.http.server.admission.tail.concurrency", defaultValue = "6") final int tailConcurrency,
+        @Property(name = "pipe.http.server.admission.tail.queue-length", defaultValue = "50") final int tailQueueLength,
+        @Property(name = "pipe.http.server.admission.catch-up.concurrency", defaultValue = "3") final int catchUpConcurrency,
+        @Property(name = "pipe.http.server.admission.catch-up.queue-length", defaultValue = "10") final int catchUpQueueLength,
+        @Property(name = "pipe.http.server.admission.max-queue-wait", defaultValue = "1s") final Duration maxQueueWait,
+        @Property(name = "pipe.http.server.admission.min-retry-after", defaultValue = "1s") final Duration minRetryAfter,
+        @Property(name = "pipe.http.server.admission.max-retry-after", defaultValue = "60s") final Duration maxRetryAfter,
+        final MeterRegistry registry,
+        @Named(TaskExecutors.IO) final ExecutorService ioExecutor
+    ) {
+        this.enabled = enabled;
+        this.tailLag = tailLag;
+        this.minRetryAfterMs = minRetryAfter.toMillis();
+        this.maxRetryAfterMs = maxRetryAfter.toMillis();
+        this.tailLane = new Lane("tail", tailConcurrency, tailQueueLength, maxQueueWait.toMillis(), registry);
+        this.catchUpLane = new Lane("catch-up", catchUpConcurrency, catchUpQueueLength, maxQueueWait.toMillis(), registry);
+        this.locationShed = registry.counter("pipe.read.admission", "lane", "location", "result", "shed");
+        this.ioExecutor = ioExecutor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "read-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads admitted straight away are run on the calling thread, queued ones on the IO executor once admitted.
+     *
+     * @param shed builds the results returned instead of reading, given the retry after in milliseconds
+     */
+    public CompletableFuture<MessageResults> read(
+        final long offset,
+        final String location,
+        final Supplier<MessageResults> read,
+        final LongFunction<MessageResults> shed
+    ) {
+        if (!enabled) {
+            return supply(read);
+        }
+
+        final Lane lane = laneFor(offset);
+
+        if (!locationsInFlight.add(location)) {
+            locationShed.increment();
+            return CompletableFuture.completedFuture(shed.apply(lane.retryAfterMs()));
+        }
+
+        final CompletableFuture<Boolean> entered = lane.enter();
+        final CompletableFuture<MessageResults> results = entered.isDone()
+            ? entered.thenCompose(admitted -> readIn(lane, admitted, read, shed))
+            : entered.thenComposeAsync(admitted -> readIn(lane, admitted, read, shed), ioExecutor);
+
+        return results.whenComplete((messageResults, throwable) -> locationsInFlight.remove(location));
+    }
+
+    private CompletableFuture<MessageResults> readIn(
+        final Lane lane,
+        final boolean admitted,
+        final Supplier<MessageResults> read,
+        final LongFunction<MessageResults> shed
+    ) {
+        if (!admitted) {
+            return CompletableFuture.completedFuture(shed.apply(lane.retryAfterMs()));
+        }
+
+        final long start = System.currentTimeMillis();
+        try {
+            final MessageResults messageResults = read.get();
+            messageResults.getGlobalLatestOffset().ifPresent(value -> latestOffset.accumulateAndGet(value, Math::max));
+            return CompletableFuture.completedFuture(messageResults);
+        } finally {
+            lane.exit(System.currentTimeMillis() - start);
+        }
+    }
+
+    private static CompletableFuture<MessageResults> supply(final Supplier<MessageResults> read) {
+        try {
+            return CompletableFuture.completedFuture(read.get());
+        } catch (RuntimeException exception) {
+            final CompletableFuture<MessageResults> failed = new CompletableFuture<>();
+            failed.completeExceptionally(exception);
+            return failed;
+        }
+    }
+
+    private Lane laneFor(final long offset) {
+        final long latest = latestOffset.get();
+        final boolean catchingUp = latest == 0 ? offset == 0 : latest - offset > tailLag;
+        return catchingUp ? catchUpLane : tailLane;
+    }
+
+    @PreDestroy
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    private class Lane {
+        private final Semaphore permits;
+        private final int concurrency;
+        private final int maxQueueLength;
+        private final long maxQueueWaitMs;
+        private final Queue<CompletableFuture<Boolean>> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private volatile double meanReadMs = 0;
+        private final Counter admitted;
+        private final Counter shed;
+
+        Lane(
+            final String name,
+            final int concurrency,
+            final int maxQueueLength,
+            final long maxQueueWaitMs,
+            final MeterRegistry registry
+        ) {
+            this.permits = new Semaphore(concurrency);
+            this.concurrency = concurrency;
+            this.maxQueueLength = maxQueueLength;
+            this.maxQueueWaitMs = maxQueueWaitMs;
+            this.admitted = registry.counter("pipe.read.admission", "lane", name, "result", "admitted");
+            this.shed = registry.counter("pipe.read.admission", "lane", name, "result", "shed");
+            registry.gauge("pipe.read.admission.queued", Tags.of("lane", name), queued);
+        }
+
+        /**
+         * @return completes with true once a permit is handed to the read, with false when it is shed
+         */
+        CompletableFuture<Boolean> enter() {
+            // reads already queued go first
+            if (waiting.isEmpty() && permits.tryAcquire()) {
+                admitted.increment();
+                return CompletableFuture.completedFuture(true);
+            }
+            if (queued.incrementAndGet() > maxQueueLength) {
+                queued.decrementAndGet();
+                shed.increment();
+                return CompletableFuture.completedFuture(false);
+            }
+
+            final CompletableFuture<Boolean> waiter = new CompletableFuture<>();
+            waiting.add(waiter);
+            scheduler.schedule(() -> {
+                // only one of the timeout and the hand over takes the waiter off the queue
+                if (waiting.remove(waiter)) {
+                    queued.decrementAndGet();
+                    shed.increment();
+                    waiter.complete(false);
+                }
+            }, maxQueueWaitMs, TimeUnit.MILLISECONDS);
+
+            // a permit may have been released while queueing
+            handOver();
+            return waiter;
+        }
+
+        void exit(final long readMs) {
+            meanReadMs = meanReadMs == 0 ? readMs : meanReadMs + READ_TIME_WEIGHT * (readMs - meanReadMs);
+            permits.release();
+            handOver();
+        }
+
+        private void handOver() {
+            while (!waiting.isEmpty() && permits.tryAcquire()) {
+                final CompletableFuture<Boolean> waiter = waiting.poll();
+                if (waiter == null) {
+                    permits.release();
+                    return;
+                }
+                queued.decrementAndGet();
+                admitted.increment();
+                waiter.complete(true);
+            }
+        }
+
+        long retryAfterMs() {
+            final int backlog = queued.get() + concurrency - permits.availablePermits();
+            final double drainMs = meanReadMs * (backlog + 1) / concurrency;
+            final long retryAfter = (long) Math.ceil(drainMs * (1 + Math.random() / 2));
+            return Math.min(Math.max(retryAfter, minRetryAfterMs), maxRetryAfterMs);
+        }
+    }
+}
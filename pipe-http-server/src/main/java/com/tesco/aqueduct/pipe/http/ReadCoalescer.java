@@ -0,0 +1,93 @@
+package com.tesco.aqueduct.pipe.http;
+
+import com.tesco.aqueduct.pipe.api.MessageResults;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.context.annotation.Property;
+import lombok.Value;
+
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Lets concurrent identical reads share a single in flight read. Callers that joined get the same message results
+ * instance, so the encoded response is shared with them too when it is cacheable. Reads are coalesced before they are
+ * admitted, so callers joining a read in flight don't take an admission slot nor count as another read of the location.
+ */
+@Singleton
+public class ReadCoalescer {
+
+    private final boolean enabled;
+    private final ConcurrentMap<ReadKey, CompletableFuture<MessageResults>> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalescedReads;
+    private final Counter leadingReads;
+
+    public ReadCoalescer(
+        @Property(name = "pipe.http.server.read-coalescing.enabled", defaultValue = "false") boolean enabled,
+        MeterRegistry registry
+    ) {
+        this.enabled = enabled;
+        this.coalescedReads = registry.counter("pipe.read.coalescing", "result", "coalesced");
+        this.leadingReads = registry.counter("pipe.read.coalescing", "result", "leading");
+    }
+
+    /**
+     * @param read starts the read, callers joining an identical read in flight don't start one
+     */
+    public CompletableFuture<MessageResults> read(
+        final List<String> types,
+        final long offset,
+        final String location,
+        final Supplier<CompletableFuture<MessageResults>> read
+    ) {
+        if (!enabled) {
+            return read.get();
+        }
+
+        final ReadKey key = ReadKey.of(types, offset, location);
+        final CompletableFuture<MessageResults> future = new CompletableFuture<>();
+        final CompletableFuture<MessageResults> existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            coalescedReads.increment();
+            return existing;
+        }
+
+        leadingReads.increment();
+        try {
+            read.get().whenComplete((messageResults, throwable) -> {
+                inFlight.remove(key, future);
+                if (throwable != null) {
+                    future.completeExceptionally(unwrap(throwable));
+                } else {
+                    future.complete(messageResults);
+                }
+            });
+        } catch (RuntimeException exception) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(exception);
+        }
+        return future;
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    @Value
+    static class ReadKey {
+        List<String> types;
+        long offset;
+        String location;
+
+        static ReadKey of(final List<String> types, final long offset, final String location) {
+            return new ReadKey(types.stream().distinct().sorted().collect(Collectors.toList()), offset, location);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.tesco.aqueduct.pipe.http
+
+import com.tesco.aqueduct.pipe.api.Message
+import com.tesco.aqueduct.pipe.api.MessageFormat
+import com.tesco.aqueduct.pipe.codec.Codec
+import com.tesco.aqueduct.pipe.codec.ContentEncoder
+import spock.lang.Specification
+
+import java.time.ZonedDateTime
+
+class ChunkedMessageBodySpec extends Specification {
+
+    def contentEncoder = new ContentEncoder(0, null, null, null, false)
+
+    def "the encoding stream is closed when the body is cancelled before it finishes"() {
+        given:
+        TrackedOutputStream encoding = null
+        def codec = Stub(Codec) {
+            encodingStream(_) >> { OutputStream output -> encoding = new TrackedOutputStream(output) }
+        }
+
+        when: "only the first of several chunks is taken"
+        def chunk = ChunkedMessageBody.of(MessageFormat.JSON, messages(4), Optional.of(codec), contentEncoder).blockingFirst()
+        chunk.release()
+
+        then:
+        encoding.closed
+    }
+
+    def "the body is written in chunks and ends the array"() {
+        when:
+        def chunks = ChunkedMessageBody.of(MessageFormat.JSON, messages(4), Optional.empty(), contentEncoder)
+            .toList()
+            .blockingGet()
+        def body = new ByteArrayOutputStream()
+        chunks.each {
+            it.getBytes(it.readerIndex(), body, it.readableBytes())
+            it.release()
+        }
+
+        then:
+        chunks.size() > 1
+        MessageFormat.JSON.messagesFrom(body.toByteArray()).size() == 4
+    }
+
+    private static List<Message> messages(int count) {
+        (1..count).collect {
+            new Message("type", "key", "text/plain", it, ZonedDateTime.now(), "d" * ChunkedMessageBody.CHUNK_SIZE)
+        }
+    }
+
+    static class TrackedOutputStream extends FilterOutputStream {
+        boolean closed = false
+
+        TrackedOutputStream(OutputStream output) {
+            super(output)
+        }
+
+        @Override
+        void close() throws IOException {
+            closed = true
+            super.close()
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.tesco.aqueduct.pipe.http
+
+import com.tesco.aqueduct.pipe.api.Reader
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.function.LongConsumer
+
+class LongPollSpec extends Specification {
+
+    def registry = new SimpleMeterRegistry()
+    LongConsumer listener
+
+    def reader = Mock(Reader) {
+        addOffsetListener(_ as LongConsumer) >> { LongConsumer consumer -> listener = consumer; true }
+    }
+
+    def "a read for the next offset is parked until that offset is published"() {
+        given:
+        def longPoll = longPoll(true, 1000)
+        listener.accept(10)
+
+        when:
+        def parked = longPoll.park(11, 30_000)
+
+        then:
+        parked.isPresent()
+        !parked.get().isDone()
+
+        when:
+        listener.accept(11)
+
+        then:
+        parked.get().isDone()
+        registry.get("pipe.read.long-poll").tags("result", "woken").counter().count() == 1
+    }
+
+    def "a parked read is released once its wait is over"() {
+        given:
+        def longPoll = longPoll(true, 1000)
+        listener.accept(10)
+
+        when:
+        def parked = longPoll.park(11, 50)
+        parked.get().get(5, TimeUnit.SECONDS)
+
+        then:
+        registry.get("pipe.read.long-poll").tags("result", "timed-out").counter().count() == 1
+    }
+
+    @Unroll
+    def "reads are not parked when #reason"() {
+        given:
+        def longPoll = longPoll(enabled, maxParked)
+        latest.each { listener?.accept(it) }
+        longPoll.park(100, 30_000)
+
+        expect:
+        !longPoll.park(offset, waitMs).isPresent()
+
+        where:
+        reason                             | enabled | maxParked | latest | offset | waitMs
+        "long poll is disabled"            | false   | 1000      | [10]   | 11     | 30_000
+        "the node does not wait"           | true    | 1000      | [10]   | 11     | 0
+        "the offset is already there"      | true    | 1000      | [10]   | 10     | 30_000
+        "the latest offset is not known"   | true    | 1000      | []     | 11     | 30_000
+        "too many reads are already parked"| true    | 1         | [10]   | 11     | 30_000
+    }
+
+    def "reads are not parked when the reader can't publish offsets"() {
+        given:
+        def reader = Mock(Reader) {
+            addOffsetListener(_ as LongConsumer) >> false
+        }
+        def longPoll = new LongPoll(reader, true, Duration.ofSeconds(30), 1000, Duration.ZERO, registry)
+
+        expect:
+        !longPoll.park(11, 30_000).isPresent()
+    }
+
+    LongPoll longPoll(boolean enabled, int maxParked) {
+        new LongPoll(reader, enabled, Duration.ofSeconds(30), maxParked, Duration.ZERO, registry)
+    }
+}
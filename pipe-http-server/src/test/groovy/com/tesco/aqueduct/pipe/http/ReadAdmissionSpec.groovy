@@ -0,0 +1,149 @@
+package com.tesco.aqueduct.pipe.http
+
+import com.tesco.aqueduct.pipe.api.MessageResults
+import com.tesco.aqueduct.pipe.api.PipeState
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ReadAdmissionSpec extends Specification {
+
+    def registry = new SimpleMeterRegistry()
+    def executor = Executors.newCachedThreadPool()
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "a location is shed while it already has a read in flight"() {
+        given:
+        def admission = admission(2, 0, 2, 0)
+        def release = new CountDownLatch(1)
+        def inFlight = blockingRead(admission, 10, "location", release)
+
+        when:
+        def results = admission.read(20, "location", { messageResults(20) }, { shedResults(it) }).get(5, TimeUnit.SECONDS)
+
+        then:
+        results.retryAfterMs >= 1000
+        results.messages.isEmpty()
+        registry.get("pipe.read.admission").tags("lane", "location", "result", "shed").counter().count() == 1
+
+        cleanup:
+        release.countDown()
+        inFlight.get(5, TimeUnit.SECONDS)
+    }
+
+    def "catch up reads are shed once their lane is full while tail reads are still admitted"() {
+        given:
+        def admission = admission(1, 0, 1, 0)
+        admission.read(1000, "tailLocation", { messageResults(100_000) }, { shedResults(it) }).get(5, TimeUnit.SECONDS)
+
+        and: "a bootstrap read occupies the catch up lane"
+        def release = new CountDownLatch(1)
+        def bootstrap = blockingRead(admission, 0, "bootstrapLocation", release)
+
+        when:
+        def shedBootstrap = admission.read(0, "otherBootstrapLocation", { messageResults(100_000) }, { shedResults(it) })
+            .get(5, TimeUnit.SECONDS)
+        def tail = admission.read(99_999, "tailLocation", { messageResults(100_000) }, { shedResults(it) })
+            .get(5, TimeUnit.SECONDS)
+
+        then:
+        shedBootstrap.retryAfterMs >= 1000
+        shedBootstrap.messages.isEmpty()
+        tail.globalLatestOffset.asLong == 100_000
+        registry.get("pipe.read.admission").tags("lane", "catch-up", "result", "shed").counter().count() == 1
+        registry.get("pipe.read.admission").tags("lane", "tail", "result", "admitted").counter().count() == 2
+
+        cleanup:
+        release.countDown()
+        bootstrap.get(5, TimeUnit.SECONDS)
+    }
+
+    def "queued reads are admitted once a read in their lane completes without holding the calling thread"() {
+        given:
+        def admission = admission(1, 1, 1, 1)
+        def release = new CountDownLatch(1)
+        def first = blockingRead(admission, 10, "location", release)
+
+        when:
+        def queued = admission.read(10, "otherLocation", { messageResults(10) }, { shedResults(it) })
+
+        then:
+        !queued.isDone()
+
+        when:
+        release.countDown()
+
+        then:
+        queued.get(5, TimeUnit.SECONDS).globalLatestOffset.asLong == 10
+        first.get(5, TimeUnit.SECONDS) != null
+    }
+
+    def "reads are shed when they wait longer than the max queue wait"() {
+        given:
+        def admission = new ReadAdmission(
+            true, 100, 1, 1, 1, 1, Duration.ofMillis(50), Duration.ofSeconds(1), Duration.ofSeconds(10), registry, executor
+        )
+        def release = new CountDownLatch(1)
+        def first = blockingRead(admission, 10, "location", release)
+
+        when:
+        def results = admission.read(10, "otherLocation", { messageResults(10) }, { shedResults(it) }).get(5, TimeUnit.SECONDS)
+
+        then:
+        results.messages.isEmpty()
+        results.retryAfterMs in 1000..10000
+
+        cleanup:
+        release.countDown()
+        first.get(5, TimeUnit.SECONDS)
+    }
+
+    def "reads are not admitted through lanes when disabled"() {
+        given:
+        def admission = new ReadAdmission(
+            false, 100, 0, 0, 0, 0, Duration.ZERO, Duration.ofSeconds(1), Duration.ofSeconds(10), registry, executor
+        )
+
+        expect:
+        admission.read(10, "location", { messageResults(10) }, { shedResults(it) }).get(5, TimeUnit.SECONDS)
+            .globalLatestOffset.asLong == 10
+    }
+
+    private ReadAdmission admission(int tailConcurrency, int tailQueue, int catchUpConcurrency, int catchUpQueue) {
+        new ReadAdmission(
+            true, 100, tailConcurrency, tailQueue, catchUpConcurrency, catchUpQueue, Duration.ofSeconds(5),
+            Duration.ofSeconds(1), Duration.ofSeconds(10), registry, executor
+        )
+    }
+
+    private static CompletableFuture<MessageResults> blockingRead(
+        ReadAdmission admission, long offset, String location, CountDownLatch release
+    ) {
+        def started = new CountDownLatch(1)
+        def future = CompletableFuture.supplyAsync {
+            admission.read(offset, location, {
+                started.countDown()
+                release.await(5, TimeUnit.SECONDS)
+                messageResults(offset)
+            }, { shedResults(it) }).get(5, TimeUnit.SECONDS)
+        }
+        started.await(5, TimeUnit.SECONDS)
+        future
+    }
+
+    private static MessageResults messageResults(long globalLatestOffset) {
+        new MessageResults([], 0, OptionalLong.of(globalLatestOffset), PipeState.UP_TO_DATE)
+    }
+
+    private static MessageResults shedResults(long retryAfterMs) {
+        new MessageResults([], retryAfterMs, OptionalLong.empty(), PipeState.UP_TO_DATE)
+    }
+}
@@ -0,0 +1,181 @@
+package com.tesco.aqueduct.pipe.http
+
+import com.tesco.aqueduct.pipe.api.MessageResults
+import com.tesco.aqueduct.pipe.api.PipeState
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ReadCoalescerSpec extends Specification {
+
+    def registry = new SimpleMeterRegistry()
+
+    def "concurrent identical reads share one read and its results"() {
+        given:
+        def coalescer = new ReadCoalescer(true, registry)
+        def readStarted = new CountDownLatch(1)
+        def releaseRead = new CountDownLatch(1)
+        def results = messageResults()
+        def reads = 0
+
+        when: "a read is in flight"
+        def leading = coalescer.read(["typeA", "typeB"], 10, "location") {
+            reads++
+            CompletableFuture.supplyAsync {
+                readStarted.countDown()
+                releaseRead.await(5, TimeUnit.SECONDS)
+                results
+            }
+        }
+        readStarted.await(5, TimeUnit.SECONDS)
+
+        and: "an identical read arrives with types in another order"
+        def joining = coalescer.read(["typeB", "typeA"], 10, "location") { reads++; completed(messageResults()) }
+        releaseRead.countDown()
+
+        then:
+        leading.get(5, TimeUnit.SECONDS).is(results)
+        joining.get(5, TimeUnit.SECONDS).is(results)
+        reads == 1
+        registry.get("pipe.read.coalescing").tags("result", "leading").counter().count() == 1
+    }
+
+    def "reads that do not overlap are not coalesced"() {
+        given:
+        def coalescer = new ReadCoalescer(true, registry)
+
+        when:
+        def first = coalescer.read([], 10, "location") { completed(messageResults()) }.join()
+        def second = coalescer.read([], 10, "location") { completed(messageResults()) }.join()
+
+        then: "each read runs once the previous one completed"
+        !first.is(second)
+        registry.get("pipe.read.coalescing").tags("result", "leading").counter().count() == 2
+    }
+
+    def "failures of the shared read are rethrown to every caller"() {
+        given:
+        def coalescer = new ReadCoalescer(true, registry)
+        def readStarted = new CountDownLatch(1)
+        def releaseRead = new CountDownLatch(1)
+
+        when: "a read that fails is in flight"
+        def leading = coalescer.read([], 10, "location") {
+            CompletableFuture.supplyAsync {
+                readStarted.countDown()
+                releaseRead.await(5, TimeUnit.SECONDS)
+                throw new IllegalStateException("boom")
+            }
+        }
+        readStarted.await(5, TimeUnit.SECONDS)
+
+        and: "an identical read joins it"
+        def joining = coalescer.read([], 10, "location") { completed(messageResults()) }
+        releaseRead.countDown()
+        leading.join()
+
+        then:
+        def leadingException = thrown(CompletionException)
+        leadingException.cause instanceof IllegalStateException
+        registry.get("pipe.read.coalescing").tags("result", "coalesced").counter().count() == 1
+
+        when:
+        joining.join()
+
+        then:
+        def joiningException = thrown(CompletionException)
+        joiningException.cause.is(leadingException.cause)
+
+        when: "the failed read is no longer in flight"
+        def results = coalescer.read([], 10, "location") { completed(messageResults()) }.join()
+
+        then:
+        results != null
+        registry.get("pipe.read.coalescing").tags("result", "leading").counter().count() == 2
+    }
+
+    def "a read that fails to start is not left in flight"() {
+        given:
+        def coalescer = new ReadCoalescer(true, registry)
+
+        when:
+        coalescer.read([], 10, "location") { throw new IllegalStateException("boom") }.join()
+
+        then:
+        def exception = thrown(CompletionException)
+        exception.cause instanceof IllegalStateException
+
+        when:
+        def results = coalescer.read([], 10, "location") { completed(messageResults()) }.join()
+
+        then:
+        results != null
+    }
+
+    def "reads are not coalesced when disabled"() {
+        given:
+        def coalescer = new ReadCoalescer(false, registry)
+
+        when:
+        coalescer.read([], 10, "location") { completed(messageResults()) }.join()
+
+        then:
+        registry.get("pipe.read.coalescing").tags("result", "leading").counter().count() == 0
+    }
+
+    def "reads joining one in flight are not shed by the admission of their location"() {
+        given:
+        def coalescer = new ReadCoalescer(true, registry)
+        def executor = Executors.newCachedThreadPool()
+        def admission = new ReadAdmission(
+            true, 100, 1, 0, 1, 0, Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ofSeconds(10), registry, executor
+        )
+        def readStarted = new CountDownLatch(1)
+        def releaseRead = new CountDownLatch(1)
+        def results = messageResults()
+
+        when: "a read of the location is admitted"
+        def leading = CompletableFuture.supplyAsync {
+            coalescer.read([], 10, "location") {
+                admission.read(10, "location", {
+                    readStarted.countDown()
+                    releaseRead.await(5, TimeUnit.SECONDS)
+                    results
+                }, { shed(it) })
+            }.join()
+        }
+        readStarted.await(5, TimeUnit.SECONDS)
+
+        and: "an identical read of the location arrives"
+        def joining = coalescer.read([], 10, "location") {
+            admission.read(10, "location", { messageResults() }, { shed(it) })
+        }
+        releaseRead.countDown()
+
+        then:
+        leading.get(5, TimeUnit.SECONDS).is(results)
+        joining.get(5, TimeUnit.SECONDS).is(results)
+        registry.get("pipe.read.admission").tags("lane", "location", "result", "shed").counter().count() == 0
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    private static MessageResults messageResults() {
+        new MessageResults([], 0, OptionalLong.of(10), PipeState.UP_TO_DATE)
+    }
+
+    private static MessageResults shed(long retryAfterMs) {
+        new MessageResults([], retryAfterMs, OptionalLong.empty(), PipeState.UP_TO_DATE)
+    }
+
+    private static CompletableFuture<MessageResults> completed(MessageResults results) {
+        CompletableFuture.completedFuture(results)
+    }
+}
@@ -0,0 +1,230 @@
+package com.tesco.aqueduct.pipe.storage
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules
+import com.opentable.db.postgres.junit.SingleInstancePostgresRule
+import groovy.sql.Sql
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.ClassRule
+import spock.lang.AutoCleanup
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.sql.Timestamp
+import java.time.Duration
+import java.time.LocalDateTime
+
+class ChunkedCompactionIntegrationSpec extends Specification {
+
+    @Shared @ClassRule
+    SingleInstancePostgresRule pg = EmbeddedPostgresRules.singleInstance()
+
+    @AutoCleanup
+    Sql sql
+
+    @AutoCleanup
+    Connection connection
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry()
+
+    void setup() {
+        sql = new Sql(pg.embeddedPostgres.postgresDatabase.connection)
+        connection = DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        connection.setAutoCommit(false)
+
+        sql.execute("""
+        DROP TABLE IF EXISTS EVENTS;
+        DROP TABLE IF EXISTS OFFSETS;
+
+        CREATE TABLE EVENTS(
+            msg_offset BIGSERIAL PRIMARY KEY NOT NULL,
+            msg_key varchar NOT NULL,
+            content_type varchar NOT NULL,
+            type varchar NOT NULL,
+            created_utc timestamp NOT NULL,
+            data text NULL,
+            event_size int NOT NULL,
+            cluster_id BIGINT NOT NULL DEFAULT 1,
+            location_group BIGINT,
+            time_to_live TIMESTAMP NULL
+        );
+
+        CREATE TABLE OFFSETS(
+            name VARCHAR PRIMARY KEY NOT NULL,
+            value BIGINT NOT NULL
+        );
+        """)
+    }
+
+    def "expired messages are compacted in chunks and the watermark is kept at the end of the run"() {
+        given:
+        (1..10).each { insert(it, it % 2 == 0 ? LocalDateTime.now().minusMinutes(1) : null) }
+        def compaction = new ChunkedCompaction(3, 0, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+
+        when:
+        def compacted = compaction.compact(connection, { true })
+
+        then:
+        compacted == 5
+        offsets() == [1, 3, 5, 7, 9]
+        watermark() == 11
+
+        and:
+        registry.get("persistence.compaction.chunk.rows").summary().count() == 4
+        registry.get("persistence.compaction.chunk.rows").summary().totalAmount() == 5
+        registry.get("persistence.compaction.chunk.latency").timer().count() == 4
+    }
+
+    def "compaction stops when the maintenance lock is lost and resumes from the watermark"() {
+        given:
+        (1..10).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        def compaction = new ChunkedCompaction(3, 0, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+        def chunks = 0
+
+        when: "the lock is lost after two chunks"
+        def compacted = compaction.compact(connection, { chunks++ < 2 })
+
+        then:
+        compacted == 6
+        offsets() == [7, 8, 9, 10]
+        watermark() == 7
+
+        when: "the next run resumes"
+        compacted = compaction.compact(connection, { true })
+
+        then:
+        compacted == 4
+        offsets() == []
+        watermark() == 11
+    }
+
+    def "the next run resumes from the watermark rather than sweeping from the lowest offset"() {
+        given:
+        (1..10).each { insert(it) }
+        def compaction = new ChunkedCompaction(3, 0, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+        compaction.compact(connection, { true })
+
+        and: "an event below the watermark expires and new ones are added"
+        expire(2)
+        (11..12).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+
+        when:
+        def compacted = compaction.compact(connection, { true })
+
+        then:
+        compacted == 2
+        offsets() == (1..10).toList()
+        watermark() == 13
+    }
+
+    def "rewinding the watermark sweeps again from the given offset"() {
+        given:
+        (1..10).each { insert(it) }
+        def compaction = new ChunkedCompaction(3, 0, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+        compaction.compact(connection, { true })
+        expire(5)
+
+        when:
+        compaction.rewind(connection, 4)
+        connection.commit()
+        def compacted = compaction.compact(connection, { true })
+
+        then:
+        compacted == 1
+        offsets() == [1, 2, 3, 4, 6, 7, 8, 9, 10]
+        watermark() == 11
+    }
+
+    def "rewinding never moves the watermark forward"() {
+        given:
+        (1..10).each { insert(it) }
+        def compaction = new ChunkedCompaction(3, 0, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+        compaction.compact(connection, { true })
+
+        when:
+        compaction.rewind(connection, 100)
+        connection.commit()
+
+        then:
+        watermark() == 11
+    }
+
+    def "a run starts again from the lowest offset once the full sweep interval has passed"() {
+        given:
+        (1..10).each { insert(it) }
+        def compaction = new ChunkedCompaction(3, 0, Duration.ofMinutes(1), Duration.ZERO, registry)
+        compaction.compact(connection, { true })
+        expire(2)
+
+        when:
+        def compacted = compaction.compact(connection, { true })
+
+        then:
+        compacted == 1
+        offsets() == [1, 3, 4, 5, 6, 7, 8, 9, 10]
+        sql.firstRow("SELECT value FROM offsets WHERE name = ?", ChunkedCompaction.FULL_SWEEP_NAME).value > 0
+    }
+
+    def "compaction pauses once the run exceeds its maximum duration"() {
+        given:
+        (1..10).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+
+        when:
+        def compacted = new ChunkedCompaction(3, 0, Duration.ZERO, Duration.ofDays(1), registry).compact(connection, { true })
+
+        then:
+        compacted == 0
+        offsets().size() == 10
+    }
+
+    def "chunks are spaced out to stay within the rows per second budget"() {
+        given:
+        (1..4).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        def compaction = new ChunkedCompaction(2, 10, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+
+        when:
+        def start = System.currentTimeMillis()
+        compaction.compact(connection, { true })
+
+        then: "4 rows at 10 rows per second take at least 400ms"
+        System.currentTimeMillis() - start >= 400
+        offsets() == []
+    }
+
+    def "compaction starts from the lowest offset when there is no watermark"() {
+        given:
+        insert(1_000_000, LocalDateTime.now().minusMinutes(1))
+        insert(1_000_001)
+        def compaction = new ChunkedCompaction(10, 0, Duration.ofMinutes(1), Duration.ofDays(1), registry)
+
+        when:
+        def compacted = compaction.compact(connection, { true })
+
+        then:
+        compacted == 1
+        registry.get("persistence.compaction.chunk.rows").summary().count() == 1
+    }
+
+    List<Long> offsets() {
+        sql.rows("SELECT msg_offset FROM events ORDER BY msg_offset")*.msg_offset
+    }
+
+    Long watermark() {
+        sql.firstRow("SELECT value FROM offsets WHERE name = ?", ChunkedCompaction.WATERMARK_NAME)?.value
+    }
+
+    void expire(long offset) {
+        sql.execute(
+            "UPDATE EVENTS SET time_to_live = ? WHERE msg_offset = ?;",
+            Timestamp.valueOf(LocalDateTime.now().minusMinutes(1)), offset
+        )
+    }
+
+    void insert(long offset, LocalDateTime ttl = null) {
+        sql.execute(
+            "INSERT INTO EVENTS(msg_offset, msg_key, content_type, type, created_utc, data, event_size, time_to_live) VALUES(?,?,?,?,?,?,?,?);",
+            offset, "key", "content-type", "type", Timestamp.valueOf(LocalDateTime.now()), "data", 1, ttl == null ? null : Timestamp.valueOf(ttl)
+        )
+    }
+}
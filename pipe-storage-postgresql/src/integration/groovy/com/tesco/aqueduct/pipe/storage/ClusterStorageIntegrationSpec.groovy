@@ -14,7 +14,10 @@ import javax.sql.DataSource
 import java.sql.*
 import java.time.Duration
 import java.time.LocalDateTime
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Collectors
 
 class ClusterStorageIntegrationSpec extends Specification {
@@ -251,6 +254,187 @@ class ClusterStorageIntegrationSpec extends Specification {
         clusterIdRows.get(0).get("cluster_id") == 2
     }
 
+    def "valid entries expiring within refresh ahead are re-resolved in the background"() {
+        given: "an entry expiring soon, one expiring later and an invalidated one"
+        insertLocationInCache("expiringLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusMinutes(2)))
+        insertLocationInCache("laterLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusHours(2)))
+        insertLocationInCache("invalidLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusMinutes(2)), false)
+
+        and:
+        def refreshingClusterStorage = refreshingClusterStorage()
+
+        when:
+        refreshingClusterStorage.refreshExpiringEntries()
+
+        then: "only the entry expiring soon is resolved again"
+        1 * locationService.getClusterUuids("expiringLocationUuid") >> ["someClusterUuid"]
+        0 * locationService.getClusterUuids("laterLocationUuid")
+        0 * locationService.getClusterUuids("invalidLocationUuid")
+
+        and: "its clusters and expiry are updated"
+        def refreshedEntry = sql.rows("SELECT expiry, cluster_ids FROM cluster_cache WHERE location_uuid = ?", "expiringLocationUuid")
+        clusterIdsFrom(refreshedEntry) == [1L]
+        refreshedEntry.get(0).get("expiry") > Timestamp.valueOf(LocalDateTime.now().plusMinutes(59))
+
+        and: "the invalidated entry is left for the read path"
+        clusterIdsFrom(sql.rows("SELECT cluster_ids FROM cluster_cache WHERE location_uuid = ?", "invalidLocationUuid")) == [5L]
+    }
+
+    def "entries locked by another instance are skipped"() {
+        given: "two entries expiring soon"
+        insertLocationInCache("claimedLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusMinutes(1)))
+        insertLocationInCache("expiringLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusMinutes(2)))
+
+        and: "another instance refreshing the first one"
+        def otherInstance = DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        otherInstance.autoCommit = false
+        otherInstance.createStatement().execute("SELECT * FROM cluster_cache WHERE location_uuid = 'claimedLocationUuid' FOR UPDATE")
+
+        when:
+        refreshingClusterStorage().refreshExpiringEntries()
+
+        then: "only the entry not claimed is resolved"
+        0 * locationService.getClusterUuids("claimedLocationUuid")
+        1 * locationService.getClusterUuids("expiringLocationUuid") >> ["someClusterUuid"]
+
+        cleanup:
+        otherInstance.rollback()
+        otherInstance.close()
+    }
+
+    def "claimed entries are not locked while their locations are resolved"() {
+        given:
+        insertLocationInCache("expiringLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusMinutes(2)))
+        def locked = null
+
+        when:
+        refreshingClusterStorage().refreshExpiringEntries()
+
+        then: "a refresh from the read path can update the entry meanwhile"
+        1 * locationService.getClusterUuids("expiringLocationUuid") >> {
+            def otherInstance = DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+            try {
+                otherInstance.createStatement().execute(
+                    "SELECT * FROM cluster_cache WHERE location_uuid = 'expiringLocationUuid' FOR UPDATE NOWAIT"
+                )
+                locked = false
+            } catch (SQLException ignored) {
+                locked = true
+            } finally {
+                otherInstance.close()
+            }
+            ["someClusterUuid"]
+        }
+        locked == false
+    }
+
+    def "entries refreshed while the batch resolves them are left as they are"() {
+        given:
+        insertLocationInCache("expiringLocationUuid", [5L], Timestamp.valueOf(LocalDateTime.now().plusMinutes(2)))
+
+        when:
+        refreshingClusterStorage().refreshExpiringEntries()
+
+        then: "a read refreshes the entry while the batch resolves it"
+        1 * locationService.getClusterUuids("expiringLocationUuid") >> {
+            sql.execute(
+                "UPDATE cluster_cache SET cluster_ids = ARRAY[7]::BIGINT[], expiry = ? WHERE location_uuid = ?",
+                Timestamp.valueOf(LocalDateTime.now().plusHours(1)), "expiringLocationUuid"
+            )
+            ["someClusterUuid"]
+        }
+
+        and: "the batch doesn't overwrite it"
+        clusterIdsFrom(sql.rows("SELECT cluster_ids FROM cluster_cache WHERE location_uuid = ?", "expiringLocationUuid")) == [7L]
+    }
+
+    def "expired entries are served while they are refreshed only up to the max staleness"() {
+        given:
+        def refreshingClusterStorage = refreshingClusterStorage()
+
+        expect:
+        refreshingClusterStorage.servesWhileRefreshing(
+            new ClusterCacheEntry("locationUuid", [1L], LocalDateTime.now().minus(expiredFor), valid)
+        ) == served
+
+        where:
+        expiredFor              | valid | served
+        Duration.ofMinutes(5)   | true  | true
+        Duration.ofMinutes(45)  | true  | false
+        Duration.ofMinutes(5)   | false | false
+    }
+
+    def "refreshes beyond the queue size are dropped"() {
+        given: "a single refresh thread with room for one waiting refresh"
+        def refreshingClusterStorage = new ClusterStorage(
+            locationService, Duration.ofHours(1), LocationCache.disabled(), dataSource(),
+            Duration.ofMinutes(5), Duration.ofMinutes(30), 10, 1, 1
+        )
+
+        and: "location service responding slowly"
+        def release = new CountDownLatch(1)
+        locationService.getClusterUuids(_) >> {
+            release.await(5, TimeUnit.SECONDS)
+            ["someClusterUuid"]
+        }
+
+        when:
+        def refreshes = ["first", "second", "third"].collect {
+            insertLocationInCache(it, [5L], Timestamp.valueOf(LocalDateTime.now().minusMinutes(1)))
+            refreshingClusterStorage.refreshInBackground(
+                new ClusterCacheEntry(it, [5L], LocalDateTime.now().minusMinutes(1), true)
+            )
+        }
+        release.countDown()
+
+        then: "the one not fitting in the queue is rejected straight away"
+        refreshes[2].isCompletedExceptionally()
+
+        and: "the others are refreshed"
+        refreshes[0].get(5, TimeUnit.SECONDS) == null
+        refreshes[1].get(5, TimeUnit.SECONDS) == null
+    }
+
+    def "concurrent resolutions for the same location share one location service request"() {
+        given:
+        def resolving = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def requests = new AtomicInteger()
+        locationService.getClusterUuids("locationUuid") >> {
+            requests.incrementAndGet()
+            resolving.countDown()
+            release.await(5, TimeUnit.SECONDS)
+            ["someClusterUuid"]
+        }
+
+        when:
+        def first = CompletableFuture.supplyAsync { clusterStorage.resolveClustersFor("locationUuid") }
+        resolving.await(5, TimeUnit.SECONDS)
+        def second = CompletableFuture.supplyAsync { clusterStorage.resolveClustersFor("locationUuid") }
+        Thread.sleep(100)
+        release.countDown()
+
+        then:
+        first.get(5, TimeUnit.SECONDS) == ["someClusterUuid"]
+        second.get(5, TimeUnit.SECONDS) == ["someClusterUuid"]
+        requests.get() == 1
+    }
+
+    private ClusterStorage refreshingClusterStorage() {
+        new ClusterStorage(
+            locationService, Duration.ofHours(1), LocationCache.disabled(), dataSource(),
+            Duration.ofMinutes(5), Duration.ofMinutes(30), 10, 2, 10
+        )
+    }
+
+    private DataSource dataSource() {
+        DataSource dataSource = Mock()
+        dataSource.connection >> {
+            DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        }
+        dataSource
+    }
+
     private List<Long> clusterIdsFrom(List<GroovyRowResult> clusterCacheEntry) {
         Array fetchedClusterIds = clusterCacheEntry.get(0).get("cluster_ids") as Array
         Arrays.asList(fetchedClusterIds.getArray() as Long[])
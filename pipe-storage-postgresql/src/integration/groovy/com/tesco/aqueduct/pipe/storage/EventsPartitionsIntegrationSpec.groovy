@@ -0,0 +1,210 @@
+package com.tesco.aqueduct.pipe.storage
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules
+import com.opentable.db.postgres.junit.SingleInstancePostgresRule
+import groovy.sql.Sql
+import org.junit.ClassRule
+import spock.lang.AutoCleanup
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.sql.Timestamp
+import java.time.LocalDateTime
+
+class EventsPartitionsIntegrationSpec extends Specification {
+
+    @Shared @ClassRule
+    SingleInstancePostgresRule pg = EmbeddedPostgresRules.singleInstance()
+
+    @AutoCleanup
+    Sql sql
+
+    @AutoCleanup
+    Connection connection
+
+    EventsPartitions eventsPartitions = new EventsPartitions(10, 1, 0.5)
+
+    void setup() {
+        sql = new Sql(pg.embeddedPostgres.postgresDatabase.connection)
+        connection = DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        connection.setAutoCommit(false)
+
+        sql.execute("""
+        DROP TABLE IF EXISTS EVENTS CASCADE;
+
+        CREATE TABLE EVENTS(
+            msg_offset BIGSERIAL NOT NULL,
+            msg_key varchar NOT NULL,
+            content_type varchar NOT NULL,
+            type varchar NOT NULL,
+            created_utc timestamp NOT NULL,
+            data text NULL,
+            event_size int NOT NULL,
+            cluster_id BIGINT NOT NULL DEFAULT 1,
+            location_group BIGINT,
+            time_to_live TIMESTAMP NULL
+        ) PARTITION BY RANGE (msg_offset);
+        """)
+    }
+
+    def "partitions are created ahead of the latest offset"() {
+        when:
+        def created = eventsPartitions.createPartitions(connection)
+        connection.commit()
+
+        then:
+        created == 2
+        partitionNames() == ["events_p0", "events_p10"]
+
+        when: "messages fill the first partitions"
+        (1..15).each { insert(it) }
+        eventsPartitions.createPartitions(connection)
+        connection.commit()
+
+        then:
+        partitionNames() == ["events_p0", "events_p10", "events_p20"]
+    }
+
+    def "sealed partitions with only expired messages are dropped"() {
+        given:
+        createPartitions()
+        (1..9).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        insert(10)
+
+        when:
+        def compaction = eventsPartitions.compact(connection, { true })
+        connection.commit()
+
+        then:
+        compaction.compactedRows == 9
+        partitionNames() == ["events_p10", "events_p20"]
+        offsets() == [10]
+    }
+
+    def "sealed partitions with mostly expired messages are rewritten without them"() {
+        given:
+        createPartitions()
+        (1..6).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        (7..9).each { insert(it, LocalDateTime.now().plusMinutes(10)) }
+        insert(10)
+
+        when:
+        def compaction = eventsPartitions.compact(connection, { true })
+        connection.commit()
+
+        then:
+        compaction.compactedRows == 6
+        compaction.partitionsToVacuum == ['"public"."events_p0"']
+        partitionNames() == ["events_p0", "events_p10", "events_p20"]
+        offsets() == [7, 8, 9, 10]
+
+        and: "the rewritten partition still takes its offsets"
+        insertsInto(5)
+    }
+
+    def "rewritten partitions are attached without the bounds check used to attach them"() {
+        given:
+        createPartitions()
+        (1..6).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        (7..9).each { insert(it, LocalDateTime.now().plusMinutes(10)) }
+        insert(10)
+
+        when:
+        eventsPartitions.compact(connection, { true })
+        connection.commit()
+
+        then:
+        sql.rows("SELECT conname FROM pg_constraint WHERE conrelid = 'events_p0'::regclass AND contype = 'c';").isEmpty()
+    }
+
+    def "partitions compacted before the maintenance lock is lost stay compacted"() {
+        given:
+        createPartitions()
+        (1..9).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        (10..19).each { insert(it, LocalDateTime.now().minusMinutes(1)) }
+        insert(20)
+        def locks = 0
+
+        when: "the lock is lost after the first partition"
+        def compaction = eventsPartitions.compact(connection, { locks++ == 0 })
+
+        then:
+        compaction.compactedRows == 9
+        partitionNames() == ["events_p10", "events_p20"]
+    }
+
+    def "expired messages are deleted in place from partitions still being written to"() {
+        given:
+        createPartitions()
+        insert(1)
+        insert(2, LocalDateTime.now().minusMinutes(1))
+        insert(3)
+
+        when:
+        def compaction = eventsPartitions.compact(connection, { true })
+        connection.commit()
+
+        then:
+        compaction.compactedRows == 1
+        compaction.partitionsToVacuum == ['"public"."events_p0"']
+        partitionNames() == ["events_p0", "events_p10", "events_p20"]
+        offsets() == [1, 3]
+    }
+
+    def "sealed partitions with few expired messages are compacted in place"() {
+        given:
+        createPartitions()
+        insert(1, LocalDateTime.now().minusMinutes(1))
+        (2..9).each { insert(it) }
+        insert(10)
+
+        when:
+        def compaction = eventsPartitions.compact(connection, { true })
+        connection.commit()
+
+        then:
+        compaction.compactedRows == 1
+        partitionNames() == ["events_p0", "events_p10", "events_p20"]
+        offsets() == (2..10).toList()
+    }
+
+    def "nothing is done when the events table is not partitioned"() {
+        given:
+        sql.execute("""
+        DROP TABLE EVENTS CASCADE;
+        CREATE TABLE EVENTS(msg_offset BIGSERIAL PRIMARY KEY NOT NULL, time_to_live TIMESTAMP NULL);
+        """)
+
+        expect:
+        !eventsPartitions.isPartitioned(connection)
+        eventsPartitions.createPartitions(connection) == 0
+    }
+
+    void createPartitions() {
+        new EventsPartitions(10, 2, 0.5).createPartitions(connection)
+        connection.commit()
+    }
+
+    boolean insertsInto(long offset) {
+        insert(offset)
+        offsets().contains(offset)
+    }
+
+    List<String> partitionNames() {
+        sql.rows("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'events'::regclass ORDER BY c.relname")
+            *.relname
+    }
+
+    List<Long> offsets() {
+        sql.rows("SELECT msg_offset FROM events ORDER BY msg_offset")*.msg_offset
+    }
+
+    void insert(long offset, LocalDateTime ttl = null) {
+        sql.execute(
+            "INSERT INTO EVENTS(msg_offset, msg_key, content_type, type, created_utc, data, event_size, time_to_live) VALUES(?,?,?,?,?,?,?,?);",
+            offset, "key", "content-type", "type", Timestamp.valueOf(LocalDateTime.now()), "data", 1, ttl == null ? null : Timestamp.valueOf(ttl)
+        )
+    }
+}
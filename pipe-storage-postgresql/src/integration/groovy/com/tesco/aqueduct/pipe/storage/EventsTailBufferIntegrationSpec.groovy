@@ -0,0 +1,136 @@
+package com.tesco.aqueduct.pipe.storage
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules
+import com.opentable.db.postgres.junit.SingleInstancePostgresRule
+import groovy.sql.Sql
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.ClassRule
+import spock.lang.AutoCleanup
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.sql.Connection
+import java.sql.Timestamp
+import java.time.LocalDateTime
+
+import static java.sql.DriverManager.getConnection
+
+class EventsTailBufferIntegrationSpec extends Specification {
+
+    @Shared @ClassRule
+    SingleInstancePostgresRule pg = EmbeddedPostgresRules.singleInstance()
+
+    @AutoCleanup
+    Sql sql
+
+    Connection connection
+
+    void setup() {
+        sql = new Sql(pg.embeddedPostgres.postgresDatabase.connection)
+        connection = getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+
+        sql.execute("""
+        DROP TABLE IF EXISTS EVENTS;
+
+        CREATE TABLE EVENTS(
+            msg_offset BIGSERIAL PRIMARY KEY NOT NULL,
+            msg_key varchar NOT NULL,
+            content_type varchar NOT NULL,
+            type varchar NOT NULL,
+            created_utc timestamp NOT NULL,
+            data text NULL,
+            event_size int NOT NULL,
+            cluster_id BIGINT NOT NULL DEFAULT 1,
+            location_group BIGINT,
+            time_to_live TIMESTAMP NULL
+        );
+        """)
+    }
+
+    void cleanup() {
+        connection.close()
+    }
+
+    def "events written after the tailer started are served from memory"() {
+        given: "an event written before the tailer started"
+        insertMessage(1, 1)
+        def buffer = new EventsTailBuffer(1024 * 1024, 10)
+        buffer.tail(connection)
+
+        and: "events written afterwards"
+        insertMessage(2, 1)
+        insertMessage(3, 2)
+        insertMessage(4, 1, "otherType")
+        buffer.tail(connection)
+
+        expect: "only events after the tailer started are in the window"
+        !buffer.read([1L], [], [], 1, 4, 100, 1000).isPresent()
+
+        and: "reads inside the window are filtered by cluster and type"
+        buffer.read([1L], [], ["type"], 2, 4, 100, 1000).get()*.offset == [2L]
+        buffer.read([1L, 2L], [], [], 2, 4, 100, 1000).get()*.offset == [2L, 3L, 4L]
+    }
+
+    def "hits and misses are counted"() {
+        given:
+        def registry = new SimpleMeterRegistry()
+        def buffer = new EventsTailBuffer(1024 * 1024, 10)
+        buffer.bindTo(registry)
+        buffer.tail(connection)
+        insertMessage(1, 1)
+        buffer.tail(connection)
+
+        when:
+        buffer.read([1L], [], [], 1, 1, 100, 1000)
+        buffer.read([1L], [], [], 1, 2, 100, 1000)
+        buffer.read([1L], [], [], 1, 2, 100, 1000)
+
+        then:
+        registry.get("persistence.read.tail-buffer.reads").tag("result", "hit").functionCounter().count() == 1
+        registry.get("persistence.read.tail-buffer.reads").tag("result", "miss").functionCounter().count() == 2
+    }
+
+    def "reads ending past the tailed offset go to the database"() {
+        given:
+        def buffer = new EventsTailBuffer(1024 * 1024, 10)
+        buffer.tail(connection)
+        insertMessage(1, 1)
+        buffer.tail(connection)
+
+        expect:
+        !buffer.read([1L], [], [], 1, 2, 100, 1000).isPresent()
+    }
+
+    def "oldest events are evicted when the buffer is full"() {
+        given:
+        def buffer = new EventsTailBuffer(20, 10)
+        buffer.tail(connection)
+
+        when:
+        (1..5).each { insertMessage(it, 1) }
+        buffer.tail(connection)
+
+        then:
+        !buffer.read([1L], [], [], 1, 5, 100, 1000).isPresent()
+        buffer.read([1L], [], [], 4, 5, 100, 1000).get()*.offset == [4L, 5L]
+    }
+
+    def "pages are bounded by limit and batch size"() {
+        given:
+        def buffer = new EventsTailBuffer(1024 * 1024, 2)
+        buffer.tail(connection)
+        (1..5).each { insertMessage(it, 1) }
+        buffer.tail(connection)
+
+        expect:
+        buffer.read([1L], [], [], 1, 5, 2, 1000).get()*.offset == [1L, 2L]
+        buffer.read([1L], [], [], 1, 5, 100, 30).get()*.offset == [1L, 2L, 3L]
+    }
+
+    void insertMessage(Long offset, Long clusterId, String type = "type") {
+        sql.execute(
+            "INSERT INTO EVENTS(msg_offset, msg_key, content_type, type, created_utc, data, event_size, cluster_id) VALUES(?,?,?,?,?,?,?,?);",
+            offset, "key", "contentType", type, Timestamp.valueOf(LocalDateTime.now()), "data", 10, clusterId
+        )
+    }
+}
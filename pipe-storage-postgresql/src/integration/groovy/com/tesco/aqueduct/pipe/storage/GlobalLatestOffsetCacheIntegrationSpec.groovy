@@ -21,7 +21,7 @@ import java.time.LocalDateTime
 import static java.sql.DriverManager.getConnection
 
 @MicronautTest(rebuildContext = true)
-@Property(name="micronaut.caches.latest-offset-cache.expire-after-write", value="1h")
+@Property(name="persistence.read.latest-offset.max-staleness", value="1h")
 class GlobalLatestOffsetCacheIntegrationSpec extends Specification {
 
     @Shared @ClassRule
@@ -107,6 +107,54 @@ class GlobalLatestOffsetCacheIntegrationSpec extends Specification {
         globalLatestOffset == 0
     }
 
+    def "notified offsets are returned without querying the events table"() {
+        given:
+        def connection = Mock(Connection)
+
+        and:
+        globalLatestOffsetCache.onNotification("10")
+        globalLatestOffsetCache.onNotification("8")
+
+        when:
+        def globalLatestOffset = globalLatestOffsetCache.get(connection)
+
+        then: "the offset does not go backwards when notifications arrive out of order"
+        0 * connection.prepareStatement(*_)
+        globalLatestOffset == 10
+    }
+
+    def "offset is fetched from db storage once the listener reconnects"() {
+        given:
+        def connection = getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        globalLatestOffsetCache.onNotification("10")
+
+        and:
+        insertMessage(12)
+
+        when:
+        globalLatestOffsetCache.onConnect()
+
+        then:
+        globalLatestOffsetCache.get(connection) == 12
+    }
+
+    def "offset is only given without a connection while it is fresh"() {
+        expect: "nothing is known before the first update"
+        !globalLatestOffsetCache.getIfFresh().isPresent()
+
+        when:
+        globalLatestOffsetCache.onNotification("10")
+
+        then:
+        globalLatestOffsetCache.getIfFresh() == OptionalLong.of(10)
+
+        when:
+        globalLatestOffsetCache.onConnect()
+
+        then: "offsets notified while disconnected may have been missed"
+        !globalLatestOffsetCache.getIfFresh().isPresent()
+    }
+
     void insertMessage(Long offset) {
         sql.execute(
             "INSERT INTO EVENTS(msg_offset, msg_key, content_type, type, created_utc, data, event_size, cluster_id) VALUES(?,?,?,?,?,?,?,?);",
@@ -0,0 +1,197 @@
+package com.tesco.aqueduct.pipe.storage
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules
+import com.opentable.db.postgres.junit.SingleInstancePostgresRule
+import groovy.sql.Sql
+import org.junit.ClassRule
+import spock.lang.AutoCleanup
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.time.Duration
+import java.time.LocalDateTime
+
+class NotificationListenerIntegrationSpec extends Specification {
+
+    @Shared @ClassRule
+    SingleInstancePostgresRule pg = EmbeddedPostgresRules.singleInstance()
+
+    @AutoCleanup
+    Sql sql
+
+    LocationCache locationCache
+    GlobalLatestOffsetCache globalLatestOffsetCache
+    EventsPageCache eventsPageCache
+    NotificationListener listener
+
+    void setup() {
+        sql = new Sql(pg.embeddedPostgres.postgresDatabase.connection)
+
+        locationCache = new LocationCache(100, Duration.ofMinutes(1))
+        globalLatestOffsetCache = new GlobalLatestOffsetCache(Duration.ofMinutes(1))
+        eventsPageCache = new EventsPageCache(1_000_000, Duration.ofMinutes(1))
+        listener = new NotificationListener(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"), "postgres", "postgres")
+            .on(LocationCache.INVALIDATION_CHANNEL, locationCache)
+            .on(GlobalLatestOffsetCache.NOTIFICATION_CHANNEL, globalLatestOffsetCache)
+            .on(PostgresqlStorage.COMPACTION_CHANNEL, eventsPageCache)
+    }
+
+    void cleanup() {
+        listener.close()
+    }
+
+    def "notified locations are dropped from the cache"() {
+        given: "a listening instance with cached locations"
+        listener.listen(Duration.ofMillis(1))
+        cache("locationUuid")
+        cache("otherLocationUuid")
+
+        when: "another instance notifies the location has changed"
+        def connection = DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        connection.autoCommit = false
+        new LocationCache(100, Duration.ofMinutes(1)).notifyInvalidation("locationUuid", connection)
+        connection.commit()
+        connection.close()
+
+        and:
+        listener.listen(Duration.ofSeconds(1))
+
+        then:
+        !locationCache.getClusterCacheEntry("locationUuid").isPresent()
+        !locationCache.getLocationGroups("locationUuid").isPresent()
+        locationCache.getClusterCacheEntry("otherLocationUuid").isPresent()
+    }
+
+    def "locations changed outside of the service are dropped from the cache once the triggers exist"() {
+        given:
+        sql.execute("""
+        DROP TABLE IF EXISTS CLUSTER_CACHE;
+        DROP TABLE IF EXISTS LOCATION_GROUPS;
+
+        CREATE TABLE CLUSTER_CACHE(
+            location_uuid VARCHAR PRIMARY KEY NOT NULL,
+            cluster_ids BIGINT[] NOT NULL,
+            expiry TIMESTAMP NOT NULL,
+            valid BOOLEAN NOT NULL DEFAULT TRUE
+        );
+
+        CREATE TABLE LOCATION_GROUPS(
+            location_uuid VARCHAR PRIMARY KEY NOT NULL,
+            groups BIGINT[] NOT NULL
+        );
+
+        INSERT INTO CLUSTER_CACHE (location_uuid, cluster_ids, expiry) VALUES ('locationUuid', ARRAY[1], now() + interval '1 hour');
+        """)
+
+        and: "the triggers created by instances starting one after the other"
+        createTrigger { locationCache.createTriggersIfNotExist(it) }
+        createTrigger { locationCache.createTriggersIfNotExist(it) }
+
+        and: "a listening instance with cached locations"
+        listener.listen(Duration.ofMillis(1))
+        cache("locationUuid")
+        cache("groupedLocationUuid")
+
+        when: "the location is invalidated and the other one's groups are changed outside of the service"
+        sql.execute("UPDATE CLUSTER_CACHE SET valid = false WHERE location_uuid = 'locationUuid';")
+        sql.execute("INSERT INTO LOCATION_GROUPS (location_uuid, groups) VALUES ('groupedLocationUuid', ARRAY[2]);")
+        listener.listen(Duration.ofSeconds(1))
+
+        then:
+        !locationCache.getClusterCacheEntry("locationUuid").isPresent()
+        !locationCache.getLocationGroups("groupedLocationUuid").isPresent()
+
+        and:
+        sql.firstRow("SELECT count(*) AS triggers FROM pg_trigger WHERE tgname LIKE '%_invalidation'").triggers == 2
+    }
+
+    def "cache is dropped when the listener connects"() {
+        given:
+        cache("locationUuid")
+
+        when:
+        listener.listen(Duration.ofMillis(1))
+
+        then:
+        !locationCache.getClusterCacheEntry("locationUuid").isPresent()
+    }
+
+    def "notified global latest offset is served without querying events"() {
+        given:
+        listener.listen(Duration.ofMillis(1))
+
+        when:
+        sql.execute("SELECT pg_notify('" + GlobalLatestOffsetCache.NOTIFICATION_CHANNEL + "', '42');")
+        listener.listen(Duration.ofSeconds(1))
+
+        then:
+        globalLatestOffsetCache.get(Mock(Connection)) == 42
+    }
+
+    def "written events advance the global latest offset without it being polled once the trigger exists"() {
+        given:
+        sql.execute("""
+        DROP TABLE IF EXISTS EVENTS;
+
+        CREATE TABLE EVENTS(
+            msg_offset BIGSERIAL PRIMARY KEY NOT NULL,
+            msg_key varchar NOT NULL,
+            content_type varchar NOT NULL,
+            type varchar NOT NULL,
+            created_utc timestamp NOT NULL,
+            data text NULL,
+            event_size int NOT NULL
+        );
+        """)
+
+        and: "the trigger created by instances starting one after the other"
+        createTrigger { globalLatestOffsetCache.createTriggerIfNotExists(it) }
+        createTrigger { globalLatestOffsetCache.createTriggerIfNotExists(it) }
+
+        and:
+        listener.listen(Duration.ofMillis(1))
+
+        when: "events are written outside of the service"
+        sql.execute("""
+        INSERT INTO EVENTS (msg_offset, msg_key, content_type, type, created_utc, data, event_size)
+        VALUES (41, 'key', 'content-type', 'type', now(), 'data', 1), (42, 'key', 'content-type', 'type', now(), 'data', 1);
+        """)
+        listener.listen(Duration.ofSeconds(1))
+
+        then:
+        globalLatestOffsetCache.getIfFresh() == OptionalLong.of(42)
+
+        and:
+        sql.firstRow("SELECT count(*) AS triggers FROM pg_trigger WHERE tgname = 'events_latest_offset'").triggers == 1
+    }
+
+    def "event pages are dropped when another instance compacts"() {
+        given: "a listening instance with a cached page"
+        listener.listen(Duration.ofMillis(1))
+        def pageKey = EventsPageCache.PageKey.of([1L], [], [], 0)
+        eventsPageCache.put(pageKey, [], eventsPageCache.generation())
+
+        when:
+        sql.execute("SELECT pg_notify('" + PostgresqlStorage.COMPACTION_CHANNEL + "', '');")
+        listener.listen(Duration.ofSeconds(1))
+
+        then:
+        !eventsPageCache.get(pageKey).isPresent()
+    }
+
+    void createTrigger(Closure create) {
+        def connection = DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        connection.autoCommit = false
+        create(connection)
+        connection.commit()
+        connection.close()
+    }
+
+    void cache(String locationUuid) {
+        def entry = new ClusterCacheEntry(locationUuid, [1L], LocalDateTime.now().plusMinutes(1), true)
+        locationCache.putClusterCacheEntry(entry, locationCache.generation())
+        locationCache.putLocationGroups(locationUuid, [1L], locationCache.generation())
+    }
+}
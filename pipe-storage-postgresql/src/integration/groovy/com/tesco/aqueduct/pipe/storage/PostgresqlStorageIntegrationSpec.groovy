@@ -59,6 +59,8 @@ class PostgresqlStorageIntegrationSpec extends StorageSpec {
         DROP TABLE IF EXISTS OFFSETS;
         DROP TABLE IF EXISTS LOCKS;
         DROP TABLE IF EXISTS LOCATION_GROUPS;
+        DROP TABLE IF EXISTS CLUSTER_CACHE;
+        DROP TABLE IF EXISTS EVENT_TOMBSTONES;
           
         CREATE TABLE EVENTS(
             msg_offset BIGSERIAL PRIMARY KEY NOT NULL,
@@ -116,12 +118,28 @@ class PostgresqlStorageIntegrationSpec extends StorageSpec {
             groups BIGINT[] NOT NULL
         );
 
+        CREATE TABLE CLUSTER_CACHE(
+            location_uuid VARCHAR PRIMARY KEY NOT NULL,
+            cluster_ids BIGINT[] NOT NULL,
+            expiry TIMESTAMP NOT NULL,
+            valid BOOLEAN NOT NULL DEFAULT TRUE
+        );
+
+        CREATE TABLE EVENT_TOMBSTONES(
+            msg_offset BIGINT PRIMARY KEY NOT NULL,
+            msg_key VARCHAR NOT NULL,
+            type VARCHAR NOT NULL,
+            cluster_id BIGINT NOT NULL,
+            created_utc TIMESTAMP NOT NULL
+        );
+
         INSERT INTO LOCKS (name) VALUES ('maintenance_lock');
         INSERT INTO CLUSTERS (cluster_uuid) VALUES ('NONE');        
         """)
 
         clusterStorage = Mock(ClusterStorage)
         clusterStorage.getClusterCacheEntry("locationUuid", _ as Connection) >> cacheEntry("locationUuid", [1L])
+        clusterStorage.oldestServableExpiry() >> { LocalDateTime.now() }
         storage = new PostgresqlStorage(dataSource, dataSource, limit, retryAfter, batchSize, new GlobalLatestOffsetCache(), 1, 1, 4, clusterStorage)
     }
 
@@ -355,6 +373,97 @@ class PostgresqlStorageIntegrationSpec extends StorageSpec {
         retrievedMessages*.offset == [1, 3, 4]
     }
 
+    def "deletions are compacted through tombstones once they are older than the configured threshold"() {
+        given: "deletion compaction threshold"
+        def compactDeletionsThreshold = LocalDateTime.now().minusDays(5)
+
+        and: "deletion messages and corresponding data messages stored with no TTL"
+        insertWithCluster(1, "A", 1, LocalDateTime.now().minusDays(7))
+        insertWithCluster(2, "A", 1, LocalDateTime.now().minusDays(7), null)
+        insertWithCluster(3, "B", 1, LocalDateTime.now().minusDays(7))
+        insertWithCluster(4, "B", 1, LocalDateTime.now().minusDays(8), null)
+        insertWithCluster(5, "B", 1, LocalDateTime.now().minusDays(8))
+        insertWithClusterAndTTL(6, "C", 1, LocalDateTime.now().plusDays(2), LocalDateTime.now().minusDays(8), null)
+        insertWithCluster(7, "D", 1, LocalDateTime.now().minusDays(1))
+        insertWithCluster(8, "D", 1, LocalDateTime.now().minusDays(1), null)
+
+        when: "compaction with given deletion threshold is run"
+        tombstoneStorage().compactAndMaintain(compactDeletionsThreshold, true)
+
+        then: "superseded messages and old deletions are removed without setting their time to live"
+        sql.rows("select msg_offset from events order by msg_offset")*.msg_offset == [5, 6, 7, 8]
+        sql.rows("select time_to_live from events where msg_offset in (7, 8)")*.time_to_live == [null, null]
+
+        and: "only the deletion not yet past the threshold is kept as a tombstone"
+        sql.rows("select msg_offset from event_tombstones")*.msg_offset == [8]
+        sql.firstRow("select value from offsets where name = ?", DeletionTombstones.PROCESSED_OFFSET_NAME).value == 8
+    }
+
+    def "deletions recorded in an earlier run are compacted once they are past the threshold"() {
+        given:
+        def storage = tombstoneStorage()
+        insertWithCluster(1, "A", 1, LocalDateTime.now().minusDays(3))
+        insertWithCluster(2, "A", 1, LocalDateTime.now().minusDays(3), null)
+        storage.compactAndMaintain(LocalDateTime.now().minusDays(5), true)
+
+        and: "the deletion is no longer in the range scanned for new deletions"
+        insertWithCluster(3, "B", 1, LocalDateTime.now())
+
+        when:
+        storage.compactAndMaintain(LocalDateTime.now().minusDays(1), true)
+
+        then:
+        sql.rows("select msg_offset from events")*.msg_offset == [3]
+        sql.rows("select msg_offset from event_tombstones").isEmpty()
+    }
+
+    def "deletions committed below the processed offset are recorded by the next run"() {
+        given: "a run processed offsets up to 4"
+        def storage = tombstoneStorage()
+        insertWithCluster(1, "A", 1, LocalDateTime.now().minusDays(7))
+        insertWithCluster(4, "B", 1, LocalDateTime.now().minusDays(7))
+        storage.compactAndMaintain(LocalDateTime.now().minusDays(5), true)
+
+        and: "a deletion with a lower offset commits afterwards"
+        insertWithCluster(2, "A", 1, LocalDateTime.now().minusDays(7), null)
+
+        when:
+        storage.compactAndMaintain(LocalDateTime.now().minusDays(5), true)
+
+        then:
+        sql.rows("select msg_offset from events")*.msg_offset == [4]
+    }
+
+    def "tombstones table and trigger are created at startup and record deletions as they are written"() {
+        given:
+        sql.execute("DROP TABLE EVENT_TOMBSTONES;")
+
+        when:
+        tombstoneStorage().createDeletionTombstones()
+        tombstoneStorage().createDeletionTombstones()
+
+        and:
+        insertWithCluster(1, "A", 1)
+        insertWithCluster(2, "A", 1, LocalDateTime.now(), null)
+
+        then:
+        sql.rows("select msg_offset from event_tombstones")*.msg_offset == [2]
+    }
+
+    def "deletions are compacted by setting a time to live when there is no tombstones table"() {
+        given:
+        sql.execute("DROP TABLE EVENT_TOMBSTONES;")
+        insertWithCluster(1, "A", 1, LocalDateTime.now().minusDays(7))
+        insertWithCluster(2, "A", 1, LocalDateTime.now().minusDays(7), null)
+        insertWithCluster(3, "B", 1, LocalDateTime.now().minusDays(7))
+
+        when:
+        tombstoneStorage().compactAndMaintain(LocalDateTime.now().minusDays(5), true)
+
+        then:
+        sql.rows("select msg_offset from events")*.msg_offset == [3]
+    }
+
     def "transaction is rolled back and compaction is not run when delete compactions fails"() {
         given:
         def compactionDataSource = Mock(DataSource)
@@ -1086,6 +1195,98 @@ class PostgresqlStorageIntegrationSpec extends StorageSpec {
         messageResults.messages.get(0).offset == 1
     }
 
+    def "cluster cache entry, location groups and messages are read in a single query when enabled"() {
+        given: "a location with a valid cache entry and a group"
+        insertLocationInCache("someLocationUuid", [2L])
+        insertLocationGroupFor("someLocationUuid", [5L])
+
+        and: "messages for its cluster, its group, another group and another cluster"
+        insertWithCluster(1, "A", 2L)
+        insertWithCluster(2, "B", 2L, LocalDateTime.now(), "data", 5L)
+        insertWithCluster(3, "C", 2L, LocalDateTime.now(), "data", 6L)
+        insertWithCluster(4, "D", 3L)
+
+        and:
+        def storage = singleQueryStorage(clusterStorage)
+
+        when:
+        def messageResults = storage.read(["type"], 0, "someLocationUuid")
+
+        then: "messages are read without going through cluster storage"
+        0 * clusterStorage.getClusterCacheEntry(*_)
+        messageResults.messages*.key == ["A", "B"]
+        messageResults.globalLatestOffset == OptionalLong.of(4)
+    }
+
+    def "single query read returns an empty page when there are no messages for the location"() {
+        given:
+        insertLocationInCache("someLocationUuid", [2L])
+        insertWithCluster(1, "A", 3L)
+
+        when:
+        def messageResults = singleQueryStorage(clusterStorage).read([], 0, "someLocationUuid")
+
+        then:
+        messageResults.messages.isEmpty()
+        messageResults.globalLatestOffset == OptionalLong.of(1)
+    }
+
+    def "single query read resolves clusters from location service when the cache entry is #description"() {
+        given:
+        if (cached) {
+            insertLocationInCache("someLocationUuid", [2L], Timestamp.valueOf(expiry), valid)
+        }
+        insertWithCluster(1, "A", 2L)
+
+        and:
+        def clusterStorage = Mock(ClusterStorage)
+        clusterStorage.oldestServableExpiry() >> { LocalDateTime.now() }
+
+        when:
+        def messageResults = singleQueryStorage(clusterStorage).read([], 0, "someLocationUuid")
+
+        then:
+        1 * clusterStorage.resolveClustersFor("someLocationUuid") >> ["clusterUuid"]
+        1 * clusterStorage.updateAndGetClusterIds("someLocationUuid", ["clusterUuid"], { it.isPresent() == cached }, _ as Connection) >> Optional.of([2L])
+        messageResults.messages*.key == ["A"]
+
+        where:
+        description | cached | expiry                             | valid
+        "missing"   | false  | LocalDateTime.now()                | true
+        "expired"   | true   | LocalDateTime.now().minusMinutes(1) | true
+        "invalid"   | true   | LocalDateTime.now().plusMinutes(1)  | false
+    }
+
+    def "single query read pages are bounded by limit and batch size"() {
+        given:
+        insertLocationInCache("someLocationUuid", [2L])
+        (1..5).each { insertWithCluster(it, "key" + it, 2L, LocalDateTime.now(), "data") }
+
+        when:
+        def messageResults = singleQueryStorage(clusterStorage, 3).read([], 0, "someLocationUuid")
+
+        then:
+        messageResults.messages*.offset*.intValue() == [1, 2, 3]
+    }
+
+    PostgresqlStorage singleQueryStorage(ClusterStorage clusterStorage, int pageLimit = limit) {
+        new PostgresqlStorage(
+            dataSource, dataSource, pageLimit, retryAfter, batchSize, new GlobalLatestOffsetCache(), 1, 1, 4, clusterStorage,
+            EventsPageCache.disabled(), EventsTailBuffer.disabled(), true, LocationCache.disabled(),
+            ReplicaRouter.disabled(), EventsPartitions.disabled(), ChunkedCompaction.disabled(),
+            DeletionTombstones.disabled(), RetryAfterController.disabled()
+        )
+    }
+
+    PostgresqlStorage tombstoneStorage() {
+        new PostgresqlStorage(
+            dataSource, dataSource, limit, retryAfter, batchSize, new GlobalLatestOffsetCache(), 1, 1, 4, clusterStorage,
+            EventsPageCache.disabled(), EventsTailBuffer.disabled(), false, LocationCache.disabled(),
+            ReplicaRouter.disabled(), EventsPartitions.disabled(), ChunkedCompaction.disabled(),
+            new DeletionTombstones(true), RetryAfterController.disabled()
+        )
+    }
+
     void insert(
         Message msg,
         Long clusterId,
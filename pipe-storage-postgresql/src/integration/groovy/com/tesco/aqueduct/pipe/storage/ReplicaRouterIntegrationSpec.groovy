@@ -0,0 +1,130 @@
+package com.tesco.aqueduct.pipe.storage
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules
+import com.opentable.db.postgres.junit.SingleInstancePostgresRule
+import groovy.sql.Sql
+import org.junit.ClassRule
+import spock.lang.AutoCleanup
+import spock.lang.Shared
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.sql.DriverManager
+import java.sql.SQLException
+import java.sql.Timestamp
+import java.time.Duration
+import java.time.LocalDateTime
+
+class ReplicaRouterIntegrationSpec extends Specification {
+
+    @Shared @ClassRule
+    SingleInstancePostgresRule pg = EmbeddedPostgresRules.singleInstance()
+
+    @AutoCleanup
+    Sql sql
+
+    DataSource replica
+
+    void setup() {
+        sql = new Sql(pg.embeddedPostgres.postgresDatabase.connection)
+
+        sql.execute("""
+        DROP TABLE IF EXISTS EVENTS;
+
+        CREATE TABLE EVENTS(
+            msg_offset BIGSERIAL PRIMARY KEY NOT NULL,
+            msg_key varchar NOT NULL,
+            content_type varchar NOT NULL,
+            type varchar NOT NULL,
+            created_utc timestamp NOT NULL,
+            data text NULL,
+            event_size int NOT NULL,
+            cluster_id BIGINT NOT NULL DEFAULT 1,
+            location_group BIGINT,
+            time_to_live TIMESTAMP NULL
+        );
+        """)
+
+        replica = Mock()
+        replica.connection >> {
+            DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        }
+    }
+
+    def "reads are routed to a replica that has replayed past the requested offset"() {
+        given:
+        insertMessage(1)
+        insertMessage(2)
+        def router = new ReplicaRouter([replica], Duration.ofSeconds(5))
+        router.refreshPositions(latestOffset())
+
+        expect:
+        router.route(2).get().is(replica)
+        !router.route(3).isPresent()
+    }
+
+    def "replicas behind the primary that have not replayed anything recently are not routed to"() {
+        given: "a replica that has stopped receiving from the primary after offset 2"
+        insertMessage(1)
+        insertMessage(2)
+        def router = new ReplicaRouter([replica], Duration.ofSeconds(5))
+
+        when: "the primary has written past it"
+        router.refreshPositions(3)
+
+        then:
+        !router.route(1).isPresent()
+    }
+
+    def "reads stay on the primary until replica positions are known"() {
+        given:
+        insertMessage(1)
+        def router = new ReplicaRouter([replica], Duration.ofSeconds(5))
+
+        expect:
+        !router.route(0).isPresent()
+    }
+
+    def "replicas that can not be queried are not routed to"() {
+        given:
+        insertMessage(1)
+        def failingReplica = Mock(DataSource)
+        failingReplica.connection >>> [
+            DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres")),
+            { throw new SQLException("replica down") }
+        ]
+        def router = new ReplicaRouter([failingReplica], Duration.ofSeconds(5))
+        router.refreshPositions(latestOffset())
+
+        when:
+        router.refreshPositions(latestOffset())
+
+        then:
+        !router.route(0).isPresent()
+    }
+
+    def "reads are spread across eligible replicas"() {
+        given:
+        insertMessage(1)
+        def otherReplica = Mock(DataSource)
+        otherReplica.connection >> {
+            DriverManager.getConnection(pg.embeddedPostgres.getJdbcUrl("postgres", "postgres"))
+        }
+        def router = new ReplicaRouter([replica, otherReplica], Duration.ofSeconds(5))
+        router.refreshPositions(latestOffset())
+
+        expect:
+        [router.route(1).get(), router.route(1).get()] as Set == [replica, otherReplica] as Set
+    }
+
+    long latestOffset() {
+        sql.firstRow("SELECT COALESCE(max(msg_offset), 0) AS latest FROM EVENTS").latest as long
+    }
+
+    void insertMessage(Long offset) {
+        sql.execute(
+            "INSERT INTO EVENTS(msg_offset, msg_key, content_type, type, created_utc, data, event_size, cluster_id) VALUES(?,?,?,?,?,?,?,?);",
+            offset, "key", "contentType", "type", Timestamp.valueOf(LocalDateTime.now()), "data", 10, 1
+        )
+    }
+}
@@ -0,0 +1,200 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Deletes expired events in chunks of offsets, each chunk in its own transaction. The offset reached is persisted
+ * with every chunk and each run resumes from it, so a run only goes through the offsets added since the last one, or
+ * what the last one didn't get to because it ran out of time or lost the maintenance lock. Offsets below it are swept
+ * again when older events are given a time to live, see {@link #rewind}, and once every full sweep interval for time
+ * to live set any other way. Chunks are spaced out to stay within the rows per second budget.
+ */
+public class ChunkedCompaction {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ChunkedCompaction.class));
+
+    static final String WATERMARK_NAME = "compaction_watermark";
+
+    // epoch millis of the start of the last full sweep
+    static final String FULL_SWEEP_NAME = "compaction_full_sweep";
+
+    private static final String GET_OFFSET_QUERY = "SELECT value FROM offsets WHERE name = ?;";
+
+    private static final String SET_OFFSET_QUERY =
+        "INSERT INTO offsets (name, value) VALUES (?, ?) ON CONFLICT (name) DO UPDATE SET value = EXCLUDED.value;";
+
+    private static final String REWIND_WATERMARK_QUERY =
+        "UPDATE offsets SET value = LEAST(value, ?) WHERE name = ?;";
+
+    private static final String OFFSET_RANGE_QUERY =
+        "SELECT COALESCE(min(msg_offset), 0), COALESCE(max(msg_offset), 0) FROM events;";
+
+    private static final String COMPACT_CHUNK_QUERY =
+        "DELETE FROM events WHERE msg_offset >= ? AND msg_offset < ? AND time_to_live <= CURRENT_TIMESTAMP;";
+
+    private final long chunkSize;
+    private final long rowsPerSecond;
+    private final long maxRunMillis;
+    private final long fullSweepMillis;
+    private final DistributionSummary chunkRows;
+    private final Timer chunkLatency;
+
+    /**
+     * @param chunkSize number of offsets compacted per chunk, 0 disables chunked compaction
+     * @param rowsPerSecond maximum rate at which rows are deleted, 0 for no limit
+     * @param maxRunDuration time after which a run stops at the end of the current chunk
+     * @param fullSweepInterval time after which a run starts again from the lowest offset
+     */
+    public ChunkedCompaction(
+        final long chunkSize,
+        final long rowsPerSecond,
+        final Duration maxRunDuration,
+        final Duration fullSweepInterval,
+        final MeterRegistry registry
+    ) {
+        this.chunkSize = chunkSize;
+        this.rowsPerSecond = rowsPerSecond;
+        this.maxRunMillis = maxRunDuration.toMillis();
+        this.fullSweepMillis = fullSweepInterval.toMillis();
+        this.chunkRows = DistributionSummary.builder("persistence.compaction.chunk.rows").register(registry);
+        this.chunkLatency = Timer.builder("persistence.compaction.chunk.latency").register(registry);
+    }
+
+    public static ChunkedCompaction disabled() {
+        return new ChunkedCompaction(0, 0, Duration.ZERO, Duration.ZERO, new SimpleMeterRegistry());
+    }
+
+    public boolean isEnabled() {
+        return chunkSize > 0;
+    }
+
+    /**
+     * Compacts from the persisted watermark up to the latest offset at the start of the run. The connection is used
+     * in manual commit mode and every chunk takes the maintenance lock again.
+     *
+     * @return number of rows compacted
+     */
+    public long compact(final Connection connection, final Predicate<Connection> lock) throws SQLException {
+        final long runStart = System.currentTimeMillis();
+
+        final long[] offsetRange = offsetRange(connection);
+        final long endOffset = offsetRange[1];
+        long watermark = getOffset(connection, WATERMARK_NAME);
+        if (runStart - getOffset(connection, FULL_SWEEP_NAME) >= fullSweepMillis) {
+            LOG.info("compaction", "full sweep from offset " + offsetRange[0]);
+            watermark = 0;
+            setOffset(connection, WATERMARK_NAME, watermark);
+            setOffset(connection, FULL_SWEEP_NAME, runStart);
+        }
+        watermark = Math.max(watermark, offsetRange[0]);
+        connection.commit();
+
+        long compactedRows = 0;
+        while (watermark <= endOffset) {
+            if (System.currentTimeMillis() - runStart >= maxRunMillis) {
+                LOG.info("compaction", "paused at offset " + watermark);
+                break;
+            }
+
+            final long chunkStart = System.nanoTime();
+            if (!lock.test(connection)) {
+                connection.rollback();
+                LOG.info("compaction", "lost maintenance lock at offset " + watermark);
+                break;
+            }
+
+            // offsets past the end of the run don't exist yet, the watermark stops short of them
+            final long chunkEnd = Math.min(watermark + chunkSize, endOffset + 1);
+            final int deleted = compactChunk(connection, watermark, chunkEnd);
+            setOffset(connection, WATERMARK_NAME, chunkEnd);
+            connection.commit();
+
+            final long chunkNanos = System.nanoTime() - chunkStart;
+            chunkRows.record(deleted);
+            chunkLatency.record(chunkNanos, TimeUnit.NANOSECONDS);
+
+            compactedRows += deleted;
+            watermark = chunkEnd;
+
+            if (!throttle(deleted, chunkNanos)) {
+                break;
+            }
+        }
+        return compactedRows;
+    }
+
+    /**
+     * Moves the watermark back to the given offset when it is past it, so the next run sweeps again from there. Used
+     * when events below the watermark are given a time to live, in the caller's transaction.
+     */
+    public void rewind(final Connection connection, final long offset) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(REWIND_WATERMARK_QUERY)) {
+            statement.setLong(1, offset);
+            statement.setString(2, WATERMARK_NAME);
+            statement.executeUpdate();
+        }
+    }
+
+    private boolean throttle(final int deleted, final long chunkNanos) {
+        if (rowsPerSecond <= 0) {
+            return true;
+        }
+        final long pauseMillis = (deleted * 1000L / rowsPerSecond) - TimeUnit.NANOSECONDS.toMillis(chunkNanos);
+        if (pauseMillis <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(pauseMillis);
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private int compactChunk(final Connection connection, final long fromOffset, final long toOffset) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(COMPACT_CHUNK_QUERY)) {
+            statement.setLong(1, fromOffset);
+            statement.setLong(2, toOffset);
+            return statement.executeUpdate();
+        }
+    }
+
+    private long[] offsetRange(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(OFFSET_RANGE_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return new long[] { resultSet.getLong(1), resultSet.getLong(2) };
+        }
+    }
+
+    private long getOffset(final Connection connection, final String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(GET_OFFSET_QUERY)) {
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private void setOffset(final Connection connection, final String name, final long value) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SET_OFFSET_QUERY)) {
+            statement.setString(1, name);
+            statement.setLong(2, value);
+            statement.executeUpdate();
+        }
+    }
+}
@@ -4,13 +4,17 @@ import com.tesco.aqueduct.pipe.api.LocationService;
 import com.tesco.aqueduct.pipe.logger.PipeLogger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
 import java.sql.*;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.*;
 
 public class ClusterStorage {
 
@@ -28,13 +32,90 @@ public class ClusterStorage {
 
     private static final String SELECT_CLUSTER_ID = " SELECT cluster_id FROM CLUSTERS WHERE ((cluster_uuid)::text = ANY (string_to_array(?, ',')));";
 
+    // rows locked by another instance's batch or a refresh are skipped rather than waited for, the locks are only held
+    // for the claim, no update waits on them while locations are resolved
+    private static final String CLAIM_EXPIRING_CLUSTER_CACHE_QUERY = "SELECT location_uuid, cluster_ids, expiry, valid FROM cluster_cache " +
+        "WHERE valid AND expiry < ? ORDER BY expiry LIMIT ? FOR UPDATE SKIP LOCKED;";
+
+    // entries refreshed or invalidated since they were claimed have another expiry or are no longer valid
+    private static final String UPDATE_CLAIMED_CLUSTER_CACHE = " UPDATE CLUSTER_CACHE SET cluster_ids=?,expiry=? where location_uuid = ? and valid = true and expiry = ?";
+
     private final LocationService locationService;
     private final Duration cacheExpiryDuration;
+    private final LocationCache locationCache;
+    private final DataSource dataSource;
+    private final Duration refreshAhead;
+    private final Duration maxStaleness;
+    private final int refreshBatchSize;
+    private final ExecutorService refreshExecutor;
+    private final ConcurrentMap<String, CompletableFuture<List<String>>> resolutions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Void>> refreshes = new ConcurrentHashMap<>();
     private static final String CLUSTER_IDS_TYPE = "BIGINT";
 
     public ClusterStorage(LocationService locationService, Duration cacheExpiryDuration) {
+        this(locationService, cacheExpiryDuration, LocationCache.disabled());
+    }
+
+    public ClusterStorage(LocationService locationService, Duration cacheExpiryDuration, LocationCache locationCache) {
+        this(locationService, cacheExpiryDuration, locationCache, null, Duration.ZERO, Duration.ZERO, 0, 0, 0);
+    }
+
+    /**
+     * With a non zero refreshAhead, entries expiring within it are re-resolved in the background and expired entries
+     * that are still valid keep being served until their refresh lands, for at most maxStaleness past their expiry.
+     * At most refreshQueueSize refreshes wait for one of the refreshConcurrency threads, others are dropped and left
+     * to the next read or batch.
+     */
+    public ClusterStorage(
+        LocationService locationService,
+        Duration cacheExpiryDuration,
+        LocationCache locationCache,
+        DataSource dataSource,
+        Duration refreshAhead,
+        Duration maxStaleness,
+        int refreshBatchSize,
+        int refreshConcurrency,
+        int refreshQueueSize
+    ) {
         this.locationService = locationService;
         this.cacheExpiryDuration = cacheExpiryDuration;
+        this.locationCache = locationCache;
+        this.dataSource = dataSource;
+        this.refreshAhead = refreshAhead;
+        this.maxStaleness = maxStaleness;
+        this.refreshBatchSize = refreshBatchSize;
+        this.refreshExecutor = refreshAhead.isZero() ? null : new ThreadPoolExecutor(
+            refreshConcurrency,
+            refreshConcurrency,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(refreshQueueSize),
+            runnable -> {
+                final Thread thread = new Thread(runnable, "cluster-cache-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+    }
+
+    public boolean servesExpiredEntries() {
+        return refreshExecutor != null;
+    }
+
+    /**
+     * @return whether the entry can be served while it is refreshed, it has to be valid and expired for no longer
+     * than the max staleness
+     */
+    public boolean servesWhileRefreshing(ClusterCacheEntry entry) {
+        return servesExpiredEntries() && entry.isValid() && entry.getExpiry().isAfter(oldestServableExpiry());
+    }
+
+    /**
+     * @return entries expiring before this can't be served, they have to be resolved again first
+     */
+    public LocalDateTime oldestServableExpiry() {
+        final LocalDateTime now = LocalDateTime.now();
+        return servesExpiredEntries() ? now.minus(maxStaleness) : now;
     }
 
     public Optional<List<Long>> updateAndGetClusterIds(String locationUuid, List<String> resolvedClusterUuids, Optional<ClusterCacheEntry> entry, Connection connection) {
@@ -64,14 +145,225 @@ public class ClusterStorage {
         }
     }
 
+    /**
+     * Concurrent resolutions for the same location share a single request to location service.
+     */
     public List<String> resolveClustersFor(String locationUuid) {
-        return locationService.getClusterUuids(locationUuid);
+        final CompletableFuture<List<String>> resolution = new CompletableFuture<>();
+        final CompletableFuture<List<String>> inFlight = resolutions.putIfAbsent(locationUuid, resolution);
+
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException exception) {
+                if (exception.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) exception.getCause();
+                }
+                throw exception;
+            }
+        }
+
+        try {
+            final List<String> clusterUuids = locationService.getClusterUuids(locationUuid);
+            resolution.complete(clusterUuids);
+            return clusterUuids;
+        } catch (RuntimeException exception) {
+            resolution.completeExceptionally(exception);
+            throw exception;
+        } finally {
+            resolutions.remove(locationUuid, resolution);
+        }
+    }
+
+    /**
+     * Re-resolves the entry unless a refresh for its location is already in flight.
+     */
+    public CompletableFuture<Void> refreshInBackground(ClusterCacheEntry entry) {
+        if (!servesExpiredEntries()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final String locationUuid = entry.getLocationUuid();
+        final CompletableFuture<Void> refresh = new CompletableFuture<>();
+        final CompletableFuture<Void> inFlight = refreshes.putIfAbsent(locationUuid, refresh);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh(entry);
+                    refresh.complete(null);
+                } catch (RuntimeException exception) {
+                    LOG.error("cluster storage", "refresh clusters for " + locationUuid, exception);
+                    refresh.completeExceptionally(exception);
+                } finally {
+                    refreshes.remove(locationUuid, refresh);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            LOG.info("cluster storage", "Refresh queue full, skipped refresh for: " + locationUuid);
+            refreshes.remove(locationUuid, refresh);
+            refresh.completeExceptionally(exception);
+        }
+        return refresh;
+    }
+
+    /**
+     * Refreshes the batch of valid entries expiring soonest within refreshAhead, resolving at most refreshConcurrency
+     * at a time. The batch is claimed and updated in two short transactions, no connection is held while locations are
+     * resolved. Entries are only updated when their expiry is still the one claimed, so an entry refreshed by a read or
+     * another instance in the meantime is left as it is.
+     */
+    public void refreshExpiringEntries() {
+        if (!servesExpiredEntries()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int refreshed = 0;
+        try {
+            final List<ClusterCacheEntry> entries = claimExpiringEntries();
+
+            final List<CompletableFuture<List<String>>> resolutions = new ArrayList<>();
+            for (ClusterCacheEntry entry : entries) {
+                resolutions.add(resolveInBackground(entry.getLocationUuid()));
+            }
+
+            final Map<ClusterCacheEntry, List<String>> resolvedEntries = new LinkedHashMap<>();
+            for (int i = 0; i < entries.size(); i++) {
+                final ClusterCacheEntry entry = entries.get(i);
+                // failed resolutions are retried with the next batch
+                resolved(entry.getLocationUuid(), resolutions.get(i))
+                    .ifPresent(clusterUuids -> resolvedEntries.put(entry, clusterUuids));
+            }
+
+            if (!resolvedEntries.isEmpty()) {
+                refreshed = updateClaimedEntries(resolvedEntries);
+            }
+        } finally {
+            long end = System.currentTimeMillis();
+            LOG.info("refreshExpiringEntries:time", Long.toString(end - start));
+            LOG.info("cluster storage", "Cluster cache entries refreshed: " + refreshed);
+        }
+    }
+
+    private CompletableFuture<List<String>> resolveInBackground(String locationUuid) {
+        try {
+            return CompletableFuture.supplyAsync(() -> resolveClustersFor(locationUuid), refreshExecutor);
+        } catch (RejectedExecutionException exception) {
+            final CompletableFuture<List<String>> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(exception);
+            return rejected;
+        }
+    }
+
+    private Optional<List<String>> resolved(String locationUuid, CompletableFuture<List<String>> resolution) {
+        try {
+            return Optional.of(resolution.join());
+        } catch (CompletionException exception) {
+            LOG.error("cluster storage", "refresh clusters for " + locationUuid, exception.getCause());
+            return Optional.empty();
+        }
+    }
+
+    private void refresh(ClusterCacheEntry entry) {
+        final List<String> clusterUuids = resolveClustersFor(entry.getLocationUuid());
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                // the update is skipped when the entry has been invalidated in the meantime
+                updateAndGetClusterIds(entry.getLocationUuid(), clusterUuids, Optional.of(entry), connection);
+                connection.commit();
+            } catch (RuntimeException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        } catch (SQLException exception) {
+            LOG.error("cluster storage", "refresh cluster cache", exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private List<ClusterCacheEntry> claimExpiringEntries() {
+        final List<ClusterCacheEntry> entries = new ArrayList<>();
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(CLAIM_EXPIRING_CLUSTER_CACHE_QUERY)) {
+            statement.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now().plus(refreshAhead)));
+            statement.setInt(2, refreshBatchSize);
+
+            Optional<ClusterCacheEntry> entry;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while ((entry = mapClusterCacheEntry(resultSet)).isPresent()) {
+                    entries.add(entry.get());
+                }
+            }
+        } catch (SQLException exception) {
+            LOG.error("cluster storage", "claim expiring cluster cache entries", exception);
+            throw new RuntimeException(exception);
+        }
+        return entries;
+    }
+
+    /**
+     * @return number of entries updated
+     */
+    private int updateClaimedEntries(Map<ClusterCacheEntry, List<String>> resolvedEntries) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int updated = 0;
+                for (Map.Entry<ClusterCacheEntry, List<String>> resolvedEntry : resolvedEntries.entrySet()) {
+                    final List<Long> clusterIds = resolveClusterIdsFor(resolvedEntry.getValue(), connection);
+                    updated += updateClaimedClusterCache(resolvedEntry.getKey(), clusterIds, connection);
+                }
+                connection.commit();
+                return updated;
+            } catch (RuntimeException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        } catch (SQLException exception) {
+            LOG.error("cluster storage", "update refreshed cluster cache entries", exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private int updateClaimedClusterCache(ClusterCacheEntry entry, List<Long> clusterIds, Connection connection) {
+        try (PreparedStatement statement = connection.prepareStatement(UPDATE_CLAIMED_CLUSTER_CACHE)) {
+            statement.setArray(1, connection.createArrayOf(CLUSTER_IDS_TYPE, clusterIds.toArray()));
+            statement.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now().plus(cacheExpiryDuration)));
+            statement.setString(3, entry.getLocationUuid());
+            statement.setTimestamp(4, Timestamp.valueOf(entry.getExpiry()));
+
+            final int updatedRowsCount = statement.executeUpdate();
+            if (updatedRowsCount > 0) {
+                locationCache.notifyInvalidation(entry.getLocationUuid(), connection);
+            } else {
+                LOG.info("cluster storage", "cluster cache changed since claimed, skipped refresh for: " + entry.getLocationUuid());
+            }
+            return updatedRowsCount;
+        } catch (SQLException exception) {
+            LOG.error("cluster storage", "update claimed cluster cache statement", exception);
+            throw new RuntimeException(exception);
+        }
     }
 
     public Optional<ClusterCacheEntry> getClusterCacheEntry(String locationUuid, Connection connection) {
+        final Optional<ClusterCacheEntry> cachedEntry = locationCache.getClusterCacheEntry(locationUuid);
+        if (cachedEntry.isPresent()) {
+            return cachedEntry;
+        }
+
         long start = System.currentTimeMillis();
+        final long generation = locationCache.generation();
         try (PreparedStatement statement = getLocationToClusterIdsStatement(connection, locationUuid)) {
-            return runLocationToClusterIdsQuery(statement);
+            final Optional<ClusterCacheEntry> entry = runLocationToClusterIdsQuery(statement);
+            entry.ifPresent(e -> locationCache.putClusterCacheEntry(e, generation));
+            return entry;
         } catch (SQLException exception) {
             LOG.error("cluster storage", "resolve location to clusterIds", exception);
             throw new RuntimeException(exception);
@@ -93,24 +385,28 @@ public class ClusterStorage {
     private Optional<ClusterCacheEntry> runLocationToClusterIdsQuery(final PreparedStatement query) throws SQLException {
         long start = System.currentTimeMillis();
         try (ResultSet rs = query.executeQuery()) {
-            if (rs.next()) {
-                final String locationUuid = rs.getString("location_uuid");
+            return mapClusterCacheEntry(rs);
+        } finally {
+            long end = System.currentTimeMillis();
+            LOG.info("runLocationToClusterIdsQuery:time", Long.toString(end - start));
+        }
+    }
 
-                Array clusterIdArray = rs.getArray("cluster_ids");
-                Long[] array = (Long[]) clusterIdArray.getArray();
-                final List<Long> clusterIds = Arrays.asList(array);
+    private Optional<ClusterCacheEntry> mapClusterCacheEntry(final ResultSet rs) throws SQLException {
+        if (rs.next()) {
+            final String locationUuid = rs.getString("location_uuid");
 
-                final LocalDateTime expiry = rs.getTimestamp("expiry").toLocalDateTime();
-                final boolean isValid = rs.getBoolean("valid");
+            Array clusterIdArray = rs.getArray("cluster_ids");
+            Long[] array = (Long[]) clusterIdArray.getArray();
+            final List<Long> clusterIds = Arrays.asList(array);
 
-                return Optional.of(new ClusterCacheEntry(locationUuid, clusterIds, expiry, isValid));
-            }
+            final LocalDateTime expiry = rs.getTimestamp("expiry").toLocalDateTime();
+            final boolean isValid = rs.getBoolean("valid");
 
-            return Optional.empty();
-        } finally {
-            long end = System.currentTimeMillis();
-            LOG.info("runLocationToClusterIdsQuery:time", Long.toString(end - start));
+            return Optional.of(new ClusterCacheEntry(locationUuid, clusterIds, expiry, isValid));
         }
+
+        return Optional.empty();
     }
 
     private PreparedStatement getLocationToClusterIdsStatement(final Connection connection, final String locationUuid) {
@@ -155,6 +451,7 @@ public class ClusterStorage {
             statement.setTimestamp(5, expiry);
 
             statement.execute();
+            locationCache.notifyInvalidation(locationUuid, connection);
         } catch (SQLException exception) {
             LOG.error("cluster storage", "upsert cluster cache statement", exception);
             throw new RuntimeException(exception);
@@ -176,6 +473,9 @@ public class ClusterStorage {
             statement.setString(3, locationUuid);
 
             int updatedRowsCount = statement.executeUpdate();
+            if (updatedRowsCount > 0) {
+                locationCache.notifyInvalidation(locationUuid, connection);
+            }
             LOG.info("cluster storage", "cluster cache updated for: " + locationUuid + ", rows updated: " + updatedRowsCount);
             return updatedRowsCount;
         } catch (SQLException exception) {
@@ -0,0 +1,217 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+/**
+ * Tracks deletion messages in a side table so deletion compaction deletes superseded events by joining on it, rather
+ * than marking them with a time to live first. The table and a trigger recording deletions as they are written are
+ * created by {@link #createIfNotExists(Connection)}:
+ * <pre>
+ * CREATE TABLE event_tombstones(
+ *   msg_offset BIGINT PRIMARY KEY NOT NULL,
+ *   msg_key VARCHAR NOT NULL,
+ *   type VARCHAR NOT NULL,
+ *   cluster_id BIGINT NOT NULL,
+ *   created_utc TIMESTAMP NOT NULL
+ * );
+ * CREATE INDEX event_tombstones_created_utc ON event_tombstones (created_utc);
+ *
+ * CREATE FUNCTION record_event_tombstone() RETURNS trigger AS $$
+ * BEGIN
+ *   INSERT INTO event_tombstones VALUES (NEW.msg_offset, NEW.msg_key, NEW.type, NEW.cluster_id, NEW.created_utc)
+ *     ON CONFLICT DO NOTHING;
+ *   RETURN NULL;
+ * END; $$ LANGUAGE plpgsql;
+ *
+ * CREATE TRIGGER event_tombstones AFTER INSERT ON events
+ *   FOR EACH ROW WHEN (NEW.data IS NULL AND NEW.time_to_live IS NULL) EXECUTE PROCEDURE record_event_tombstone();
+ * </pre>
+ * Deletions written before the trigger existed are recorded from the last processed offset. Offsets are allocated
+ * before their transaction commits, so a deletion can become visible below offsets already processed. The scan starts
+ * the rescan window below the processed offset to pick these up.
+ */
+public class DeletionTombstones {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(DeletionTombstones.class));
+
+    static final String PROCESSED_OFFSET_NAME = "tombstones_processed_offset";
+
+    private static final long SETUP_LOCK_KEY = 4_158_276_302L;
+
+    public static final long DEFAULT_RESCAN_WINDOW = 100_000;
+
+    private static final String[] CREATE_QUERIES = {
+        " CREATE TABLE IF NOT EXISTS event_tombstones( " +
+        "   msg_offset BIGINT PRIMARY KEY NOT NULL, " +
+        "   msg_key VARCHAR NOT NULL, " +
+        "   type VARCHAR NOT NULL, " +
+        "   cluster_id BIGINT NOT NULL, " +
+        "   created_utc TIMESTAMP NOT NULL " +
+        " );",
+        "CREATE INDEX IF NOT EXISTS event_tombstones_created_utc ON event_tombstones (created_utc);",
+        " CREATE OR REPLACE FUNCTION record_event_tombstone() RETURNS trigger AS $$ " +
+        " BEGIN " +
+        "   INSERT INTO event_tombstones VALUES (NEW.msg_offset, NEW.msg_key, NEW.type, NEW.cluster_id, NEW.created_utc) " +
+        "     ON CONFLICT DO NOTHING; " +
+        "   RETURN NULL; " +
+        " END; $$ LANGUAGE plpgsql;"
+    };
+
+    private static final String TRIGGER_EXISTS_QUERY =
+        "SELECT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'event_tombstones' AND tgrelid = 'events'::regclass);";
+
+    private static final String CREATE_TRIGGER_QUERY =
+        " CREATE TRIGGER event_tombstones AFTER INSERT ON events " +
+        " FOR EACH ROW WHEN (NEW.data IS NULL AND NEW.time_to_live IS NULL) EXECUTE PROCEDURE record_event_tombstone();";
+
+    private static final String IS_AVAILABLE_QUERY = "SELECT to_regclass('event_tombstones') IS NOT NULL;";
+
+    private static final String GET_PROCESSED_OFFSET_QUERY = "SELECT value FROM offsets WHERE name = ?;";
+
+    private static final String SET_PROCESSED_OFFSET_QUERY =
+        "INSERT INTO offsets (name, value) VALUES (?, ?) ON CONFLICT (name) DO UPDATE SET value = EXCLUDED.value;";
+
+    private static final String LATEST_OFFSET_QUERY = "SELECT COALESCE(max(msg_offset), 0) FROM events;";
+
+    private static final String CAPTURE_QUERY =
+        " INSERT INTO event_tombstones (msg_offset, msg_key, type, cluster_id, created_utc) " +
+        " SELECT msg_offset, msg_key, type, cluster_id, created_utc FROM events " +
+        " WHERE msg_offset > ? AND msg_offset <= ? " +
+        " AND data IS NULL " +
+        " AND time_to_live IS NULL " +
+        " ON CONFLICT (msg_offset) DO NOTHING;";
+
+    private static final String COMPACT_QUERY =
+        " DELETE FROM events USING ( " +
+        "   SELECT max(msg_offset) AS last_delete_offset, msg_key, type, cluster_id FROM event_tombstones " +
+        "   WHERE created_utc <= ? " +
+        "   GROUP BY msg_key, type, cluster_id " +
+        " ) AS latest_deletions " +
+        " WHERE events.msg_key = latest_deletions.msg_key " +
+        " AND events.type = latest_deletions.type " +
+        " AND events.cluster_id = latest_deletions.cluster_id " +
+        " AND events.msg_offset <= latest_deletions.last_delete_offset;";
+
+    private static final String DELETE_TOMBSTONES_QUERY = "DELETE FROM event_tombstones WHERE created_utc <= ?;";
+
+    private final boolean enabled;
+    private final long rescanWindow;
+
+    public DeletionTombstones(final boolean enabled) {
+        this(enabled, DEFAULT_RESCAN_WINDOW);
+    }
+
+    /**
+     * @param rescanWindow number of offsets below the last processed offset scanned again for deletions
+     */
+    public DeletionTombstones(final boolean enabled, final long rescanWindow) {
+        this.enabled = enabled;
+        this.rescanWindow = rescanWindow;
+    }
+
+    public static DeletionTombstones disabled() {
+        return new DeletionTombstones(false);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the tombstones table and the trigger recording deletions on write when they don't exist. Has to run in
+     * a transaction, instances starting together create them one after the other.
+     */
+    public void createIfNotExists(final Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT pg_advisory_xact_lock(" + SETUP_LOCK_KEY + ");");
+            for (final String query : CREATE_QUERIES) {
+                statement.execute(query);
+            }
+            try (ResultSet resultSet = statement.executeQuery(TRIGGER_EXISTS_QUERY)) {
+                if (resultSet.next() && resultSet.getBoolean(1)) {
+                    return;
+                }
+            }
+            statement.execute(CREATE_TRIGGER_QUERY);
+            LOG.info("deletion tombstones", "created tombstones trigger");
+        }
+    }
+
+    /**
+     * @return true when the tombstones table exists
+     */
+    public boolean isAvailable(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(IS_AVAILABLE_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    /**
+     * Records the deletions written after the last processed offset, then deletes events superseded by deletions
+     * created before the threshold along with those deletions and their tombstones.
+     *
+     * @return number of events compacted
+     */
+    public int compact(final Connection connection, final LocalDateTime compactDeletionsThreshold) throws SQLException {
+        final int captured = capture(connection);
+
+        final Timestamp threshold = Timestamp.valueOf(compactDeletionsThreshold);
+        final int compacted;
+        try (PreparedStatement statement = connection.prepareStatement(COMPACT_QUERY)) {
+            statement.setTimestamp(1, threshold);
+            compacted = statement.executeUpdate();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_TOMBSTONES_QUERY)) {
+            statement.setTimestamp(1, threshold);
+            statement.executeUpdate();
+        }
+
+        LOG.info("compaction", "recorded " + captured + " tombstones, compacted " + compacted + " deleted rows");
+        return compacted;
+    }
+
+    private int capture(final Connection connection) throws SQLException {
+        final long processedOffset = getProcessedOffset(connection);
+        final long latestOffset = getLatestOffset(connection);
+
+        // recording is idempotent, deletions committed late below the processed offset are picked up by scanning again
+        final int captured;
+        try (PreparedStatement statement = connection.prepareStatement(CAPTURE_QUERY)) {
+            statement.setLong(1, Math.max(Math.min(processedOffset, latestOffset) - rescanWindow, 0));
+            statement.setLong(2, latestOffset);
+            captured = statement.executeUpdate();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(SET_PROCESSED_OFFSET_QUERY)) {
+            statement.setString(1, PROCESSED_OFFSET_NAME);
+            statement.setLong(2, Math.max(processedOffset, latestOffset));
+            statement.executeUpdate();
+        }
+        return captured;
+    }
+
+    private long getProcessedOffset(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(GET_PROCESSED_OFFSET_QUERY)) {
+            statement.setString(1, PROCESSED_OFFSET_NAME);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private long getLatestOffset(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(LATEST_OFFSET_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.api.Message;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+class EventsPage {
+    private final List<Message> messages;
+    private final boolean complete;
+}
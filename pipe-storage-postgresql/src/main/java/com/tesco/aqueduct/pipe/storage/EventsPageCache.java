@@ -0,0 +1,140 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.tesco.aqueduct.pipe.api.CachedPage;
+import com.tesco.aqueduct.pipe.api.Message;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded cache of complete event pages. A page is complete when it was cut short by the read limit or the batch
+ * size, so reading again from the same offset for the same clusters, location groups and types returns the same
+ * messages until the events table is compacted. Compaction is broadcast on {@link PostgresqlStorage#COMPACTION_CHANNEL}
+ * so every instance drops its pages, not only the one that compacted.
+ */
+public class EventsPageCache implements MeterBinder, NotificationListener.NotificationHandler {
+
+    private final Cache<PageKey, List<Message>> cache;
+    private final AtomicLong generation = new AtomicLong();
+    private final boolean enabled;
+
+    public EventsPageCache(final long maxSizeInBytes, final Duration expireAfterWrite) {
+        this.enabled = maxSizeInBytes > 0;
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(Math.max(maxSizeInBytes, 0))
+            .weigher((PageKey key, List<Message> messages) -> weightOf(messages))
+            .expireAfterWrite(expireAfterWrite)
+            .recordStats()
+            .build();
+    }
+
+    public static EventsPageCache disabled() {
+        return new EventsPageCache(0, Duration.ZERO);
+    }
+
+    public Optional<List<Message>> get(final PageKey key) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    /**
+     * @return the generation to pass to {@link #put}, taken before reading the page from the database
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Pages read before a compaction are not cached once it has been notified, they may hold compacted events.
+     *
+     * @return the {@link CachedPage} held by the cache, so identical reads share the same page
+     */
+    public List<Message> put(final PageKey key, final List<Message> messages, final long readGeneration) {
+        if (!enabled || generation.get() != readGeneration) {
+            return Collections.unmodifiableList(messages);
+        }
+        final CachedPage page = new CachedPage(messages);
+        cache.put(key, page);
+
+        // a compaction may have been notified between the check and the put
+        if (generation.get() != readGeneration) {
+            cache.invalidate(key);
+        }
+        return page;
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "persistence.read.page-cache");
+    }
+
+    @Override
+    public void onNotification(final String payload) {
+        invalidateAll();
+    }
+
+    @Override
+    public void onConnect() {
+        // compactions notified while disconnected were missed
+        invalidateAll();
+    }
+
+    private static int weightOf(final List<Message> messages) {
+        long weight = 0;
+        for (final Message message : messages) {
+            weight += Message.MAX_OVERHEAD_SIZE
+                + message.getKey().length()
+                + message.getType().length()
+                + (message.getData() == null ? 0 : message.getData().length());
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    @Value
+    public static class PageKey {
+        List<Long> clusterIds;
+        List<Long> locationGroups;
+        List<String> types;
+        long startOffset;
+
+        /**
+         * Locations sharing the same set of clusters resolve to the same key regardless of ordering or duplicates.
+         */
+        public static PageKey of(
+            final List<Long> clusterIds,
+            final List<Long> locationGroups,
+            final List<String> types,
+            final long startOffset
+        ) {
+            return new PageKey(canonical(clusterIds), canonical(locationGroups), canonical(types), startOffset);
+        }
+
+        private static <T extends Comparable<T>> List<T> canonical(final List<T> values) {
+            if (values == null || values.isEmpty()) {
+                return Collections.emptyList();
+            }
+            return values.stream().distinct().sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import lombok.Value;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maintains range partitions of the events table by msg_offset. Partitions are created ahead of the latest offset and
+ * compaction drops or rewrites whole sealed partitions instead of deleting expired rows one by one. The events table
+ * has to be created partitioned for any of this to apply, otherwise compaction falls back to deleting rows:
+ * <pre>
+ * CREATE TABLE events (...) PARTITION BY RANGE (msg_offset);
+ * </pre>
+ * Reads filter on msg_offset, so they are planned against the partitions covering the requested offsets only.
+ */
+public class EventsPartitions {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(EventsPartitions.class));
+
+    private static final long PARTITION_LOCK_KEY = 4_158_276_301L;
+
+    private static final String IS_PARTITIONED_QUERY =
+        "SELECT EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'events'::regclass);";
+
+    private static final String PARTITIONS_QUERY =
+        " SELECT n.nspname AS schema_name, c.relname AS table_name, pg_get_expr(c.relpartbound, c.oid) AS bound " +
+        " FROM pg_inherits i " +
+        " JOIN pg_class c ON c.oid = i.inhrelid " +
+        " JOIN pg_namespace n ON n.oid = c.relnamespace " +
+        " WHERE i.inhparent = 'events'::regclass " +
+        " ORDER BY c.relname;";
+
+    private static final Pattern RANGE_BOUND = Pattern.compile("FROM \\('?(-?\\d+)'?\\) TO \\('?(-?\\d+)'?\\)");
+
+    private final long partitionSize;
+    private final int partitionsAhead;
+    private final double rewriteThreshold;
+
+    /**
+     * @param partitionSize number of offsets covered by each partition, 0 disables partition maintenance
+     * @param partitionsAhead number of partitions kept ahead of the latest offset
+     * @param rewriteThreshold fraction of expired rows above which a sealed partition is rewritten
+     */
+    public EventsPartitions(final long partitionSize, final int partitionsAhead, final double rewriteThreshold) {
+        this.partitionSize = partitionSize;
+        this.partitionsAhead = partitionsAhead;
+        this.rewriteThreshold = rewriteThreshold;
+    }
+
+    public static EventsPartitions disabled() {
+        return new EventsPartitions(0, 0, 1);
+    }
+
+    public boolean isEnabled() {
+        return partitionSize > 0;
+    }
+
+    public boolean isPartitioned(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(IS_PARTITIONED_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    /**
+     * Creates partitions following the highest existing one until they cover the configured number of partitions
+     * past the latest offset. Has to run in a transaction, it is skipped when another instance is creating them.
+     *
+     * @return number of partitions created
+     */
+    public int createPartitions(final Connection connection) throws SQLException {
+        if (!isEnabled() || !isPartitioned(connection) || !tryLock(connection)) {
+            return 0;
+        }
+
+        final long latestOffset = latestOffset(connection);
+        long lower = partitions(connection).stream()
+            .filter(Partition::isBounded)
+            .mapToLong(Partition::getUpper)
+            .max()
+            .orElse(latestOffset - Math.floorMod(latestOffset, partitionSize));
+
+        int created = 0;
+        while (lower <= latestOffset + partitionsAhead * partitionSize) {
+            execute(connection,
+                "CREATE TABLE IF NOT EXISTS events_p" + lower + " PARTITION OF events " +
+                "FOR VALUES FROM (" + lower + ") TO (" + (lower + partitionSize) + ");"
+            );
+            lower += partitionSize;
+            created++;
+        }
+
+        if (created > 0) {
+            LOG.info("events partitions", "created " + created + " partitions");
+        }
+        return created;
+    }
+
+    /**
+     * Removes expired rows partition by partition, each partition in its own transaction taking the maintenance lock
+     * again, so the events table is only locked for one partition swap at a time. Sealed partitions, the ones entirely
+     * below the latest offset, are dropped when all their rows expired and rewritten without the expired rows when
+     * enough of them did. Rows in other partitions are deleted in place. The connection is used in manual commit mode.
+     */
+    public Compaction compact(final Connection connection, final Predicate<Connection> lock) throws SQLException {
+        final long latestOffset = latestOffset(connection);
+        final List<Partition> partitions = partitions(connection);
+        connection.commit();
+
+        int dropped = 0;
+        int rewritten = 0;
+        final List<String> partitionsToVacuum = new ArrayList<>();
+        long compactedRows = 0;
+
+        for (final Partition partition : partitions) {
+            if (!lock.test(connection)) {
+                connection.rollback();
+                LOG.info("compaction", "lost maintenance lock at partition " + partition.getName());
+                break;
+            }
+
+            if (partition.isSealedBy(latestOffset)) {
+                // waits for in flight inserts and keeps new ones out, reads carry on
+                execute(connection, "LOCK TABLE " + partition.qualifiedName() + " IN EXCLUSIVE MODE;");
+                final long[] expiredAndTotal = expiredAndTotal(connection, partition);
+                final long expired = expiredAndTotal[0];
+                final long total = expiredAndTotal[1];
+
+                if (expired == total) {
+                    execute(connection, "ALTER TABLE events DETACH PARTITION " + partition.qualifiedName() + ";");
+                    execute(connection, "DROP TABLE " + partition.qualifiedName() + ";");
+                    connection.commit();
+                    dropped++;
+                    compactedRows += expired;
+                    continue;
+                }
+                if (expired > 0 && expired >= total * rewriteThreshold) {
+                    copyLiveRows(connection, partition);
+                    swap(connection, partition);
+                    connection.commit();
+                    rewritten++;
+                    partitionsToVacuum.add(partition.qualifiedName());
+                    compactedRows += expired;
+                    continue;
+                }
+            }
+
+            final int deleted = deleteExpired(connection, partition);
+            connection.commit();
+            if (deleted > 0) {
+                partitionsToVacuum.add(partition.qualifiedName());
+                compactedRows += deleted;
+            }
+        }
+
+        LOG.info("compaction", "dropped " + dropped + " and rewrote " + rewritten + " partitions");
+        return new Compaction(compactedRows, partitionsToVacuum);
+    }
+
+    /**
+     * The copy is checked against the partition bounds as rows are inserted, so attaching it doesn't scan it again
+     * while holding the lock on the events table.
+     */
+    private void copyLiveRows(final Connection connection, final Partition partition) throws SQLException {
+        final String compacted = partition.qualifiedCompactedName();
+        execute(connection, "DROP TABLE IF EXISTS " + compacted + ";");
+        execute(connection, "CREATE TABLE " + compacted + " (LIKE " + partition.qualifiedName() + " INCLUDING ALL);");
+        execute(connection,
+            "ALTER TABLE " + compacted + " ADD CONSTRAINT " + partition.boundsConstraint() +
+            " CHECK (msg_offset >= " + partition.getLower() + " AND msg_offset < " + partition.getUpper() + ");"
+        );
+        execute(connection,
+            "INSERT INTO " + compacted + " SELECT * FROM " + partition.qualifiedName() +
+            " WHERE time_to_live IS NULL OR time_to_live > CURRENT_TIMESTAMP;"
+        );
+    }
+
+    private void swap(final Connection connection, final Partition partition) throws SQLException {
+        execute(connection, "ALTER TABLE events DETACH PARTITION " + partition.qualifiedName() + ";");
+        execute(connection, "DROP TABLE " + partition.qualifiedName() + ";");
+        execute(connection,
+            "ALTER TABLE " + partition.qualifiedCompactedName() + " RENAME TO " + quote(partition.getName()) + ";"
+        );
+        execute(connection,
+            "ALTER TABLE events ATTACH PARTITION " + partition.qualifiedName() +
+            " FOR VALUES FROM (" + partition.getLower() + ") TO (" + partition.getUpper() + ");"
+        );
+        // the partition bound enforces the same from now on
+        execute(connection,
+            "ALTER TABLE " + partition.qualifiedName() + " DROP CONSTRAINT " + partition.boundsConstraint() + ";"
+        );
+    }
+
+    private long[] expiredAndTotal(final Connection connection, final Partition partition) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT count(*) FILTER (WHERE time_to_live <= CURRENT_TIMESTAMP), count(*) FROM " + partition.qualifiedName() + ";");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return new long[] { resultSet.getLong(1), resultSet.getLong(2) };
+        }
+    }
+
+    private int deleteExpired(final Connection connection, final Partition partition) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM " + partition.qualifiedName() + " WHERE time_to_live <= CURRENT_TIMESTAMP;")) {
+            return statement.executeUpdate();
+        }
+    }
+
+    private boolean tryLock(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_xact_lock(?);")) {
+            statement.setLong(1, PARTITION_LOCK_KEY);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private long latestOffset(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COALESCE(max(msg_offset), 0) FROM events;");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    private List<Partition> partitions(final Connection connection) throws SQLException {
+        final List<Partition> partitions = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(PARTITIONS_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                final Matcher bound = RANGE_BOUND.matcher(resultSet.getString("bound"));
+                final boolean bounded = bound.find();
+                partitions.add(new Partition(
+                    resultSet.getString("schema_name"),
+                    resultSet.getString("table_name"),
+                    bounded ? Long.parseLong(bound.group(1)) : null,
+                    bounded ? Long.parseLong(bound.group(2)) : null
+                ));
+            }
+        }
+        return partitions;
+    }
+
+    private static void execute(final Connection connection, final String query) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(query);
+        }
+    }
+
+    private static String quote(final String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    @Value
+    public static class Compaction {
+        long compactedRows;
+        List<String> partitionsToVacuum;
+    }
+
+    @Value
+    static class Partition {
+        String schema;
+        String name;
+        Long lower;
+        Long upper;
+
+        boolean isBounded() {
+            return lower != null && upper != null;
+        }
+
+        // offsets only grow, so nothing new is written to a partition ending at or below the latest offset
+        boolean isSealedBy(final long latestOffset) {
+            return isBounded() && upper <= latestOffset;
+        }
+
+        String qualifiedName() {
+            return quote(schema) + "." + quote(name);
+        }
+
+        String qualifiedCompactedName() {
+            return quote(schema) + "." + quote(name + "_compacted");
+        }
+
+        String boundsConstraint() {
+            return quote(name + "_bounds");
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.api.Message;
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Data;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory copy of the most recent events, filled by a single tailer. Holds every event with an offset in
+ * (coveredFrom, latestOffset], so reads starting inside that window can be answered without querying events.
+ */
+public class EventsTailBuffer implements MeterBinder, NotificationListener.NotificationHandler {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(EventsTailBuffer.class));
+
+    private static final String MAX_OFFSET_QUERY = "SELECT max(msg_offset) FROM events;";
+
+    private static final String TAIL_EVENTS_QUERY =
+        " SELECT type, msg_key, content_type, msg_offset, created_utc, data, location_group, cluster_id, event_size " +
+        " FROM events WHERE msg_offset > ? ORDER BY msg_offset LIMIT ?;";
+
+    private final long maxSizeInBytes;
+    private final int tailBatchSize;
+    private final ConcurrentNavigableMap<Long, TailEvent> events = new ConcurrentSkipListMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private volatile long coveredFrom = -1;
+    private volatile long latestOffset = -1;
+    // odd while the buffer is being cleared, so reads overlapping a clear can tell their page may be missing events
+    private volatile long generation = 0;
+    private long sizeInBytes = 0;
+
+    public EventsTailBuffer(final long maxSizeInBytes, final int tailBatchSize) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.tailBatchSize = tailBatchSize;
+    }
+
+    public static EventsTailBuffer disabled() {
+        return new EventsTailBuffer(0, 0);
+    }
+
+    public boolean isEnabled() {
+        return maxSizeInBytes > 0;
+    }
+
+    /**
+     * Reads the events written since the last call. Only one thread is expected to tail.
+     */
+    public synchronized void tail(final Connection connection) throws SQLException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        if (latestOffset < 0) {
+            final long maxOffset = queryMaxOffset(connection);
+            coveredFrom = maxOffset;
+            latestOffset = maxOffset;
+        }
+
+        int rowsRead;
+        do {
+            rowsRead = tailBatch(connection);
+            evictOverCapacity();
+        } while (rowsRead == tailBatchSize);
+    }
+
+    /**
+     * @return the page if the whole range from startOffset to endOffset is held in memory
+     */
+    public Optional<List<Message>> read(
+        final List<Long> clusterIds,
+        final List<Long> locationGroups,
+        final List<String> types,
+        final long startOffset,
+        final long endOffset,
+        final int limit,
+        final long maxBatchSize
+    ) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        final long readGeneration = generation;
+        if (readGeneration % 2 != 0 || startOffset <= coveredFrom || endOffset > latestOffset) {
+            misses.increment();
+            return Optional.empty();
+        }
+
+        final Set<Long> clusters = new HashSet<>(clusterIds);
+        final Set<Long> groups = new HashSet<>(locationGroups);
+        final Set<String> typeSet = types == null ? Collections.emptySet() : new HashSet<>(types);
+
+        final List<Message> messages = new ArrayList<>();
+        long runningSize = 0;
+
+        for (final TailEvent event : events.subMap(startOffset, true, endOffset, true).values()) {
+            if (!event.matches(clusters, groups, typeSet)) {
+                continue;
+            }
+            runningSize += event.getEventSize();
+            if (messages.size() == limit || runningSize > maxBatchSize) {
+                break;
+            }
+            messages.add(event.getMessage());
+        }
+
+        // events may have been evicted or cleared while iterating
+        if (startOffset <= coveredFrom || generation != readGeneration) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(messages);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        latestOffset = -1;
+        events.clear();
+        sizeInBytes = 0;
+        coveredFrom = -1;
+        generation++;
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        FunctionCounter.builder("persistence.read.tail-buffer.reads", hits, LongAdder::sum)
+            .tag("result", "hit")
+            .register(registry);
+        FunctionCounter.builder("persistence.read.tail-buffer.reads", misses, LongAdder::sum)
+            .tag("result", "miss")
+            .register(registry);
+    }
+
+    @Override
+    public void onNotification(final String payload) {
+        clear();
+    }
+
+    @Override
+    public void onConnect() {
+        clear();
+    }
+
+    private int tailBatch(final Connection connection) throws SQLException {
+        int rowsRead = 0;
+        try (PreparedStatement statement = connection.prepareStatement(TAIL_EVENTS_QUERY)) {
+            statement.setLong(1, latestOffset);
+            statement.setInt(2, tailBatchSize);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                long lastOffset = latestOffset;
+                while (rs.next()) {
+                    final TailEvent event = mapTailEvent(rs);
+                    lastOffset = event.getMessage().getOffset();
+                    events.put(lastOffset, event);
+                    sizeInBytes += event.getEventSize();
+                    rowsRead++;
+                }
+                latestOffset = lastOffset;
+            }
+        }
+        return rowsRead;
+    }
+
+    private void evictOverCapacity() {
+        while (sizeInBytes > maxSizeInBytes && !events.isEmpty()) {
+            final Map.Entry<Long, TailEvent> oldest = events.firstEntry();
+            // move the window before the event goes, so concurrent reads fall back to the database
+            coveredFrom = oldest.getKey();
+            events.remove(oldest.getKey());
+            sizeInBytes -= oldest.getValue().getEventSize();
+        }
+    }
+
+    private long queryMaxOffset(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(MAX_OFFSET_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    private TailEvent mapTailEvent(final ResultSet rs) throws SQLException {
+        final ZonedDateTime created = ZonedDateTime.of(rs.getTimestamp("created_utc").toLocalDateTime(), ZoneId.of("UTC"));
+        Long locationGroup = rs.getLong("location_group");
+        locationGroup = locationGroup == 0 ? null : locationGroup;
+
+        final Message message = new Message(
+            rs.getString("type"),
+            rs.getString("msg_key"),
+            rs.getString("content_type"),
+            rs.getLong("msg_offset"),
+            created,
+            rs.getString("data"),
+            0L,
+            locationGroup
+        );
+
+        return new TailEvent(message, rs.getLong("cluster_id"), rs.getInt("event_size"));
+    }
+
+    @Data
+    static class TailEvent {
+        private final Message message;
+        private final long clusterId;
+        private final int eventSize;
+
+        boolean matches(final Set<Long> clusterIds, final Set<Long> locationGroups, final Set<String> types) {
+            return clusterIds.contains(clusterId)
+                && (message.getLocationGroup() == null || locationGroups.contains(message.getLocationGroup()))
+                && (types.isEmpty() || types.contains(message.getType()));
+        }
+    }
+}
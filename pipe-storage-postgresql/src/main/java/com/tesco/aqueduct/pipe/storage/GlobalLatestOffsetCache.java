@@ -1,37 +1,161 @@
 package com.tesco.aqueduct.pipe.storage;
 
+import com.tesco.aqueduct.pipe.api.OffsetListeners;
 import com.tesco.aqueduct.pipe.logger.PipeLogger;
-import io.micronaut.cache.annotation.Cacheable;
+import io.micronaut.context.annotation.Value;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
+/**
+ * Global latest offset kept up to date by notifications on {@link #NOTIFICATION_CHANNEL} and a background poll.
+ * It is only queried on the read path when neither has updated it within the max staleness. Events are written
+ * outside of this service, so the channel is notified by a trigger created by
+ * {@link #createTriggerIfNotExists(Connection)}:
+ * <pre>
+ * CREATE FUNCTION notify_events_latest_offset() RETURNS trigger AS $$
+ * BEGIN
+ *   PERFORM pg_notify('events_latest_offset', (SELECT max(msg_offset) FROM events)::text);
+ *   RETURN NULL;
+ * END; $$ LANGUAGE plpgsql;
+ *
+ * CREATE TRIGGER events_latest_offset AFTER INSERT ON events
+ *   FOR EACH STATEMENT EXECUTE PROCEDURE notify_events_latest_offset();
+ * </pre>
+ * The trigger is per statement, so it is also allowed on a partitioned events table.
+ */
 @Singleton
-public class GlobalLatestOffsetCache {
+public class GlobalLatestOffsetCache implements NotificationListener.NotificationHandler {
+
+    public static final String NOTIFICATION_CHANNEL = "events_latest_offset";
 
     private static final String GET_GLOBAL_LATEST_OFFSET_QUERY = "SELECT max(msg_offset) FROM events";
 
+    private static final long SETUP_LOCK_KEY = 4_158_276_304L;
+
+    private static final String CREATE_FUNCTION_QUERY =
+        " CREATE OR REPLACE FUNCTION notify_events_latest_offset() RETURNS trigger AS $$ " +
+        " BEGIN " +
+        "   PERFORM pg_notify('" + NOTIFICATION_CHANNEL + "', (SELECT max(msg_offset) FROM events)::text); " +
+        "   RETURN NULL; " +
+        " END; $$ LANGUAGE plpgsql;";
+
+    private static final String TRIGGER_EXISTS_QUERY =
+        "SELECT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'events_latest_offset' AND tgrelid = 'events'::regclass);";
+
+    private static final String CREATE_TRIGGER_QUERY =
+        " CREATE TRIGGER events_latest_offset AFTER INSERT ON events " +
+        " FOR EACH STATEMENT EXECUTE PROCEDURE notify_events_latest_offset();";
+
     private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(PostgresqlStorage.class));
 
-    @Cacheable(value="latest-offset-cache", parameters = "")
+    private static final long UNKNOWN = -1;
+
+    private final long maxStalenessMillis;
+    private final AtomicLong latestOffset = new AtomicLong(UNKNOWN);
+    private final OffsetListeners listeners = new OffsetListeners();
+    private volatile long updatedAt = 0;
+
+    public GlobalLatestOffsetCache() {
+        this(Duration.ZERO);
+    }
+
+    @Inject
+    public GlobalLatestOffsetCache(@Value("${persistence.read.latest-offset.max-staleness:0s}") final Duration maxStaleness) {
+        this.maxStalenessMillis = maxStaleness.toMillis();
+    }
+
     public long get(Connection connection) throws SQLException {
+        final long offset = latestOffset.get();
+        if (offset != UNKNOWN && System.currentTimeMillis() - updatedAt < maxStalenessMillis) {
+            return offset;
+        }
+        return refresh(connection);
+    }
+
+    /**
+     * @return the latest offset when it was updated within the max staleness, without querying it
+     */
+    public OptionalLong getIfFresh() {
+        final long offset = latestOffset.get();
+        if (offset != UNKNOWN && System.currentTimeMillis() - updatedAt < maxStalenessMillis) {
+            return OptionalLong.of(offset);
+        }
+        return OptionalLong.empty();
+    }
+
+    public long refresh(Connection connection) throws SQLException {
         long start = System.currentTimeMillis();
 
         try (PreparedStatement statement = connection.prepareStatement(GET_GLOBAL_LATEST_OFFSET_QUERY)) {
              ResultSet resultSet = statement.executeQuery();
 
-             if (resultSet.next()) {
-                 return resultSet.getLong(1);
-             }
-
-             return 0;
+             return update(resultSet.next() ? resultSet.getLong(1) : 0);
         } finally {
             long end = System.currentTimeMillis();
             LOG.info("getLatestOffsetWithConnection:time", Long.toString(end - start));
         }
     }
+
+    /**
+     * Creates the trigger notifying the latest offset as events are written when it doesn't exist. Has to run in a
+     * transaction, instances starting together create it one after the other.
+     */
+    public void createTriggerIfNotExists(final Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT pg_advisory_xact_lock(" + SETUP_LOCK_KEY + ");");
+            statement.execute(CREATE_FUNCTION_QUERY);
+            try (ResultSet resultSet = statement.executeQuery(TRIGGER_EXISTS_QUERY)) {
+                if (resultSet.next() && resultSet.getBoolean(1)) {
+                    return;
+                }
+            }
+            statement.execute(CREATE_TRIGGER_QUERY);
+            LOG.info("global latest offset", "created latest offset trigger");
+        }
+    }
+
+    /**
+     * The listener is called with the latest offset straight away when it is known, then whenever it advances.
+     */
+    public void addListener(final LongConsumer listener) {
+        final long offset = latestOffset.get();
+        if (offset != UNKNOWN) {
+            listener.accept(offset);
+        }
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onNotification(final String payload) {
+        try {
+            update(Long.parseLong(payload));
+        } catch (NumberFormatException exception) {
+            LOG.error("global latest offset", "invalid notification payload: " + payload, exception);
+        }
+    }
+
+    @Override
+    public void onConnect() {
+        // offsets notified while disconnected were missed, so the next read queries it
+        updatedAt = 0;
+    }
+
+    // notifications and queries can arrive out of order, the offset never goes backwards
+    private long update(final long offset) {
+        final long latest = latestOffset.accumulateAndGet(offset, Math::max);
+        updatedAt = System.currentTimeMillis();
+        listeners.advance(latest);
+        return latest;
+    }
 }
@@ -0,0 +1,209 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In process copy of cluster cache entries and location groups. Entries are dropped when a location is notified on
+ * the invalidation channel, see {@link NotificationListener}. Changes made outside of this service are notified by
+ * triggers created by {@link #createTriggersIfNotExist(Connection)}:
+ * <pre>
+ * CREATE FUNCTION notify_location_cache() RETURNS trigger AS $$
+ * BEGIN
+ *   IF TG_OP = 'DELETE' THEN
+ *     PERFORM pg_notify('location_cache_invalidation', OLD.location_uuid);
+ *   ELSE
+ *     PERFORM pg_notify('location_cache_invalidation', NEW.location_uuid);
+ *   END IF;
+ *   RETURN NULL;
+ * END; $$ LANGUAGE plpgsql;
+ *
+ * CREATE TRIGGER cluster_cache_invalidation AFTER UPDATE OF valid OR DELETE ON cluster_cache
+ *   FOR EACH ROW EXECUTE PROCEDURE notify_location_cache();
+ * CREATE TRIGGER location_groups_invalidation AFTER INSERT OR UPDATE OR DELETE ON location_groups
+ *   FOR EACH ROW EXECUTE PROCEDURE notify_location_cache();
+ * </pre>
+ */
+public class LocationCache implements MeterBinder, NotificationListener.NotificationHandler {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(LocationCache.class));
+
+    public static final String INVALIDATION_CHANNEL = "location_cache_invalidation";
+
+    private static final String NOTIFY_QUERY = "SELECT pg_notify('" + INVALIDATION_CHANNEL + "', ?);";
+
+    private static final long SETUP_LOCK_KEY = 4_158_276_303L;
+
+    private static final String CREATE_FUNCTION_QUERY =
+        " CREATE OR REPLACE FUNCTION notify_location_cache() RETURNS trigger AS $$ " +
+        " BEGIN " +
+        "   IF TG_OP = 'DELETE' THEN " +
+        "     PERFORM pg_notify('" + INVALIDATION_CHANNEL + "', OLD.location_uuid); " +
+        "   ELSE " +
+        "     PERFORM pg_notify('" + INVALIDATION_CHANNEL + "', NEW.location_uuid); " +
+        "   END IF; " +
+        "   RETURN NULL; " +
+        " END; $$ LANGUAGE plpgsql;";
+
+    private static final String TRIGGER_EXISTS_QUERY =
+        "SELECT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = ? AND tgrelid = ?::regclass);";
+
+    private static final String[][] TRIGGERS = {
+        {
+            "cluster_cache_invalidation", "cluster_cache",
+            " CREATE TRIGGER cluster_cache_invalidation AFTER UPDATE OF valid OR DELETE ON cluster_cache " +
+            " FOR EACH ROW EXECUTE PROCEDURE notify_location_cache();"
+        },
+        {
+            "location_groups_invalidation", "location_groups",
+            " CREATE TRIGGER location_groups_invalidation AFTER INSERT OR UPDATE OR DELETE ON location_groups " +
+            " FOR EACH ROW EXECUTE PROCEDURE notify_location_cache();"
+        }
+    };
+
+    private final Cache<String, ClusterCacheEntry> clusterCacheEntries;
+    private final Cache<String, List<Long>> locationGroups;
+    private final AtomicLong generation = new AtomicLong();
+    private final boolean enabled;
+
+    public LocationCache(final long maximumSize, final Duration expireAfterWrite) {
+        this.enabled = maximumSize > 0;
+        this.clusterCacheEntries = build(maximumSize, expireAfterWrite);
+        this.locationGroups = build(maximumSize, expireAfterWrite);
+    }
+
+    public static LocationCache disabled() {
+        return new LocationCache(0, Duration.ZERO);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<ClusterCacheEntry> getClusterCacheEntry(final String locationUuid) {
+        return enabled ? Optional.ofNullable(clusterCacheEntries.getIfPresent(locationUuid)) : Optional.empty();
+    }
+
+    public Optional<List<Long>> getLocationGroups(final String locationUuid) {
+        return enabled ? Optional.ofNullable(locationGroups.getIfPresent(locationUuid)) : Optional.empty();
+    }
+
+    /**
+     * @return the generation to pass to the put methods, taken before reading the value from the database
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    public void putClusterCacheEntry(final ClusterCacheEntry entry, final long readGeneration) {
+        put(clusterCacheEntries, entry.getLocationUuid(), entry, readGeneration);
+    }
+
+    public void putLocationGroups(final String locationUuid, final List<Long> groups, final long readGeneration) {
+        put(locationGroups, locationUuid, groups, readGeneration);
+    }
+
+    public void invalidate(final String locationUuid) {
+        generation.incrementAndGet();
+        clusterCacheEntries.invalidate(locationUuid);
+        locationGroups.invalidate(locationUuid);
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        clusterCacheEntries.invalidateAll();
+        locationGroups.invalidateAll();
+    }
+
+    /**
+     * Drops the location locally and notifies other instances once the given connection's transaction commits.
+     */
+    public void notifyInvalidation(final String locationUuid, final Connection connection) throws SQLException {
+        if (!enabled) {
+            return;
+        }
+        invalidate(locationUuid);
+        try (PreparedStatement statement = connection.prepareStatement(NOTIFY_QUERY)) {
+            statement.setString(1, locationUuid);
+            statement.execute();
+        }
+    }
+
+    /**
+     * Creates the triggers notifying changes made outside of this service when they don't exist. Has to run in a
+     * transaction, instances starting together create them one after the other.
+     */
+    public void createTriggersIfNotExist(final Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT pg_advisory_xact_lock(" + SETUP_LOCK_KEY + ");");
+            statement.execute(CREATE_FUNCTION_QUERY);
+            for (final String[] trigger : TRIGGERS) {
+                if (!triggerExists(connection, trigger[0], trigger[1])) {
+                    statement.execute(trigger[2]);
+                    LOG.info("location cache", "created trigger " + trigger[0]);
+                }
+            }
+        }
+    }
+
+    private static boolean triggerExists(final Connection connection, final String name, final String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(TRIGGER_EXISTS_QUERY)) {
+            statement.setString(1, name);
+            statement.setString(2, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    @Override
+    public void onNotification(final String locationUuid) {
+        invalidate(locationUuid);
+    }
+
+    @Override
+    public void onConnect() {
+        invalidateAll();
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, clusterCacheEntries, "location.cluster-cache");
+        CaffeineCacheMetrics.monitor(registry, locationGroups, "location.groups-cache");
+    }
+
+    private <V> void put(final Cache<String, V> cache, final String locationUuid, final V value, final long readGeneration) {
+        if (!enabled || generation.get() != readGeneration) {
+            return;
+        }
+        cache.put(locationUuid, value);
+
+        // an invalidation may have landed between the check and the put
+        if (generation.get() != readGeneration) {
+            cache.invalidate(locationUuid);
+        }
+    }
+
+    private static <V> Cache<String, V> build(final long maximumSize, final Duration expireAfterWrite) {
+        return Caffeine.newBuilder()
+            .maximumSize(Math.max(maximumSize, 0))
+            .expireAfterWrite(expireAfterWrite)
+            .recordStats()
+            .build();
+    }
+}
@@ -0,0 +1,14 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Optional;
+
+@Data
+class LocationEventsPage {
+    private final Optional<ClusterCacheEntry> entry;
+    private final List<Long> locationGroups;
+    private final EventsPage page;
+    private final long globalLatestOffset;
+}
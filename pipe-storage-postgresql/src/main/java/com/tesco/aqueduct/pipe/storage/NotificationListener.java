@@ -0,0 +1,114 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a single connection listening on the channels handlers are registered for. Notifications sent while the
+ * listener was not connected are lost, so every handler is told when it (re)connects.
+ *
+ * The connection is opened directly rather than taken from a pool, as it is held for the lifetime of the listener.
+ */
+public class NotificationListener {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(NotificationListener.class));
+
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    private final Map<String, List<NotificationHandler>> handlers = new LinkedHashMap<>();
+    private Connection connection;
+
+    public NotificationListener(final String jdbcUrl, final String username, final String password) {
+        this.jdbcUrl = jdbcUrl;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Registers the handler for the given channel, taking effect on the next (re)connection. A channel can have
+     * several handlers, they are called in registration order.
+     */
+    public synchronized NotificationListener on(final String channel, final NotificationHandler handler) {
+        handlers.computeIfAbsent(channel, name -> new ArrayList<>()).add(handler);
+        close();
+        return this;
+    }
+
+    /**
+     * Waits up to the given timeout for notifications and hands them to the handler of their channel.
+     */
+    public synchronized void listen(final Duration timeout) {
+        if (handlers.isEmpty()) {
+            return;
+        }
+
+        try {
+            final PGNotification[] notifications = listeningConnection()
+                .unwrap(PGConnection.class)
+                .getNotifications((int) timeout.toMillis());
+
+            if (notifications != null) {
+                for (final PGNotification notification : notifications) {
+                    for (final NotificationHandler handler : handlers.getOrDefault(notification.getName(), Collections.emptyList())) {
+                        handler.onNotification(notification.getParameter());
+                    }
+                }
+            }
+        } catch (SQLException exception) {
+            LOG.error("notification listener", "listen for notifications", exception);
+            close();
+            throw new RuntimeException(exception);
+        }
+    }
+
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException exception) {
+            LOG.error("notification listener", "close connection", exception);
+        } finally {
+            connection = null;
+        }
+    }
+
+    private Connection listeningConnection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            connection = DriverManager.getConnection(jdbcUrl, username, password);
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement()) {
+                for (final String channel : handlers.keySet()) {
+                    statement.execute("LISTEN " + channel + ";");
+                }
+            }
+            handlers.values().forEach(channelHandlers -> channelHandlers.forEach(NotificationHandler::onConnect));
+            LOG.info("notification listener", "listening on " + handlers.keySet());
+        }
+        return connection;
+    }
+
+    public interface NotificationHandler {
+        void onNotification(String payload);
+
+        /**
+         * Called once listening starts, notifications sent before then have been missed.
+         */
+        void onConnect();
+    }
+}
@@ -0,0 +1,69 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+/**
+ * Live usage of a connection pool.
+ */
+public interface PoolUsage {
+
+    PoolUsage UNKNOWN = new PoolUsage() {
+        @Override
+        public int active() {
+            return 0;
+        }
+
+        @Override
+        public int pending() {
+            return 0;
+        }
+
+        @Override
+        public int max() {
+            return 0;
+        }
+    };
+
+    int active();
+
+    /**
+     * @return number of threads waiting for a connection
+     */
+    int pending();
+
+    int max();
+
+    static PoolUsage of(final DataSource dataSource) {
+        try {
+            if (!dataSource.isWrapperFor(HikariDataSource.class)) {
+                return UNKNOWN;
+            }
+            final HikariDataSource hikariDataSource = dataSource.unwrap(HikariDataSource.class);
+
+            return new PoolUsage() {
+                @Override
+                public int active() {
+                    final HikariPoolMXBean pool = hikariDataSource.getHikariPoolMXBean();
+                    return pool == null ? 0 : pool.getActiveConnections();
+                }
+
+                @Override
+                public int pending() {
+                    final HikariPoolMXBean pool = hikariDataSource.getHikariPoolMXBean();
+                    return pool == null ? 0 : pool.getThreadsAwaitingConnection();
+                }
+
+                @Override
+                public int max() {
+                    return hikariDataSource.getMaximumPoolSize();
+                }
+            };
+        } catch (SQLException exception) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -10,9 +10,15 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.function.LongConsumer;
 
 public class PostgresqlStorage implements CentralStorage {
 
+    /**
+     * Notified in the compaction transaction, so instances drop the pages and tail they hold once it commits.
+     */
+    public static final String COMPACTION_CHANNEL = "events_compaction";
+
     private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(PostgresqlStorage.class));
 
     private final int limit;
@@ -25,6 +31,15 @@ public class PostgresqlStorage implements CentralStorage {
     private final long clusterDBPoolSize;
     private final int workMemMb;
     private ClusterStorage clusterStorage;
+    private final EventsPageCache eventsPageCache;
+    private final EventsTailBuffer eventsTailBuffer;
+    private final boolean singleQueryRead;
+    private final LocationCache locationCache;
+    private final ReplicaRouter replicaRouter;
+    private final EventsPartitions eventsPartitions;
+    private final ChunkedCompaction chunkedCompaction;
+    private final DeletionTombstones deletionTombstones;
+    private final RetryAfterController retryAfterController;
 
     public PostgresqlStorage(
         final DataSource pipeDataSource,
@@ -37,6 +52,35 @@ public class PostgresqlStorage implements CentralStorage {
         long clusterDBPoolSize,
         int workMemMb,
         ClusterStorage clusterStorage
+    ) {
+        this(
+            pipeDataSource, compactionDataSource, limit, retryAfter, maxBatchSize, globalLatestOffsetCache, nodeCount,
+            clusterDBPoolSize, workMemMb, clusterStorage, EventsPageCache.disabled(), EventsTailBuffer.disabled(),
+            false, LocationCache.disabled(), ReplicaRouter.disabled(), EventsPartitions.disabled(),
+            ChunkedCompaction.disabled(), DeletionTombstones.disabled(), RetryAfterController.disabled()
+        );
+    }
+
+    public PostgresqlStorage(
+        final DataSource pipeDataSource,
+        final DataSource compactionDataSource,
+        final int limit,
+        final long retryAfter,
+        final long maxBatchSize,
+        final GlobalLatestOffsetCache globalLatestOffsetCache,
+        int nodeCount,
+        long clusterDBPoolSize,
+        int workMemMb,
+        ClusterStorage clusterStorage,
+        EventsPageCache eventsPageCache,
+        EventsTailBuffer eventsTailBuffer,
+        boolean singleQueryRead,
+        LocationCache locationCache,
+        ReplicaRouter replicaRouter,
+        EventsPartitions eventsPartitions,
+        ChunkedCompaction chunkedCompaction,
+        DeletionTombstones deletionTombstones,
+        RetryAfterController retryAfterController
     ) {
         this.retryAfter = retryAfter;
         this.limit = limit;
@@ -48,6 +92,15 @@ public class PostgresqlStorage implements CentralStorage {
         this.maxBatchSize = maxBatchSize + (((long)Message.MAX_OVERHEAD_SIZE) * limit);
         this.workMemMb = workMemMb;
         this.clusterStorage = clusterStorage;
+        this.eventsPageCache = eventsPageCache;
+        this.eventsTailBuffer = eventsTailBuffer;
+        this.singleQueryRead = singleQueryRead;
+        this.locationCache = locationCache;
+        this.replicaRouter = replicaRouter;
+        this.eventsPartitions = eventsPartitions;
+        this.chunkedCompaction = chunkedCompaction;
+        this.deletionTombstones = deletionTombstones;
+        this.retryAfterController = retryAfterController;
 
         //initialise connection pool eagerly
         try (Connection connection = this.pipeDataSource.getConnection()) {
@@ -64,29 +117,67 @@ public class PostgresqlStorage implements CentralStorage {
         final String locationUuid
     ) {
         long start = System.currentTimeMillis();
+        // read before any transaction's snapshot, so pages read from it are not cached over a later compaction
+        final long pageGeneration = eventsPageCache.generation();
         Connection connection = null;
         try {
+            final Optional<ClusterCacheEntry> cachedEntry = locationCache.getClusterCacheEntry(locationUuid);
+            final Optional<List<Long>> cachedGroups = locationCache.getLocationGroups(locationUuid);
+
+            if (cachedGroups.isPresent() && isServable(cachedEntry)) {
+                final Optional<MessageResults> inMemory = readFromMemory(
+                    types, start, startOffset, cachedEntry.get().getClusterIds(), cachedGroups.get()
+                );
+                if (inMemory.isPresent()) {
+                    return inMemory.get();
+                }
+
+                // nothing is written when the location is cached, so the read can go to a replica
+                connection = getConnectionAndStartTransaction(replicaRouter.route(startOffset).orElse(pipeDataSource));
+                return readMessages(types, start, startOffset, cachedEntry.get().getClusterIds(), cachedGroups.get(), connection, pageGeneration);
+            }
+
+            // read before the transaction's snapshot, so values it reads are not cached over a later invalidation
+            long generation = locationCache.generation();
             connection = getConnectionAndStartTransaction();
 
-            final Optional<ClusterCacheEntry> entry = clusterStorage.getClusterCacheEntry(locationUuid, connection);
+            final Optional<ClusterCacheEntry> entry;
+            List<Long> locationGroups;
 
-            List<Long> locationGroups = getLocationGroupsFor(locationUuid, connection);
+            if (singleQueryRead) {
+                final LocationEventsPage locationEventsPage = readLocationEvents(types, startOffset, locationUuid, connection);
+                entry = locationEventsPage.getEntry();
+                locationGroups = locationEventsPage.getLocationGroups();
+
+                if (entry.isPresent()) {
+                    locationCache.putClusterCacheEntry(entry.get(), generation);
+                    locationCache.putLocationGroups(locationUuid, locationGroups, generation);
+                }
+
+                if (isServable(entry)) {
+                    return locationMessageResults(locationEventsPage, types, start, startOffset, pageGeneration);
+                }
+            } else {
+                entry = clusterStorage.getClusterCacheEntry(locationUuid, connection);
+                locationGroups = getLocationGroupsFor(locationUuid, connection, generation);
+            }
 
-            if (isValidAndUnexpired(entry)) {
-                return readMessages(types, start, startOffset, entry.get().getClusterIds(), locationGroups, connection);
+            if (isServable(entry)) {
+                return readMessages(types, start, startOffset, entry.get().getClusterIds(), locationGroups, connection, pageGeneration);
             } else {
                 commit(connection);
                 close(connection);
 
                 final List<String> clusterUuids = clusterStorage.resolveClustersFor(locationUuid);
 
+                generation = locationCache.generation();
                 connection = getConnectionAndStartTransaction();
 
                 final Optional<List<Long>> newClusterIds = clusterStorage.updateAndGetClusterIds(locationUuid, clusterUuids, entry, connection);
-                locationGroups = getLocationGroupsFor(locationUuid, connection);
+                locationGroups = getLocationGroupsFor(locationUuid, connection, generation);
 
                 if (newClusterIds.isPresent()) {
-                    return readMessages(types, start, startOffset, newClusterIds.get(), locationGroups, connection);
+                    return readMessages(types, start, startOffset, newClusterIds.get(), locationGroups, connection, pageGeneration);
                 } else {
                     LOG.info("postgresql storage", "Recursive read due to Cluster Cache invalidation race condition");
                     return read(types, startOffset, locationUuid);
@@ -106,18 +197,30 @@ public class PostgresqlStorage implements CentralStorage {
         }
     }
 
-    private List<Long> getLocationGroupsFor(String locationUuid, Connection connection) {
+    /**
+     * The generation must be read before the transaction's snapshot is taken, otherwise groups read from a snapshot
+     * older than an invalidation could be cached after it.
+     */
+    private List<Long> getLocationGroupsFor(String locationUuid, Connection connection, long generation) {
+        final Optional<List<Long>> cachedGroups = locationCache.getLocationGroups(locationUuid);
+        if (cachedGroups.isPresent()) {
+            return cachedGroups.get();
+        }
+
         long start = System.currentTimeMillis();
         try (PreparedStatement statement = connection.prepareStatement(getSelectLocationGroupsQuery())) {
             statement.setString(1, locationUuid);
             ResultSet resultSet = statement.executeQuery();
 
+            final List<Long> locationGroups;
             if(resultSet.next()) {
                 Array groups = resultSet.getArray("groups");
-                return Arrays.asList( (Long[]) groups.getArray());
+                locationGroups = Arrays.asList( (Long[]) groups.getArray());
             } else {
-                return Collections.emptyList();
+                locationGroups = Collections.emptyList();
             }
+            locationCache.putLocationGroups(locationUuid, locationGroups, generation);
+            return locationGroups;
         } catch (SQLException exception) {
             LOG.error("postgresql storage", "resolve groups for location", exception);
             throw new RuntimeException(exception);
@@ -132,11 +235,17 @@ public class PostgresqlStorage implements CentralStorage {
     }
 
     private Connection getConnectionAndStartTransaction() throws SQLException {
+        return getConnectionAndStartTransaction(pipeDataSource);
+    }
+
+    private Connection getConnectionAndStartTransaction(DataSource dataSource) throws SQLException {
         long start = System.currentTimeMillis();
-        Connection connection = pipeDataSource.getConnection();
+        Connection connection = dataSource.getConnection();
         connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
         connection.setAutoCommit(false);
-        LOG.info("getConnection:time", Long.toString(System.currentTimeMillis() - start));
+        long connectionTime = System.currentTimeMillis() - start;
+        retryAfterController.recordConnectionWait(connectionTime);
+        LOG.info("getConnection:time", Long.toString(connectionTime));
         return connection;
     }
 
@@ -144,31 +253,151 @@ public class PostgresqlStorage implements CentralStorage {
         return entry.map(ClusterCacheEntry::isValidAndUnexpired).orElse(false);
     }
 
+    /**
+     * Expired entries that are still valid keep being served while they are refreshed in the background, when
+     * cluster storage refreshes ahead, up to its max staleness.
+     */
+    private boolean isServable(Optional<ClusterCacheEntry> entry) {
+        if (isValidAndUnexpired(entry)) {
+            return true;
+        }
+        if (entry.isPresent() && clusterStorage.servesWhileRefreshing(entry.get())) {
+            clusterStorage.refreshInBackground(entry.get());
+            return true;
+        }
+        return false;
+    }
+
     private MessageResults readMessages(
         List<String> types,
         long start,
         long startOffset,
         List<Long> clusterIds,
         List<Long> locationGroups,
-        Connection connection
+        Connection connection,
+        long pageGeneration
     ) throws SQLException {
 
-        setWorkMem(connection);
-
         final long globalLatestOffset = globalLatestOffsetCache.get(connection);
 
+        final EventsPageCache.PageKey pageKey = EventsPageCache.PageKey.of(clusterIds, locationGroups, types, startOffset);
+        final Optional<List<Message>> memoryPage = readPageFromMemory(pageKey, types, startOffset, globalLatestOffset);
+
+        if (memoryPage.isPresent()) {
+            return messageResults(memoryPage.get(), start, globalLatestOffset, true);
+        }
+
+        setWorkMem(connection);
+
         try (PreparedStatement messagesQuery = getMessagesStatement(connection, types, startOffset, globalLatestOffset, clusterIds, locationGroups)) {
 
-            final List<Message> messages = runMessagesQuery(messagesQuery);
-            long end = System.currentTimeMillis();
+            final EventsPage page = runMessagesQuery(messagesQuery);
+
+            // only pages cut short by the limit or batch size are final, the tail page grows as events are written
+            final List<Message> messages = page.isComplete()
+                ? eventsPageCache.put(pageKey, page.getMessages(), pageGeneration)
+                : page.getMessages();
+
+            return messageResults(messages, start, globalLatestOffset, true);
+        }
+    }
+
+    /**
+     * Answers from the page cache or the tail buffer without taking a connection, when the global latest offset is
+     * fresh enough not to be queried.
+     */
+    private Optional<MessageResults> readFromMemory(
+        List<String> types,
+        long start,
+        long startOffset,
+        List<Long> clusterIds,
+        List<Long> locationGroups
+    ) {
+        if (!eventsPageCache.isEnabled() && !eventsTailBuffer.isEnabled()) {
+            return Optional.empty();
+        }
+        final OptionalLong globalLatestOffset = globalLatestOffsetCache.getIfFresh();
+        if (!globalLatestOffset.isPresent()) {
+            return Optional.empty();
+        }
+
+        final EventsPageCache.PageKey pageKey = EventsPageCache.PageKey.of(clusterIds, locationGroups, types, startOffset);
+        return readPageFromMemory(pageKey, types, startOffset, globalLatestOffset.getAsLong())
+            .map(messages -> messageResults(messages, start, globalLatestOffset.getAsLong(), false));
+    }
+
+    private Optional<List<Message>> readPageFromMemory(
+        EventsPageCache.PageKey pageKey,
+        List<String> types,
+        long startOffset,
+        long globalLatestOffset
+    ) {
+        // hits are counted by the page cache and tail buffer metrics rather than logged, they happen on most reads
+        final Optional<List<Message>> cachedPage = eventsPageCache.get(pageKey);
+
+        if (cachedPage.isPresent()) {
+            return cachedPage;
+        }
 
-            final long retry = calculateRetryAfter(end - start, messages.size());
+        return eventsTailBuffer.read(
+            pageKey.getClusterIds(), pageKey.getLocationGroups(), types, startOffset, globalLatestOffset, limit, maxBatchSize
+        );
+    }
 
-            LOG.info("PostgresSqlStorage:retry", String.valueOf(retry));
-            return new MessageResults(messages, retry, OptionalLong.of(globalLatestOffset), PipeState.UP_TO_DATE);
+    public void tailEvents() {
+        if (!eventsTailBuffer.isEnabled()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (Connection connection = pipeDataSource.getConnection()) {
+            eventsTailBuffer.tail(connection);
+        } catch (SQLException exception) {
+            LOG.error("postgresql storage", "tail events", exception);
+            throw new RuntimeException(exception);
+        } finally {
+            LOG.info("tailEvents:time", Long.toString(System.currentTimeMillis() - start));
         }
     }
 
+    public void refreshReplicaPositions() {
+        if (!replicaRouter.isEnabled()) {
+            return;
+        }
+        // the primary's offset is read first, replicas read afterwards can only have replayed more of it
+        try (Connection connection = pipeDataSource.getConnection()) {
+            replicaRouter.refreshPositions(globalLatestOffsetCache.refresh(connection));
+        } catch (SQLException exception) {
+            LOG.error("postgresql storage", "refresh replica positions", exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    public void refreshGlobalLatestOffset() {
+        try (Connection connection = pipeDataSource.getConnection()) {
+            globalLatestOffsetCache.refresh(connection);
+        } catch (SQLException exception) {
+            LOG.error("postgresql storage", "refresh global latest offset", exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * @param tookConnection whether the read held a pool connection, only those count towards the pool's utilisation
+     */
+    private MessageResults messageResults(List<Message> messages, long start, long globalLatestOffset, boolean tookConnection) {
+        long end = System.currentTimeMillis();
+
+        if (tookConnection) {
+            retryAfterController.recordRead(end - start);
+        }
+        final long retry = retryAfterController.isEnabled()
+            ? adaptiveRetryAfter(messages.size())
+            : calculateRetryAfter(end - start, messages.size());
+
+        LOG.info("PostgresSqlStorage:retry", String.valueOf(retry));
+        return new MessageResults(messages, retry, OptionalLong.of(globalLatestOffset), PipeState.UP_TO_DATE);
+    }
+
     private void close(Connection connection) {
         try {
             if (!connection.isClosed()) {
@@ -220,6 +449,13 @@ public class PostgresqlStorage implements CentralStorage {
         return Math.min(calculatedRetryAfter, retryAfter);
     }
 
+    private long adaptiveRetryAfter(int messagesCount) {
+        if (messagesCount == 0) {
+            return retryAfterWithRandomJitter();
+        }
+        return retryAfterController.retryAfter();
+    }
+
     private long retryAfterWithRandomJitter() {
         return retryAfter + (long) (retryAfter * Math.random());
     }
@@ -234,6 +470,30 @@ public class PostgresqlStorage implements CentralStorage {
         }
     }
 
+    /**
+     * Reads past the global latest offset are answered from the cached offset, as long as it is within the max
+     * staleness reads would use it for anyway.
+     */
+    @Override
+    public Optional<MessageResults> readCaughtUp(final long offset) {
+        final OptionalLong globalLatestOffset = globalLatestOffsetCache.getIfFresh();
+        if (!globalLatestOffset.isPresent() || offset <= globalLatestOffset.getAsLong()) {
+            return Optional.empty();
+        }
+        return Optional.of(new MessageResults(
+            Collections.emptyList(), retryAfterWithRandomJitter(), globalLatestOffset, PipeState.UP_TO_DATE
+        ));
+    }
+
+    /**
+     * Listeners are notified as the global latest offset is refreshed, by reads, polls and notifications.
+     */
+    @Override
+    public boolean addOffsetListener(final LongConsumer listener) {
+        globalLatestOffsetCache.addListener(listener);
+        return true;
+    }
+
     @Override
     public long getOffsetConsistencySum(long offset, List<String> targetUuids) {
         throw new UnsupportedOperationException("Offset consistency sum isn't implemented yet");
@@ -290,23 +550,21 @@ public class PostgresqlStorage implements CentralStorage {
         return messageCountByType;
     }
 
-    private List<Message> runMessagesQuery(final PreparedStatement query) throws SQLException {
+    private EventsPage runMessagesQuery(final PreparedStatement query) throws SQLException {
         final List<Message> messages = new ArrayList<>();
+        boolean complete = false;
         long start = System.currentTimeMillis();
 
         try (ResultSet rs = query.executeQuery()) {
             long startProcessingResults = System.currentTimeMillis();
             while (rs.next()) {
-                final String type = rs.getString("type");
-                final String key = rs.getString("msg_key");
-                final String contentType = rs.getString("content_type");
-                final Long offset = rs.getLong("msg_offset");
-                final ZonedDateTime created = ZonedDateTime.of(rs.getTimestamp("created_utc").toLocalDateTime(), ZoneId.of("UTC"));
-                final String data = rs.getString("data");
-                Long locationGroup = rs.getLong("location_group");
-                locationGroup = locationGroup == 0 ? null : locationGroup;
-
-                messages.add(new Message(type, key, contentType, offset, created, data, 0L, locationGroup));
+                // the query returns one row past the page, if present there is more data after this page
+                if (messages.size() == limit || rs.getLong("running_size") > maxBatchSize) {
+                    complete = true;
+                    break;
+                }
+
+                messages.add(mapMessage(rs));
             }
 
             LOG.info("runMessagesQuery:time processing results", Long.toString(System.currentTimeMillis() - startProcessingResults));
@@ -314,7 +572,124 @@ public class PostgresqlStorage implements CentralStorage {
             long end = System.currentTimeMillis();
             LOG.info("runMessagesQuery:time", Long.toString(end - start));
         }
-        return messages;
+        return new EventsPage(messages, complete);
+    }
+
+    private Message mapMessage(final ResultSet rs) throws SQLException {
+        final String type = rs.getString("type");
+        final String key = rs.getString("msg_key");
+        final String contentType = rs.getString("content_type");
+        final Long offset = rs.getLong("msg_offset");
+        final ZonedDateTime created = ZonedDateTime.of(rs.getTimestamp("created_utc").toLocalDateTime(), ZoneId.of("UTC"));
+        final String data = rs.getString("data");
+        Long locationGroup = rs.getLong("location_group");
+        locationGroup = locationGroup == 0 ? null : locationGroup;
+
+        return new Message(type, key, contentType, offset, created, data, 0L, locationGroup);
+    }
+
+    /**
+     * Resolves the cluster cache entry, the location groups and the events page in one round trip. Events are only
+     * read when the cache entry is valid and unexpired, otherwise the caller resolves clusters from location service.
+     */
+    private LocationEventsPage readLocationEvents(
+        final List<String> types,
+        final long startOffset,
+        final String locationUuid,
+        final Connection connection
+    ) throws SQLException {
+        long start = System.currentTimeMillis();
+
+        final long globalLatestOffset = globalLatestOffsetCache.get(connection);
+        final boolean withTypes = types != null && !types.isEmpty();
+
+        try (PreparedStatement statement = connection.prepareStatement(getSelectLocationEventsQuery(withTypes, maxBatchSize))) {
+            int parameterIndex = 1;
+            statement.setString(parameterIndex++, locationUuid);
+            statement.setString(parameterIndex++, locationUuid);
+            statement.setTimestamp(parameterIndex++, Timestamp.valueOf(clusterStorage.oldestServableExpiry()));
+            statement.setLong(parameterIndex++, startOffset);
+            statement.setLong(parameterIndex++, globalLatestOffset);
+            if (withTypes) {
+                statement.setString(parameterIndex++, String.join(",", types));
+            }
+            statement.setLong(parameterIndex, limit + 1);
+
+            try (ResultSet rs = resultSetAfterWorkMem(statement)) {
+                return mapLocationEventsPage(rs, locationUuid, globalLatestOffset);
+            }
+        } finally {
+            LOG.info("readLocationEvents:time", Long.toString(System.currentTimeMillis() - start));
+        }
+    }
+
+    private LocationEventsPage mapLocationEventsPage(
+        final ResultSet rs,
+        final String locationUuid,
+        final long globalLatestOffset
+    ) throws SQLException {
+        Optional<ClusterCacheEntry> entry = Optional.empty();
+        List<Long> locationGroups = Collections.emptyList();
+        final List<Message> messages = new ArrayList<>();
+        boolean complete = false;
+
+        while (rs.next()) {
+            if (!entry.isPresent()) {
+                final List<Long> clusterIds = Arrays.asList((Long[]) rs.getArray("cluster_ids").getArray());
+                final LocalDateTime expiry = rs.getTimestamp("expiry").toLocalDateTime();
+                entry = Optional.of(new ClusterCacheEntry(locationUuid, clusterIds, expiry, rs.getBoolean("valid")));
+
+                final Array groups = rs.getArray("groups");
+                locationGroups = groups == null ? Collections.emptyList() : Arrays.asList((Long[]) groups.getArray());
+            }
+
+            // the entry row is still returned when no events are read
+            if (rs.getObject("msg_offset") == null) {
+                continue;
+            }
+
+            if (messages.size() == limit || rs.getLong("running_size") > maxBatchSize) {
+                complete = true;
+                break;
+            }
+            messages.add(mapMessage(rs));
+        }
+
+        return new LocationEventsPage(entry, locationGroups, new EventsPage(messages, complete), globalLatestOffset);
+    }
+
+    private MessageResults locationMessageResults(
+        final LocationEventsPage locationEventsPage,
+        final List<String> types,
+        final long start,
+        final long startOffset,
+        final long pageGeneration
+    ) {
+        final EventsPage page = locationEventsPage.getPage();
+
+        final List<Message> messages = page.isComplete()
+            ? eventsPageCache.put(
+                EventsPageCache.PageKey.of(
+                    locationEventsPage.getEntry().get().getClusterIds(), locationEventsPage.getLocationGroups(), types, startOffset
+                ),
+                page.getMessages(),
+                pageGeneration
+            )
+            : page.getMessages();
+
+        return messageResults(messages, start, locationEventsPage.getGlobalLatestOffset(), true);
+    }
+
+    // SET LOCAL is sent in the same round trip as the query, so its result has to be skipped
+    private ResultSet resultSetAfterWorkMem(final PreparedStatement statement) throws SQLException {
+        boolean isResultSet = statement.execute();
+        while (!isResultSet) {
+            if (statement.getUpdateCount() == -1) {
+                throw new SQLException("No result set returned by location events query");
+            }
+            isResultSet = statement.getMoreResults();
+        }
+        return statement.getResultSet();
     }
 
     private PreparedStatement getMessagesStatement(
@@ -336,7 +711,7 @@ public class PostgresqlStorage implements CentralStorage {
                 query.setArray(2, locationGroupsArray);
                 query.setLong(3, startOffset);
                 query.setLong(4, endOffset);
-                query.setLong(5, limit);
+                query.setLong(5, limit + 1);
             } else {
                 final String strTypes = String.join(",", types);
                 query = connection.prepareStatement(getSelectEventsWithTypeQuery(maxBatchSize));
@@ -345,7 +720,7 @@ public class PostgresqlStorage implements CentralStorage {
                 query.setLong(3, startOffset);
                 query.setLong(4, endOffset);
                 query.setString(5, strTypes);
-                query.setLong(6, limit);
+                query.setLong(6, limit + 1);
             }
 
             return query;
@@ -364,14 +739,16 @@ public class PostgresqlStorage implements CentralStorage {
                 if (attemptToLock(connection)) {
                     compacted = true;
                     LOG.info("compact and maintain", "obtained lock, compacting");
-                    compact(connection, compactDeletionsThreshold, compactDeletions);
-                    runVisibilityCheck(connection);
+                    final List<String> compactedTables = compact(connection, compactDeletionsThreshold, compactDeletions);
+                    notifyCompaction(connection);
 
-                    //start a new transaction for vacuuming
                     connection.commit();
+                    eventsPageCache.invalidateAll();
+                    eventsTailBuffer.clear();
                     connection.setAutoCommit(true);
 
-                    vacuumAnalyseEvents(connection);
+                    runVisibilityCheck(connection);
+                    vacuumAnalyseEvents(connection, compactedTables);
                 } else {
                     LOG.info("compact and maintain", "didn't obtain lock");
                 }
@@ -385,19 +762,116 @@ public class PostgresqlStorage implements CentralStorage {
         return compacted;
     }
 
-    private void compact(Connection connection, LocalDateTime compactDeletionsThreshold, boolean compactDeletions) throws SQLException {
+    /**
+     * @return the events tables to vacuum
+     */
+    private List<String> compact(Connection connection, LocalDateTime compactDeletionsThreshold, boolean compactDeletions) throws SQLException {
         if (compactDeletions) {
-            setTimeToLiveForDeletions(connection, compactDeletionsThreshold);
+            if (deletionTombstones.isEnabled() && deletionTombstones.isAvailable(connection)) {
+                deletionTombstones.compact(connection, compactDeletionsThreshold);
+            } else {
+                setTimeToLiveForDeletions(connection, compactDeletionsThreshold);
+            }
+        }
+
+        if (eventsPartitions.isEnabled() && eventsPartitions.isPartitioned(connection)) {
+            // partitions are committed one by one, taking the maintenance lock again each time
+            connection.commit();
+            EventsPartitions.Compaction compaction = eventsPartitions.compact(connection, this::attemptToLock);
+            LOG.info("compaction", "compacted " + compaction.getCompactedRows() + " rows");
+            return compaction.getPartitionsToVacuum();
+        }
+
+        long messageCompacted;
+        if (chunkedCompaction.isEnabled()) {
+            // chunks are committed one by one, taking the maintenance lock again each time
+            connection.commit();
+            messageCompacted = chunkedCompaction.compact(connection, this::attemptToLock);
+        } else {
+            messageCompacted = compactMessages(connection);
         }
-        int messageCompacted = compactMessages(connection);
 
         LOG.info("compaction", "compacted " + messageCompacted + " rows");
+        return Collections.singletonList("EVENTS");
+    }
+
+    private void notifyCompaction(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(getNotifyCompactionQuery())) {
+            statement.execute();
+        }
+    }
+
+    public void createDeletionTombstones() {
+        if (!deletionTombstones.isEnabled()) {
+            return;
+        }
+        try (Connection connection = compactionDataSource.getConnection()) {
+            try {
+                connection.setAutoCommit(false);
+                deletionTombstones.createIfNotExists(connection);
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        } catch (SQLException exception) {
+            LOG.error("postgresql storage", "create deletion tombstones", exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Creates the triggers notifying changes made outside of this service to what instances keep in memory.
+     */
+    public void createNotificationTriggers() {
+        try (Connection connection = compactionDataSource.getConnection()) {
+            try {
+                connection.setAutoCommit(false);
+                globalLatestOffsetCache.createTriggerIfNotExists(connection);
+                if (locationCache.isEnabled()) {
+                    locationCache.createTriggersIfNotExist(connection);
+                }
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        } catch (SQLException exception) {
+            LOG.error("postgresql storage", "create notification triggers", exception);
+            throw new RuntimeException(exception);
+        }
+    }
+
+    public void createEventsPartitions() {
+        if (!eventsPartitions.isEnabled()) {
+            return;
+        }
+        try (Connection connection = pipeDataSource.getConnection()) {
+            try {
+                connection.setAutoCommit(false);
+                eventsPartitions.createPartitions(connection);
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        } catch (SQLException exception) {
+            LOG.error("postgresql storage", "create events partitions", exception);
+            throw new RuntimeException(exception);
+        }
     }
 
     private void setTimeToLiveForDeletions(Connection connection, LocalDateTime compactDeletionsThreshold) throws SQLException {
         try (PreparedStatement statement = connection.prepareStatement(setTimeToLiveForDeletionsQuery())) {
             statement.setTimestamp(1, Timestamp.valueOf(compactDeletionsThreshold));
-            statement.executeUpdate();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                long lowestOffset = resultSet.getLong(1);
+                // superseded events are below the chunked compaction watermark, the next run has to go back for them
+                if (!resultSet.wasNull() && chunkedCompaction.isEnabled()) {
+                    chunkedCompaction.rewind(connection, lowestOffset);
+                }
+            }
         }
     }
 
@@ -420,8 +894,8 @@ public class PostgresqlStorage implements CentralStorage {
         }
     }
 
-    private void vacuumAnalyseEvents(Connection connection) {
-        try (PreparedStatement statement = connection.prepareStatement(getVacuumAnalyseQuery())) {
+    private void vacuumAnalyseEvents(Connection connection, List<String> eventsTables) {
+        try (PreparedStatement statement = connection.prepareStatement(getVacuumAnalyseQuery(eventsTables))) {
             statement.executeUpdate();
             LOG.info("vacuum analyse", "vacuum analyse complete");
         } catch (SQLException e) {
@@ -429,13 +903,14 @@ public class PostgresqlStorage implements CentralStorage {
         }
     }
 
+    // Rows are read up to the first row past the page, see runMessagesQuery
     private String getSelectEventsWithoutTypeQuery(long maxBatchSize) {
         return
-            " SELECT type, msg_key, content_type, msg_offset, created_utc, data, location_group " +
+            " SELECT type, msg_key, content_type, msg_offset, created_utc, data, location_group, running_size " +
             " FROM " +
             " ( " +
             "   SELECT " +
-            "     type, msg_key, content_type, msg_offset, created_utc, data, location_group, " +
+            "     type, msg_key, content_type, msg_offset, created_utc, data, location_group, event_size, " +
             "     SUM(event_size) OVER (ORDER BY msg_offset ASC) AS running_size " +
             "   FROM events " +
                   addClusterAndLocationGroupFilter() +
@@ -444,16 +919,16 @@ public class PostgresqlStorage implements CentralStorage {
             " ORDER BY msg_offset " +
             " LIMIT ?" +
             " ) unused " +
-            " WHERE running_size <= " + maxBatchSize;
+            " WHERE running_size - event_size <= " + maxBatchSize;
     }
 
     private String getSelectEventsWithTypeQuery(long maxBatchSize) {
         return
-            " SELECT type, msg_key, content_type, msg_offset, created_utc, data, location_group " +
+            " SELECT type, msg_key, content_type, msg_offset, created_utc, data, location_group, running_size " +
             " FROM " +
             " ( " +
             "   SELECT " +
-            "     type, msg_key, content_type, msg_offset, created_utc, data, location_group, " +
+            "     type, msg_key, content_type, msg_offset, created_utc, data, location_group, event_size, " +
             "     SUM(event_size) OVER (ORDER BY msg_offset ASC) AS running_size " +
             "   FROM events " +
                     addClusterAndLocationGroupFilter() +
@@ -463,7 +938,42 @@ public class PostgresqlStorage implements CentralStorage {
             " ORDER BY msg_offset " +
             " LIMIT ?" +
             " ) unused " +
-            " WHERE running_size <= " + maxBatchSize;
+            " WHERE running_size - event_size <= " + maxBatchSize;
+    }
+
+    private String getSelectLocationEventsQuery(boolean withTypes, long maxBatchSize) {
+        return
+            getWorkMemQuery() +
+            " WITH location_entry AS ( " +
+            "   SELECT cluster_ids, expiry, valid FROM cluster_cache WHERE location_uuid = ? " +
+            " ), location_groups AS ( " +
+            "   SELECT groups FROM LOCATION_GROUPS WHERE location_uuid = ? " +
+            " ) " +
+            " SELECT e.cluster_ids, e.expiry, e.valid, g.groups, " +
+            "   page.type, page.msg_key, page.content_type, page.msg_offset, page.created_utc, page.data, " +
+            "   page.location_group, page.running_size " +
+            " FROM location_entry e " +
+            " LEFT JOIN location_groups g ON true " +
+            " LEFT JOIN LATERAL ( " +
+            "   SELECT type, msg_key, content_type, msg_offset, created_utc, data, location_group, running_size " +
+            "   FROM " +
+            "   ( " +
+            "     SELECT " +
+            "       type, msg_key, content_type, msg_offset, created_utc, data, location_group, event_size, " +
+            "       SUM(event_size) OVER (ORDER BY msg_offset ASC) AS running_size " +
+            "     FROM events " +
+            "     WHERE e.valid AND e.expiry > ? " +
+            "     AND cluster_id = ANY (e.cluster_ids) " +
+            "     AND (location_group IS NULL OR location_group = ANY (COALESCE(g.groups, '{}'::BIGINT[]))) " +
+            "     AND events.msg_offset >= ? " +
+            "     AND events.msg_offset <= ? " +
+            (withTypes ? "     AND type = ANY (string_to_array(?, ',')) " : "") +
+            "     ORDER BY msg_offset " +
+            "     LIMIT ? " +
+            "   ) unused " +
+            "   WHERE running_size - event_size <= " + maxBatchSize +
+            " ) page ON true " +
+            " ORDER BY page.msg_offset;";
     }
 
     private String addClusterAndLocationGroupFilter() {
@@ -472,12 +982,17 @@ public class PostgresqlStorage implements CentralStorage {
             " cluster_id = ANY (?) AND (location_group IS NULL OR location_group = ANY (?)) ";
     }
 
+    private static String getNotifyCompactionQuery() {
+        return "SELECT pg_notify('" + COMPACTION_CHANNEL + "', '');";
+    }
+
     private static String getCompactionQuery() {
         return "DELETE FROM events WHERE time_to_live <= CURRENT_TIMESTAMP;";
     }
 
     private static String setTimeToLiveForDeletionsQuery() {
         return
+        "WITH UPDATED AS (" +
         "UPDATE EVENTS SET time_to_live = CURRENT_TIMESTAMP " +
         "FROM (" +
                 "SELECT max(msg_offset) as last_delete_offset, msg_key, type, cluster_id FROM EVENTS " +
@@ -489,12 +1004,17 @@ public class PostgresqlStorage implements CentralStorage {
         "WHERE EVENTS.msg_key = LATEST_DELETIONS.msg_key " +
         "AND EVENTS.type = LATEST_DELETIONS.type " +
         "AND EVENTS.cluster_id = LATEST_DELETIONS.cluster_id " +
-        "AND EVENTS.msg_offset <= LATEST_DELETIONS.last_delete_offset;";
+        "AND EVENTS.msg_offset <= LATEST_DELETIONS.last_delete_offset " +
+        "RETURNING EVENTS.msg_offset" +
+        ") SELECT min(msg_offset) FROM UPDATED;";
     }
 
-    private static String getVacuumAnalyseQuery() {
+    // vacuuming a partitioned events table would go through every partition, only compacted ones are vacuumed
+    private static String getVacuumAnalyseQuery(List<String> eventsTables) {
+        StringBuilder query = new StringBuilder();
+        eventsTables.forEach(table -> query.append(" VACUUM ANALYSE ").append(table).append("; "));
         return
-            " VACUUM ANALYSE EVENTS; " +
+            query +
             " VACUUM ANALYSE EVENTS_BUFFER; " +
             " VACUUM ANALYSE CLUSTERS; " +
             " VACUUM ANALYSE REGISTRY; " +
@@ -0,0 +1,127 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import lombok.Getter;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Picks a read replica for event reads based on the last known replay position of each replica. A replica is only
+ * used when it has replayed at least up to the offset being read from and either holds every event the primary held
+ * when positions were refreshed, or is behind by no more than the configured max lag. Otherwise reads stay on the
+ * primary. The lag is the time since the replica last replayed a transaction, so a replica that stopped receiving
+ * from the primary falls further behind as soon as the primary writes past it.
+ */
+public class ReplicaRouter {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(ReplicaRouter.class));
+
+    // lag is null when the replica has not replayed anything since it started
+    private static final String REPLICA_POSITION_QUERY =
+        " SELECT " +
+        "   (SELECT COALESCE(max(msg_offset), 0) FROM events) AS latest_offset, " +
+        "   (EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::BIGINT AS lag_ms;";
+
+    private final List<Replica> replicas;
+    private final long maxLagMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ReplicaRouter(final List<DataSource> replicaDataSources, final Duration maxLag) {
+        this.replicas = replicaDataSources.stream().map(Replica::new).collect(Collectors.toList());
+        this.maxLagMillis = maxLag.toMillis();
+    }
+
+    public static ReplicaRouter disabled() {
+        return new ReplicaRouter(Collections.emptyList(), Duration.ZERO);
+    }
+
+    public boolean isEnabled() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * @return a replica that can serve reads from the given offset, if any
+     */
+    public Optional<DataSource> route(final long startOffset) {
+        if (replicas.isEmpty()) {
+            return Optional.empty();
+        }
+
+        final List<Replica> eligible = new ArrayList<>();
+        for (final Replica replica : replicas) {
+            if (replica.canServe(startOffset, maxLagMillis)) {
+                eligible.add(replica);
+            }
+        }
+
+        if (eligible.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(eligible.get(Math.floorMod(next.getAndIncrement(), eligible.size())).getDataSource());
+    }
+
+    /**
+     * Reads the replay position of every replica. Replicas that can't be queried are not routed to until they can.
+     *
+     * @param primaryLatestOffset latest offset on the primary, read before the replicas
+     */
+    public void refreshPositions(final long primaryLatestOffset) {
+        for (final Replica replica : replicas) {
+            try {
+                replica.refreshPosition(primaryLatestOffset);
+            } catch (SQLException exception) {
+                LOG.error("replica router", "refresh replica position", exception);
+                replica.markUnavailable();
+            }
+        }
+    }
+
+    private static class Replica {
+        @Getter
+        private final DataSource dataSource;
+        private volatile boolean available = false;
+        private volatile long latestOffset = -1;
+        private volatile long lagMillis = Long.MAX_VALUE;
+        private volatile boolean caughtUp = false;
+
+        Replica(final DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        boolean canServe(final long startOffset, final long maxLagMillis) {
+            return available && latestOffset >= startOffset && (caughtUp || lagMillis <= maxLagMillis);
+        }
+
+        void refreshPosition(final long primaryLatestOffset) throws SQLException {
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement statement = connection.prepareStatement(REPLICA_POSITION_QUERY);
+                 ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    latestOffset = resultSet.getLong("latest_offset");
+                    final long lag = resultSet.getLong("lag_ms");
+                    lagMillis = resultSet.wasNull() ? Long.MAX_VALUE : lag;
+                    caughtUp = latestOffset >= primaryLatestOffset;
+                    available = true;
+                } else {
+                    markUnavailable();
+                }
+            }
+        }
+
+        void markUnavailable() {
+            available = false;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.tesco.aqueduct.pipe.storage;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adjusts retry after to keep the connection pool at the target utilisation. Utilisation is estimated from the active
+ * and waiting connections and, by Little's law, from the observed read rate times the mean read latency over the
+ * sliding window, then weighted up by the time spent waiting for connections. Retry after is scaled by the ratio of
+ * measured to target utilisation, at most doubling or halving per adjustment.
+ */
+public class RetryAfterController implements MeterBinder {
+
+    private static final long ADJUST_INTERVAL_MS = 1000;
+    private static final double MAX_STEP = 2.0;
+
+    private final PoolUsage poolUsage;
+    private final double targetUtilisation;
+    private final long minRetryAfterMs;
+    private final long maxRetryAfterMs;
+    private final SlidingWindow readLatencies;
+    private final SlidingWindow connectionWaits;
+    private final AtomicBoolean adjusting = new AtomicBoolean();
+
+    private volatile long retryAfterMs;
+    private volatile double utilisation;
+    private volatile long lastAdjustedAt;
+
+    public RetryAfterController(
+        final PoolUsage poolUsage,
+        final double targetUtilisation,
+        final long minRetryAfterMs,
+        final long maxRetryAfterMs,
+        final Duration window,
+        final int maxSamples
+    ) {
+        this.poolUsage = poolUsage;
+        this.targetUtilisation = targetUtilisation;
+        this.minRetryAfterMs = Math.max(minRetryAfterMs, 1);
+        this.maxRetryAfterMs = maxRetryAfterMs;
+        this.readLatencies = new SlidingWindow(window.toMillis(), maxSamples);
+        this.connectionWaits = new SlidingWindow(window.toMillis(), maxSamples);
+        this.retryAfterMs = this.minRetryAfterMs;
+    }
+
+    public static RetryAfterController disabled() {
+        return new RetryAfterController(PoolUsage.UNKNOWN, 0, 0, 0, Duration.ZERO, 0);
+    }
+
+    public boolean isEnabled() {
+        return targetUtilisation > 0 && poolUsage.max() > 0;
+    }
+
+    public void recordRead(final long readMs) {
+        readLatencies.record(readMs, System.currentTimeMillis());
+    }
+
+    public void recordConnectionWait(final long waitMs) {
+        connectionWaits.record(waitMs, System.currentTimeMillis());
+    }
+
+    public long retryAfter() {
+        final long now = System.currentTimeMillis();
+        if (now - lastAdjustedAt >= ADJUST_INTERVAL_MS && adjusting.compareAndSet(false, true)) {
+            try {
+                adjust(now);
+            } finally {
+                adjusting.set(false);
+            }
+        }
+        return retryAfterMs;
+    }
+
+    void adjust(final long now) {
+        lastAdjustedAt = now;
+        final WindowStats reads = readLatencies.stats(now);
+        final WindowStats waits = connectionWaits.stats(now);
+        final int maxConnections = poolUsage.max();
+
+        if (reads.getCount() == 0 || maxConnections <= 0) {
+            return;
+        }
+
+        final double connectionsInUse = Math.max(poolUsage.active(), reads.getRatePerSecond() * reads.getMean() / 1000);
+        final double waitWeight = 1 + waits.getP95() / Math.max(reads.getMean(), 1);
+        utilisation = (connectionsInUse + poolUsage.pending()) / maxConnections * waitWeight;
+
+        final double step = Math.min(Math.max(utilisation / targetUtilisation, 1 / MAX_STEP), MAX_STEP);
+        retryAfterMs = Math.min(Math.max((long) Math.ceil(retryAfterMs * step), minRetryAfterMs), maxRetryAfterMs);
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder("persistence.read.retry-after.controller.output", this, c -> c.retryAfterMs).register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.utilisation", this, c -> c.utilisation).register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.target", this, c -> c.targetUtilisation).register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.request-rate", this,
+            c -> c.readLatencies.stats(System.currentTimeMillis()).getRatePerSecond()).register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.read-latency", this,
+            c -> c.readLatencies.stats(System.currentTimeMillis()).getP50()).tag("percentile", "50").register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.read-latency", this,
+            c -> c.readLatencies.stats(System.currentTimeMillis()).getP95()).tag("percentile", "95").register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.connection-wait", this,
+            c -> c.connectionWaits.stats(System.currentTimeMillis()).getP95()).tag("percentile", "95").register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.pool", poolUsage, PoolUsage::active)
+            .tag("connections", "active").register(registry);
+        Gauge.builder("persistence.read.retry-after.controller.pool", poolUsage, PoolUsage::pending)
+            .tag("connections", "pending").register(registry);
+    }
+
+    @Value
+    static class WindowStats {
+        int count;
+        double ratePerSecond;
+        double mean;
+        long p50;
+        long p95;
+    }
+
+    /**
+     * The latest samples within the window, bounded in number. The rate is measured over the span of the samples
+     * kept when there are more samples in the window than can be kept.
+     */
+    static class SlidingWindow {
+        private final long windowMs;
+        private final long[] values;
+        private final long[] timestamps;
+        private int next = 0;
+        private int size = 0;
+
+        SlidingWindow(final long windowMs, final int maxSamples) {
+            this.windowMs = windowMs;
+            this.values = new long[maxSamples];
+            this.timestamps = new long[maxSamples];
+        }
+
+        synchronized void record(final long value, final long now) {
+            if (values.length == 0) {
+                return;
+            }
+            values[next] = value;
+            timestamps[next] = now;
+            next = (next + 1) % values.length;
+            size = Math.min(size + 1, values.length);
+        }
+
+        synchronized WindowStats stats(final long now) {
+            final long[] inWindow = new long[size];
+            long oldest = now;
+            int count = 0;
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                if (now - timestamps[i] <= windowMs) {
+                    inWindow[count++] = values[i];
+                    sum += values[i];
+                    oldest = Math.min(oldest, timestamps[i]);
+                }
+            }
+            if (count == 0) {
+                return new WindowStats(0, 0, 0, 0, 0);
+            }
+
+            final long[] sorted = Arrays.copyOf(inWindow, count);
+            Arrays.sort(sorted);
+            final long span = count == values.length ? Math.max(now - oldest, 1) : Math.max(windowMs, 1);
+
+            return new WindowStats(
+                count,
+                count * 1000.0 / span,
+                sum / (double) count,
+                sorted[(int) Math.ceil(count * 0.5) - 1],
+                sorted[(int) Math.ceil(count * 0.95) - 1]
+            );
+        }
+    }
+}
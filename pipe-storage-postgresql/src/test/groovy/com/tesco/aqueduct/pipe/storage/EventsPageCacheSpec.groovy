@@ -0,0 +1,103 @@
+package com.tesco.aqueduct.pipe.storage
+
+import com.tesco.aqueduct.pipe.api.CachedPage
+import com.tesco.aqueduct.pipe.api.Message
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.ZonedDateTime
+
+class EventsPageCacheSpec extends Specification {
+
+    def "locations with the same clusters in a different order share a page"() {
+        given:
+        def cache = new EventsPageCache(1024 * 1024, Duration.ofMinutes(1))
+        def page = cache.put(EventsPageCache.PageKey.of([3L, 1L, 2L], [5L], ["typeB", "typeA"], 10), [message(10)], cache.generation())
+
+        expect:
+        cache.get(EventsPageCache.PageKey.of([1L, 2L, 3L, 3L], [5L], ["typeA", "typeB"], 10)).get().is(page)
+    }
+
+    def "only pages held by the cache are handed out as cached pages"() {
+        expect:
+        new EventsPageCache(1024 * 1024, Duration.ofMinutes(1)).put(EventsPageCache.PageKey.of([1L], [], [], 10), [message(10)], 0) instanceof CachedPage
+        !(EventsPageCache.disabled().put(EventsPageCache.PageKey.of([1L], [], [], 10), [message(10)], 0) instanceof CachedPage)
+    }
+
+    def "pages are keyed by start offset, location groups and types"() {
+        given:
+        def cache = new EventsPageCache(1024 * 1024, Duration.ofMinutes(1))
+        cache.put(EventsPageCache.PageKey.of([1L], [5L], ["typeA"], 10), [message(10)], cache.generation())
+
+        expect:
+        !cache.get(EventsPageCache.PageKey.of(clusterIds, groups, types, offset)).isPresent()
+
+        where:
+        clusterIds | groups | types     | offset
+        [1L]       | [5L]   | ["typeA"] | 11
+        [1L]       | []     | ["typeA"] | 10
+        [1L]       | [5L]   | []        | 10
+        [2L]       | [5L]   | ["typeA"] | 10
+    }
+
+    def "disabled cache never returns pages"() {
+        given:
+        def cache = EventsPageCache.disabled()
+        def key = EventsPageCache.PageKey.of([1L], [], [], 0)
+        cache.put(key, [message(1)], cache.generation())
+
+        expect:
+        !cache.get(key).isPresent()
+    }
+
+    def "all pages are dropped on invalidation"() {
+        given:
+        def cache = new EventsPageCache(1024 * 1024, Duration.ofMinutes(1))
+        def key = EventsPageCache.PageKey.of([1L], [], [], 0)
+        cache.put(key, [message(1)], cache.generation())
+
+        when:
+        cache.invalidateAll()
+
+        then:
+        !cache.get(key).isPresent()
+    }
+
+    def "pages read before an invalidation are not cached"() {
+        given:
+        def cache = new EventsPageCache(1024 * 1024, Duration.ofMinutes(1))
+        def key = EventsPageCache.PageKey.of([1L], [], [], 0)
+        def readGeneration = cache.generation()
+
+        when: "the events are compacted while the page is read"
+        cache.invalidateAll()
+        def page = cache.put(key, [message(1)], readGeneration)
+
+        then:
+        page == [message(1)]
+        !(page instanceof CachedPage)
+        !cache.get(key).isPresent()
+    }
+
+    def "hits and misses are exposed as cache metrics"() {
+        given:
+        def registry = new SimpleMeterRegistry()
+        def cache = new EventsPageCache(1024 * 1024, Duration.ofMinutes(1))
+        cache.bindTo(registry)
+        def key = EventsPageCache.PageKey.of([1L], [], [], 0)
+
+        when:
+        cache.get(key)
+        cache.put(key, [message(1)], cache.generation())
+        cache.get(key)
+
+        then:
+        registry.get("cache.gets").tag("cache", "persistence.read.page-cache").tag("result", "hit").functionCounter().count() == 1
+        registry.get("cache.gets").tag("cache", "persistence.read.page-cache").tag("result", "miss").functionCounter().count() == 1
+    }
+
+    private static Message message(long offset) {
+        new Message("type", "key", "contentType", offset, ZonedDateTime.now(), "data")
+    }
+}
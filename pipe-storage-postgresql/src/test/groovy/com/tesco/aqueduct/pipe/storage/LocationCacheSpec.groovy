@@ -0,0 +1,74 @@
+package com.tesco.aqueduct.pipe.storage
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.LocalDateTime
+
+class LocationCacheSpec extends Specification {
+
+    def "entries and groups read before an invalidation are not cached"() {
+        given:
+        def cache = new LocationCache(100, Duration.ofMinutes(1))
+        def generation = cache.generation()
+
+        when: "the location is invalidated while its entry is being read from the database"
+        cache.invalidate("locationUuid")
+        cache.putClusterCacheEntry(entry("locationUuid"), generation)
+        cache.putLocationGroups("locationUuid", [1L], generation)
+
+        then:
+        !cache.getClusterCacheEntry("locationUuid").isPresent()
+        !cache.getLocationGroups("locationUuid").isPresent()
+    }
+
+    def "entries and groups are cached until the location is invalidated"() {
+        given:
+        def cache = new LocationCache(100, Duration.ofMinutes(1))
+        cache.putClusterCacheEntry(entry("locationUuid"), cache.generation())
+        cache.putLocationGroups("locationUuid", [1L], cache.generation())
+        cache.putClusterCacheEntry(entry("otherLocationUuid"), cache.generation())
+
+        expect:
+        cache.getClusterCacheEntry("locationUuid").get().clusterIds == [1L]
+        cache.getLocationGroups("locationUuid").get() == [1L]
+
+        when:
+        cache.invalidate("locationUuid")
+
+        then:
+        !cache.getClusterCacheEntry("locationUuid").isPresent()
+        !cache.getLocationGroups("locationUuid").isPresent()
+        cache.getClusterCacheEntry("otherLocationUuid").isPresent()
+    }
+
+    def "disabled cache never returns entries"() {
+        given:
+        def cache = LocationCache.disabled()
+        cache.putClusterCacheEntry(entry("locationUuid"), cache.generation())
+
+        expect:
+        !cache.getClusterCacheEntry("locationUuid").isPresent()
+    }
+
+    def "hits and misses are reported to the meter registry"() {
+        given:
+        def registry = new SimpleMeterRegistry()
+        def cache = new LocationCache(100, Duration.ofMinutes(1))
+        cache.bindTo(registry)
+        cache.putClusterCacheEntry(entry("locationUuid"), cache.generation())
+
+        when:
+        cache.getClusterCacheEntry("locationUuid")
+        cache.getClusterCacheEntry("otherLocationUuid")
+
+        then:
+        registry.get("cache.gets").tags("cache", "location.cluster-cache", "result", "hit").functionCounter().count() == 1
+        registry.get("cache.gets").tags("cache", "location.cluster-cache", "result", "miss").functionCounter().count() == 1
+    }
+
+    private static ClusterCacheEntry entry(String locationUuid) {
+        new ClusterCacheEntry(locationUuid, [1L], LocalDateTime.now().plusMinutes(1), true)
+    }
+}
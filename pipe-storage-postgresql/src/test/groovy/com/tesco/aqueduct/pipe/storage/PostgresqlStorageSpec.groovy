@@ -1,5 +1,6 @@
 package com.tesco.aqueduct.pipe.storage
 
+import com.tesco.aqueduct.pipe.api.Message
 import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Unroll
@@ -7,6 +8,9 @@ import spock.lang.Unroll
 import javax.sql.DataSource
 import java.sql.Connection
 import java.sql.SQLException
+import java.time.Duration
+import java.time.LocalDateTime
+import java.time.ZonedDateTime
 
 class PostgresqlStorageSpec extends Specification {
 
@@ -78,4 +82,39 @@ class PostgresqlStorageSpec extends Specification {
         def exception = thrown(RuntimeException)
         exception.getCause() instanceof SQLException
     }
+
+    def "page cache hits for cached locations are answered without taking a connection"() {
+        given:
+        def dataSource = Mock(DataSource)
+        def locationCache = new LocationCache(10, Duration.ofMinutes(1))
+        def globalLatestOffsetCache = new GlobalLatestOffsetCache(Duration.ofMinutes(1))
+        def eventsPageCache = new EventsPageCache(1_000_000, Duration.ofMinutes(1))
+        def retryAfterController = Mock(RetryAfterController)
+        def storage = new PostgresqlStorage(
+            dataSource, Mock(DataSource), 20, retryAfter, 2, globalLatestOffsetCache, 1000, 4, 4, clusterStorage,
+            eventsPageCache, EventsTailBuffer.disabled(), false, locationCache, ReplicaRouter.disabled(),
+            EventsPartitions.disabled(), ChunkedCompaction.disabled(), DeletionTombstones.disabled(),
+            retryAfterController
+        )
+
+        and: "the location, the latest offset and the page are all in memory"
+        locationCache.putClusterCacheEntry(
+            new ClusterCacheEntry("locationUuid", [1L], LocalDateTime.now().plusMinutes(1), true), locationCache.generation()
+        )
+        locationCache.putLocationGroups("locationUuid", [], locationCache.generation())
+        globalLatestOffsetCache.onNotification("100")
+        def message = new Message("type", "key", "text/plain", 10, ZonedDateTime.now(), "data")
+        eventsPageCache.put(EventsPageCache.PageKey.of([1L], [], [], 10), [message], eventsPageCache.generation())
+
+        when:
+        def results = storage.read([], 10, "locationUuid")
+
+        then:
+        results.messages == [message]
+        results.globalLatestOffset == OptionalLong.of(100)
+        0 * dataSource.getConnection()
+
+        and: "reads answered from memory don't count towards the pool's utilisation"
+        0 * retryAfterController.recordRead(_)
+    }
 }
@@ -0,0 +1,142 @@
+package com.tesco.aqueduct.pipe.storage
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.time.Duration
+
+class RetryAfterControllerSpec extends Specification {
+
+    PoolUsage pool = Mock(PoolUsage) {
+        max() >> 10
+    }
+
+    def "retry after grows while the pool is used beyond the target utilisation"() {
+        given:
+        pool.active() >> 10
+        def controller = controller()
+        controller.recordRead(100)
+
+        when:
+        controller.adjust(System.currentTimeMillis())
+
+        then: "utilisation 1.0 against a target of 0.5 doubles it"
+        controller.retryAfter() == 2000
+    }
+
+    def "retry after shrinks while the pool is used below the target utilisation, down to the minimum"() {
+        given:
+        pool.active() >> 1
+        def controller = controller()
+        (1..3).each {
+            controller.recordRead(10)
+            controller.adjust(System.currentTimeMillis())
+        }
+
+        expect:
+        controller.retryAfter() == 1000
+    }
+
+    def "retry after is bounded by the maximum"() {
+        given:
+        pool.active() >> 10
+        pool.pending() >> 50
+        def controller = controller()
+        controller.recordRead(100)
+
+        when:
+        (1..10).each { controller.adjust(System.currentTimeMillis()) }
+
+        then:
+        controller.retryAfter() == 10000
+    }
+
+    def "read rate and latency count as connections in use when the pool looks idle"() {
+        given: "100 reads a second over a 1 second window, 80ms each, need 8 of 10 connections"
+        pool.active() >> 0
+        def controller = new RetryAfterController(pool, 0.4, 1000, 10000, Duration.ofSeconds(1), 1000)
+        (1..100).each { controller.recordRead(80) }
+
+        when:
+        controller.adjust(System.currentTimeMillis())
+
+        then:
+        controller.retryAfter() == 2000
+    }
+
+    def "time spent waiting for connections counts towards utilisation"() {
+        given:
+        pool.active() >> 5
+        def controller = controller()
+        controller.recordRead(100)
+        controller.recordConnectionWait(100)
+
+        when:
+        controller.adjust(System.currentTimeMillis())
+
+        then: "utilisation 0.5 doubled by waits as long as the reads"
+        controller.retryAfter() == 2000
+    }
+
+    @Unroll
+    def "controller is enabled only with a target utilisation and a known pool size"() {
+        given:
+        def poolUsage = Mock(PoolUsage) { max() >> maxConnections }
+
+        expect:
+        new RetryAfterController(poolUsage, target, 1000, 10000, Duration.ofMinutes(1), 100).isEnabled() == enabled
+
+        where:
+        target | maxConnections | enabled
+        0.5    | 10             | true
+        0      | 10             | false
+        0.5    | 0              | false
+    }
+
+    def "sliding window reports percentiles and rate of samples within the window"() {
+        given:
+        def window = new RetryAfterController.SlidingWindow(1000, 100)
+        def now = System.currentTimeMillis()
+        window.record(1000, now - 5000)
+        (1..100).each { window.record(it, now) }
+
+        when:
+        def stats = window.stats(now)
+
+        then: "the oldest sample was overwritten"
+        stats.count == 100
+        stats.p50 == 50
+        stats.p95 == 95
+        stats.mean == 50.5
+
+        when:
+        def shortWindow = new RetryAfterController.SlidingWindow(1000, 100)
+        shortWindow.record(1000, now - 5000)
+        (1..10).each { shortWindow.record(it, now) }
+        def shortStats = shortWindow.stats(now)
+
+        then: "samples older than the window are left out"
+        shortStats.count == 10
+        shortStats.ratePerSecond == 10
+    }
+
+    def "controller inputs and outputs are exposed as metrics"() {
+        given:
+        pool.active() >> 3
+        def registry = new SimpleMeterRegistry()
+        def controller = controller()
+        controller.bindTo(registry)
+        controller.recordRead(100)
+
+        expect:
+        registry.get("persistence.read.retry-after.controller.output").gauge().value() == 1000
+        registry.get("persistence.read.retry-after.controller.target").gauge().value() == 0.5
+        registry.get("persistence.read.retry-after.controller.read-latency").tag("percentile", "95").gauge().value() == 100
+        registry.get("persistence.read.retry-after.controller.pool").tag("connections", "active").gauge().value() == 3
+    }
+
+    RetryAfterController controller() {
+        new RetryAfterController(pool, 0.5, 1000, 10000, Duration.ofMinutes(1), 1000)
+    }
+}
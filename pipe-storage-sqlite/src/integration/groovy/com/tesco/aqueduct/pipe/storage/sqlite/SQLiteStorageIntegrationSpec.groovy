@@ -2,6 +2,7 @@ package com.tesco.aqueduct.pipe.storage.sqlite
 
 import com.tesco.aqueduct.pipe.api.*
 import groovy.sql.Sql
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import org.sqlite.SQLiteDataSource
 import org.sqlite.SQLiteException
 import spock.lang.Specification
@@ -89,6 +90,9 @@ class SQLiteStorageIntegrationSpec extends Specification {
         sql.execute("DROP TABLE IF EXISTS EVENT;")
         sql.execute("DROP TABLE IF EXISTS OFFSET;")
         sql.execute("DROP TABLE IF EXISTS PIPE_STATE;")
+        sql.execute("DROP TABLE IF EXISTS KEY_LATEST_OFFSET;")
+        sql.execute("DROP TABLE IF EXISTS OFFSET_CONSISTENCY;")
+        sql.execute("DROP TABLE IF EXISTS OFFSET_CONSISTENCY_CHECKPOINT;")
 
         sqliteStorage = new SQLiteStorage(successfulDataSource(), limit, 10, batchSize)
 
@@ -906,6 +910,81 @@ class SQLiteStorageIntegrationSpec extends Specification {
         messageResults.messages*.key == ["A", "B", "C", "A", "B", "B", "D"]
     }
 
+    def 'compaction runs in chunks and resumes from the persisted watermark'() {
+        given: 'storage compacting two events per chunk'
+        def registry = new SimpleMeterRegistry()
+        sqliteStorage = new SQLiteStorage(
+            successfulDataSource(), successfulDataSource(), null, limit, 10, batchSize, new KeyedCompaction(2, registry)
+        )
+
+        and: 'duplicate messages for the same keys'
+        sqliteStorage.write([
+            message(1, "A", ZonedDateTime.parse("2000-12-01T10:00:00Z")),
+            message(2, "B", ZonedDateTime.parse("2000-12-01T10:00:00Z")),
+            message(3, "A", ZonedDateTime.parse("2000-12-01T10:00:00Z")),
+            message(4, "B", ZonedDateTime.parse("2000-12-01T10:00:00Z")),
+            message(5, "C", ZonedDateTime.parse("2000-12-01T10:00:00Z"))
+        ])
+
+        when: 'compaction is run on the whole data store'
+        sqliteStorage.compactUpTo(ZonedDateTime.parse("2000-12-02T10:00:00Z"), DELETION_COMPACT_THRESHOLD, true)
+
+        then: 'duplicates are deleted across chunks'
+        sqliteStorage.read(null, 1, "locationUuid").messages*.offset*.intValue() == [3, 4, 5]
+
+        and: 'every chunk is recorded and the watermark is at the last event'
+        registry.get("pipe.storage.compaction.chunk.rows").summary().count() == 3
+        registry.get("pipe.storage.compaction.chunk.rows").summary().totalAmount() == 2
+        registry.get("pipe.storage.compaction.watermark").gauge().value() == 5
+        compactionWatermark() == 5
+
+        when: 'another message for a compacted key is written and compaction is run again'
+        sqliteStorage.write(message(6, "A", ZonedDateTime.parse("2000-12-01T10:00:00Z")))
+        sqliteStorage.compactUpTo(ZonedDateTime.parse("2000-12-02T10:00:00Z"), DELETION_COMPACT_THRESHOLD, true)
+
+        then: 'the latest message kept for the key is deleted'
+        sqliteStorage.read(null, 1, "locationUuid").messages*.offset*.intValue() == [4, 5, 6]
+
+        and: 'only the events past the watermark are read'
+        registry.get("pipe.storage.compaction.chunk.rows").summary().count() == 4
+        compactionWatermark() == 6
+    }
+
+    def 'messages past the compaction threshold hold the watermark back'() {
+        given: 'a message past the compaction threshold between duplicates'
+        sqliteStorage.write([
+            message(1, "A", ZonedDateTime.parse("2000-12-01T10:00:00Z")),
+            message(2, "B", ZonedDateTime.parse("2000-12-03T10:00:00Z")),
+            message(3, "A", ZonedDateTime.parse("2000-12-01T10:00:00Z"))
+        ])
+
+        when: 'compaction is run'
+        sqliteStorage.compactUpTo(ZonedDateTime.parse("2000-12-02T10:00:00Z"), DELETION_COMPACT_THRESHOLD, true)
+
+        then: 'the duplicate after it is still compacted'
+        sqliteStorage.read(null, 1, "locationUuid").messages*.offset*.intValue() == [2, 3]
+
+        and: 'the watermark stays before it'
+        compactionWatermark() == 1
+
+        when: 'compaction is run once the threshold passed it'
+        sqliteStorage.write(message(4, "B", ZonedDateTime.parse("2000-12-03T10:00:00Z")))
+        sqliteStorage.compactUpTo(ZonedDateTime.parse("2000-12-04T10:00:00Z"), DELETION_COMPACT_THRESHOLD, true)
+
+        then: 'it is compacted and the watermark moves on'
+        sqliteStorage.read(null, 1, "locationUuid").messages*.offset*.intValue() == [3, 4]
+        compactionWatermark() == 4
+    }
+
+    long compactionWatermark() {
+        def sql = Sql.newInstance(connectionUrl)
+        try {
+            return sql.firstRow("SELECT value FROM OFFSET WHERE name = ?;", [KeyedCompaction.WATERMARK_NAME]).value
+        } finally {
+            sql.close()
+        }
+    }
+
     def 'messages, offset and pipe state are deleted when deleteAllMessages is called'() {
         given: 'multiple messages to be stored'
         def messages = [message(1), message(2)]
@@ -1205,6 +1284,85 @@ class SQLiteStorageIntegrationSpec extends Specification {
         result == 6L
     }
 
+    def 'offset consistency sum is kept up to date for every offset through writes and compaction'() {
+        given: "messages and deletes, some far enough apart to be checkpointed"
+        def created = ZonedDateTime.parse("2000-12-01T10:00:00Z")
+        sqliteStorage.write([
+            message(1, "A", "type1", created),
+            message(2, "B", "type1", created),
+            delete(3, "A", "type1", created),
+            message(15000, "A", "type1", created),
+            message(15001, "B", "type2", created),
+            message(30000, "B", "type1", created),
+            delete(45000, "B", "type2", created),
+            message(45001, "C", "type1", created)
+        ])
+        def offsets = [0L, 1L, 2L, 3L, 14999L, 15000L, 15001L, 29999L, 30000L, 45000L, 45001L, 50000L]
+
+        expect: "the sums to be the ones summed over the events"
+        offsets.collect { sqliteStorage.getOffsetConsistencySum(it, []) } == [0L, 1L, 3L, 2L, 2L, 15002L, 30003L, 30003L, 60001L, 45000L, 90001L, 90001L]
+        offsets.every { sqliteStorage.verifyOffsetConsistencySum(it) }
+
+        when: "duplicates and deletions are compacted"
+        sqliteStorage.compactUpTo(ZonedDateTime.parse("2000-12-02T10:00:00Z"), ZonedDateTime.parse("2000-12-02T10:00:00Z"), true)
+
+        then: "the sums follow the events left"
+        offsets.collect { sqliteStorage.getOffsetConsistencySum(it, []) } == [0L, 0L, 0L, 0L, 0L, 15000L, 15000L, 15000L, 45000L, 45000L, 90001L, 90001L]
+        offsets.every { sqliteStorage.verifyOffsetConsistencySum(it) }
+    }
+
+    def 'offset consistency sums are built from the events stored when they are first kept'() {
+        given: "messages stored before offset consistency sums were kept"
+        def created = ZonedDateTime.parse("2000-12-01T10:00:00Z")
+        sqliteStorage.write([
+            message(1, "A", "type1", created),
+            message(20000, "B", "type1", created),
+            message(20001, "A", "type1", created)
+        ])
+        def sql = Sql.newInstance(connectionUrl)
+        sql.execute("DROP TRIGGER offset_consistency_insert;")
+        sql.execute("DROP TRIGGER offset_consistency_delete;")
+        sql.execute("DELETE FROM OFFSET_CONSISTENCY;")
+        sql.execute("DELETE FROM OFFSET_CONSISTENCY_CHECKPOINT;")
+        sql.close()
+
+        when: "the storage is started again"
+        sqliteStorage = new SQLiteStorage(successfulDataSource(), limit, 10, batchSize)
+
+        then: "the sums are the ones summed over the events"
+        sqliteStorage.getOffsetConsistencySum(1, []) == 1L
+        sqliteStorage.getOffsetConsistencySum(20000, []) == 20001L
+        sqliteStorage.getOffsetConsistencySum(20001, []) == 40001L
+
+        when: "more messages are written"
+        sqliteStorage.write(message(20002, "B", "type1", created))
+
+        then: "the sums are kept up to date again"
+        sqliteStorage.getOffsetConsistencySum(20002, []) == 40003L
+    }
+
+    def 'offset consistency sum differing from the events is rebuilt when verified'() {
+        given: "messages"
+        def created = ZonedDateTime.parse("2000-12-01T10:00:00Z")
+        sqliteStorage.write([
+            message(1, "A", "type1", created),
+            message(2, "B", "type1", created)
+        ])
+
+        and: "deltas that went wrong"
+        def sql = Sql.newInstance(connectionUrl)
+        sql.execute("UPDATE OFFSET_CONSISTENCY SET delta = 100 WHERE msg_offset = 2;")
+        sql.close()
+
+        when:
+        def verified = sqliteStorage.verifyOffsetConsistencySum(2)
+
+        then: "the difference is found and the sums rebuilt from the events"
+        !verified
+        sqliteStorage.getOffsetConsistencySum(2, []) == 3L
+        sqliteStorage.verifyOffsetConsistencySum(2)
+    }
+
     @Unroll
     def 'calculate max offset for the given list of type'() {
         given:
@@ -0,0 +1,104 @@
+package com.tesco.aqueduct.pipe.storage.sqlite;
+
+import com.tesco.aqueduct.pipe.api.JsonHelper;
+import com.tesco.aqueduct.pipe.api.Message;
+import org.openjdk.jmh.annotations.*;
+import org.sqlite.SQLiteDataSource;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the event size taken by serializing each message again with the one counted from its fields, on their own
+ * and as part of inserting batches into SQLite.
+ */
+@Fork(value = 1)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 10, time = 10)
+public class InsertEventsBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @State(Scope.Benchmark)
+    public static class MessagesState {
+
+        List<Message> messages;
+
+        @Setup(Level.Trial)
+        public void doSetup() {
+            messages = messages(0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SQLiteDatabaseState {
+
+        private SQLiteStorage storage;
+        private long offset;
+
+        @Setup(Level.Trial)
+        public void doSetup() {
+            final SQLiteDataSource dataSource = new SQLiteDataSource();
+            dataSource.setUrl("jdbc:sqlite:aqueduct-pipe-benchmark.db");
+            storage = new SQLiteStorage(dataSource, 1000, 1000, 10_000_000);
+        }
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            storage.deleteAll();
+            offset = 0;
+        }
+
+        List<Message> nextBatch() {
+            final List<Message> batch = messages(offset);
+            offset += BATCH_SIZE;
+            return batch;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.SECONDS)
+    public long serializedSize(MessagesState messagesState) throws IOException {
+        long size = 0;
+        for (Message message : messagesState.messages) {
+            size += JsonHelper.toJson(message).length();
+        }
+        return size;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.SECONDS)
+    public long countedSize(MessagesState messagesState) {
+        long size = 0;
+        for (Message message : messagesState.messages) {
+            size += JsonHelper.jsonLength(message);
+        }
+        return size;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.SECONDS)
+    public void insertBatch(SQLiteDatabaseState databaseState) {
+        databaseState.storage.write(databaseState.nextBatch());
+    }
+
+    private static List<Message> messages(long firstOffset) {
+        final ZonedDateTime created = ZonedDateTime.parse("2000-12-01T10:00:00.123Z");
+        final List<Message> messages = new ArrayList<>(BATCH_SIZE);
+        for (long offset = firstOffset; offset < firstOffset + BATCH_SIZE; offset++) {
+            messages.add(new Message("Type_" + offset % 10, "key_" + offset, "application/json", offset, created, MESSAGE_CONTENT));
+        }
+        return messages;
+    }
+
+    private static final String MESSAGE_CONTENT = "{\n" +
+        "  \"id\": \"DATA1\",\n" +
+        "  \"bucketNumber\": \"790\",\n" +
+        "  \"dataGroups\": [\"D1\", \"D2\"],\n" +
+        "  \"description\": \"Some product \\\\ with a \\\"quoted\\\" name\",\n" +
+        "  \"price\": { \"amount\": 1.25, \"currency\": \"GBP\" }\n" +
+        "}";
+}
@@ -0,0 +1,239 @@
+package com.tesco.aqueduct.pipe.storage.sqlite;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts events created up to the threshold down to the latest one of each key and type, a chunk of offsets at a
+ * time. The latest offset kept for each key and type is held in KEY_LATEST_OFFSET, so a chunk looks up the keys of
+ * its own events instead of grouping the whole table, and each chunk is written in its own transaction, so writes
+ * from the pipe wait for one chunk at most.
+ * <p>
+ * The offset up to which all events were compacted is persisted as the watermark and the next run starts from it.
+ * Events created after the threshold hold the watermark back: the events after them are still compacted, but looked
+ * at again by the next runs until the threshold passes the ones holding it back.
+ */
+public class KeyedCompaction {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    static final String WATERMARK_NAME = "compaction_watermark";
+
+    private final int chunkSize;
+    private final DistributionSummary chunkRows;
+    private final Timer chunkLatency;
+    private final AtomicLong watermarkGauge;
+
+    /**
+     * @param chunkSize number of events looked at per chunk, bounding how long a chunk holds the write lock
+     */
+    public KeyedCompaction(final int chunkSize, final MeterRegistry registry) {
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.chunkRows = DistributionSummary.builder("pipe.storage.compaction.chunk.rows").register(registry);
+        this.chunkLatency = Timer.builder("pipe.storage.compaction.chunk.latency").register(registry);
+        this.watermarkGauge = registry.gauge("pipe.storage.compaction.watermark", new AtomicLong());
+    }
+
+    /**
+     * The connection is used in manual commit mode, each chunk is read in one transaction and written in another, so
+     * reading doesn't hold the write lock. The chunk being written is left to the caller to roll back on failure.
+     *
+     * @return number of events compacted
+     */
+    long compactUpTo(final Connection connection, final Timestamp threshold) throws SQLException {
+        long watermark = getWatermark(connection);
+        watermarkGauge.set(watermark);
+        long from = watermark;
+        boolean heldBack = false;
+        long compacted = 0;
+
+        while (true) {
+            final long chunkStart = System.nanoTime();
+            final List<ChunkEvent> events = readChunk(connection, from, threshold);
+            if (events.isEmpty()) {
+                connection.commit();
+                break;
+            }
+
+            final Chunk chunk = new Chunk();
+            for (final ChunkEvent event : events) {
+                if (!event.compactable) {
+                    heldBack = true;
+                    continue;
+                }
+                chunk.keepLatest(connection, event);
+                if (!heldBack) {
+                    watermark = event.offset;
+                }
+            }
+            connection.commit();
+
+            final int deleted = writeChunk(connection, chunk, watermark);
+            connection.commit();
+
+            chunkRows.record(deleted);
+            chunkLatency.record(System.nanoTime() - chunkStart, TimeUnit.NANOSECONDS);
+            watermarkGauge.set(watermark);
+            compacted += deleted;
+
+            if (events.size() < chunkSize) {
+                break;
+            }
+            from = events.get(events.size() - 1).offset;
+        }
+        return compacted;
+    }
+
+    private List<ChunkEvent> readChunk(final Connection connection, final long from, final Timestamp threshold) throws SQLException {
+        final List<ChunkEvent> events = new ArrayList<>(chunkSize);
+        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.COMPACTION_CHUNK)) {
+            statement.setTimestamp(1, threshold);
+            statement.setLong(2, from);
+            statement.setInt(3, chunkSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    events.add(new ChunkEvent(
+                        resultSet.getLong("msg_offset"),
+                        new Key(resultSet.getString("type"), resultSet.getString("msg_key")),
+                        resultSet.getBoolean("compactable")
+                    ));
+                }
+            }
+        }
+        return events;
+    }
+
+    private int writeChunk(final Connection connection, final Chunk chunk, final long watermark) throws SQLException {
+        try (PreparedStatement deleteEvent = connection.prepareStatement(SQLiteQueries.DELETE_EVENT);
+             PreparedStatement upsertLatest = connection.prepareStatement(SQLiteQueries.UPSERT_KEY_LATEST_OFFSET);
+             PreparedStatement upsertWatermark = connection.prepareStatement(SQLiteQueries.UPSERT_OFFSET)) {
+
+            for (final long offset : chunk.superseded) {
+                deleteEvent.setLong(1, offset);
+                deleteEvent.addBatch();
+            }
+
+            for (final Key key : chunk.updated) {
+                final long offset = chunk.latestOffsets.get(key);
+                upsertLatest.setString(1, key.type);
+                upsertLatest.setString(2, key.key);
+                upsertLatest.setLong(3, offset);
+                upsertLatest.setLong(4, offset);
+                upsertLatest.addBatch();
+            }
+
+            upsertWatermark.setString(1, WATERMARK_NAME);
+            upsertWatermark.setLong(2, watermark);
+            upsertWatermark.setLong(3, watermark);
+
+            int deleted = 0;
+            for (final int count : deleteEvent.executeBatch()) {
+                deleted += Math.max(count, 0);
+            }
+            upsertLatest.executeBatch();
+            upsertWatermark.execute();
+            return deleted;
+        }
+    }
+
+    private long getWatermark(final Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.GET_OFFSET_VALUE)) {
+            statement.setString(1, WATERMARK_NAME);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static Long getLatestOffset(final Connection connection, final Key key) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.GET_KEY_LATEST_OFFSET)) {
+            statement.setString(1, key.type);
+            statement.setString(2, key.key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Offsets superseded within a chunk and the latest offsets of the keys it changed.
+     */
+    private static class Chunk {
+        private final Map<Key, Long> latestOffsets = new HashMap<>();
+        private final Set<Key> updated = new LinkedHashSet<>();
+        private final List<Long> superseded = new ArrayList<>();
+
+        void keepLatest(final Connection connection, final ChunkEvent event) throws SQLException {
+            if (!latestOffsets.containsKey(event.key)) {
+                latestOffsets.put(event.key, getLatestOffset(connection, event.key));
+            }
+            final Long latest = latestOffsets.get(event.key);
+
+            if (latest == null || latest < event.offset) {
+                if (latest != null) {
+                    superseded.add(latest);
+                }
+                latestOffsets.put(event.key, event.offset);
+                updated.add(event.key);
+            } else if (latest > event.offset) {
+                // came within the threshold after a later event of its key did
+                superseded.add(event.offset);
+            }
+        }
+    }
+
+    private static class ChunkEvent {
+        private final long offset;
+        private final Key key;
+        private final boolean compactable;
+
+        ChunkEvent(final long offset, final Key key, final boolean compactable) {
+            this.offset = offset;
+            this.key = key;
+            this.compactable = compactable;
+        }
+    }
+
+    private static class Key {
+        private final String type;
+        private final String key;
+
+        Key(final String type, final String key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) other;
+            return type.equals(that.type) && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, key);
+        }
+    }
+}
@@ -1,13 +1,17 @@
 package com.tesco.aqueduct.pipe.storage.sqlite;
 
 import com.tesco.aqueduct.pipe.api.DistributedStorage;
+import com.tesco.aqueduct.pipe.api.Message;
 import com.tesco.aqueduct.pipe.api.OffsetEntity;
 import com.tesco.aqueduct.pipe.api.OffsetName;
 import com.tesco.aqueduct.pipe.api.PipeEntity;
+import com.tesco.aqueduct.pipe.api.PipeState;
 import io.micrometer.core.instrument.MeterRegistry;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class MetricizedDistributedStorage extends TimedDistributedStorage {
@@ -31,12 +35,32 @@ public class MetricizedDistributedStorage extends TimedDistributedStorage {
 
     @Override
     public void write(final PipeEntity pipeEntity) {
-        if (pipeEntity.getOffsets() != null) {
-            pipeEntity.getOffsets().forEach( offset -> {
+        recordOffsets(pipeEntity.getOffsets());
+        super.write(pipeEntity);
+    }
+
+    @Override
+    public void write(final Iterable<Message> messages, final List<OffsetEntity> offsets, final PipeState pipeState) {
+        recordOffsets(offsets);
+        super.write(messages, offsets, pipeState);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(
+        final Iterable<Message> messages,
+        final List<OffsetEntity> offsets,
+        final PipeState pipeState
+    ) {
+        recordOffsets(offsets);
+        return super.writeAsync(messages, offsets, pipeState);
+    }
+
+    private void recordOffsets(final List<OffsetEntity> offsets) {
+        if (offsets != null) {
+            offsets.forEach( offset -> {
                 AtomicLong atomicOffset = atomicOffsets.get(offset.getName());
                 atomicOffset.set(offset.getValue().getAsLong());
             });
         }
-        super.write(pipeEntity);
     }
 }
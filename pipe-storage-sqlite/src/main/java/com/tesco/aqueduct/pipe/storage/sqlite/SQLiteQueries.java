@@ -41,6 +41,14 @@ final class SQLiteQueries {
         " value varchar NOT NULL" +
         ");";
 
+    static final String KEY_LATEST_OFFSET_TABLE =
+        "CREATE TABLE IF NOT EXISTS KEY_LATEST_OFFSET( " +
+        " type varchar NOT NULL," +
+        " msg_key varchar NOT NULL," +
+        " msg_offset bigint NOT NULL," +
+        " PRIMARY KEY (type, msg_key)" +
+        ");";
+
     static final String INSERT_EVENT =
         "INSERT INTO EVENT (msg_offset, msg_key, content_type, type, created_utc, data, event_size) VALUES (?,?,?,?,?,?,?);";
 
@@ -48,8 +56,23 @@ final class SQLiteQueries {
         "INSERT INTO OFFSET (name, value) VALUES (?,?)" +
         " ON CONFLICT(name) DO UPDATE SET VALUE = ?;";
 
-    static final String COMPACT =
-        "DELETE FROM EVENT WHERE created_utc <= ? AND msg_offset NOT IN (SELECT max(msg_offset) FROM EVENT WHERE created_utc <= ? GROUP BY msg_key, type);";
+    static final String GET_OFFSET_VALUE =
+        "SELECT value FROM OFFSET WHERE name = ?;";
+
+    static final String COMPACTION_CHUNK =
+        "SELECT msg_offset, type, msg_key, created_utc <= ? AS compactable FROM EVENT WHERE msg_offset > ? ORDER BY msg_offset LIMIT ?;";
+
+    static final String GET_KEY_LATEST_OFFSET =
+        "SELECT msg_offset FROM KEY_LATEST_OFFSET WHERE type = ? AND msg_key = ?;";
+
+    static final String UPSERT_KEY_LATEST_OFFSET =
+        "INSERT INTO KEY_LATEST_OFFSET (type, msg_key, msg_offset) VALUES (?,?,?)" +
+        " ON CONFLICT(type, msg_key) DO UPDATE SET msg_offset = ?;";
+
+    static final String DELETE_EVENT = "DELETE FROM EVENT WHERE msg_offset = ?;";
+
+    static final String DELETE_COMPACTED_DELETIONS_LATEST_OFFSETS =
+        "DELETE FROM KEY_LATEST_OFFSET WHERE msg_offset IN (SELECT msg_offset FROM EVENT WHERE created_utc <= ? AND data IS NULL);";
 
     static final String COMPACT_DELETIONS =
         "DELETE FROM EVENT WHERE created_utc <= ? AND data IS NULL;";
@@ -63,14 +86,116 @@ final class SQLiteQueries {
             ") AND msg_offset <= ? GROUP BY msg_key, type " +
         ");";
 
+    // every event's change to the offset consistency sum of the offsets from its own on, a sum is the deltas up to it
+    static final String OFFSET_CONSISTENCY_TABLE =
+        "CREATE TABLE IF NOT EXISTS OFFSET_CONSISTENCY( " +
+        " msg_offset bigint PRIMARY KEY NOT NULL," +
+        " type varchar NOT NULL," +
+        " msg_key varchar NOT NULL," +
+        " contribution bigint NOT NULL," +
+        " delta bigint NOT NULL" +
+        ");";
+
+    static final String OFFSET_CONSISTENCY_KEY_INDEX =
+        "CREATE INDEX IF NOT EXISTS offset_consistency_key_idx ON OFFSET_CONSISTENCY (type, msg_key, msg_offset);";
+
+    static final String OFFSET_CONSISTENCY_CHECKPOINT_TABLE =
+        "CREATE TABLE IF NOT EXISTS OFFSET_CONSISTENCY_CHECKPOINT( " +
+        " msg_offset bigint PRIMARY KEY NOT NULL," +
+        " checksum bigint NOT NULL" +
+        ");";
+
+    static final long OFFSET_CONSISTENCY_CHECKPOINT_INTERVAL = 10_000;
+
+    static final String OFFSET_CONSISTENCY_TRIGGER_EXISTS =
+        "SELECT count(*) FROM sqlite_master WHERE type = 'trigger' AND name = 'offset_consistency_insert';";
+
+    private static final String NEXT_OF_KEY =
+        "(SELECT min(msg_offset) FROM OFFSET_CONSISTENCY" +
+        " WHERE type = %1$s.type AND msg_key = %1$s.msg_key AND msg_offset > %1$s.msg_offset)";
+
+    private static final String DELTA_OF =
+        "(SELECT delta FROM OFFSET_CONSISTENCY WHERE msg_offset = %s.msg_offset)";
+
+    // an event inserted before a later one of its key takes its share of the later one's delta
+    static final String OFFSET_CONSISTENCY_INSERT_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS offset_consistency_insert AFTER INSERT ON EVENT BEGIN" +
+        " INSERT INTO OFFSET_CONSISTENCY (msg_offset, type, msg_key, contribution, delta)" +
+        "  SELECT NEW.msg_offset, NEW.type, NEW.msg_key, contribution, contribution - COALESCE((" +
+        "   SELECT contribution FROM OFFSET_CONSISTENCY" +
+        "   WHERE type = NEW.type AND msg_key = NEW.msg_key AND msg_offset < NEW.msg_offset" +
+        "   ORDER BY msg_offset DESC LIMIT 1" +
+        "  ), 0)" +
+        "  FROM (SELECT CASE WHEN NEW.data IS NULL THEN 0 ELSE NEW.msg_offset END AS contribution);" +
+        " UPDATE OFFSET_CONSISTENCY_CHECKPOINT SET checksum = checksum + " + String.format(DELTA_OF, "NEW") +
+        "  WHERE msg_offset >= NEW.msg_offset" +
+        "  AND msg_offset < COALESCE(" + String.format(NEXT_OF_KEY, "NEW") + ", " + Long.MAX_VALUE + ");" +
+        " UPDATE OFFSET_CONSISTENCY SET delta = delta - " + String.format(DELTA_OF, "NEW") +
+        "  WHERE msg_offset = " + String.format(NEXT_OF_KEY, "NEW") + ";" +
+        " INSERT INTO OFFSET_CONSISTENCY_CHECKPOINT (msg_offset, checksum)" +
+        "  SELECT NEW.msg_offset, latest_checkpoint.checksum + (" +
+        "   SELECT COALESCE(SUM(delta), 0) FROM OFFSET_CONSISTENCY" +
+        "   WHERE msg_offset > latest_checkpoint.msg_offset AND msg_offset <= NEW.msg_offset" +
+        "  )" +
+        "  FROM (" +
+        "   SELECT COALESCE(max(msg_offset), -1) AS msg_offset," +
+        "    COALESCE((SELECT checksum FROM OFFSET_CONSISTENCY_CHECKPOINT ORDER BY msg_offset DESC LIMIT 1), 0) AS checksum" +
+        "   FROM OFFSET_CONSISTENCY_CHECKPOINT" +
+        "  ) latest_checkpoint" +
+        "  WHERE NEW.msg_offset >= latest_checkpoint.msg_offset + " + OFFSET_CONSISTENCY_CHECKPOINT_INTERVAL + ";" +
+        " END;";
+
+    // a deleted event's delta moves to the next event of its key, checkpoints in between lose it
+    static final String OFFSET_CONSISTENCY_DELETE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS offset_consistency_delete AFTER DELETE ON EVENT BEGIN" +
+        " UPDATE OFFSET_CONSISTENCY_CHECKPOINT SET checksum = checksum - " + String.format(DELTA_OF, "OLD") +
+        "  WHERE msg_offset >= OLD.msg_offset" +
+        "  AND msg_offset < COALESCE(" + String.format(NEXT_OF_KEY, "OLD") + ", " + Long.MAX_VALUE + ");" +
+        " UPDATE OFFSET_CONSISTENCY SET delta = delta + " + String.format(DELTA_OF, "OLD") +
+        "  WHERE msg_offset = " + String.format(NEXT_OF_KEY, "OLD") + ";" +
+        " DELETE FROM OFFSET_CONSISTENCY WHERE msg_offset = OLD.msg_offset;" +
+        " END;";
+
+    static final String REBUILD_OFFSET_CONSISTENCY =
+        "INSERT INTO OFFSET_CONSISTENCY (msg_offset, type, msg_key, contribution, delta)" +
+        " SELECT msg_offset, type, msg_key, contribution," +
+        "  contribution - COALESCE(LAG(contribution) OVER (PARTITION BY type, msg_key ORDER BY msg_offset), 0)" +
+        " FROM (SELECT msg_offset, type, msg_key, CASE WHEN data IS NULL THEN 0 ELSE msg_offset END AS contribution FROM EVENT);";
+
+    // the last offset of every interval
+    static final String REBUILD_OFFSET_CONSISTENCY_CHECKPOINTS =
+        "INSERT INTO OFFSET_CONSISTENCY_CHECKPOINT (msg_offset, checksum)" +
+        " SELECT msg_offset, checksum FROM (" +
+        "  SELECT msg_offset, SUM(delta) OVER (ORDER BY msg_offset) AS checksum," +
+        "   lead(msg_offset / " + OFFSET_CONSISTENCY_CHECKPOINT_INTERVAL + ") OVER (ORDER BY msg_offset) AS next_interval" +
+        "  FROM OFFSET_CONSISTENCY" +
+        " ) WHERE next_interval IS NOT msg_offset / " + OFFSET_CONSISTENCY_CHECKPOINT_INTERVAL + ";";
+
+    static final String OFFSET_CONSISTENCY_SUM_FROM_CHECKPOINT =
+        "SELECT COALESCE(nearest.checksum, 0) + (" +
+        "  SELECT COALESCE(SUM(delta), 0) FROM OFFSET_CONSISTENCY" +
+        "  WHERE msg_offset > COALESCE(nearest.msg_offset, -1) AND msg_offset <= ?" +
+        " )" +
+        " FROM (SELECT 1) LEFT JOIN (" +
+        "  SELECT msg_offset, checksum FROM OFFSET_CONSISTENCY_CHECKPOINT WHERE msg_offset <= ? ORDER BY msg_offset DESC LIMIT 1" +
+        " ) nearest;";
+
+    static final String DELETE_OFFSET_CONSISTENCY = "DELETE FROM OFFSET_CONSISTENCY;";
+    static final String DELETE_OFFSET_CONSISTENCY_CHECKPOINTS = "DELETE FROM OFFSET_CONSISTENCY_CHECKPOINT;";
+
+    static final String LATEST_EVENT_OFFSET =
+        "SELECT max(msg_offset) FROM EVENT;";
+
     static final String CHOOSE_MAX_OFFSET =
         "SELECT max(msg_offset) FROM EVENT WHERE created_utc <= ?;";
 
     static final String DELETE_EVENTS = "DELETE FROM EVENT;";
     static final String DELETE_OFFSETS = "DELETE FROM OFFSET";
+    static final String DELETE_KEY_LATEST_OFFSETS = "DELETE FROM KEY_LATEST_OFFSET";
     static final String DELETE_PIPE_STATE = "DELETE FROM PIPE_STATE";
     static final String VACUUM_DB = "VACUUM;";
     static final String CHECKPOINT_DB = "PRAGMA wal_checkpoint(TRUNCATE);";
+    static final String JOURNAL_MODE_WAL = "PRAGMA journal_mode=WAL;";
     static final String QUICK_INTEGRITY_CHECK = "PRAGMA quick_check(1);";
     static final String FULL_INTEGRITY_CHECK = "PRAGMA integrity_check;";
 
@@ -2,18 +2,21 @@ package com.tesco.aqueduct.pipe.storage.sqlite;
 
 import com.tesco.aqueduct.pipe.api.*;
 import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.sql.*;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongConsumer;
 
 import static com.tesco.aqueduct.pipe.api.OffsetName.GLOBAL_LATEST_OFFSET;
 import static com.tesco.aqueduct.pipe.storage.sqlite.SQLiteQueries.maxOffsetForConsumersQuery;
@@ -21,15 +24,58 @@ import static com.tesco.aqueduct.pipe.storage.sqlite.SQLiteQueries.maxOffsetForC
 public class SQLiteStorage implements DistributedStorage {
 
     private final DataSource dataSource;
+    private final DataSource readDataSource;
+    private final SQLiteWriter writer;
+    private final KeyedCompaction compaction;
     private final int limit;
     private final int retryAfterMs;
     private final long maxBatchSize;
+    private final OffsetListeners offsetListeners = new OffsetListeners();
+
+    private static final int INSERT_BATCH_SIZE = 500;
+    private static final long NO_OFFSET = -1;
 
     private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(SQLiteStorage.class));
     private static final Logger DEBUG_LOGGER = LoggerFactory.getLogger("pipe-debug-logger");
 
     public SQLiteStorage(final DataSource dataSource, final int limit, final int retryAfterMs, final long maxBatchSize) {
+        this(dataSource, dataSource, null, limit, retryAfterMs, maxBatchSize);
+    }
+
+    /**
+     * Messages, offsets and the pipe state are written through the writer, so writes are group committed on its
+     * connection. Reads go to the read data source, which should give read only connections to the same database in
+     * WAL mode, so reads don't wait for writes.
+     *
+     * @param dataSource connections for maintenance tasks and deletes
+     */
+    public SQLiteStorage(
+        final DataSource dataSource,
+        final DataSource readDataSource,
+        final SQLiteWriter writer,
+        final int limit,
+        final int retryAfterMs,
+        final long maxBatchSize
+    ) {
+        this(
+            dataSource, readDataSource, writer, limit, retryAfterMs, maxBatchSize,
+            new KeyedCompaction(KeyedCompaction.DEFAULT_CHUNK_SIZE, new SimpleMeterRegistry())
+        );
+    }
+
+    public SQLiteStorage(
+        final DataSource dataSource,
+        final DataSource readDataSource,
+        final SQLiteWriter writer,
+        final int limit,
+        final int retryAfterMs,
+        final long maxBatchSize,
+        final KeyedCompaction compaction
+    ) {
         this.dataSource = dataSource;
+        this.readDataSource = readDataSource;
+        this.writer = writer;
+        this.compaction = compaction;
         this.limit = limit;
         this.retryAfterMs = retryAfterMs;
         this.maxBatchSize = maxBatchSize + (((long)Message.MAX_OVERHEAD_SIZE) * limit);
@@ -37,6 +83,8 @@ public class SQLiteStorage implements DistributedStorage {
         createEventTableIfNotExists();
         createOffsetTableIfNotExists();
         createPipeStateTableIfNotExists();
+        createKeyLatestOffsetTableIfNotExists();
+        createOffsetConsistencyIfNotExists();
         addIndexOnTypes();
     }
 
@@ -68,9 +116,68 @@ public class SQLiteStorage implements DistributedStorage {
         );
     }
 
+    private void createKeyLatestOffsetTableIfNotExists() {
+        execute(
+            SQLiteQueries.KEY_LATEST_OFFSET_TABLE,
+            (connection, statement) -> statement.execute()
+        );
+    }
+
+    /**
+     * The offset consistency sums are kept up to date by triggers on the event table, they are built from the events
+     * stored when the triggers are created.
+     */
+    private void createOffsetConsistencyIfNotExists() {
+        try (Connection connection = dataSource.getConnection()) {
+            try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.OFFSET_CONSISTENCY_TRIGGER_EXISTS);
+                 ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next() && resultSet.getLong(1) > 0) {
+                    return;
+                }
+            }
+
+            connection.setAutoCommit(false);
+            try {
+                executeAll(connection,
+                    SQLiteQueries.OFFSET_CONSISTENCY_TABLE,
+                    SQLiteQueries.OFFSET_CONSISTENCY_KEY_INDEX,
+                    SQLiteQueries.OFFSET_CONSISTENCY_CHECKPOINT_TABLE
+                );
+                rebuildOffsetConsistency(connection);
+                executeAll(connection,
+                    SQLiteQueries.OFFSET_CONSISTENCY_INSERT_TRIGGER,
+                    SQLiteQueries.OFFSET_CONSISTENCY_DELETE_TRIGGER
+                );
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        } catch (SQLException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private void rebuildOffsetConsistency(Connection connection) throws SQLException {
+        executeAll(connection,
+            SQLiteQueries.DELETE_OFFSET_CONSISTENCY,
+            SQLiteQueries.DELETE_OFFSET_CONSISTENCY_CHECKPOINTS,
+            SQLiteQueries.REBUILD_OFFSET_CONSISTENCY,
+            SQLiteQueries.REBUILD_OFFSET_CONSISTENCY_CHECKPOINTS
+        );
+    }
+
+    private void executeAll(Connection connection, String... queries) throws SQLException {
+        for (String query : queries) {
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+                statement.execute();
+            }
+        }
+    }
+
     @Override
     public MessageResults read(final List<String> types, final long offset, final String locationUuid) {
-        try (Connection connection = dataSource.getConnection()) {
+        try (Connection connection = readDataSource.getConnection()) {
             connection.setAutoCommit(false);
 
             OptionalLong globalLatestOffset =  getOffset(connection, GLOBAL_LATEST_OFFSET);
@@ -123,22 +230,63 @@ public class SQLiteStorage implements DistributedStorage {
 
     @Override
     public PipeState getPipeState() {
-        try (Connection connection = dataSource.getConnection()) {
+        try (Connection connection = readDataSource.getConnection()) {
             return getPipeState(connection);
         } catch (SQLException exception) {
             throw new RuntimeException(exception);
         }
     }
 
+    /**
+     * Read from the nearest checkpoint at or before the offset plus the deltas after it, so the cost doesn't grow with
+     * the events stored. Falls back to summing over the events when the checkpoints can't be read.
+     */
     @Override
     public long getOffsetConsistencySum(long offset, List<String> targetUuids) {
-        try (Connection connection = dataSource.getConnection()) {
-            return getOffsetConsistencySumBasedOn(offset, connection);
+        try (Connection connection = readDataSource.getConnection()) {
+            try {
+                return getOffsetConsistencySumFromCheckpoint(offset, connection);
+            } catch (SQLException exception) {
+                LOG.error("getOffsetConsistencySum", "Could not read offset consistency checkpoints, summing events", exception);
+                return getOffsetConsistencySumBasedOn(offset, connection);
+            }
         } catch (SQLException exception) {
             throw new RuntimeException(exception);
         }
     }
 
+    /**
+     * Compares the offset consistency sum kept up to date with the one summed over the events, rebuilding the
+     * checkpoints from the events when they differ. Sums over the whole event table, so should be run with the
+     * maintenance tasks rather than on reads.
+     *
+     * @return true when the sums matched
+     */
+    public boolean verifyOffsetConsistencySum(long offset) {
+        return withWriteConnection(connection -> {
+            final long checkpointed = getOffsetConsistencySumFromCheckpoint(offset, connection);
+            final long summed = getOffsetConsistencySumBasedOn(offset, connection);
+            if (checkpointed == summed) {
+                return true;
+            }
+
+            LOG.error(
+                "verifyOffsetConsistencySum",
+                "offset consistency sum differs from events sum, rebuilding",
+                "offset " + offset + ": " + checkpointed + " != " + summed
+            );
+            connection.setAutoCommit(false);
+            try {
+                rebuildOffsetConsistency(connection);
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+            return false;
+        });
+    }
+
     private int calculateRetryAfter(final int messageCount) {
         return messageCount > 0 ? 0 : retryAfterMs;
     }
@@ -178,7 +326,7 @@ public class SQLiteStorage implements DistributedStorage {
             return getMaxOffsetInPreviousHour(ZonedDateTime.now(ZoneId.of("UTC")));
         }
 
-        try(Connection connection = dataSource.getConnection()) {
+        try(Connection connection = readDataSource.getConnection()) {
             return getOffset(connection, offsetName);
         } catch (SQLException exception) {
             throw new RuntimeException(exception);
@@ -187,12 +335,18 @@ public class SQLiteStorage implements DistributedStorage {
 
     @Override
     public void write(final Iterable<Message> messages) {
+        if (writer != null) {
+            write(messages, Collections.emptyList(), null);
+            return;
+        }
+        final long[] latestOffset = { NO_OFFSET };
         execute(SQLiteQueries.INSERT_EVENT,
             (connection, statement) -> {
                 connection.setAutoCommit(false);
-                insertMessagesAsBatch(statement, messages);
+                latestOffset[0] = insertMessagesAsBatch(statement, messages).latestOffset;
                 connection.commit();
             });
+        notifyOffsetListeners(latestOffset[0]);
     }
 
     @Override
@@ -201,6 +355,20 @@ public class SQLiteStorage implements DistributedStorage {
             throw new IllegalArgumentException("Pipe entity data cannot be null.");
         }
 
+        write(pipeEntity.getMessages(), pipeEntity.getOffsets(), pipeEntity.getPipeState());
+    }
+
+    /**
+     * Messages are bound into the insert batch as they are iterated and the batch is executed every
+     * {@link #INSERT_BATCH_SIZE} messages, so only that many are held at once, all within one transaction.
+     */
+    @Override
+    public void write(final Iterable<Message> messages, final List<OffsetEntity> offsets, final PipeState pipeState) {
+        if (writer != null) {
+            join(writeAsync(messages, offsets, pipeState));
+            return;
+        }
+
         Connection connection = null;
 
         try {
@@ -213,23 +381,14 @@ public class SQLiteStorage implements DistributedStorage {
                 // Start transaction
                 connection.setAutoCommit(false);
 
-                // Insert messages
-                if (pipeEntity.getMessages() != null && !pipeEntity.getMessages().isEmpty()) {
-                    insertMessagesAsBatch(insertMessageStmt, pipeEntity.getMessages());
-                }
-
-                // Insert offsets
-                if (pipeEntity.getOffsets() != null && !pipeEntity.getOffsets().isEmpty()) {
-                    upsertOffsetsAsBatch(upsertOffsetStmt, pipeEntity.getOffsets());
-                }
-
-                // Insert pipe state
-                if (pipeEntity.getPipeState() != null) {
-                    upsertPipeState(upsertPipeStateStmt, pipeEntity.getPipeState());
-                }
+                final SQLiteWriter.Write.Result written = applyWrite(
+                    insertMessageStmt, upsertOffsetStmt, upsertPipeStateStmt, messages, offsets, pipeState
+                );
 
                 // commit transaction
                 connection.commit();
+
+                notifyOffsetListeners(written.latestOffset);
             }
         } catch (final Exception exception) { // Catch all exceptions so that data is rolled back and connection's mode is reset
             rollback(connection);
@@ -240,6 +399,52 @@ public class SQLiteStorage implements DistributedStorage {
         }
     }
 
+    /**
+     * Queues the write with the writer when there is one, otherwise writes straight away. Messages are iterated on
+     * the writer's thread, so they have to be kept open until the write completes.
+     */
+    @Override
+    public CompletableFuture<Void> writeAsync(
+        final Iterable<Message> messages,
+        final List<OffsetEntity> offsets,
+        final PipeState pipeState
+    ) {
+        if (writer == null) {
+            return DistributedStorage.super.writeAsync(messages, offsets, pipeState);
+        }
+        return writer
+            .submit(statements -> applyWrite(
+                statements.insertEvent, statements.upsertOffset, statements.upsertPipeState, messages, offsets, pipeState
+            ))
+            .thenAccept(this::notifyOffsetListeners);
+    }
+
+    private SQLiteWriter.Write.Result applyWrite(
+        final PreparedStatement insertMessageStmt,
+        final PreparedStatement upsertOffsetStmt,
+        final PreparedStatement upsertPipeStateStmt,
+        final Iterable<Message> messages,
+        final List<OffsetEntity> offsets,
+        final PipeState pipeState
+    ) throws SQLException {
+        // Insert messages
+        SQLiteWriter.Write.Result written = new SQLiteWriter.Write.Result(NO_OFFSET, 0);
+        if (messages != null) {
+            written = insertMessagesAsBatch(insertMessageStmt, messages);
+        }
+
+        // Insert offsets
+        if (offsets != null && !offsets.isEmpty()) {
+            upsertOffsetsAsBatch(upsertOffsetStmt, offsets);
+        }
+
+        // Insert pipe state
+        if (pipeState != null) {
+            upsertPipeState(upsertPipeStateStmt, pipeState);
+        }
+        return written;
+    }
+
     private void close(Connection connection) {
         try {
             if (connection != null) {
@@ -285,12 +490,28 @@ public class SQLiteStorage implements DistributedStorage {
         insertOffsetStmt.executeBatch();
     }
 
-    private void insertMessagesAsBatch(PreparedStatement insertMessageStmt, Iterable<Message> messages) throws SQLException {
+    /**
+     * @return the highest offset inserted, {@link #NO_OFFSET} when there were no messages, and how many there were
+     */
+    private SQLiteWriter.Write.Result insertMessagesAsBatch(PreparedStatement insertMessageStmt, Iterable<Message> messages) throws SQLException {
+        long latestOffset = NO_OFFSET;
+        long count = 0;
+        int batched = 0;
         for (final Message message : messages) {
             setStatementParametersForInsertMessageQuery(insertMessageStmt, message);
             insertMessageStmt.addBatch();
+            latestOffset = Math.max(latestOffset, message.getOffset());
+            count++;
+
+            if (++batched == INSERT_BATCH_SIZE) {
+                insertMessageStmt.executeBatch();
+                batched = 0;
+            }
         }
-        insertMessageStmt.executeBatch();
+        if (batched > 0) {
+            insertMessageStmt.executeBatch();
+        }
+        return new SQLiteWriter.Write.Result(latestOffset, count);
     }
 
     private void setStatementParametersForOffsetQuery(PreparedStatement insertOffsetStmt, OffsetEntity offset) throws SQLException {
@@ -301,6 +522,10 @@ public class SQLiteStorage implements DistributedStorage {
 
     @Override
     public void write(final Message message) {
+        if (writer != null) {
+            write(Collections.singletonList(message), Collections.emptyList(), null);
+            return;
+        }
         execute(
             SQLiteQueries.INSERT_EVENT,
             (connection, statement) -> {
@@ -308,10 +533,15 @@ public class SQLiteStorage implements DistributedStorage {
                 statement.execute();
             }
         );
+        offsetListeners.advance(message.getOffset());
     }
 
     @Override
     public void write(OffsetEntity offset) {
+        if (writer != null) {
+            write(Collections.emptyList(), Collections.singletonList(offset), null);
+            return;
+        }
         execute(
             SQLiteQueries.UPSERT_OFFSET,
             (connection, statement) -> {
@@ -323,6 +553,10 @@ public class SQLiteStorage implements DistributedStorage {
 
     @Override
     public void write(PipeState pipeState) {
+        if (writer != null) {
+            write(Collections.emptyList(), Collections.emptyList(), pipeState);
+            return;
+        }
         execute(
             SQLiteQueries.UPSERT_PIPE_STATE,
             ((connection, statement) -> {
@@ -331,24 +565,48 @@ public class SQLiteStorage implements DistributedStorage {
         );
     }
 
+    /**
+     * Listeners are called with the latest offset stored straight away, then after every write of messages.
+     */
+    @Override
+    public boolean addOffsetListener(LongConsumer listener) {
+        listener.accept(getLatestEventOffset());
+        offsetListeners.add(listener);
+        return true;
+    }
+
+    private long getLatestEventOffset() {
+        try (Connection connection = readDataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SQLiteQueries.LATEST_EVENT_OFFSET)) {
+            return queryResult(statement);
+        } catch (SQLException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private void notifyOffsetListeners(long latestOffset) {
+        if (latestOffset != NO_OFFSET) {
+            offsetListeners.advance(latestOffset);
+        }
+    }
+
     @Override
     public void runVisibilityCheck() {
         runIntegrityCheck();
     }
 
     private void runIntegrityCheck() {
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement statement = connection.prepareStatement(SQLiteQueries.QUICK_INTEGRITY_CHECK)) {
-            try (ResultSet resultSet = statement.executeQuery()) {
+        withWriteConnection(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.QUICK_INTEGRITY_CHECK);
+                 ResultSet resultSet = statement.executeQuery()) {
                 String result = resultSet.getString(1);
                 if (!result.equals("ok")) {
                     LOG.error("integrity check", "integrity check failed", result);
                     reindex(connection);
                 }
             }
-        } catch (SQLException exception) {
-            throw new RuntimeException(exception);
-        }
+            return null;
+        });
     }
 
     private void reindex(Connection connection) {
@@ -360,6 +618,14 @@ public class SQLiteStorage implements DistributedStorage {
         }
     }
 
+    private long getOffsetConsistencySumFromCheckpoint(long offsetThreshold, Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.OFFSET_CONSISTENCY_SUM_FROM_CHECKPOINT)) {
+            statement.setLong(1, offsetThreshold);
+            statement.setLong(2, offsetThreshold);
+            return queryResult(statement);
+        }
+    }
+
     private long getOffsetConsistencySumBasedOn(long offsetThreshold, Connection connection) throws SQLException {
         try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.OFFSET_CONSISTENCY_SUM)) {
             statement.setLong(1, offsetThreshold);
@@ -369,7 +635,7 @@ public class SQLiteStorage implements DistributedStorage {
     }
 
     private OptionalLong getMaxOffsetInPreviousHour(ZonedDateTime currentTime) {
-        try (Connection connection = dataSource.getConnection();
+        try (Connection connection = readDataSource.getConnection();
              PreparedStatement statement = connection.prepareStatement(SQLiteQueries.CHOOSE_MAX_OFFSET)) {
             Timestamp threshold = Timestamp.valueOf(currentTime.withMinute(0).withSecond(0).withNano(0).toLocalDateTime());
             statement.setTimestamp(1, threshold);
@@ -396,7 +662,7 @@ public class SQLiteStorage implements DistributedStorage {
 
     @Override
     public Long getMaxOffsetForConsumers(List<String> types) {
-        try (Connection connection = dataSource.getConnection();
+        try (Connection connection = readDataSource.getConnection();
             PreparedStatement statement = connection.prepareStatement(maxOffsetForConsumersQuery(types.size()))) {
 
             for (int i = 0; i < types.size(); i++) {
@@ -425,29 +691,58 @@ public class SQLiteStorage implements DistributedStorage {
         T apply(Connection connection, PreparedStatement statement) throws SQLException;
     }
 
+    /**
+     * Ordered after the writes already queued with the writer, when there is one.
+     */
     @Override
     public void deleteAll() {
-        try (Connection connection = dataSource.getConnection()){
+        withWriteConnection(connection -> {
+            // emptied first, so the triggers of the events deleted have nothing to update
+            executeAll(connection, SQLiteQueries.DELETE_OFFSET_CONSISTENCY, SQLiteQueries.DELETE_OFFSET_CONSISTENCY_CHECKPOINTS);
             deleteEvents(connection);
             deleteOffsets(connection);
             deletePipeState(connection);
+            deleteKeyLatestOffsets(connection);
             vacuumDatabase(connection);
             checkpointWalFile(connection);
-        } catch (SQLException exception) {
-            throw new RuntimeException(exception);
-        }
+            return null;
+        });
     }
 
     public void runMaintenanceTasks() {
-        try (Connection connection = dataSource.getConnection()) {
+        withWriteConnection(connection -> {
             vacuumDatabase(connection);
             checkpointWalFile(connection);
             fullIntegrityCheck(connection);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the task on the writer's connection when there is a writer, so it neither waits on nor races with the
+     * writes queued before it, otherwise on a connection of its own.
+     */
+    private <T> T withWriteConnection(final SQLiteWriter.Task<T> task) {
+        if (writer != null) {
+            return join(writer.execute(task));
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            return task.run(connection);
         } catch (SQLException exception) {
             throw new RuntimeException(exception);
         }
     }
 
+    private static <T> T join(final CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException exception) {
+            throw exception.getCause() instanceof RuntimeException
+                ? (RuntimeException) exception.getCause()
+                : new RuntimeException(exception.getCause());
+        }
+    }
+
     private void deleteOffsets(Connection connection) throws SQLException {
         try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.DELETE_OFFSETS)) {
             statement.execute();
@@ -469,6 +764,12 @@ public class SQLiteStorage implements DistributedStorage {
         }
     }
 
+    private void deleteKeyLatestOffsets(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.DELETE_KEY_LATEST_OFFSETS)) {
+            statement.execute();
+        }
+    }
+
     private void vacuumDatabase(Connection connection) throws SQLException {
         try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.VACUUM_DB)) {
             statement.execute();
@@ -490,19 +791,22 @@ public class SQLiteStorage implements DistributedStorage {
         }
     }
 
+    /**
+     * Events created up to the compaction threshold are compacted in chunks, see {@link KeyedCompaction}, deletions
+     * created up to the deletion compaction threshold are then removed in one transaction.
+     */
     public void compactUpTo(
         final ZonedDateTime compactionThreshold,
         final ZonedDateTime deletionCompactionThreshold,
         final boolean compactDeletions
     ) {
-        try (Connection connection = dataSource.getConnection()) {
-            runCompactionInTransaction(compactionThreshold, deletionCompactionThreshold, connection, compactDeletions);
-        } catch (SQLException exception) {
-            throw new RuntimeException(exception);
-        }
+        withWriteConnection(connection -> {
+            runCompaction(compactionThreshold, deletionCompactionThreshold, connection, compactDeletions);
+            return null;
+        });
     }
 
-    private void runCompactionInTransaction(
+    private void runCompaction(
         ZonedDateTime compactionThreshold,
         ZonedDateTime deletionCompactionThreshold,
         Connection connection,
@@ -510,7 +814,7 @@ public class SQLiteStorage implements DistributedStorage {
     ) throws SQLException {
         connection.setAutoCommit(false);
         try {
-            int compactedCount = compactMessagesOlderThan(compactionThreshold, connection);
+            long compactedCount = compaction.compactUpTo(connection, utcTimestamp(compactionThreshold));
             int deletionCompactedCount = 0;
 
             if (compactionDeletions) {
@@ -526,34 +830,33 @@ public class SQLiteStorage implements DistributedStorage {
     }
 
     private int compactDeletionsOlderThan(ZonedDateTime deletionCompactionThreshold, Connection connection) throws SQLException {
+        Timestamp deletionCompactThreshold = utcTimestamp(deletionCompactionThreshold);
+
+        // deleted keys are forgotten, so they don't hold on to offsets that are gone
+        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.DELETE_COMPACTED_DELETIONS_LATEST_OFFSETS)) {
+            statement.setTimestamp(1, deletionCompactThreshold);
+            statement.executeUpdate();
+        }
+
         try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.COMPACT_DELETIONS)) {
-            Timestamp deletionCompactThreshold = Timestamp.valueOf(deletionCompactionThreshold.withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime());
             statement.setTimestamp(1, deletionCompactThreshold);
             return statement.executeUpdate();
         }
     }
 
-    private int compactMessagesOlderThan(ZonedDateTime compactionThreshold, Connection connection) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(SQLiteQueries.COMPACT)) {
-            Timestamp compactThreshold = Timestamp.valueOf(compactionThreshold.withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime());
-            statement.setTimestamp(1, compactThreshold);
-            statement.setTimestamp(2, compactThreshold);
-            return statement.executeUpdate();
-        }
+    private Timestamp utcTimestamp(ZonedDateTime dateTime) {
+        return Timestamp.valueOf(dateTime.withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime());
     }
 
     private void setStatementParametersForInsertMessageQuery(
             final PreparedStatement statement, final Message message) throws SQLException {
-        try {
-            statement.setLong(1, message.getOffset());
-            statement.setString(2, message.getKey());
-            statement.setString(3, message.getContentType());
-            statement.setString(4, message.getType());
-            statement.setTimestamp(5, Timestamp.valueOf(message.getCreated().withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime()));
-            statement.setString(6, message.getData());
-            statement.setInt(7, JsonHelper.toJson(message).length());
-        } catch (IOException exception) {
-            throw new UncheckedIOException(exception);
-        }
+        statement.setLong(1, message.getOffset());
+        statement.setString(2, message.getKey());
+        statement.setString(3, message.getContentType());
+        statement.setString(4, message.getType());
+        statement.setTimestamp(5, Timestamp.valueOf(message.getCreated().withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime()));
+        statement.setString(6, message.getData());
+        // same as the length of the message as JSON, without serializing it again
+        statement.setInt(7, JsonHelper.jsonLength(message));
     }
 }
\ No newline at end of file
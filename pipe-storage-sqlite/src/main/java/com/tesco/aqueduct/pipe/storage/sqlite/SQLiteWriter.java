@@ -0,0 +1,287 @@
+package com.tesco.aqueduct.pipe.storage.sqlite;
+
+import com.tesco.aqueduct.pipe.logger.PipeLogger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies writes on a single thread and connection, committing the writes queued together in one transaction, so
+ * they share one sync of the database. A group is committed once it holds the max group size of messages, once the
+ * max delay passed since its first write, or once no more writes are queued. Writes are queued up to the max queued,
+ * writers wait for space beyond that. Each write is applied within its own savepoint, so a failing write is rolled back
+ * on its own and the rest of its group is still committed. Statements are prepared once on the writer's connection and reused.
+ * Tasks such as maintenance run on the writer's connection too, in the order they were queued with the writes, so they
+ * never wait on the writer's lock of the database.
+ */
+public class SQLiteWriter implements AutoCloseable {
+
+    private static final PipeLogger LOG = new PipeLogger(LoggerFactory.getLogger(SQLiteWriter.class));
+
+    private final DataSource dataSource;
+    private final int maxGroupSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Queued<?>> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public SQLiteWriter(final DataSource dataSource, final int maxGroupSize, final Duration maxDelay, final int maxQueued) {
+        this.dataSource = dataSource;
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.queue = new ArrayBlockingQueue<>(maxQueued);
+        this.thread = new Thread(this::run, "sqlite-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return completes with the highest offset written once the write is committed
+     */
+    CompletableFuture<Long> submit(final Write write) {
+        return enqueue(new Queued<>(write, null));
+    }
+
+    /**
+     * Runs the task on the writer's connection once the writes queued before it are committed. The task is given the
+     * connection in auto commit mode and has to commit its own transactions, anything left uncommitted is rolled back.
+     */
+    <T> CompletableFuture<T> execute(final Task<T> task) {
+        return enqueue(new Queued<>(null, task));
+    }
+
+    private <T> CompletableFuture<T> enqueue(final Queued<T> queued) {
+        try {
+            if (!running) {
+                throw new IllegalStateException("SQLite writer is closed");
+            }
+            queue.put(queued);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            queued.result.completeExceptionally(exception);
+        } catch (RuntimeException exception) {
+            queued.result.completeExceptionally(exception);
+        }
+        return queued.result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        try (Connection connection = dataSource.getConnection()) {
+            // readers on other connections don't wait for writes in WAL mode
+            try (PreparedStatement journalMode = connection.prepareStatement(SQLiteQueries.JOURNAL_MODE_WAL)) {
+                journalMode.execute();
+            }
+            connection.setAutoCommit(false);
+
+            try (Statements statements = new Statements(connection)) {
+                while (running) {
+                    Queued<?> next = queue.poll(1, TimeUnit.SECONDS);
+                    while (next != null) {
+                        if (next.isTask()) {
+                            runTask(connection, next);
+                            next = null;
+                        } else {
+                            next = commitGroup(connection, statements, (Queued<Long>) next);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException | RuntimeException exception) {
+            LOG.error("sqlite writer", "writer stopped", exception);
+        } finally {
+            running = false;
+            final SQLException closed = new SQLException("SQLite writer is closed");
+            final List<Queued<?>> remaining = new ArrayList<>();
+            queue.drainTo(remaining);
+            remaining.forEach(queued -> queued.result.completeExceptionally(closed));
+        }
+    }
+
+    private <T> void runTask(final Connection connection, final Queued<T> queued) throws SQLException {
+        // statements such as vacuum can't run within the transaction the writes are kept in
+        connection.setAutoCommit(true);
+        try {
+            queued.result.complete(queued.task.run(connection));
+        } catch (SQLException | RuntimeException exception) {
+            queued.result.completeExceptionally(exception);
+        } finally {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * @return the task that ended the group, to run once the group is committed
+     */
+    @SuppressWarnings("unchecked")
+    private Queued<?> commitGroup(final Connection connection, final Statements statements, final Queued<Long> first) {
+        final List<Queued<Long>> group = new ArrayList<>();
+        final List<Long> latestOffsets = new ArrayList<>();
+        final long deadline = System.nanoTime() + maxDelayNanos;
+        Queued<?> task = null;
+
+        try {
+            Queued<Long> next = first;
+            long size = 0;
+            while (next != null) {
+                final Savepoint savepoint = connection.setSavepoint();
+                try {
+                    final Write.Result result = next.write.apply(statements);
+                    connection.releaseSavepoint(savepoint);
+                    group.add(next);
+                    latestOffsets.add(result.latestOffset);
+                    size += result.messageCount;
+                } catch (SQLException | RuntimeException exception) {
+                    next.result.completeExceptionally(exception);
+                    rollbackTo(connection, statements, savepoint);
+                }
+
+                if (size >= maxGroupSize) {
+                    break;
+                }
+                Queued<?> polled = queue.poll();
+                if (polled == null && maxDelayNanos > 0) {
+                    polled = pollUntil(deadline);
+                }
+                if (polled != null && polled.isTask()) {
+                    task = polled;
+                    break;
+                }
+                next = (Queued<Long>) polled;
+            }
+            connection.commit();
+        } catch (SQLException | RuntimeException exception) {
+            rollback(connection, statements);
+            group.forEach(write -> write.result.completeExceptionally(exception));
+            return task;
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).result.complete(latestOffsets.get(i));
+        }
+        return task;
+    }
+
+    private Queued<?> pollUntil(final long deadline) {
+        try {
+            return queue.poll(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exception) {
+            // the group is still committed, the writer stops after it
+            Thread.currentThread().interrupt();
+            running = false;
+            return null;
+        }
+    }
+
+    /**
+     * Undoes the failed write, so the writes applied before it in the group are kept.
+     */
+    private void rollbackTo(final Connection connection, final Statements statements, final Savepoint savepoint) throws SQLException {
+        statements.clearBatches();
+        connection.rollback(savepoint);
+        connection.releaseSavepoint(savepoint);
+    }
+
+    private void rollback(final Connection connection, final Statements statements) {
+        try {
+            statements.clearBatches();
+            connection.rollback();
+        } catch (SQLException exception) {
+            LOG.error("sqlite writer", "Could not rollback group commit.", exception);
+        }
+    }
+
+    /**
+     * Stops taking writes, waiting for the group being committed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A write applied within the transaction of its group.
+     */
+    interface Write {
+        Result apply(Statements statements) throws SQLException;
+
+        class Result {
+            final long latestOffset;
+            final long messageCount;
+
+            Result(final long latestOffset, final long messageCount) {
+                this.latestOffset = latestOffset;
+                this.messageCount = messageCount;
+            }
+        }
+    }
+
+    static class Statements implements AutoCloseable {
+        final PreparedStatement insertEvent;
+        final PreparedStatement upsertOffset;
+        final PreparedStatement upsertPipeState;
+
+        Statements(final Connection connection) throws SQLException {
+            this.insertEvent = connection.prepareStatement(SQLiteQueries.INSERT_EVENT);
+            this.upsertOffset = connection.prepareStatement(SQLiteQueries.UPSERT_OFFSET);
+            this.upsertPipeState = connection.prepareStatement(SQLiteQueries.UPSERT_PIPE_STATE);
+        }
+
+        void clearBatches() throws SQLException {
+            insertEvent.clearBatch();
+            upsertOffset.clearBatch();
+            upsertPipeState.clearBatch();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            insertEvent.close();
+            upsertOffset.close();
+            upsertPipeState.close();
+        }
+    }
+
+    /**
+     * Work run on the writer's connection outside of the group commits.
+     */
+    interface Task<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private static class Queued<T> {
+        private final Write write;
+        private final Task<T> task;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Queued(final Write write, final Task<T> task) {
+            this.write = write;
+            this.task = task;
+        }
+
+        boolean isTask() {
+            return task != null;
+        }
+    }
+}
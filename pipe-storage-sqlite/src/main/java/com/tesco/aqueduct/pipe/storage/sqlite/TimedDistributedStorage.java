@@ -1,11 +1,14 @@
 package com.tesco.aqueduct.pipe.storage.sqlite;
 
 import com.tesco.aqueduct.pipe.api.*;
+import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 
 import java.util.List;
 import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
 
 public class TimedDistributedStorage implements DistributedStorage {
     private final DistributedStorage storage;
@@ -50,6 +53,22 @@ public class TimedDistributedStorage implements DistributedStorage {
         writeMessagesTimer.record(() -> storage.write(pipeEntity));
     }
 
+    @Override
+    public void write(final Iterable<Message> messages, final List<OffsetEntity> offsets, final PipeState pipeState) {
+        writeMessagesTimer.record(() -> storage.write(messages, offsets, pipeState));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(
+        final Iterable<Message> messages,
+        final List<OffsetEntity> offsets,
+        final PipeState pipeState
+    ) {
+        final Timer.Sample sample = Timer.start(Clock.SYSTEM);
+        return storage.writeAsync(messages, offsets, pipeState)
+            .whenComplete((result, throwable) -> sample.stop(writeMessagesTimer));
+    }
+
     @Override
     public void write(final Message message) {
         writeMessagesTimer.record(() -> storage.write(message));
@@ -79,4 +98,9 @@ public class TimedDistributedStorage implements DistributedStorage {
     public Long getMaxOffsetForConsumers(List<String> types) {
         return storage.getMaxOffsetForConsumers(types);
     }
+
+    @Override
+    public boolean addOffsetListener(LongConsumer listener) {
+        return storage.addOffsetListener(listener);
+    }
 }
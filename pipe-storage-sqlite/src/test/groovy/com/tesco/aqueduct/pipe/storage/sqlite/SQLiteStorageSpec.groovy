@@ -8,6 +8,7 @@ import javax.sql.DataSource
 import java.sql.Connection
 import java.sql.DriverManager
 import java.sql.PreparedStatement
+import java.sql.ResultSet
 import java.sql.SQLException
 import java.time.ZoneId
 import java.time.ZonedDateTime
@@ -59,6 +60,8 @@ class SQLiteStorageSpec extends Specification {
             DriverManager.getConnection(connectionUrl) >>
             DriverManager.getConnection(connectionUrl) >>
             DriverManager.getConnection(connectionUrl) >>
+            DriverManager.getConnection(connectionUrl) >>
+            DriverManager.getConnection(connectionUrl) >>
             {throw new SQLException()}
         sqliteStorage = new SQLiteStorage(dataSource, limit, 10, batchSize)
 
@@ -77,6 +80,8 @@ class SQLiteStorageSpec extends Specification {
             DriverManager.getConnection(connectionUrl) >>
             DriverManager.getConnection(connectionUrl) >>
             DriverManager.getConnection(connectionUrl) >>
+            DriverManager.getConnection(connectionUrl) >>
+            DriverManager.getConnection(connectionUrl) >>
             {throw new SQLException()}
         sqliteStorage = new SQLiteStorage(dataSource, limit, 10, batchSize)
 
@@ -95,6 +100,8 @@ class SQLiteStorageSpec extends Specification {
             DriverManager.getConnection(connectionUrl) >>
             DriverManager.getConnection(connectionUrl) >>
             DriverManager.getConnection(connectionUrl) >>
+            DriverManager.getConnection(connectionUrl) >>
+            DriverManager.getConnection(connectionUrl) >>
             {throw new SQLException()}
         sqliteStorage = new SQLiteStorage(dataSource, limit, 10, batchSize)
 
@@ -113,6 +120,8 @@ class SQLiteStorageSpec extends Specification {
             DriverManager.getConnection(connectionUrl),
             DriverManager.getConnection(connectionUrl),
             DriverManager.getConnection(connectionUrl),
+            DriverManager.getConnection(connectionUrl),
+            DriverManager.getConnection(connectionUrl),
             DriverManager.getConnection(connectionUrl)
         ]
 
@@ -225,6 +234,63 @@ class SQLiteStorageSpec extends Specification {
         thrown(IllegalArgumentException)
     }
 
+    def "offset listeners are called with the latest stored offset and then with each newer offset written"() {
+        given:
+        sqliteStorage.write([message(1), message(2)])
+        def offsets = []
+
+        when:
+        def added = sqliteStorage.addOffsetListener({ offsets << it })
+        sqliteStorage.write([message(3), message(4)])
+        sqliteStorage.write(message(5))
+
+        then:
+        added
+        offsets == [2L, 4L, 5L]
+    }
+
+    def "messages are written as they are iterated, with offsets and pipe state, in one transaction"() {
+        given: "more messages than are batched at once, that can only be iterated once"
+        def messages = (1..1200).collect { message(it) }.iterator()
+        Iterable<Message> stream = { messages } as Iterable<Message>
+
+        when:
+        sqliteStorage.write(stream, [new OffsetEntity(GLOBAL_LATEST_OFFSET, OptionalLong.of(1500))], PipeState.UP_TO_DATE)
+
+        then:
+        eventCount() == 1200
+        sqliteStorage.getOffset(GLOBAL_LATEST_OFFSET) == OptionalLong.of(1500)
+        sqliteStorage.getPipeState() == PipeState.UP_TO_DATE
+    }
+
+    def "nothing is written when iterating messages fails part way"() {
+        given:
+        def messages = (1..600).collect { message(it) }.iterator()
+        Iterable<Message> stream = {
+            [
+                hasNext: { messages.hasNext() || true },
+                next   : { if (messages.hasNext()) { messages.next() } else { throw new RuntimeException("broken stream") } }
+            ] as Iterator<Message>
+        } as Iterable<Message>
+
+        when:
+        sqliteStorage.write(stream, [], null)
+
+        then:
+        thrown(RuntimeException)
+        eventCount() == 0
+    }
+
+    long eventCount() {
+        def connection = DriverManager.getConnection(connectionUrl)
+        try {
+            def resultSet = connection.createStatement().executeQuery("SELECT count(*) FROM EVENT")
+            return resultSet.getLong(1)
+        } finally {
+            connection.close()
+        }
+    }
+
     def "running management tasks attempt vacuum, checkpoint and run integrity check onto sqlite storage"() {
         given: "mock datasource"
         def dataSource = Mock(DataSource)
@@ -233,7 +299,9 @@ class SQLiteStorageSpec extends Specification {
 
         and: "data source giving out connection on demand"
         dataSource.getConnection() >>> [
-            // first four calls are for setting up database schema
+            // first six calls are for setting up database schema
+            DriverManager.getConnection(connectionUrl),
+            DriverManager.getConnection(connectionUrl),
             DriverManager.getConnection(connectionUrl),
             DriverManager.getConnection(connectionUrl),
             DriverManager.getConnection(connectionUrl),
@@ -275,6 +343,8 @@ class SQLiteStorageSpec extends Specification {
                 DriverManager.getConnection(connectionUrl),
                 DriverManager.getConnection(connectionUrl),
                 DriverManager.getConnection(connectionUrl),
+                DriverManager.getConnection(connectionUrl),
+                DriverManager.getConnection(connectionUrl),
                 connection,
             ]
         sqliteStorage = new SQLiteStorage(dataSource, limit, 10, batchSize)
@@ -292,12 +362,12 @@ class SQLiteStorageSpec extends Specification {
         exception.getMessage() == "Error while fetching max offset for consumers"
     }
 
-    def "nothing is committed in compactUpTo if either compactMessages throws an exception"() {
+    def "nothing is committed in compactUpTo if a compaction chunk throws an exception"() {
         given: "mocked datasource"
         dataSource = Mock(DataSource)
         def connection = Mock(Connection)
-        def compactMessagesStatement = Mock(PreparedStatement)
-        def compactDeletionsStatement = Mock(PreparedStatement)
+        def watermarkStatement = Mock(PreparedStatement)
+        def compactionChunkStatement = Mock(PreparedStatement)
 
         dataSource.getConnection() >>>
             [
@@ -305,18 +375,20 @@ class SQLiteStorageSpec extends Specification {
                 DriverManager.getConnection(connectionUrl),
                 DriverManager.getConnection(connectionUrl),
                 DriverManager.getConnection(connectionUrl),
+                DriverManager.getConnection(connectionUrl),
+                DriverManager.getConnection(connectionUrl),
                 connection
             ]
 
         sqliteStorage = new SQLiteStorage(dataSource, limit, 10, batchSize)
 
-        and: "exception thrown during compact messages"
-        connection.prepareStatement(SQLiteQueries.COMPACT) >> compactMessagesStatement
-        compactMessagesStatement.executeUpdate() >> { throw new SQLException() }
+        and: "no watermark persisted yet"
+        connection.prepareStatement(SQLiteQueries.GET_OFFSET_VALUE) >> watermarkStatement
+        watermarkStatement.executeQuery() >> Mock(ResultSet)
 
-        and: "no exception thrown during compact deletions"
-        connection.prepareStatement(SQLiteQueries.COMPACT_DELETIONS) >> compactDeletionsStatement
-        compactDeletionsStatement.executeUpdate() >>  1L
+        and: "exception thrown reading the compaction chunk"
+        connection.prepareStatement(SQLiteQueries.COMPACTION_CHUNK) >> compactionChunkStatement
+        compactionChunkStatement.executeQuery() >> { throw new SQLException() }
 
         when:
         sqliteStorage.compactUpTo(ZonedDateTime.now(), ZonedDateTime.now(), true)
@@ -332,11 +404,13 @@ class SQLiteStorageSpec extends Specification {
         1 * connection.rollback()
     }
 
-    def "nothing is committed in compactUpTo if either compactDeletions throws an exception"() {
+    def "deletions compaction is rolled back in compactUpTo if compactDeletions throws an exception"() {
         given: "mocked datasource"
         dataSource = Mock(DataSource)
         def connection = Mock(Connection)
-        def compactMessagesStatement = Mock(PreparedStatement)
+        def watermarkStatement = Mock(PreparedStatement)
+        def compactionChunkStatement = Mock(PreparedStatement)
+        def deletedKeysStatement = Mock(PreparedStatement)
         def compactDeletionsStatement = Mock(PreparedStatement)
 
         dataSource.getConnection() >>>
@@ -345,16 +419,22 @@ class SQLiteStorageSpec extends Specification {
                 DriverManager.getConnection(connectionUrl),
                 DriverManager.getConnection(connectionUrl),
                 DriverManager.getConnection(connectionUrl),
+                DriverManager.getConnection(connectionUrl),
+                DriverManager.getConnection(connectionUrl),
                 connection
             ]
 
         sqliteStorage = new SQLiteStorage(dataSource, limit, 10, batchSize)
 
-        and: "no exception thrown during compact messages"
-        connection.prepareStatement(SQLiteQueries.COMPACT) >> compactMessagesStatement
-        compactMessagesStatement.executeUpdate() >> 1L
+        and: "no events to compact by key"
+        connection.prepareStatement(SQLiteQueries.GET_OFFSET_VALUE) >> watermarkStatement
+        watermarkStatement.executeQuery() >> Mock(ResultSet)
+        connection.prepareStatement(SQLiteQueries.COMPACTION_CHUNK) >> compactionChunkStatement
+        compactionChunkStatement.executeQuery() >> Mock(ResultSet)
 
         and: "exception thrown during compact deletions"
+        connection.prepareStatement(SQLiteQueries.DELETE_COMPACTED_DELETIONS_LATEST_OFFSETS) >> deletedKeysStatement
+        deletedKeysStatement.executeUpdate() >> 1
         connection.prepareStatement(SQLiteQueries.COMPACT_DELETIONS) >> compactDeletionsStatement
         compactDeletionsStatement.executeUpdate() >>  { throw new SQLException() }
 
@@ -365,8 +445,8 @@ class SQLiteStorageSpec extends Specification {
         def exception = thrown(RuntimeException)
         exception.getCause().class == SQLException
 
-        and:
-        0 * connection.commit()
+        and: "only the empty compaction chunk read is committed"
+        1 * connection.commit()
 
         and:
         1 * connection.rollback()
@@ -0,0 +1,138 @@
+package com.tesco.aqueduct.pipe.storage.sqlite
+
+import com.tesco.aqueduct.pipe.api.Message
+import com.tesco.aqueduct.pipe.api.OffsetEntity
+import com.tesco.aqueduct.pipe.api.PipeState
+import org.sqlite.SQLiteConfig
+import org.sqlite.SQLiteDataSource
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import static com.tesco.aqueduct.pipe.api.OffsetName.GLOBAL_LATEST_OFFSET
+
+class SQLiteWriterSpec extends Specification {
+
+    static final def connectionUrl = "jdbc:sqlite:aqueduct-pipe-writer.db"
+
+    SQLiteWriter writer
+    SQLiteStorage sqliteStorage
+
+    def setup() {
+        def dataSource = new SQLiteDataSource()
+        dataSource.setUrl(connectionUrl)
+
+        def readOnlyConfig = new SQLiteConfig()
+        readOnlyConfig.setReadOnly(true)
+        def readDataSource = new SQLiteDataSource(readOnlyConfig)
+        readDataSource.setUrl(connectionUrl)
+
+        new SQLiteStorage(dataSource, 1000, 10, 1000).deleteAll()
+
+        writer = new SQLiteWriter(dataSource, 1000, Duration.ofMillis(500), 10)
+        sqliteStorage = new SQLiteStorage(dataSource, readDataSource, writer, 1000, 10, 1000)
+    }
+
+    def cleanup() {
+        writer.close()
+    }
+
+    def "writes are committed through the writer and read from the read connections"() {
+        when:
+        def first = sqliteStorage.writeAsync([message(1), message(2)], [], null)
+        def second = sqliteStorage.writeAsync(
+            [message(3)], [new OffsetEntity(GLOBAL_LATEST_OFFSET, OptionalLong.of(3))], PipeState.UP_TO_DATE
+        )
+        first.get(5, TimeUnit.SECONDS)
+        second.get(5, TimeUnit.SECONDS)
+
+        then:
+        def results = sqliteStorage.read([], 1, "location")
+        results.messages*.offset == [1L, 2L, 3L]
+        results.globalLatestOffset == OptionalLong.of(3)
+        results.pipeState == PipeState.UP_TO_DATE
+    }
+
+    def "synchronous writes wait for their group to be committed"() {
+        when:
+        sqliteStorage.write(message(1))
+        sqliteStorage.write(new OffsetEntity(GLOBAL_LATEST_OFFSET, OptionalLong.of(1)))
+        sqliteStorage.write(PipeState.UP_TO_DATE)
+
+        then:
+        sqliteStorage.read([], 1, "location").messages*.offset == [1L]
+        sqliteStorage.getOffset(GLOBAL_LATEST_OFFSET) == OptionalLong.of(1)
+        sqliteStorage.getPipeState() == PipeState.UP_TO_DATE
+    }
+
+    def "a failing write is rolled back on its own and the rest of its group is committed"() {
+        when:
+        def good = sqliteStorage.writeAsync([message(1)], [], null)
+        def bad = sqliteStorage.writeAsync([message(2)], [new OffsetEntity(GLOBAL_LATEST_OFFSET, OptionalLong.empty())], null)
+        def after = sqliteStorage.writeAsync([message(3)], [], null)
+        bad.join()
+
+        then:
+        thrown(CompletionException)
+        good.get(5, TimeUnit.SECONDS) == null
+        after.get(5, TimeUnit.SECONDS) == null
+        sqliteStorage.read([], 1, "location").messages*.offset == [1L, 3L]
+    }
+
+    def "maintenance runs alongside concurrent writes without the database being busy"() {
+        given:
+        def executor = Executors.newFixedThreadPool(2)
+
+        when:
+        def writes = executor.submit({
+            (1..200).collect { offset -> sqliteStorage.writeAsync([message(offset)], [], null) }*.get(5, TimeUnit.SECONDS)
+        } as Callable)
+        def maintenance = executor.submit({
+            10.times {
+                sqliteStorage.runMaintenanceTasks()
+                sqliteStorage.compactUpTo(ZonedDateTime.now().minusDays(1), ZonedDateTime.now().minusDays(1), true)
+                sqliteStorage.runVisibilityCheck()
+            }
+        } as Callable)
+        writes.get(30, TimeUnit.SECONDS)
+        maintenance.get(30, TimeUnit.SECONDS)
+
+        then:
+        noExceptionThrown()
+        sqliteStorage.getMaxOffsetForConsumers(["type"]) == 200
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "deleting all is ordered after the writes queued before it"() {
+        when:
+        def written = sqliteStorage.writeAsync([message(1)], [], null)
+        sqliteStorage.deleteAll()
+
+        then:
+        written.get(5, TimeUnit.SECONDS) == null
+        sqliteStorage.read([], 1, "location").messages.isEmpty()
+    }
+
+    def "writes are rejected once the writer is closed"() {
+        given:
+        writer.close()
+
+        when:
+        sqliteStorage.write(message(1))
+
+        then:
+        thrown(RuntimeException)
+    }
+
+    static Message message(long offset) {
+        new Message("type", "key", "text/plain", offset, ZonedDateTime.now(ZoneId.of("UTC")), "data")
+    }
+}